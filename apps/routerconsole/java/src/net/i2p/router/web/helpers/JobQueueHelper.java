@@ -123,6 +123,7 @@ public class JobQueueHelper extends HelperBase {
         buf.append("<h3 id=\"totaljobstats\">")
            .append(_t("Total Job Statistics"))
            .append("</h3>\n");
+        getLaneStats(buf);
         getJobStats(buf);
         out.write(buf.toString());
     }
@@ -143,6 +144,31 @@ public class JobQueueHelper extends HelperBase {
         buf.append("</table>\n");
     }
 
+    /**
+     *  Render the HTML for the lane stats.
+     *  @since 0.9.40
+     */
+    private void getLaneStats(StringBuilder buf) {
+        long uptime = Math.max(1, _context.router().getUptime());
+        buf.append("<table id=\"lanestats\">\n" +
+                   "<tr><th>").append(_t("Lane")).append("</th><th>").append(_t("Runs")).append("</th>" +
+                   "<th>").append(_t("Runs per second")).append("</th>" +
+                   "<th>").append(_t("Avg")).append(' ').append(_t("Time")).append("</th>" +
+                   "<th>").append(_t("Avg")).append(' ').append(_t("Pending")).append("</th>" +
+                   "<th>").append(_t("Max")).append(' ').append(_t("Pending")).append("</th></tr>\n");
+        for (JobStats stats : _context.jobQueue().getLaneStats()) {
+            buf.append("<tr>");
+            buf.append("<td><b>").append(stats.getName()).append("</b></td>");
+            buf.append("<td align=\"right\">").append(stats.getRuns()).append("</td>");
+            buf.append("<td align=\"right\">").append(stats.getRuns() * 1000 / uptime).append("</td>");
+            buf.append("<td align=\"right\">").append(DataHelper.formatDuration2(stats.getAvgTime())).append("</td>");
+            buf.append("<td align=\"right\">").append(DataHelper.formatDuration2(stats.getAvgPendingTime())).append("</td>");
+            buf.append("<td align=\"right\">").append(DataHelper.formatDuration2(stats.getMaxPendingTime())).append("</td>");
+            buf.append("</tr>\n");
+        }
+        buf.append("</table><br>\n");
+    }
+
     /**
      *  Render the HTML for the job stats.
      *  Moved from JobQueue
@@ -11,6 +11,8 @@ import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeMap;
 
+import net.i2p.crypto.AESSelector;
+import net.i2p.crypto.CryptixAESEngine;
 import net.i2p.data.DataHelper;
 import net.i2p.router.RouterContext;
 import net.i2p.router.web.Messages;
@@ -65,6 +67,7 @@ public class StatsGenerator {
             //out.write(buf.toString());
             //buf.setLength(0);
         }
+        buf.append("<option value=\"#AES\">AES</option>\n");
         buf.append("</select> <input type=\"submit\" value=\"").append(_t("GO")).append("\" />");
         buf.append("</form>");
 
@@ -97,6 +100,8 @@ public class StatsGenerator {
             }
             out.write("</ul><br>\n");
         }
+        renderAES(buf);
+        out.write(buf.toString());
         out.write("</div>");
         out.flush();
     }
@@ -244,6 +249,48 @@ public class StatsGenerator {
                    "<br>\n");
     }
     
+    /**
+     *  The AES backend chosen for each size, and the benchmark results.
+     *  @since 0.9.40
+     */
+    private void renderAES(StringBuilder buf) {
+        AESSelector aes = CryptixAESEngine.getSelector(_context);
+        int[] sizes = AESSelector.getSizeClasses();
+        String[] names = aes.getBackendNames();
+        boolean measured = aes.isMeasured();
+        buf.append("<h3 class=\"stats\"><a name=\"AES\">AES</a></h3>\n");
+        if (!measured)
+            buf.append("<p>").append(_t("Not yet measured")).append("</p>\n");
+        buf.append("<table><tr><th>").append(_t("Size")).append("</th><th>").append(_t("Selected")).append("</th>");
+        if (measured) {
+            for (int j = 0; j < names.length; j++) {
+                buf.append("<th>").append(names[j]).append(" (MBps)</th>");
+            }
+        }
+        buf.append("</tr>\n");
+        for (int i = 0; i < sizes.length; i++) {
+            buf.append("<tr><td>");
+            if (i < sizes.length - 1)
+                buf.append(sizes[i]).append(" - ").append(sizes[i+1] - 1);
+            else
+                buf.append(sizes[i]).append('+');
+            buf.append("</td><td>").append(aes.getSelected(i)).append("</td>");
+            if (measured) {
+                for (int j = 0; j < names.length; j++) {
+                    float mbs = aes.getThroughput(i, j);
+                    buf.append("<td>");
+                    if (mbs > 0)
+                        buf.append(num(mbs));
+                    else
+                        buf.append("n/a");
+                    buf.append("</td>");
+                }
+            }
+            buf.append("</tr>\n");
+        }
+        buf.append("</table><br>\n");
+    }
+
     private static void renderPeriod(StringBuilder buf, long period, String name) {
         buf.append("<b>");
         buf.append(DataHelper.formatDuration2(period));
@@ -0,0 +1,89 @@
+package net.i2p.crypto;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.SessionKey;
+
+/**
+ * HMAC-MD5 (SSU) and HMAC-SHA256 (HKDF), with several threads,
+ * as the UDP packet handlers and NTCP2 pumper call them.
+ *
+ * Compare with the previous version by running against an older i2p.jar.
+ *
+ * @since 0.9.40
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@Threads(4)
+@State(Scope.Benchmark)
+public class HMACBench {
+    I2PAppContext ctx = I2PAppContext.getGlobalContext();
+    HKDF hkdf = new HKDF(ctx);
+
+    @Param({"32", "1024"})
+    public int len;
+
+    byte[] data;
+    byte[] key;
+    SessionKey skey;
+
+    @Setup
+    public void prepare() {
+        data = new byte[len];
+        ctx.random().nextBytes(data);
+        skey = ctx.keyGenerator().generateSessionKey();
+        key = skey.getData();
+    }
+
+    @State(Scope.Thread)
+    public static class Output {
+        byte[] out = new byte[32];
+    }
+
+    @Benchmark
+    public byte[] hmacMD5(Output o) {
+        ctx.hmac().calculate(skey, data, 0, len, o.out, 0);
+        return o.out;
+    }
+
+    @Benchmark
+    public byte[] hmacSHA256(Output o) {
+        ctx.hmac256().calculate(key, data, 0, len, o.out, 0);
+        return o.out;
+    }
+
+    @Benchmark
+    public byte[] hkdf(Output o) {
+        hkdf.calculate(key, data, o.out);
+        return o.out;
+    }
+
+    public static void main(String args[]) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(HMACBench.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -56,11 +56,13 @@ public class SHA256Bench {
     public int len;
 
     byte[] data;
+    byte[] out;
 
     @Setup
     public void prepare() {
         data = new byte[len];
         ctx.random().nextBytes(data);
+        out = new byte[Hash.HASH_LENGTH];
     }
 
     @Benchmark
@@ -68,6 +70,27 @@ public class SHA256Bench {
         return ctx.sha().calculateHash(data);
     }
 
+    /**
+     *  Into a caller-supplied buffer, no allocation
+     *  @since 0.9.40
+     */
+    @Benchmark
+    public byte[] calculateHashInto() {
+        ctx.sha().calculateHash(data, 0, len, out, 0);
+        return out;
+    }
+
+    /**
+     *  Two parts, as in the routing key, no allocation
+     *  @since 0.9.40
+     */
+    @Benchmark
+    public byte[] calculateHashTwoParts() {
+        int half = len / 2;
+        ctx.sha().calculateHash(data, 0, half, data, half, len - half, out, 0);
+        return out;
+    }
+
     public static void main(String args[]) throws RunnerException {
         Options opt = new OptionsBuilder()
                 .include(SHA256Bench.class.getSimpleName())
@@ -0,0 +1,111 @@
+package net.i2p.util;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.i2p.I2PAppContext;
+
+/**
+ *  Schedule and cancel churn, as in the streaming and SSU timeouts,
+ *  which are almost always rescheduled or cancelled before they fire.
+ *
+ *  @since 0.9.40
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SimpleTimer2Bench {
+
+    /** number of pending events */
+    @Param({"1000", "100000"})
+    public int events;
+
+    private SimpleTimer2 timer;
+    private SimpleTimer2.TimedEvent[] pending;
+
+    private static class Event extends SimpleTimer2.TimedEvent {
+        public Event(SimpleTimer2 pool) {
+            super(pool);
+        }
+
+        public void timeReached() {}
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        final Random rnd = new Random();
+    }
+
+    @Setup
+    public void prepare() {
+        timer = new SimpleTimer2(I2PAppContext.getGlobalContext(), "Bench", false);
+        pending = new SimpleTimer2.TimedEvent[events];
+        Random rnd = new Random();
+        for (int i = 0; i < events; i++) {
+            pending[i] = new Event(timer);
+            pending[i].schedule(60*1000 + rnd.nextInt(60*1000));
+        }
+    }
+
+    @TearDown
+    public void teardown() {
+        timer.stop();
+    }
+
+    /**
+     *  Move a pending event, like a retransmission timer on each ack
+     */
+    @Benchmark
+    @Threads(1)
+    public void forceReschedule(ThreadState ts) {
+        SimpleTimer2.TimedEvent ev = pending[ts.rnd.nextInt(events)];
+        ev.forceReschedule(60*1000 + ts.rnd.nextInt(60*1000));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void forceRescheduleContended(ThreadState ts) {
+        SimpleTimer2.TimedEvent ev = pending[ts.rnd.nextInt(events)];
+        ev.forceReschedule(60*1000 + ts.rnd.nextInt(60*1000));
+    }
+
+    /**
+     *  A new timeout that is cancelled, like a request that gets a reply
+     */
+    @Benchmark
+    @Threads(1)
+    public void scheduleCancel(ThreadState ts) {
+        SimpleTimer2.TimedEvent ev = new Event(timer);
+        ev.schedule(10*1000 + ts.rnd.nextInt(10*1000));
+        ev.cancel();
+    }
+
+    public static void main(String args[]) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(SimpleTimer2Bench.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
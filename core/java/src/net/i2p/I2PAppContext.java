@@ -14,6 +14,7 @@ import net.i2p.crypto.AESEngine;
 import net.i2p.crypto.CryptixAESEngine;
 import net.i2p.crypto.DSAEngine;
 import net.i2p.crypto.ElGamalEngine;
+import net.i2p.crypto.EphemeralKeyService;
 import net.i2p.crypto.HMAC256Generator;
 import net.i2p.crypto.HMACGenerator;
 import net.i2p.crypto.KeyGenerator;
@@ -73,6 +74,7 @@ public class I2PAppContext {
     protected SessionKeyManager _sessionKeyManager;
     private NamingService _namingService;
     private ElGamalEngine _elGamalEngine;
+    private EphemeralKeyService _ephemeralKeyService;
     private AESEngine _AESEngine;
     private LogManager _logManager;
     private HMACGenerator _hmac;
@@ -92,6 +94,7 @@ public class I2PAppContext {
     protected volatile boolean _sessionKeyManagerInitialized;
     private volatile boolean _namingServiceInitialized;
     private volatile boolean _elGamalEngineInitialized;
+    private volatile boolean _ephemeralKeyServiceInitialized;
     private volatile boolean _AESEngineInitialized;
     private volatile boolean _logManagerInitialized;
     private volatile boolean _hmacInitialized;
@@ -120,7 +123,8 @@ public class I2PAppContext {
                          _lock5 = new Object(), _lock7 = new Object(), _lock8 = new Object(),
                          _lock9 = new Object(), _lock10 = new Object(), _lock11 = new Object(), _lock12 = new Object(),
                          _lock13 = new Object(), _lock14 = new Object(), _lock16 = new Object(),
-                         _lock17 = new Object(), _lock18 = new Object(), _lock19 = new Object(), _lock20 = new Object();
+                         _lock17 = new Object(), _lock18 = new Object(), _lock19 = new Object(), _lock20 = new Object(),
+                         _lock21 = new Object();
 
     /**
      * Pull the default context, creating a new one if necessary, else using 
@@ -679,6 +683,26 @@ public class I2PAppContext {
         }
     }
 
+    /**
+     * The background precalculation service for ephemeral keys,
+     * shared by the ElGamal YK pool and the router's X25519 pool.
+     *
+     * @since 0.9.40
+     */
+    public EphemeralKeyService ephemeralKeyService() {
+        if (!_ephemeralKeyServiceInitialized)
+            initializeEphemeralKeyService();
+        return _ephemeralKeyService;
+    }
+
+    private void initializeEphemeralKeyService() {
+        synchronized (_lock21) {
+            if (_ephemeralKeyService == null)
+                _ephemeralKeyService = new EphemeralKeyService(this);
+            _ephemeralKeyServiceInitialized = true;
+        }
+    }
+
     /**
      * Ok, I'll admit it.  there is no good reason for having a context specific
      * AES engine.  We dont really keep stats on it, since its just too fast to
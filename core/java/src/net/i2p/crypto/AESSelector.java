@@ -0,0 +1,336 @@
+package net.i2p.crypto;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
+import net.i2p.data.SessionKey;
+import net.i2p.util.I2PThread;
+import net.i2p.util.Log;
+
+/**
+ *  Choose the fastest AES-256-CBC implementation for each size class,
+ *  by timing all the available backends in the background after startup.
+ *
+ *  Which implementation is fastest depends on the JVM, the CPU, and the
+ *  message size. The JVM's cipher uses AES-NI where available, but it has
+ *  a high per-call overhead, so Cryptix is usually faster for small messages.
+ *  We used to decide this with a CPUID check and a fixed threshold,
+ *  which failed when jcpuid was unavailable.
+ *
+ *  Until the benchmark completes, the initial choice from the constructor
+ *  is used. A backend is only used if its output matches the first backend
+ *  for a known input.
+ *
+ *  @since 0.9.40
+ */
+public final class AESSelector {
+    private final I2PAppContext _context;
+    private final Log _log;
+    /** the first is the default and is always available */
+    private final Backend[] _backends;
+    /** by size class */
+    private volatile Backend[] _choice;
+    /** MB/s, by size class and backend, 0 if not measured */
+    private final float[][] _throughput;
+    private volatile boolean _isMeasured;
+    private boolean _isStarted;
+
+    /** "auto" (default), or a backend name to always use it */
+    public static final String PROP_BACKEND = "crypto.aes.backend";
+    /** lower bounds, each class is measured at twice the lower bound */
+    private static final int[] SIZE_CLASSES = { 16, 64, 256, 1024, 4096 };
+    /** let the JIT and startup settle first */
+    private static final long START_DELAY = 30*1000;
+    private static final long WARMUP_TIME = 20;
+    private static final long RUN_TIME = 50;
+    private static final int ROUNDS = 3;
+
+    /**
+     *  One AES-256-CBC implementation.
+     *  Must be thread safe.
+     */
+    public static abstract class Backend {
+        public abstract String getName();
+
+        /**
+         *  @return false if unusable in this JVM
+         */
+        public abstract boolean isAvailable();
+
+        /**
+         *  @param length a multiple of 16, greater than zero
+         *  @throws GeneralSecurityException caller will fall back to the default
+         */
+        public abstract void encrypt(byte in[], int inIndex, byte out[], int outIndex, SessionKey key,
+                                     byte iv[], int ivOffset, int length) throws GeneralSecurityException;
+
+        /**
+         *  @param length a multiple of 16, greater than zero
+         *  @throws GeneralSecurityException caller will fall back to the default
+         */
+        public abstract void decrypt(byte in[], int inIndex, byte out[], int outIndex, SessionKey key,
+                                     byte iv[], int ivOffset, int length) throws GeneralSecurityException;
+
+        @Override
+        public String toString() {
+            return getName();
+        }
+    }
+
+    /**
+     *  @param backends the first is the default, must be available
+     *  @param initial the choice to use until benchmarked, one of the backends
+     *                 for each of getSizeClasses()
+     */
+    public AESSelector(I2PAppContext ctx, Backend[] backends, Backend[] initial) {
+        if (initial.length != SIZE_CLASSES.length)
+            throw new IllegalArgumentException();
+        _context = ctx;
+        _log = ctx.logManager().getLog(AESSelector.class);
+        _backends = backends;
+        _throughput = new float[SIZE_CLASSES.length][backends.length];
+        String prop = ctx.getProperty(PROP_BACKEND, "auto");
+        Backend forced = null;
+        if (!prop.equals("auto")) {
+            for (Backend b : backends) {
+                if (b.getName().equalsIgnoreCase(prop)) {
+                    if (b == backends[0] || (b.isAvailable() && isCorrect(b)))
+                        forced = b;
+                    break;
+                }
+            }
+            if (forced == null)
+                _log.logAlways(Log.WARN, "AES backend " + prop + " unavailable");
+        }
+        if (forced != null) {
+            Backend[] choice = new Backend[SIZE_CLASSES.length];
+            Arrays.fill(choice, forced);
+            _choice = choice;
+            // don't bother benchmarking
+            _isStarted = true;
+        } else {
+            _choice = initial;
+        }
+    }
+
+    /**
+     *  Start the benchmark thread, if not already started.
+     */
+    public synchronized void startBenchmark() {
+        if (_isStarted)
+            return;
+        _isStarted = true;
+        int count = 0;
+        for (int i = 1; i < _backends.length; i++) {
+            if (_backends[i].isAvailable())
+                count++;
+        }
+        if (count <= 0) {
+            // nothing to choose from
+            Backend[] choice = new Backend[SIZE_CLASSES.length];
+            Arrays.fill(choice, _backends[0]);
+            _choice = choice;
+            return;
+        }
+        I2PThread t = new I2PThread(new Benchmark(), "AES Benchmark", true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    /**
+     *  @param length greater than zero
+     *  @return the backend to use for this length
+     */
+    public Backend getBackend(int length) {
+        return _choice[getSizeClass(length)];
+    }
+
+    /**
+     *  @return the default backend
+     */
+    public Backend getDefault() {
+        return _backends[0];
+    }
+
+    /**
+     *  @return index into getSizeClasses()
+     */
+    private static int getSizeClass(int length) {
+        for (int i = SIZE_CLASSES.length - 1; i > 0; i--) {
+            if (length >= SIZE_CLASSES[i])
+                return i;
+        }
+        return 0;
+    }
+
+    /**
+     *  @return lower bounds of the size classes, in bytes, copy
+     */
+    public static int[] getSizeClasses() {
+        return SIZE_CLASSES.clone();
+    }
+
+    /**
+     *  For the console.
+     *
+     *  @return all the backend names, in order
+     */
+    public String[] getBackendNames() {
+        String[] rv = new String[_backends.length];
+        for (int i = 0; i < rv.length; i++) {
+            rv[i] = _backends[i].getName();
+        }
+        return rv;
+    }
+
+    /**
+     *  For the console.
+     *
+     *  @param sizeClass index into getSizeClasses()
+     *  @param backend index into getBackendNames()
+     *  @return MB/s or 0 if not measured or unavailable
+     */
+    public synchronized float getThroughput(int sizeClass, int backend) {
+        return _throughput[sizeClass][backend];
+    }
+
+    /**
+     *  For the console.
+     *
+     *  @param sizeClass index into getSizeClasses()
+     *  @return the name of the backend in use
+     */
+    public String getSelected(int sizeClass) {
+        return _choice[sizeClass].getName();
+    }
+
+    /**
+     *  @return true if the benchmark has completed
+     */
+    public boolean isMeasured() {
+        return _isMeasured;
+    }
+
+    /**
+     *  Compare to the default backend, in both directions.
+     */
+    private boolean isCorrect(Backend b) {
+        try {
+            byte[] k = new byte[SessionKey.KEYSIZE_BYTES];
+            byte[] iv = new byte[16 + 3];
+            byte[] data = new byte[96];
+            for (int i = 0; i < k.length; i++) {
+                k[i] = (byte) (i * 7);
+            }
+            for (int i = 0; i < iv.length; i++) {
+                iv[i] = (byte) (i * 13);
+            }
+            for (int i = 0; i < data.length; i++) {
+                data[i] = (byte) i;
+            }
+            byte[] expected = new byte[data.length];
+            byte[] result = new byte[data.length + 5];
+            _backends[0].encrypt(data, 0, expected, 0, new SessionKey(k), iv, 3, data.length);
+            b.encrypt(data, 0, result, 5, new SessionKey(k), iv, 3, data.length);
+            if (!DataHelper.eq(expected, 0, result, 5, data.length))
+                return false;
+            b.decrypt(result, 5, result, 5, new SessionKey(k), iv, 3, data.length);
+            return DataHelper.eq(data, 0, result, 5, data.length);
+        } catch (GeneralSecurityException gse) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("AES backend " + b + " failed", gse);
+            return false;
+        } catch (RuntimeException re) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("AES backend " + b + " failed", re);
+            return false;
+        }
+    }
+
+    private class Benchmark implements Runnable {
+        public void run() {
+            try {
+                Thread.sleep(START_DELAY);
+            } catch (InterruptedException ie) {
+                return;
+            }
+            boolean[] ok = new boolean[_backends.length];
+            ok[0] = true;
+            for (int i = 1; i < _backends.length; i++) {
+                ok[i] = _backends[i].isAvailable() && isCorrect(_backends[i]);
+            }
+            SessionKey key = _context.keyGenerator().generateSessionKey();
+            byte[] iv = new byte[16];
+            _context.random().nextBytes(iv);
+            byte[] buf = new byte[2 * SIZE_CLASSES[SIZE_CLASSES.length - 1]];
+            _context.random().nextBytes(buf);
+            float[][] results = new float[SIZE_CLASSES.length][_backends.length];
+            try {
+                // alternate, so that a busy period doesn't penalize a single backend
+                for (int r = 0; r < ROUNDS; r++) {
+                    for (int s = 0; s < SIZE_CLASSES.length; s++) {
+                        int len = 2 * SIZE_CLASSES[s];
+                        for (int i = 0; i < _backends.length; i++) {
+                            if (!ok[i])
+                                continue;
+                            float mbs = measure(_backends[i], key, iv, buf, len);
+                            if (mbs > results[s][i])
+                                results[s][i] = mbs;
+                        }
+                    }
+                }
+            } catch (GeneralSecurityException gse) {
+                _log.error("AES benchmark failed", gse);
+                return;
+            }
+            Backend[] choice = new Backend[SIZE_CLASSES.length];
+            StringBuilder buf2 = new StringBuilder(128);
+            for (int s = 0; s < SIZE_CLASSES.length; s++) {
+                int best = 0;
+                for (int i = 1; i < _backends.length; i++) {
+                    if (results[s][i] > results[s][best])
+                        best = i;
+                }
+                choice[s] = _backends[best];
+                buf2.append(' ').append(SIZE_CLASSES[s]).append(": ").append(choice[s]);
+            }
+            synchronized (AESSelector.this) {
+                for (int s = 0; s < SIZE_CLASSES.length; s++) {
+                    System.arraycopy(results[s], 0, _throughput[s], 0, _backends.length);
+                }
+            }
+            _choice = choice;
+            _isMeasured = true;
+            if (_log.shouldLog(Log.INFO))
+                _log.info("AES backends selected:" + buf2);
+        }
+
+        /**
+         *  Encrypt and decrypt in place.
+         *  @return MB/s
+         */
+        private float measure(Backend b, SessionKey key, byte[] iv, byte[] buf, int len)
+                                                       throws GeneralSecurityException {
+            long end = System.currentTimeMillis() + WARMUP_TIME;
+            while (System.currentTimeMillis() < end) {
+                b.encrypt(buf, 0, buf, 0, key, iv, 0, len);
+                b.decrypt(buf, 0, buf, 0, key, iv, 0, len);
+            }
+            long count = 0;
+            long start = System.nanoTime();
+            long stop = start + (RUN_TIME * 1000*1000);
+            long now;
+            do {
+                for (int i = 0; i < 16; i++) {
+                    b.encrypt(buf, 0, buf, 0, key, iv, 0, len);
+                    b.decrypt(buf, 0, buf, 0, key, iv, 0, len);
+                }
+                count += 32;
+            } while ((now = System.nanoTime()) < stop);
+            // bytes per microsecond == MB/s
+            return (count * len * 1000f) / (now - start);
+        }
+    }
+}
@@ -38,17 +38,50 @@ import net.i2p.util.SystemVersion;
  */
 public final class CryptixAESEngine extends AESEngine {
     private final static CryptixRijndael_Algorithm _algo = new CryptixRijndael_Algorithm();
+    private final AESSelector _selector;
     // keys are now cached in the SessionKey objects
     //private CryptixAESKeyCache _cache;
     
-    /** see test results below */
+    /** see test results below, used until the AESSelector benchmark completes */
     private static final int MIN_SYSTEM_AES_LENGTH = 704;
-    private static final boolean USE_SYSTEM_AES = hasAESNI() && CryptoCheck.isUnlimited();
+    /** is the system cipher usable at all, jcpuid not required */
+    private static final boolean USE_SYSTEM_AES = CryptoCheck.isUnlimited() &&
+                                                  !SystemVersion.isApache() && !SystemVersion.isGNU();
+
+    /**
+     *  Cipher.getInstance() is expensive, it goes through the provider lookup
+     *  every time, so we keep one per thread and just init() it for each call.
+     *  The tunnel code calls us for every layer of every message from
+     *  several threads at once, so a shared cipher would need locking.
+     *  Value is null if the system cipher is unavailable.
+     *
+     *  @since 0.9.40
+     */
+    private static final ThreadLocal<Cipher> _systemCipher = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            if (!USE_SYSTEM_AES)
+                return null;
+            try {
+                return Cipher.getInstance("AES/CBC/NoPadding");
+            } catch (GeneralSecurityException gse) {
+                return null;
+            }
+        }
+    };
+
+    /**
+     *  One per JVM, as the results don't depend on the context.
+     *  @since 0.9.40
+     */
+    private static AESSelector _globalSelector;
 
     /**
      *  Do we have AES-NI support in the processor and JVM?
      *  Only on 64-bit x86 Java 7 fast JVMs, with AES-NI support.
      *  See comments in main() below.
+     *  As of 0.9.40, only used for the initial choice until the AESSelector
+     *  benchmark completes.
      *  @since 0.9.14
      */
     private static boolean hasAESNI() {
@@ -68,6 +101,28 @@ public final class CryptixAESEngine extends AESEngine {
     public CryptixAESEngine(I2PAppContext context) {
         super(context);
         //_cache = new CryptixAESKeyCache();
+        _selector = getSelector(context);
+        _selector.startBenchmark();
+    }
+
+    /**
+     *  The backends, and the results of the benchmark, for the console.
+     *
+     *  @since 0.9.40
+     */
+    public static synchronized AESSelector getSelector(I2PAppContext context) {
+        if (_globalSelector == null) {
+            AESSelector.Backend cryptix = new CryptixBackend();
+            AESSelector.Backend system = new SystemBackend(context);
+            int[] classes = AESSelector.getSizeClasses();
+            AESSelector.Backend[] initial = new AESSelector.Backend[classes.length];
+            boolean aesni = USE_SYSTEM_AES && hasAESNI();
+            for (int i = 0; i < initial.length; i++) {
+                initial[i] = aesni && classes[i] >= MIN_SYSTEM_AES_LENGTH ? system : cryptix;
+            }
+            _globalSelector = new AESSelector(context, new AESSelector.Backend[] { cryptix, system }, initial);
+        }
+        return _globalSelector;
     }
     
     /**
@@ -102,27 +157,32 @@ public final class CryptixAESEngine extends AESEngine {
         if (length % 16 != 0) 
             throw new IllegalArgumentException("Only lengths mod 16 are supported here");
 
-        if (USE_SYSTEM_AES && length >= MIN_SYSTEM_AES_LENGTH) {
+        AESSelector.Backend backend = _selector.getBackend(length);
+        if (backend != _selector.getDefault()) {
             try {
-                SecretKeySpec key = new SecretKeySpec(sessionKey.getData(), "AES");
-                IvParameterSpec ivps = new IvParameterSpec(iv, ivOffset, 16);
-                Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
-                cipher.init(Cipher.ENCRYPT_MODE, key, ivps, _context.random());
-                cipher.doFinal(payload, payloadIndex, length, out, outIndex);
+                backend.encrypt(payload, payloadIndex, out, outIndex, sessionKey, iv, ivOffset, length);
                 return;
             } catch (GeneralSecurityException gse) {
                 if (_log.shouldLog(Log.WARN))
-                    _log.warn("Java encrypt fail", gse);
+                    _log.warn(backend + " encrypt fail", gse);
             }
         }
+        cryptixEncrypt(payload, payloadIndex, out, outIndex, sessionKey, iv, ivOffset, length);
+    }
 
+    /**
+     *  @since 0.9.40 split out of encrypt()
+     */
+    private static void cryptixEncrypt(byte payload[], int payloadIndex, byte out[], int outIndex,
+                                       SessionKey sessionKey, byte iv[], int ivOffset, int length) {
         int numblock = length / 16;
+        Object pkey = prepareKey(sessionKey);
         
         DataHelper.xor(iv, ivOffset, payload, payloadIndex, out, outIndex, 16);
-        encryptBlock(out, outIndex, sessionKey, out, outIndex);
+        CryptixRijndael_Algorithm.blockEncrypt(out, out, outIndex, outIndex, pkey);
         for (int x = 1; x < numblock; x++) {
             DataHelper.xor(out, outIndex + (x-1) * 16, payload, payloadIndex + x * 16, out, outIndex + x * 16, 16);
-            encryptBlock(out, outIndex + x * 16, sessionKey, out, outIndex + x * 16);
+            CryptixRijndael_Algorithm.blockEncrypt(out, out, outIndex + x * 16, outIndex + x * 16, pkey);
         }
     }
     
@@ -149,27 +209,34 @@ public final class CryptixAESEngine extends AESEngine {
             throw new IllegalArgumentException("out is too small (out.length=" + out.length 
                                                + " outIndex=" + outIndex + " length=" + length);
 
-        if (USE_SYSTEM_AES && length >= MIN_SYSTEM_AES_LENGTH) {
-            try {
-                SecretKeySpec key = new SecretKeySpec(sessionKey.getData(), "AES");
-                IvParameterSpec ivps = new IvParameterSpec(iv, ivOffset, 16);
-                Cipher cipher = Cipher.getInstance("AES/CBC/NoPadding");
-                cipher.init(Cipher.DECRYPT_MODE, key, ivps, _context.random());
-                cipher.doFinal(payload, payloadIndex, length, out, outIndex);
-                return;
-            } catch (GeneralSecurityException gse) {
-                if (_log.shouldLog(Log.WARN))
-                    _log.warn("Java decrypt fail", gse);
-            }
-        }
-
-        int numblock = length / 16;
         if (length % 16 != 0) {
             // may not work, it will overrun payload length and could AIOOBE
-            numblock++;
             if (_log.shouldLog(Log.WARN))
                 _log.warn("not %16 " + length, new Exception());
+        } else if (length > 0) {
+            AESSelector.Backend backend = _selector.getBackend(length);
+            if (backend != _selector.getDefault()) {
+                try {
+                    backend.decrypt(payload, payloadIndex, out, outIndex, sessionKey, iv, ivOffset, length);
+                    return;
+                } catch (GeneralSecurityException gse) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn(backend + " decrypt fail", gse);
+                }
+            }
         }
+        cryptixDecrypt(payload, payloadIndex, out, outIndex, sessionKey, iv, ivOffset, length);
+    }
+
+    /**
+     *  @since 0.9.40 split out of decrypt()
+     */
+    private static void cryptixDecrypt(byte payload[], int payloadIndex, byte out[], int outIndex,
+                                       SessionKey sessionKey, byte iv[], int ivOffset, int length) {
+        int numblock = length / 16;
+        if (length % 16 != 0)
+            numblock++;
+        Object pkey = prepareKey(sessionKey);
 
         byte prev[] = SimpleByteCache.acquire(16);
         byte cur[] = SimpleByteCache.acquire(16);
@@ -177,7 +244,7 @@ public final class CryptixAESEngine extends AESEngine {
         
         for (int x = 0; x < numblock; x++) {
             System.arraycopy(payload, payloadIndex, cur, 0, 16);
-            decryptBlock(payload, payloadIndex, sessionKey, out, outIndex);
+            CryptixRijndael_Algorithm.blockDecrypt(payload, out, payloadIndex, outIndex, pkey);
             payloadIndex += 16;
             //DataHelper.xor(out, outIndex + x * 16, prev, 0, out, outIndex + x * 16, 16);
             for (int i = 0; i < 16; i++) {
@@ -249,6 +316,82 @@ public final class CryptixAESEngine extends AESEngine {
 
         CryptixRijndael_Algorithm.blockDecrypt(payload, rv, inIndex, outIndex, pkey);
     }
+
+    /**
+     *  @throws IllegalArgumentException on invalid key
+     *  @since 0.9.40
+     */
+    private static Object prepareKey(SessionKey sessionKey) {
+        Object pkey = sessionKey.getPreparedKey();
+        if (pkey == null) {
+            try {
+                pkey = CryptixRijndael_Algorithm.makeKey(sessionKey.getData(), 16);
+                sessionKey.setPreparedKey(pkey);
+            } catch (InvalidKeyException ike) {
+                throw new IllegalArgumentException("invalid key?  " + ike.getMessage());
+            }
+        }
+        return pkey;
+    }
+
+    /**
+     *  The Java implementation, always available.
+     *  @since 0.9.40
+     */
+    private static class CryptixBackend extends AESSelector.Backend {
+        public String getName() { return "Cryptix"; }
+
+        public boolean isAvailable() { return true; }
+
+        public void encrypt(byte in[], int inIndex, byte out[], int outIndex, SessionKey key,
+                            byte iv[], int ivOffset, int length) {
+            cryptixEncrypt(in, inIndex, out, outIndex, key, iv, ivOffset, length);
+        }
+
+        public void decrypt(byte in[], int inIndex, byte out[], int outIndex, SessionKey key,
+                            byte iv[], int ivOffset, int length) {
+            cryptixDecrypt(in, inIndex, out, outIndex, key, iv, ivOffset, length);
+        }
+    }
+
+    /**
+     *  The JVM's cipher, which uses AES-NI where available.
+     *  @since 0.9.40
+     */
+    private static class SystemBackend extends AESSelector.Backend {
+        private final I2PAppContext _ctx;
+
+        public SystemBackend(I2PAppContext ctx) {
+            _ctx = ctx;
+        }
+
+        public String getName() { return "JCE"; }
+
+        public boolean isAvailable() {
+            return USE_SYSTEM_AES && _systemCipher.get() != null;
+        }
+
+        public void encrypt(byte in[], int inIndex, byte out[], int outIndex, SessionKey key,
+                            byte iv[], int ivOffset, int length) throws GeneralSecurityException {
+            doFinal(Cipher.ENCRYPT_MODE, in, inIndex, out, outIndex, key, iv, ivOffset, length);
+        }
+
+        public void decrypt(byte in[], int inIndex, byte out[], int outIndex, SessionKey key,
+                            byte iv[], int ivOffset, int length) throws GeneralSecurityException {
+            doFinal(Cipher.DECRYPT_MODE, in, inIndex, out, outIndex, key, iv, ivOffset, length);
+        }
+
+        private void doFinal(int mode, byte in[], int inIndex, byte out[], int outIndex, SessionKey key,
+                             byte iv[], int ivOffset, int length) throws GeneralSecurityException {
+            Cipher cipher = _systemCipher.get();
+            if (cipher == null)
+                throw new GeneralSecurityException("unavailable");
+            SecretKeySpec keyspec = new SecretKeySpec(key.getData(), "AES");
+            IvParameterSpec ivps = new IvParameterSpec(iv, ivOffset, 16);
+            cipher.init(mode, keyspec, ivps, _ctx.random());
+            cipher.doFinal(in, inIndex, length, out, outIndex);
+        }
+    }
     
 /******
     private static final int MATCH_RUNS = 11000;
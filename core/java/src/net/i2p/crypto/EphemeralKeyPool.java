@@ -0,0 +1,198 @@
+package net.i2p.crypto;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.I2PAppContext;
+
+/**
+ *  A pool of precalculated ephemeral keys, refilled in the background
+ *  by the EphemeralKeyService.
+ *
+ *  The pool sizes itself from observed demand. Every second, the service
+ *  tells the pool how many keys were taken. We keep a moving average of
+ *  the rate, and the target size is enough keys to cover COVER_SECONDS
+ *  at that rate, between the configured min and max.
+ *  A miss (empty pool) raises the target immediately, so a burst
+ *  is covered the next time.
+ *
+ *  If the service is not running (unit tests, or before start()),
+ *  all keys are generated inline.
+ *
+ *  @since 0.9.40
+ */
+public abstract class EphemeralKeyPool<T> {
+    protected final I2PAppContext _context;
+    private final String _name;
+    private final int _min;
+    private final int _max;
+    private final int _delay;
+    private final LinkedBlockingQueue<T> _keys;
+    private final String _usedStat;
+    private final String _emptyStat;
+    private final String _targetStat;
+    private final AtomicInteger _usedThisPeriod = new AtomicInteger();
+    private final AtomicInteger _missedThisPeriod = new AtomicInteger();
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private volatile int _target;
+    /** keys per second, moving average, only accessed by the service tick */
+    private double _rate;
+    private volatile EphemeralKeyService _service;
+
+    /** how many seconds of demand to keep ready */
+    private static final int COVER_SECONDS = 30;
+    /** moving average weight of the latest second */
+    private static final double RATE_ALPHA = 0.05;
+
+    /**
+     *  @param name for stats and thread names, e.g. "YK" or "XDH"
+     *  @param min the pool target never goes below this; 0 to disable precalculation
+     *  @param max the pool never goes above this
+     *  @param delay relief delay after each key when the pool is not low (ms)
+     */
+    protected EphemeralKeyPool(I2PAppContext ctx, String name, int min, int max, int delay) {
+        _context = ctx;
+        _name = name;
+        _min = Math.max(0, min);
+        _max = Math.max(1, Math.max(_min, max));
+        _delay = delay;
+        _target = _min;
+        _keys = new LinkedBlockingQueue<T>(_max);
+        _usedStat = "crypto." + name + "Used";
+        _emptyStat = "crypto." + name + "Empty";
+        _targetStat = "crypto." + name + "PoolTarget";
+        ctx.statManager().createRateStat(_usedStat, "Need a " + name + " from the queue", "Encryption", new long[] { 60*60*1000 });
+        ctx.statManager().createRateStat(_emptyStat, name + " queue empty", "Encryption", new long[] { 60*60*1000 });
+        ctx.statManager().createRateStat(_targetStat, name + " pool target size", "Encryption", new long[] { 60*1000, 60*60*1000 });
+    }
+
+    /**
+     *  Generate a new key. Must be thread safe.
+     */
+    protected abstract T generate();
+
+    /**
+     *  Start background precalculation, if min is greater than zero.
+     */
+    public void start() {
+        if (_min <= 0)
+            return;
+        EphemeralKeyService svc = _context.ephemeralKeyService();
+        _service = svc;
+        svc.register(this);
+    }
+
+    /**
+     *  Stop background precalculation and clear the pool.
+     *  Can be restarted.
+     */
+    public void shutdown() {
+        EphemeralKeyService svc = _service;
+        _service = null;
+        if (svc != null)
+            svc.unregister(this);
+        _keys.clear();
+    }
+
+    /**
+     *  Pulls a precalculated key from the pool,
+     *  or if not available, generates a new one.
+     */
+    public T get() {
+        _context.statManager().addRateData(_usedStat, 1);
+        _usedThisPeriod.incrementAndGet();
+        T rv = _keys.poll();
+        if (rv != null) {
+            _hits.incrementAndGet();
+            return rv;
+        }
+        _misses.incrementAndGet();
+        _missedThisPeriod.incrementAndGet();
+        _context.statManager().addRateData(_emptyStat, 1);
+        EphemeralKeyService svc = _service;
+        if (svc != null)
+            svc.wakeup();
+        return generate();
+    }
+
+    /**
+     *  Return an unused key to the pool.
+     *  @return true if added, false if full
+     */
+    public boolean returnUnused(T key) {
+        return _keys.offer(key);
+    }
+
+    public String getName() { return _name; }
+
+    public int getSize() { return _keys.size(); }
+
+    /** the current target size, between min and max */
+    public int getTarget() { return _target; }
+
+    /** since startup */
+    public long getHits() { return _hits.get(); }
+
+    /** since startup */
+    public long getMisses() { return _misses.get(); }
+
+    /**
+     *  @return hit rate since startup, 0 to 1, or 1 if never used
+     */
+    public double getHitRate() {
+        long hits = _hits.get();
+        long total = hits + _misses.get();
+        return total > 0 ? hits / (double) total : 1.0d;
+    }
+
+    /**
+     *  Called by the service every period to update the target.
+     */
+    void tick(long periodMs) {
+        int used = _usedThisPeriod.getAndSet(0);
+        int missed = _missedThisPeriod.getAndSet(0);
+        double rate = used * 1000d / Math.max(1, periodMs);
+        _rate = (RATE_ALPHA * rate) + ((1 - RATE_ALPHA) * _rate);
+        int target = (int) Math.ceil(_rate * COVER_SECONDS);
+        // we missed, don't wait for the average to catch up
+        if (missed > 0)
+            target = Math.max(target, _target + (2 * missed));
+        target = Math.max(_min, Math.min(_max, target));
+        if (target != _target) {
+            _target = target;
+            _context.statManager().addRateData(_targetStat, target);
+        }
+    }
+
+    /**
+     *  How urgently do we need more keys?
+     *  @return size / target, or more than 1 if we don't need any
+     */
+    float getFill() {
+        int target = _target;
+        if (target <= 0)
+            return 2f;
+        return _keys.size() / (float) target;
+    }
+
+    /** relief delay after each key when the pool is not low (ms) */
+    int getDelay() { return _delay; }
+
+    /**
+     *  Generate one key and add it to the pool.
+     *  @return false if the pool was full
+     */
+    boolean refillOne() {
+        if (_keys.size() >= _max)
+            return false;
+        return _keys.offer(generate());
+    }
+
+    @Override
+    public String toString() {
+        return "Key pool " + _name + " size " + getSize() + " target " + _target + " (" + _min + '-' + _max +
+               ") hits " + _hits + " misses " + _misses;
+    }
+}
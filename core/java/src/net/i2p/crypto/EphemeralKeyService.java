@@ -0,0 +1,190 @@
+package net.i2p.crypto;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.OperatingSystemMXBean;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.I2PThread;
+import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
+
+/**
+ *  Background precalculation for all the EphemeralKeyPools in the context,
+ *  replacing the separate YK and XDH precalc threads.
+ *
+ *  The first refill thread always runs, at low priority, and fills
+ *  the pool with the lowest fill ratio first. Additional threads only
+ *  work while the system load average shows idle cores, so a burst
+ *  of demand can be covered quickly without competing with the router
+ *  when the CPU is busy.
+ *
+ *  Threads are started when the first pool is registered and
+ *  stopped when the last one is unregistered.
+ *
+ *  @since 0.9.40
+ */
+public class EphemeralKeyService {
+    private final I2PAppContext _context;
+    private final Log _log;
+    private final List<EphemeralKeyPool<?>> _pools;
+    private final int _numThreads;
+    private final OperatingSystemMXBean _os;
+    private final int _cores;
+    private final Object _lock = new Object();
+    private volatile boolean _isRunning;
+    /** incremented each start, so old threads exit */
+    private volatile int _generation;
+
+    /** number of refill threads */
+    public static final String PROP_THREADS = "crypto.precalc.threads";
+    private static final int MAX_THREADS = 4;
+    /** demand sampling period */
+    private static final long TICK = 1000;
+
+    public EphemeralKeyService(I2PAppContext ctx) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(EphemeralKeyService.class);
+        _pools = new CopyOnWriteArrayList<EphemeralKeyPool<?>>();
+        _cores = SystemVersion.getCores();
+        int def = Math.max(1, Math.min(MAX_THREADS, _cores / 2));
+        _numThreads = Math.max(1, Math.min(MAX_THREADS, ctx.getProperty(PROP_THREADS, def)));
+        OperatingSystemMXBean os;
+        try {
+            os = ManagementFactory.getOperatingSystemMXBean();
+        } catch (Throwable t) {
+            // Android etc.
+            os = null;
+        }
+        _os = os;
+    }
+
+    /**
+     *  Start refilling this pool. Starts the threads if necessary.
+     */
+    public synchronized void register(EphemeralKeyPool<?> pool) {
+        if (_pools.contains(pool))
+            return;
+        _pools.add(pool);
+        if (!_isRunning) {
+            _isRunning = true;
+            int gen = ++_generation;
+            for (int i = 0; i < _numThreads; i++) {
+                I2PThread t = new I2PThread(new Refiller(i, gen), "Key Precalc " + (i+1) + '/' + _numThreads, true);
+                t.setPriority(Thread.NORM_PRIORITY - 2);
+                t.start();
+            }
+        }
+        wakeup();
+    }
+
+    /**
+     *  Stop refilling this pool. Stops the threads if it was the last one.
+     */
+    public synchronized void unregister(EphemeralKeyPool<?> pool) {
+        _pools.remove(pool);
+        if (_pools.isEmpty() && _isRunning) {
+            _isRunning = false;
+            wakeup();
+        }
+    }
+
+    /**
+     *  A pool ran dry, start refilling now
+     */
+    void wakeup() {
+        synchronized (_lock) {
+            _lock.notifyAll();
+        }
+    }
+
+    /**
+     *  @return the registered pools, for the console
+     */
+    public List<EphemeralKeyPool<?>> getPools() {
+        return _pools;
+    }
+
+    /**
+     *  Are there idle cores for the extra threads?
+     *  Always true if we can't tell.
+     */
+    private boolean hasIdleCores(int thread) {
+        if (_os == null)
+            return true;
+        double load = _os.getSystemLoadAverage();
+        if (load < 0)
+            return true;
+        return load + thread < _cores;
+    }
+
+    /**
+     *  @return the pool with the lowest fill ratio below 1, or null
+     */
+    private EphemeralKeyPool<?> neediest() {
+        EphemeralKeyPool<?> rv = null;
+        float min = 1f;
+        for (EphemeralKeyPool<?> pool : _pools) {
+            float fill = pool.getFill();
+            if (fill < min) {
+                min = fill;
+                rv = pool;
+            }
+        }
+        return rv;
+    }
+
+    private class Refiller implements Runnable {
+        private final int _thread;
+        private final int _gen;
+
+        public Refiller(int thread, int gen) {
+            _thread = thread;
+            _gen = gen;
+        }
+
+        public void run() {
+            long lastTick = System.currentTimeMillis();
+            while (_isRunning && _gen == _generation) {
+                if (_thread == 0) {
+                    long now = System.currentTimeMillis();
+                    long period = now - lastTick;
+                    if (period >= TICK) {
+                        for (EphemeralKeyPool<?> pool : _pools) {
+                            pool.tick(period);
+                        }
+                        lastTick = now;
+                    }
+                }
+                EphemeralKeyPool<?> pool = null;
+                if (_thread == 0 || hasIdleCores(_thread))
+                    pool = neediest();
+                if (pool == null) {
+                    synchronized (_lock) {
+                        try {
+                            _lock.wait(TICK);
+                        } catch (InterruptedException ie) {}
+                    }
+                    continue;
+                }
+                try {
+                    if (!pool.refillOne())
+                        continue;
+                } catch (RuntimeException re) {
+                    _log.error("Error precalculating " + pool.getName(), re);
+                    continue;
+                }
+                // for some relief, unless we're low
+                if (pool.getFill() > 0.5f) {
+                    int delay = pool.getDelay();
+                    if (delay > 0) {
+                        try {
+                            Thread.sleep(delay);
+                        } catch (InterruptedException ie) {}
+                    }
+                }
+            }
+        }
+    }
+}
@@ -25,6 +25,25 @@ import org.bouncycastle.oldcrypto.macs.I2PHMac;
  */
 public final class HMAC256Generator extends HMACGenerator {
 
+    /**
+     *  Mac.getInstance() is a slow provider lookup, and HKDF calls us
+     *  several times for each NTCP2 handshake and tunnel build record,
+     *  so keep one per thread and init() it for each call.
+     *  Value is null if unavailable.
+     *
+     *  @since 0.9.40
+     */
+    private final ThreadLocal<Mac> _macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance("HmacSHA256");
+            } catch (NoSuchAlgorithmException e) {
+                return null;
+            }
+        }
+    };
+
     /**
      *  @param context unused
      */
@@ -77,15 +96,44 @@ public final class HMAC256Generator extends HMACGenerator {
      *  @since 0.9.38
      */
     public void calculate(byte[] key, byte data[], int offset, int length, byte target[], int targetOffset) {
+        Mac mac = _macs.get();
+        if (mac == null)
+            throw new UnsupportedOperationException("HmacSHA256");
         try {
-            Mac mac = Mac.getInstance("HmacSHA256");
             SecretKey keyObj = new HMACKey(key);
             mac.init(keyObj);
             mac.update(data, offset, length);
             mac.doFinal(target, targetOffset);
-        } catch (NoSuchAlgorithmException e) {
-            throw new UnsupportedOperationException("HmacSHA256", e);
         } catch (GeneralSecurityException e) {
+            // clear any partial state for the next caller on this thread
+            mac.reset();
+            throw new IllegalArgumentException("HmacSHA256", e);
+        }
+    }
+    
+    /**
+     *  Calculate the HMAC of data || data2 with the given key,
+     *  without copying them together.
+     *  Outputs 32 bytes to target starting at targetOffset.
+     *
+     *  @throws UnsupportedOperationException if the JVM does not support it
+     *  @throws IllegalArgumentException for bad key or target too small
+     *  @since 0.9.40 overrides HMACGenerator
+     */
+    @Override
+    public void calculate(SessionKey key, byte data[], int offset, int length,
+                          byte data2[], int offset2, int length2,
+                          byte target[], int targetOffset) {
+        Mac mac = _macs.get();
+        if (mac == null)
+            throw new UnsupportedOperationException("HmacSHA256");
+        try {
+            mac.init(new HMACKey(key.getData()));
+            mac.update(data, offset, length);
+            mac.update(data2, offset2, length2);
+            mac.doFinal(target, targetOffset);
+        } catch (GeneralSecurityException e) {
+            mac.reset();
             throw new IllegalArgumentException("HmacSHA256", e);
         }
     }
@@ -3,7 +3,6 @@ package net.i2p.crypto;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.concurrent.LinkedBlockingQueue;
 
 // following are for main() tests
 //import java.security.InvalidKeyException;
@@ -42,15 +41,33 @@ import org.bouncycastle.oldcrypto.macs.I2PHMac;
  *
  */
 public class HMACGenerator {
-    /** set of available HMAC instances for calculate */
-    protected final LinkedBlockingQueue<I2PHMac> _available;
+
+    /**
+     *  One HMAC instance per thread, init()ed for each call.
+     *  Replaces the shared queue, which every SSU packet went through.
+     *
+     *  @since 0.9.40
+     */
+    private final ThreadLocal<I2PHMac> _macs = new ThreadLocal<I2PHMac>() {
+        @Override
+        protected I2PHMac initialValue() {
+            // the HMAC is hardcoded to use SHA256 digest size
+            // for backwards compatability.  next time we have a backwards
+            // incompatible change, we should update this by removing ", 32"
+            // SEE NOTES ABOVE
+            try {
+                MessageDigest md = MessageDigest.getInstance("MD5");
+                return new I2PHMac(md, 32);
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new UnsupportedOperationException("MD5");
+            }
+        }
+    };
     
     /**
      *  @param context unused
      */
-    public HMACGenerator(I2PAppContext context) {
-        _available = new LinkedBlockingQueue<I2PHMac>(32);
-    }
+    public HMACGenerator(I2PAppContext context) {}
     
     /**
      * Calculate the HMAC of the data with the given key
@@ -83,7 +100,27 @@ public class HMACGenerator {
         mac.init(key.getData());
         mac.update(data, offset, length);
         mac.doFinal(target, targetOffset);
-        release(mac);
+    }
+    
+    /**
+     * Calculate the HMAC of data || data2, without copying them together.
+     *
+     * @param target out parameter the first 16 bytes contain the HMAC, the last 16 bytes are zero
+     * @param targetOffset offset into target to put the hmac
+     * @throws IllegalArgumentException for bad key or target too small
+     * @since 0.9.40
+     */
+    public void calculate(SessionKey key, byte data[], int offset, int length,
+                          byte data2[], int offset2, int length2,
+                          byte target[], int targetOffset) {
+        if ((key == null) || (key.getData() == null) || (data == null) || (data2 == null))
+            throw new NullPointerException("Null arguments for HMAC");
+        
+        I2PHMac mac = acquire();
+        mac.init(key.getData());
+        mac.update(data, offset, length);
+        mac.update(data2, offset2, length2);
+        mac.doFinal(target, targetOffset);
     }
     
     /**
@@ -108,31 +145,37 @@ public class HMACGenerator {
         mac.update(curData, curOffset, curLength);
         byte rv[] = acquireTmp();
         mac.doFinal(rv, 0);
-        release(mac);
         
         boolean eq = DataHelper.eqCT(rv, 0, origMAC, origMACOffset, origMACLength);
         releaseTmp(rv);
         return eq;
     }
     
-    protected I2PHMac acquire() {
-        I2PHMac rv = _available.poll();
-        if (rv != null)
-            return rv;
-        // the HMAC is hardcoded to use SHA256 digest size
-        // for backwards compatability.  next time we have a backwards
-        // incompatible change, we should update this by removing ", 32"
-        // SEE NOTES ABOVE
-        try {
-            MessageDigest md = MessageDigest.getInstance("MD5");
-            return new I2PHMac(md, 32);
-        } catch (NoSuchAlgorithmException nsae) {
-            throw new UnsupportedOperationException("MD5");
-        }
+    /**
+     * Verify the MAC of data || data2, without copying them together.
+     *
+     * @param origMAC what do we expect the MAC of data || data2 to equal
+     * @param origMACOffset index into origMAC
+     * @param origMACLength how much of the MAC do we want to verify
+     * @throws IllegalArgumentException for bad key
+     * @since 0.9.40
+     */
+    public boolean verify(SessionKey key, byte data[], int offset, int length,
+                          byte data2[], int offset2, int length2,
+                          byte origMAC[], int origMACOffset, int origMACLength) {
+        byte rv[] = acquireTmp();
+        calculate(key, data, offset, length, data2, offset2, length2, rv, 0);
+        boolean eq = DataHelper.eqCT(rv, 0, origMAC, origMACOffset, origMACLength);
+        releaseTmp(rv);
+        return eq;
     }
-
-    private void release(I2PHMac mac) {
-        _available.offer(mac);
+    
+    /**
+     *  This thread's HMAC. Caller must init() it.
+     *  As of 0.9.40, there is nothing to release.
+     */
+    protected I2PHMac acquire() {
+        return _macs.get();
     }
 
     /**
@@ -3,10 +3,10 @@ package net.i2p.crypto;
 import java.security.DigestException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.concurrent.LinkedBlockingQueue;
 
 import net.i2p.I2PAppContext;
 import net.i2p.data.Hash;
+import net.i2p.util.SimpleByteCache;
 
 /** 
  * Defines a wrapper for SHA-256 operation.
@@ -15,16 +15,29 @@ import net.i2p.data.Hash;
  * As of release 0.9.25, uses only MessageDigest.
  * GNU-Crypto gnu.crypto.hash.Sha256Standalone
  * is removed as of 0.9.28.
+ *
+ * As of 0.9.40, each thread has its own MessageDigest,
+ * and calculateHash() does not allocate if the Hash is in the cache.
  */
 public final class SHA256Generator {
-    private final LinkedBlockingQueue<MessageDigest> _digests;
+
+    /**
+     *  One per thread, so there's no contention for a shared pool.
+     *  Never held across calls, so there's no reentrancy issue.
+     *
+     *  @since 0.9.40, was a LinkedBlockingQueue
+     */
+    private final ThreadLocal<MessageDigest> _digests = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            return getDigestInstance();
+        }
+    };
 
     /**
      *  @param context unused
      */
-    public SHA256Generator(I2PAppContext context) {
-        _digests = new LinkedBlockingQueue<MessageDigest>(32);
-    }
+    public SHA256Generator(I2PAppContext context) {}
     
     public static final SHA256Generator getInstance() {
         return I2PAppContext.getGlobalContext().sha();
@@ -44,10 +57,9 @@ public final class SHA256Generator {
      * @param source what to hash
      */
     public final Hash calculateHash(byte[] source, int start, int len) {
-        MessageDigest digest = acquire();
-        digest.update(source, start, len);
-        byte rv[] = digest.digest();
-        release(digest);
+        // Hash.create() returns the buffer to the cache if the Hash is cached
+        byte rv[] = SimpleByteCache.acquire(Hash.HASH_LENGTH);
+        calculateHash(source, start, len, rv, 0);
         return Hash.create(rv);
     }
     
@@ -59,26 +71,44 @@ public final class SHA256Generator {
     public final void calculateHash(byte[] source, int start, int len, byte out[], int outOffset) {
         MessageDigest digest = acquire();
         digest.update(source, start, len);
+        digest(digest, out, outOffset);
+    }
+
+    /**
+     * Hash of the concatenation of two sources, without copying them together.
+     * Does not cache.
+     *
+     * @param out needs 32 bytes starting at outOffset, may be the same as either source
+     * @since 0.9.40
+     */
+    public final void calculateHash(byte[] source, int start, int len,
+                                    byte[] source2, int start2, int len2,
+                                    byte out[], int outOffset) {
+        MessageDigest digest = acquire();
+        digest.update(source, start, len);
+        digest.update(source2, start2, len2);
+        digest(digest, out, outOffset);
+    }
+
+    /**
+     *  @since 0.9.40 split out of calculateHash()
+     */
+    private static void digest(MessageDigest digest, byte out[], int outOffset) {
         try {
             digest.digest(out, outOffset, Hash.HASH_LENGTH);
         } catch (DigestException e) {
+            // reset for the next user of this thread's digest
+            digest.reset();
             throw new RuntimeException(e);
-        } finally {
-            release(digest);
         }
     }
-    
+
+    /**
+     *  This thread's digest, ready to use.
+     *  digest() resets it, so there's nothing to release.
+     */
     private MessageDigest acquire() {
-        MessageDigest rv = _digests.poll();
-        if (rv != null)
-            rv.reset();
-        else
-            rv = getDigestInstance();
-        return rv;
-    }
-    
-    private void release(MessageDigest digest) {
-        _digests.offer(digest);
+        return _digests.get();
     }
     
     /**
@@ -12,6 +12,16 @@ import java.io.Serializable;
 public abstract class FieldElement implements Serializable {
     private static final long serialVersionUID = 1239527465875676L;
 
+    /**
+     * Set the system property eddsa.ref10=true to use the original
+     * reference implementations of repeated squaring and of the
+     * double scalar multiplication tables, rather than the faster ones.
+     * For testing and comparison only; the results are the same.
+     *
+     * @since 0.9.40
+     */
+    public static final boolean USE_REF10 = Boolean.getBoolean("eddsa.ref10");
+
     protected final Field f;
 
     public FieldElement(Field f) {
@@ -57,6 +67,23 @@ public abstract class FieldElement implements Serializable {
 
     public abstract FieldElement square();
 
+    /**
+     * Square n times.
+     * This implementation calls square() n times,
+     * subclasses may do it more efficiently.
+     *
+     * @param n number of squares, greater than zero
+     * @return this^(2^n)
+     * @since 0.9.40
+     */
+    public FieldElement squareN(int n) {
+        FieldElement rv = square();
+        for (int i = 1; i < n; i++) {
+            rv = rv.square();
+        }
+        return rv;
+    }
+
     public abstract FieldElement squareAndDouble();
 
     public abstract FieldElement invert();
@@ -531,6 +531,33 @@ public class GroupElement implements Serializable {
      * @since 0.9.36 split out from precompute()
      */
     private GroupElement[][] precomputeSingle() {
+        if (FieldElement.USE_REF10)
+            return precomputeSingleRef();
+        // Same table as precomputeSingleRef(), with one inversion per row instead of eight
+        GroupElement[][] precmp = new GroupElement[32][];
+        GroupElement[] row = new GroupElement[8];
+        GroupElement Bi = this;
+        for (int i = 0; i < 32; i++) {
+            final GroupElement cBi = Bi.toCached();
+            GroupElement Bij = Bi;
+            for (int j = 0; j < 8; j++) {
+                row[j] = Bij;
+                Bij = Bij.add(cBi).toP3();
+            }
+            precmp[i] = toPrecomp(row);
+            // Only every second summand is precomputed (16^2 = 256)
+            for (int k = 0; k < 8; k++) {
+                Bi = Bi.dbl().toP3();
+            }
+        }
+        return precmp;
+    }
+
+    /**
+     * The original version of precomputeSingle(), for testing.
+     * @since 0.9.40 renamed from precomputeSingle()
+     */
+    GroupElement[][] precomputeSingleRef() {
         // Precomputation for single scalar multiplication.
         GroupElement[][] precmp = new GroupElement[32][8];
         // TODO-CR BR: check that this == base point when the method is called.
@@ -554,9 +581,30 @@ public class GroupElement implements Serializable {
 
     /**
      * Precomputes table for {@link #doubleScalarMultiplyVariableTime(GroupElement, byte[], byte[])}.
+     * This is done for every public key on the first verification, via getNegativeA(),
+     * so it uses a single inversion for the whole table.
      * @since 0.9.36 split out from precompute()
      */
     private GroupElement[] precomputeDouble() {
+        if (FieldElement.USE_REF10)
+            return precomputeDoubleRef();
+        // P,3P,5P,7P,9P,11P,13P,15P
+        GroupElement[] odd = new GroupElement[8];
+        final GroupElement twoP = this.dbl().toP3().toCached();
+        GroupElement Bi = this;
+        for (int i = 0; i < 8; i++) {
+            odd[i] = Bi;
+            if (i < 7)
+                Bi = Bi.add(twoP).toP3();
+        }
+        return toPrecomp(odd);
+    }
+
+    /**
+     * The original version of precomputeDouble(), for testing.
+     * @since 0.9.40 renamed from precomputeDouble()
+     */
+    GroupElement[] precomputeDoubleRef() {
         // Precomputation for double scalar multiplication.
         // P,3P,5P,7P,9P,11P,13P,15P
         GroupElement[] dblPrecmp = new GroupElement[8];
@@ -572,6 +620,41 @@ public class GroupElement implements Serializable {
         return dblPrecmp;
     }
 
+    /**
+     * Convert P3 points to PRECOMP, inverting all the Z together
+     * (Montgomery's trick: one inversion and 3(n-1) multiplications
+     * instead of n inversions).
+     *
+     * @param p P3 points, Z must be nonzero, not modified
+     * @return new array of PRECOMP points
+     * @since 0.9.40
+     */
+    private GroupElement[] toPrecomp(GroupElement[] p) {
+        final int n = p.length;
+        // prod[i] = Z_0 * ... * Z_i
+        final FieldElement[] prod = new FieldElement[n];
+        prod[0] = p[0].Z;
+        for (int i = 1; i < n; i++) {
+            prod[i] = prod[i - 1].multiply(p[i].Z);
+        }
+        // inv = 1 / (Z_0 * ... * Z_i)
+        FieldElement inv = prod[n - 1].invert();
+        final GroupElement[] rv = new GroupElement[n];
+        for (int i = n - 1; i >= 0; i--) {
+            final FieldElement recip;
+            if (i > 0) {
+                recip = inv.multiply(prod[i - 1]);
+                inv = inv.multiply(p[i].Z);
+            } else {
+                recip = inv;
+            }
+            final FieldElement x = p[i].X.multiply(recip);
+            final FieldElement y = p[i].Y.multiply(recip);
+            rv[i] = precomp(this.curve, y.add(x), y.subtract(x), x.multiply(y).multiply(this.curve.get2D()));
+        }
+        return rv;
+    }
+
     /**
      * Doubles a given group element p in P^2 or P^3 representation and returns the result in P x P representation.
      * r = 2 * p where p = (X : Y : Z) or p = (X : Y : Z : T)
@@ -395,6 +395,42 @@ public class Ed25519FieldElement extends FieldElement {
      * @return The (reasonably reduced) square of this field element.
      */
     public FieldElement square() {
+        int[] h = new int[10];
+        square(t, h);
+        return new Ed25519FieldElement(f, h);
+    }
+
+    /**
+     * Square n times, reusing a single limb array,
+     * instead of allocating a new element for each square.
+     * The inversion and square root chains are almost all squares.
+     * <p>
+     * If {@link FieldElement#USE_REF10} is set, uses the repeated
+     * {@link #square()} of the superclass.
+     *
+     * @param n number of squares, greater than zero
+     * @return this^(2^n)
+     * @since 0.9.40
+     */
+    @Override
+    public FieldElement squareN(int n) {
+        if (USE_REF10)
+            return super.squareN(n);
+        int[] h = new int[10];
+        square(t, h);
+        for (int i = 1; i < n; i++) {
+            square(h, h);
+        }
+        return new Ed25519FieldElement(f, h);
+    }
+
+    /**
+     * h = f * f, see {@link #square()}.
+     * h may be the same array as t; all of t is read before h is written.
+     *
+     * @since 0.9.40 pulled out of square()
+     */
+    private static void square(int[] t, int[] h) {
         int f0 = t[0];
         int f1 = t[1];
         int f2 = t[2];
@@ -518,7 +554,6 @@ public class Ed25519FieldElement extends FieldElement {
 
         carry0 = (h0 + (long) (1<<25)) >> 26; h1 += carry0; h0 -= carry0 << 26;
 
-        int[] h = new int[10];
         h[0] = (int) h0;
         h[1] = (int) h1;
         h[2] = (int) h2;
@@ -529,7 +564,6 @@ public class Ed25519FieldElement extends FieldElement {
         h[7] = (int) h7;
         h[8] = (int) h8;
         h[9] = (int) h9;
-        return new Ed25519FieldElement(f, h);
     }
 
     /**
@@ -726,90 +760,50 @@ public class Ed25519FieldElement extends FieldElement {
         // 31 == 22 + 9
         t1 = t1.multiply(t2);
 
-        // 2^6 - 2^1
-        t2 = t1.square();
-
         // 2^10 - 2^5
-        for (int i = 1; i < 5; ++i) {
-            t2 = t2.square();
-        }
+        t2 = t1.squareN(5);
 
         // 2^10 - 2^0
         t1 = t2.multiply(t1);
 
-        // 2^11 - 2^1
-        t2 = t1.square();
-
         // 2^20 - 2^10
-        for (int i = 1; i < 10; ++i) {
-            t2 = t2.square();
-        }
+        t2 = t1.squareN(10);
 
         // 2^20 - 2^0
         t2 = t2.multiply(t1);
 
-        // 2^21 - 2^1
-        t3 = t2.square();
-
         // 2^40 - 2^20
-        for (int i = 1; i < 20; ++i) {
-            t3 = t3.square();
-        }
+        t3 = t2.squareN(20);
 
         // 2^40 - 2^0
         t2 = t3.multiply(t2);
 
-        // 2^41 - 2^1
-        t2 = t2.square();
-
         // 2^50 - 2^10
-        for (int i = 1; i < 10; ++i) {
-            t2 = t2.square();
-        }
+        t2 = t2.squareN(10);
 
         // 2^50 - 2^0
         t1 = t2.multiply(t1);
 
-        // 2^51 - 2^1
-        t2 = t1.square();
-
         // 2^100 - 2^50
-        for (int i = 1; i < 50; ++i) {
-            t2 = t2.square();
-        }
+        t2 = t1.squareN(50);
 
         // 2^100 - 2^0
         t2 = t2.multiply(t1);
 
-        // 2^101 - 2^1
-        t3 = t2.square();
-
         // 2^200 - 2^100
-        for (int i = 1; i < 100; ++i) {
-            t3 = t3.square();
-        }
+        t3 = t2.squareN(100);
 
         // 2^200 - 2^0
         t2 = t3.multiply(t2);
 
-        // 2^201 - 2^1
-        t2 = t2.square();
-
         // 2^250 - 2^50
-        for (int i = 1; i < 50; ++i) {
-            t2 = t2.square();
-        }
+        t2 = t2.squareN(50);
 
         // 2^250 - 2^0
         t1 = t2.multiply(t1);
 
-        // 2^251 - 2^1
-        t1 = t1.square();
-
         // 2^255 - 2^5
-        for (int i = 1; i < 5; ++i) {
-            t1 = t1.square();
-        }
+        t1 = t1.squareN(5);
 
         // 2^255 - 21
         return t1.multiply(t0);
@@ -847,79 +841,44 @@ public class Ed25519FieldElement extends FieldElement {
         // 31 == 22 + 9
         t0 = t1.multiply(t0);
 
-        // 2^6 - 2^1
-        t1 = t0.square();
-
         // 2^10 - 2^5
-        for (int i = 1; i < 5; ++i) {
-            t1 = t1.square();
-        }
+        t1 = t0.squareN(5);
 
         // 2^10 - 2^0
         t0 = t1.multiply(t0);
 
-        // 2^11 - 2^1
-        t1 = t0.square();
-
         // 2^20 - 2^10
-        for (int i = 1; i < 10; ++i) {
-            t1 = t1.square();
-        }
+        t1 = t0.squareN(10);
 
         // 2^20 - 2^0
         t1 = t1.multiply(t0);
 
-        // 2^21 - 2^1
-        t2 = t1.square();
-
         // 2^40 - 2^20
-        for (int i = 1; i < 20; ++i) {
-            t2 = t2.square();
-        }
+        t2 = t1.squareN(20);
 
         // 2^40 - 2^0
         t1 = t2.multiply(t1);
 
-        // 2^41 - 2^1
-        t1 = t1.square();
-
         // 2^50 - 2^10
-        for (int i = 1; i < 10; ++i) {
-            t1 = t1.square();
-        }
+        t1 = t1.squareN(10);
 
         // 2^50 - 2^0
         t0 = t1.multiply(t0);
 
-        // 2^51 - 2^1
-        t1 = t0.square();
-
         // 2^100 - 2^50
-        for (int i = 1; i < 50; ++i) {
-            t1 = t1.square();
-        }
+        t1 = t0.squareN(50);
 
         // 2^100 - 2^0
         t1 = t1.multiply(t0);
 
-        // 2^101 - 2^1
-        t2 = t1.square();
-
         // 2^200 - 2^100
-        for (int i = 1; i < 100; ++i) {
-            t2 = t2.square();
-        }
+        t2 = t1.squareN(100);
 
         // 2^200 - 2^0
         t1 = t2.multiply(t1);
 
-        // 2^201 - 2^1
-        t1 = t1.square();
-
         // 2^250 - 2^50
-        for (int i = 1; i < 50; ++i) {
-            t1 = t1.square();
-        }
+        t1 = t1.squareN(50);
 
         // 2^250 - 2^0
         t0 = t1.multiply(t0);
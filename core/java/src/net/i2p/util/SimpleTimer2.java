@@ -1,8 +1,10 @@
 package net.i2p.util;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.Executors;
-import java.util.concurrent.ScheduledFuture;
-import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ThreadFactory;
@@ -19,6 +21,13 @@ import net.i2p.I2PAppContext;
  * SimpleTimer has problems with lock contention;
  * this should work a lot better.
  *
+ * As of 0.9.40, events are kept in a hierarchical timing wheel instead of
+ * the executor's heap, so schedule and cancel are O(1), which matters as
+ * most timeouts are rescheduled or cancelled before they fire.
+ * A single thread advances the wheel, sleeping until the next occupied slot,
+ * and hands each batch of expired events to a small fixed pool of threads.
+ * Events may run up to TICK ms late, never early.
+ *
  * This supports cancelling and arbitrary rescheduling.
  * If you don't need that, use SimpleScheduler instead.
  *
@@ -37,10 +46,21 @@ public class SimpleTimer2 {
 
     private static final int MIN_THREADS = 2;
     private static final int MAX_THREADS = 4;
-    private final ScheduledThreadPoolExecutor _executor;
+    private final ThreadPoolExecutor _executor;
     private final String _name;
     private final AtomicInteger _count = new AtomicInteger();
     private final int _threads;
+    /** all access must be synchronized on it */
+    private final TimerWheel<TimedEvent> _wheel;
+    /** the tick the wheel thread will wake up at, 0 if awake. LOCKING: _wheel */
+    private long _nextWake;
+    /** LOCKING: _wheel */
+    private boolean _isWheelRunning;
+    private volatile boolean _isStopped;
+    /** wheel resolution, ms */
+    private static final int TICK = 4;
+    /** when the wheel is empty, ms */
+    private static final long MAX_WAIT = 60*1000;
 
     /**
      *  To be instantiated by the context.
@@ -67,7 +87,8 @@ public class SimpleTimer2 {
         _name = name;
         long maxMemory = SystemVersion.getMaxMemory();
         _threads = (int) Math.max(MIN_THREADS, Math.min(MAX_THREADS, 1 + (maxMemory / (32*1024*1024))));
-        _executor = new CustomScheduledThreadPoolExecutor(_threads, new CustomThreadFactory());
+        _executor = new CustomThreadPoolExecutor(_threads, new CustomThreadFactory());
+        _wheel = new TimerWheel<TimedEvent>(now() / TICK);
         if (prestartAllThreads)
             _executor.prestartAllCoreThreads();
         // don't bother saving ref to remove hook if somebody else calls stop
@@ -89,13 +110,30 @@ public class SimpleTimer2 {
      * Cannot be restarted.
      */
     public void stop() {
+        _isStopped = true;
+        synchronized (_wheel) {
+            _wheel.notifyAll();
+        }
         _executor.setRejectedExecutionHandler(new ThreadPoolExecutor.DiscardPolicy());
         _executor.shutdownNow();
     }
 
-    private static class CustomScheduledThreadPoolExecutor extends ScheduledThreadPoolExecutor {
-        public CustomScheduledThreadPoolExecutor(int threads, ThreadFactory factory) {
-             super(threads, factory);
+    /**
+     *  Monotonic, unaffected by clock shifts.
+     *  @return ms
+     *  @since 0.9.40
+     */
+    private static long now() {
+        return System.nanoTime() / (1000*1000);
+    }
+
+    /**
+     *  Fixed size, unbounded queue.
+     *  @since 0.9.40 was a ScheduledThreadPoolExecutor
+     */
+    private static class CustomThreadPoolExecutor extends ThreadPoolExecutor {
+        public CustomThreadPoolExecutor(int threads, ThreadFactory factory) {
+             super(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), factory);
         }
 
         @Override
@@ -123,8 +161,74 @@ public class SimpleTimer2 {
         }
     }
 
-    private ScheduledFuture<?> schedule(TimedEvent t, long timeoutMs) {
-        return _executor.schedule(t, timeoutMs, TimeUnit.MILLISECONDS);
+    /**
+     *  Add to the wheel, or move if already there.
+     *  Starts the wheel thread if necessary.
+     *
+     *  @since 0.9.40 was a ScheduledThreadPoolExecutor call
+     */
+    private void schedule(TimedEvent t, long timeoutMs) {
+        if (_isStopped)
+            return;
+        // round up so we never run early
+        long expires = (now() + timeoutMs + TICK - 1) / TICK;
+        synchronized (_wheel) {
+            _wheel.add(t._node, expires);
+            if (!_isWheelRunning) {
+                _isWheelRunning = true;
+                I2PThread thread = new I2PThread(new WheelRunner(), _name + " Wheel", true);
+                thread.setPriority(Thread.NORM_PRIORITY + 1);
+                thread.start();
+            } else if (expires < _nextWake) {
+                _wheel.notifyAll();
+            }
+        }
+    }
+
+    /**
+     *  @return true if it was in the wheel
+     *  @since 0.9.40
+     */
+    private boolean remove(TimedEvent t) {
+        synchronized (_wheel) {
+            return _wheel.remove(t._node);
+        }
+    }
+
+    /**
+     *  Advance the wheel and hand the expired events to the executor.
+     *  @since 0.9.40
+     */
+    private class WheelRunner implements Runnable {
+        public void run() {
+            List<TimedEvent> expired = new ArrayList<TimedEvent>(16);
+            while (!_isStopped) {
+                synchronized (_wheel) {
+                    long now = now();
+                    _wheel.advance(now / TICK, expired);
+                    if (expired.isEmpty()) {
+                        long next = _wheel.nextTick();
+                        long wait = next == Long.MAX_VALUE ? MAX_WAIT : Math.min(MAX_WAIT, (next * TICK) - now);
+                        if (wait > 0) {
+                            _nextWake = next;
+                            try {
+                                _wheel.wait(wait);
+                            } catch (InterruptedException ie) {}
+                            _nextWake = 0;
+                        }
+                        continue;
+                    }
+                }
+                for (int i = 0; i < expired.size(); i++) {
+                    try {
+                        _executor.execute(expired.get(i));
+                    } catch (RejectedExecutionException ree) {
+                        // stopped
+                    }
+                }
+                expired.clear();
+            }
+        }
     }
     
     /**
@@ -243,14 +347,17 @@ public class SimpleTimer2 {
      * reschedule(ms) and reschedule(ms, true) can lose the timer
      * reschedule(ms, false) and forceReschedule(ms) are relatively safe from either
      *
+     * As of 0.9.40, an event is in the timer wheel at most once,
+     * so there are no duplicates in the wheel.
+     *
      */
     public static abstract class TimedEvent implements Runnable {
         private final Log _log;
         private final SimpleTimer2 _pool;
         private int _fuzz;
         protected static final int DEFAULT_FUZZ = 3;
-        private ScheduledFuture<?> _future; // _executor.remove() doesn't work so we have to use this
-                                         // ... and I expect cancelling this way is more efficient
+        /** our entry in the timer wheel, reused */
+        private final TimerWheel.Node<TimedEvent> _node;
 
         /** state of the current event.  All access should be under lock. */
         protected TimedEventState _state;
@@ -264,6 +371,7 @@ public class SimpleTimer2 {
         /** must call schedule() later */
         public TimedEvent(SimpleTimer2 pool) {
             _pool = pool;
+            _node = new TimerWheel.Node<TimedEvent>(this);
             _fuzz = DEFAULT_FUZZ;
             _log = I2PAppContext.getGlobalContext().logManager().getLog(SimpleTimer2.class);
             _state = TimedEventState.IDLE;
@@ -296,8 +404,7 @@ public class SimpleTimer2 {
                 // streaming timers do call with timeoutMs == 0
                 if (timeoutMs < 0 && _log.shouldLog(Log.WARN))
                     _log.warn("Sched. timeout < 0: " + this + " timeout = " + timeoutMs + " state: " + _state);
-                timeoutMs = 1; // otherwise we may execute before _future is updated, which is fine
-                               // except it triggers 'early execution' warning logging
+                timeoutMs = 1;
             }
 
             // always set absolute time of execution
@@ -310,7 +417,7 @@ public class SimpleTimer2 {
                 break;
               case IDLE:  // fall through
               case CANCELLED:
-                _future = _pool.schedule(this, timeoutMs); 
+                _pool.schedule(this, timeoutMs);
                 _state = TimedEventState.SCHEDULED;
                 break;
               case SCHEDULED: // nothing
@@ -380,7 +487,14 @@ public class SimpleTimer2 {
             schedule(timeoutMs);
         }
 
-        /** @return true if cancelled */
+        /**
+         *  As of 0.9.40, this fails if the event has already been
+         *  handed to the executor, as a ScheduledFuture.cancel() did
+         *  once the task had started. The event stays SCHEDULED
+         *  and run2() will reschedule it if its time was changed.
+         *
+         *  @return true if cancelled
+         */
         public synchronized boolean cancel() {
             // always clear
             _rescheduleAfterRun = false;
@@ -393,15 +507,12 @@ public class SimpleTimer2 {
                 _cancelAfterRun = true;
                 return true;
               case SCHEDULED:
-                // There's probably a race here, where it's cancelled after it's running
-                // The result (if rescheduled) is a dup on the queue, see tickets 1694, 1705
-                // Mitigated by close-to-execution check in reschedule()
-                boolean cancelled = _future.cancel(true);
-                if (cancelled)
-                    _state = TimedEventState.CANCELLED;
-                else
-                    _log.error("could not cancel " + this + " to run in " + (_nextRun - System.currentTimeMillis()), new Exception());
-                return cancelled;
+                // If it isn't in the wheel, it's been handed to the executor but not run yet.
+                // Leave it SCHEDULED, so there's never a second copy on the executor.
+                if (!_pool.remove(this))
+                    return false;
+                _state = TimedEventState.CANCELLED;
+                return true;
             }
             return false;
             
@@ -455,13 +566,11 @@ public class SimpleTimer2 {
                 
                 // else proceed to run
                 _state = TimedEventState.RUNNING;
+                // It should not be in the wheel, but make sure
+                _pool.remove(this);
+                delay = difference;
             }
             // cancel()-ing after this point only works if the event supports it explicitly
-            // none of these _future checks should be necessary anymore
-            if (_future != null)
-                delay = _future.getDelay(TimeUnit.MILLISECONDS);
-            else if (_log.shouldLog(Log.WARN))
-                _log.warn(_pool + " no _future " + this);
             // This can be an incorrect warning especially after a schedule(0)
             if (_log.shouldWarn()) {
                 if (delay > 100)
@@ -533,11 +642,15 @@ public class SimpleTimer2 {
 
     /** warning - slow */
     private String debug() {
-        _executor.purge();  // Remove cancelled tasks from the queue so we get a good queue size stat
+        int scheduled;
+        synchronized (_wheel) {
+            scheduled = _wheel.size();
+        }
         return
             " Pool: " + _name +
             " Active: " + _executor.getActiveCount() + '/' + _executor.getPoolSize() +
             " Completed: " + _executor.getCompletedTaskCount() +
+            " Scheduled: " + scheduled +
             " Queued: " + _executor.getQueue().size();
     }
     
@@ -0,0 +1,242 @@
+package net.i2p.util;
+
+import java.util.List;
+
+/**
+ *  Hierarchical hashed timing wheel, for SimpleTimer2.
+ *  Add and remove are O(1), and advancing is O(1) per tick
+ *  plus the work to move or expire the entries.
+ *
+ *  There are four levels of 256, 64, 64, and 64 slots.
+ *  An entry goes in the lowest level that covers its delay,
+ *  and moves down a level each time the level below wraps around,
+ *  so it is only looked at a few times before it expires.
+ *  Entries further away than the top level covers are placed at the
+ *  end of the top level and moved again when reached.
+ *
+ *  Times are in ticks; the caller chooses the tick length.
+ *  Entries never expire before their tick, and expire
+ *  in the advance() that reaches it.
+ *
+ *  Not thread safe, caller must synchronize.
+ *
+ *  @since 0.9.40
+ */
+class TimerWheel<T> {
+    private static final int L0_BITS = 8;
+    private static final int LN_BITS = 6;
+    private static final int LEVELS = 4;
+    private static final int L0_SIZE = 1 << L0_BITS;
+    private static final int LN_SIZE = 1 << LN_BITS;
+    /** max delay that fits in the wheel, in ticks */
+    private static final long MAX_DELAY = (1L << (L0_BITS + (LEVELS - 1) * LN_BITS)) - 1;
+
+    /** circular lists, the head is a sentinel */
+    private final Node<T>[][] _slots;
+    /** entries in each level */
+    private final int[] _counts;
+    /** the last tick processed */
+    private long _current;
+    private int _size;
+
+    /**
+     *  An entry in the wheel. Allocate one per object and reuse it.
+     */
+    static class Node<T> {
+        final T item;
+        Node<T> prev, next;
+        long expires;
+        int level;
+
+        /** @param item may be null for the sentinels */
+        Node(T item) {
+            this.item = item;
+        }
+
+        boolean isLinked() {
+            return next != null;
+        }
+    }
+
+    /**
+     *  @param now the current tick, the first advance() should be after this
+     */
+    @SuppressWarnings("unchecked")
+    public TimerWheel(long now) {
+        _current = now;
+        _slots = new Node[LEVELS][];
+        _counts = new int[LEVELS];
+        for (int i = 0; i < LEVELS; i++) {
+            int sz = i == 0 ? L0_SIZE : LN_SIZE;
+            _slots[i] = new Node[sz];
+            for (int j = 0; j < sz; j++) {
+                Node<T> head = new Node<T>(null);
+                head.prev = head;
+                head.next = head;
+                _slots[i][j] = head;
+            }
+        }
+    }
+
+    /**
+     *  Add, or move if already in the wheel.
+     *
+     *  @param expires the tick, if not after the current tick it will expire in the next advance()
+     */
+    public void add(Node<T> node, long expires) {
+        if (node.isLinked())
+            remove(node);
+        if (expires <= _current)
+            expires = _current + 1;
+        node.expires = expires;
+        insert(node);
+        _size++;
+    }
+
+    /**
+     *  @return true if it was in the wheel
+     */
+    public boolean remove(Node<T> node) {
+        if (!node.isLinked())
+            return false;
+        node.prev.next = node.next;
+        node.next.prev = node.prev;
+        node.prev = null;
+        node.next = null;
+        _counts[node.level]--;
+        _size--;
+        return true;
+    }
+
+    /**
+     *  Process all ticks up to and including now.
+     *
+     *  @param expired out parameter, expired items are added in tick order
+     */
+    public void advance(long now, List<T> expired) {
+        while (_current < now) {
+            if (_size == 0) {
+                _current = now;
+                break;
+            }
+            if (_counts[0] == 0) {
+                // nothing to expire until the next cascade, skip ahead
+                long next = (_current | (L0_SIZE - 1)) + 1;
+                if (next > now) {
+                    _current = now;
+                    break;
+                }
+                _current = next - 1;
+            }
+            long t = ++_current;
+            int idx = (int) (t & (L0_SIZE - 1));
+            if (idx == 0)
+                cascade(t);
+            Node<T> head = _slots[0][idx];
+            Node<T> n = head.next;
+            while (n != head) {
+                Node<T> next = n.next;
+                n.prev = null;
+                n.next = null;
+                _counts[0]--;
+                _size--;
+                expired.add(n.item);
+                n = next;
+            }
+            head.next = head;
+            head.prev = head;
+        }
+    }
+
+    /**
+     *  The earliest tick that advance() has something to do,
+     *  either expire an entry or move entries down a level.
+     *  Entries may expire later than this.
+     *
+     *  @return the tick, or Long.MAX_VALUE if empty
+     */
+    public long nextTick() {
+        if (_size == 0)
+            return Long.MAX_VALUE;
+        if (_counts[0] > 0) {
+            for (int i = 1; i <= L0_SIZE; i++) {
+                long t = _current + i;
+                int idx = (int) (t & (L0_SIZE - 1));
+                if (idx == 0 && _size > _counts[0])
+                    return t;
+                if (_slots[0][idx].next != _slots[0][idx])
+                    return t;
+            }
+        }
+        // the next cascade
+        return (_current | (L0_SIZE - 1)) + 1;
+    }
+
+    /**
+     *  @return number of entries
+     */
+    public int size() {
+        return _size;
+    }
+
+    /**
+     *  Move the entries from the slots of the higher levels
+     *  that are reached at tick t, which is a multiple of L0_SIZE.
+     */
+    private void cascade(long t) {
+        int shift = L0_BITS;
+        for (int level = 1; level < LEVELS; level++) {
+            int idx = (int) ((t >>> shift) & (LN_SIZE - 1));
+            if (_counts[level] > 0) {
+                Node<T> head = _slots[level][idx];
+                Node<T> n = head.next;
+                head.next = head;
+                head.prev = head;
+                while (n != head) {
+                    Node<T> next = n.next;
+                    _counts[level]--;
+                    insert(n);
+                    n = next;
+                }
+            }
+            // only continue up if this level wrapped around
+            if (idx != 0)
+                break;
+            shift += LN_BITS;
+        }
+    }
+
+    /**
+     *  Link into the right slot for node.expires, which must be after _current.
+     *  Does not change _size.
+     */
+    private void insert(Node<T> node) {
+        long expires = node.expires;
+        long delay = expires - _current;
+        int level;
+        int idx;
+        if (delay < L0_SIZE) {
+            level = 0;
+            idx = (int) (expires & (L0_SIZE - 1));
+        } else {
+            if (delay > MAX_DELAY) {
+                // park it at the far end of the wheel, it will be moved again when reached
+                expires = _current + MAX_DELAY;
+            }
+            int shift = L0_BITS;
+            level = 1;
+            while (delay >= (1L << (shift + LN_BITS)) && level < LEVELS - 1) {
+                shift += LN_BITS;
+                level++;
+            }
+            idx = (int) ((expires >>> shift) & (LN_SIZE - 1));
+        }
+        Node<T> head = _slots[level][idx];
+        node.level = level;
+        node.prev = head.prev;
+        node.next = head;
+        head.prev.next = node;
+        head.prev = node;
+        _counts[level]++;
+    }
+}
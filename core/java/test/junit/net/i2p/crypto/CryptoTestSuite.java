@@ -24,6 +24,7 @@ public class CryptoTestSuite {
         suite.addTestSuite(CryptixAESEngineTest.class);
         suite.addTestSuite(CryptixRijndael_AlgorithmTest.class);
         suite.addTestSuite(DSATest.class);
+        suite.addTestSuite(EphemeralKeyPoolTest.class);
         suite.addTestSuite(HMACSHA256Test.class);
         suite.addTestSuite(KeyGeneratorTest.class);
         suite.addTestSuite(SHA1HashTest.class);
@@ -0,0 +1,71 @@
+package net.i2p.crypto;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+import net.i2p.I2PAppContext;
+
+/**
+ *  @since 0.9.40
+ */
+public class EphemeralKeyPoolTest extends TestCase {
+
+    private static class CountingPool extends EphemeralKeyPool<Integer> {
+        private final AtomicInteger _count = new AtomicInteger();
+
+        public CountingPool(int min, int max) {
+            super(I2PAppContext.getGlobalContext(), "Test", min, max, 0);
+        }
+
+        protected Integer generate() {
+            return Integer.valueOf(_count.incrementAndGet());
+        }
+    }
+
+    public void testInlineWhenNotStarted() {
+        CountingPool pool = new CountingPool(5, 20);
+        assertEquals(1, pool.get().intValue());
+        assertEquals(2, pool.get().intValue());
+        assertEquals(0, pool.getHits());
+        assertEquals(2, pool.getMisses());
+        assertTrue(pool.returnUnused(Integer.valueOf(99)));
+        assertEquals(99, pool.get().intValue());
+        assertEquals(1, pool.getHits());
+    }
+
+    public void testRefill() {
+        CountingPool pool = new CountingPool(4, 8);
+        assertEquals(4, pool.getTarget());
+        while (pool.getFill() < 1f) {
+            assertTrue(pool.refillOne());
+        }
+        assertEquals(4, pool.getSize());
+        for (int i = 0; i < 4; i++) {
+            pool.refillOne();
+        }
+        assertEquals(8, pool.getSize());
+        assertFalse(pool.refillOne());
+    }
+
+    public void testTargetFollowsDemand() {
+        CountingPool pool = new CountingPool(2, 100);
+        // misses raise the target right away
+        for (int i = 0; i < 5; i++) {
+            pool.get();
+        }
+        pool.tick(1000);
+        assertTrue(pool.getTarget() >= 12);
+        // idle, decays back to the minimum
+        for (int i = 0; i < 300; i++) {
+            pool.tick(1000);
+        }
+        assertEquals(2, pool.getTarget());
+        // never above the max
+        for (int i = 0; i < 200; i++) {
+            pool.get();
+        }
+        pool.tick(1000);
+        assertEquals(100, pool.getTarget());
+    }
+}
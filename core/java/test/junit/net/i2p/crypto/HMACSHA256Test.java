@@ -10,6 +10,7 @@ package net.i2p.crypto;
 
 import junit.framework.TestCase;
 import net.i2p.I2PAppContext;
+import net.i2p.data.DataHelper;
 import net.i2p.data.SessionKey;
 
 public class HMACSHA256Test extends TestCase{
@@ -32,4 +33,26 @@ public class HMACSHA256Test extends TestCase{
             _context.hmac().calculate(key, message, 0, message.length, output, 0);
         }
     }
+
+    /**
+     * Two parts must be the same as the concatenation, for both HMACs.
+     */
+    public void testTwoParts(){
+        SessionKey key = _context.keyGenerator().generateSessionKey();
+        byte[] message = new byte[1000];
+        _context.random().nextBytes(message);
+        HMACGenerator[] gens = new HMACGenerator[] { _context.hmac(), _context.hmac256() };
+        for (HMACGenerator gen : gens) {
+            byte[] expected = new byte[32];
+            gen.calculate(key, message, 0, message.length, expected, 0);
+            for (int split = 0; split <= message.length; split += 100) {
+                byte[] output = new byte[32];
+                gen.calculate(key, message, 0, split, message, split, message.length - split, output, 0);
+                assertTrue(DataHelper.eq(expected, output));
+                assertTrue(gen.verify(key, message, 0, split, message, split, message.length - split, expected, 0, 16));
+            }
+            expected[3] ^= 1;
+            assertFalse(gen.verify(key, message, 0, 10, message, 10, message.length - 10, expected, 0, 16));
+        }
+    }
 }
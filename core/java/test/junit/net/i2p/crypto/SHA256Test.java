@@ -46,5 +46,18 @@ public class SHA256Test extends TestCase{
             assertEquals(firstHash, h);
         }
     }
-        
+
+    /**
+     * Two parts must be the same as the concatenation.
+     */
+    public void testTwoParts(){
+        byte[] data = new byte[100];
+        _context.random().nextBytes(data);
+        Hash expected = SHA256Generator.getInstance().calculateHash(data);
+        for (int split = 0; split <= data.length; split += 25) {
+            byte[] out = new byte[Hash.HASH_LENGTH + 1];
+            SHA256Generator.getInstance().calculateHash(data, 0, split, data, split, data.length - split, out, 1);
+            assertTrue(DataHelper.eq(expected.getData(), 0, out, 1, Hash.HASH_LENGTH));
+        }
+    }
 }
@@ -529,6 +529,21 @@ public class GroupElementTest {
         }
     }
 
+    @Test
+    public void precomputedTablesMatchReference() {
+        GroupElement B = ed25519.getB();
+        Assert.assertThat(B.precmp, IsEqual.equalTo(B.precomputeSingleRef()));
+        Assert.assertThat(B.dblPrecmp, IsEqual.equalTo(B.precomputeDoubleRef()));
+        for (int i = 0; i < 10; i++) {
+            // Arrange:
+            final GroupElement g = MathUtils.getRandomGroupElement(true);
+
+            // Assert:
+            Assert.assertThat(g.dblPrecmp, IsEqual.equalTo(g.precomputeDoubleRef()));
+            Assert.assertThat(g.negate().dblPrecmp, IsEqual.equalTo(g.negate().precomputeDoubleRef()));
+        }
+    }
+
     @Test
     public void dblPrecomputedTableContainsExpectedGroupElements() {
         // Arrange:
@@ -63,6 +63,26 @@ public class Ed25519FieldElementTest extends AbstractFieldElementTest {
 
     // endregion
 
+    // region squareN
+
+    @Test
+    public void squareNReturnsSameAsRepeatedSquare() {
+        for (int i = 0; i < 100; i++) {
+            // Arrange:
+            final FieldElement f = MathUtils.getRandomFieldElement();
+            final int n = 1 + (i % 20);
+            FieldElement expected = f;
+            for (int j = 0; j < n; j++) {
+                expected = expected.square();
+            }
+
+            // Assert:
+            Assert.assertThat(f.squareN(n), IsEqual.equalTo(expected));
+        }
+    }
+
+    // endregion
+
     // region toString
 
     @Test
@@ -0,0 +1,88 @@
+package net.i2p.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ *  @since 0.9.40
+ */
+public class TimerWheelTest extends TestCase {
+
+    public void testExpiresOnTime() {
+        long start = 1000;
+        TimerWheel<Long> wheel = new TimerWheel<Long>(start);
+        Random rnd = new Random(22);
+        int count = 2000;
+        for (int i = 0; i < count; i++) {
+            // all the levels, and past the end
+            long delay = 1 + (long) Math.pow(2, rnd.nextDouble() * 28);
+            Long when = Long.valueOf(start + delay);
+            wheel.add(new TimerWheel.Node<Long>(when), when.longValue());
+        }
+        assertEquals(count, wheel.size());
+        List<Long> expired = new ArrayList<Long>();
+        long now = start;
+        int seen = 0;
+        while (wheel.size() > 0) {
+            long next = wheel.nextTick();
+            assertTrue(next > now);
+            // sometimes step one tick, sometimes jump
+            now = rnd.nextBoolean() ? now + 1 : next + rnd.nextInt(3);
+            wheel.advance(now, expired);
+            for (Long when : expired) {
+                assertTrue("early", when.longValue() <= now);
+            }
+            seen += expired.size();
+            expired.clear();
+            // nothing overdue is left
+            assertTrue(wheel.nextTick() > now);
+        }
+        assertEquals(count, seen);
+        assertEquals(Long.MAX_VALUE, wheel.nextTick());
+    }
+
+    public void testNotLate() {
+        TimerWheel<Long> wheel = new TimerWheel<Long>(0);
+        long[] delays = { 1, 255, 256, 257, 16383, 16384, 16385, 1 << 20, (1 << 26) + 5 };
+        for (long d : delays) {
+            wheel.add(new TimerWheel.Node<Long>(Long.valueOf(d)), d);
+        }
+        List<Long> expired = new ArrayList<Long>();
+        long now = 0;
+        while (wheel.size() > 0) {
+            now = wheel.nextTick();
+            wheel.advance(now, expired);
+            for (Long when : expired) {
+                assertEquals(when.longValue(), now);
+            }
+            expired.clear();
+        }
+    }
+
+    public void testRemoveAndMove() {
+        TimerWheel<String> wheel = new TimerWheel<String>(0);
+        TimerWheel.Node<String> a = new TimerWheel.Node<String>("a");
+        TimerWheel.Node<String> b = new TimerWheel.Node<String>("b");
+        wheel.add(a, 10);
+        wheel.add(b, 20000);
+        assertTrue(wheel.remove(a));
+        assertFalse(wheel.remove(a));
+        // move
+        wheel.add(b, 5);
+        assertEquals(1, wheel.size());
+        // in the past, next tick
+        wheel.add(a, -3);
+        List<String> expired = new ArrayList<String>();
+        wheel.advance(1, expired);
+        assertEquals(1, expired.size());
+        assertEquals("a", expired.get(0));
+        expired.clear();
+        wheel.advance(100000, expired);
+        assertEquals(1, expired.size());
+        assertEquals("b", expired.get(0));
+        assertEquals(0, wheel.size());
+    }
+}
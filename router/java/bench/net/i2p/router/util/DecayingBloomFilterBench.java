@@ -0,0 +1,107 @@
+package net.i2p.router.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import net.i2p.I2PAppContext;
+
+/**
+ *  Tunnel IV validation, 16 byte random entries, 16 threads.
+ *  Compare DecayingBloomFilter and ConcurrentDecayingBloomFilter.
+ *  The decay benchmark runs a decay every 100 ms in the background.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 2, timeUnit = TimeUnit.SECONDS)
+@Fork(1)
+@Threads(16)
+@State(Scope.Benchmark)
+public class DecayingBloomFilterBench {
+    I2PAppContext ctx = I2PAppContext.getGlobalContext();
+    DecayingBloomFilter filter;
+    Thread decayer;
+    volatile boolean decaying;
+
+    @Param({"DBF", "CDBF"})
+    public String impl;
+
+    @Param({"false", "true"})
+    public boolean decay;
+
+    @Setup
+    public void prepare() {
+        if (impl.equals("CDBF"))
+            filter = new ConcurrentDecayingBloomFilter(ctx, 10*60*1000, 16, "bench", 23);
+        else
+            filter = new DecayingBloomFilter(ctx, 10*60*1000, 16, "bench", 23);
+        filter.stopDecaying();
+        if (decay) {
+            decaying = true;
+            decayer = new Thread(new Runnable() {
+                public void run() {
+                    while (decaying) {
+                        filter.decay();
+                        try {
+                            Thread.sleep(100);
+                        } catch (InterruptedException ie) {}
+                    }
+                }
+            });
+            decayer.start();
+        }
+    }
+
+    @TearDown
+    public void cleanup() throws InterruptedException {
+        decaying = false;
+        if (decayer != null)
+            decayer.join();
+    }
+
+    @State(Scope.Thread)
+    public static class Entries {
+        final byte[][] ivs = new byte[4096][16];
+        int i;
+
+        @Setup
+        public void prepare() {
+            for (int j = 0; j < ivs.length; j++) {
+                I2PAppContext.getGlobalContext().random().nextBytes(ivs[j]);
+            }
+        }
+    }
+
+    @Benchmark
+    public boolean add(Entries e) {
+        byte[] iv = e.ivs[e.i++ & 4095];
+        // change it so we aren't always adding a dup
+        iv[0]++;
+        return filter.add(iv);
+    }
+
+    public static void main(String args[]) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(DecayingBloomFilterBench.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -37,7 +37,6 @@ public final class Poly1305 implements Destroyable {
 	private final int[] h;
 	private final int[] r;
 	private final int[] c;
-	private final long[] t;
 	private int posn;
 
 	/**
@@ -50,7 +49,6 @@ public final class Poly1305 implements Destroyable {
 		h = new int [5];
 		r = new int [5];
 		c = new int [5];
-		t = new long [10];
 		posn = 0;
 	}
 
@@ -100,10 +98,11 @@ public final class Poly1305 implements Destroyable {
 	{
 		while (length > 0) {
 			if (posn == 0 && length >= 16) {
-				// We can process the chunk directly out of the input buffer.
-				processChunk(data, offset, false);
-				offset += 16;
-				length -= 16;
+				// We can process the chunks directly out of the input buffer.
+				int count = length >> 4;
+				processChunks(data, offset, count, 1 << 24);
+				offset += count << 4;
+				length -= count << 4;
 			} else {
 				// Collect up partial bytes in the block buffer.
 				int temp = 16 - posn;
@@ -222,97 +221,99 @@ public final class Poly1305 implements Destroyable {
 	 */
 	private void processChunk(byte[] chunk, int offset, boolean finalChunk)
 	{
-		int x;
-		
-		// Unpack the 128-bit chunk into a 130-bit value in "c".
-		c[0] = ((chunk[offset] & 0xFF)) |
-			   ((chunk[offset + 1] & 0xFF) << 8) |
-			   ((chunk[offset + 2] & 0xFF) << 16) |
-			   ((chunk[offset + 3] & 0x03) << 24);
-		c[1] = ((chunk[offset + 3] & 0xFC) >> 2) |
-			   ((chunk[offset + 4] & 0xFF) << 6) |
-			   ((chunk[offset + 5] & 0xFF) << 14) |
-			   ((chunk[offset + 6] & 0x0F) << 22);
-		c[2] = ((chunk[offset + 6] & 0xF0) >> 4) |
-			   ((chunk[offset + 7] & 0xFF) << 4) |
-			   ((chunk[offset + 8] & 0xFF) << 12) |
-			   ((chunk[offset + 9] & 0x3F) << 20);
-		c[3] = ((chunk[offset + 9] & 0xC0) >> 6) |
-			   ((chunk[offset + 10] & 0xFF) << 2) |
-			   ((chunk[offset + 11] & 0xFF) << 10) |
-			   ((chunk[offset + 12] & 0xFF) << 18);
-		c[4] = ((chunk[offset + 13] & 0xFF)) |
-			   ((chunk[offset + 14] & 0xFF) << 8) |
-			   ((chunk[offset + 15] & 0xFF) << 16);
-		if (!finalChunk)
-			c[4] |= (1 << 24);
-		
-		// Compute h = ((h + c) * r) mod (2^130 - 5)
-		
-		// Start with h += c.  We assume that h is less than (2^130 - 5) * 6
-		// and that c is less than 2^129, so the result will be less than 2^133.
-		h[0] += c[0];
-		h[1] += c[1];
-		h[2] += c[2];
-		h[3] += c[3];
-		h[4] += c[4];
+		processChunks(chunk, offset, 1, finalChunk ? 0 : (1 << 24));
+	}
+
+	/**
+	 * Processes consecutive 16-byte chunks of input data.
+	 *
+	 * I2P - Rewritten in the style of poly1305-donna-32, with h and r
+	 * in local variables for the whole run, and 5 * r precomputed so the
+	 * reduction is folded into the multiply. The result in h is
+	 * the same partially reduced form as before, for finish().
+	 *
+	 * @param chunk Buffer containing the input data chunks.
+	 * @param offset Offset of the first byte of the first chunk.
+	 * @param count Number of 16-byte chunks.
+	 * @param hibit 2^128 in the top limb, or 0 for the final partial chunk.
+	 * @since 0.9.40
+	 */
+	private void processChunks(byte[] chunk, int offset, int count, int hibit)
+	{
+		final long r0 = r[0];
+		final long r1 = r[1];
+		final long r2 = r[2];
+		final long r3 = r[3];
+		final long r4 = r[4];
+		final long s1 = r1 * 5;
+		final long s2 = r2 * 5;
+		final long s3 = r3 * 5;
+		final long s4 = r4 * 5;
+		long h0 = h[0];
+		long h1 = h[1];
+		long h2 = h[2];
+		long h3 = h[3];
+		long h4 = h[4];
+
+		for (int i = 0; i < count; i++) {
+			// Unpack the 128-bit chunk into a 130-bit value and add it to h.
+			h0 += ((chunk[offset] & 0xFF)) |
+				  ((chunk[offset + 1] & 0xFF) << 8) |
+				  ((chunk[offset + 2] & 0xFF) << 16) |
+				  ((chunk[offset + 3] & 0x03) << 24);
+			h1 += ((chunk[offset + 3] & 0xFC) >> 2) |
+				  ((chunk[offset + 4] & 0xFF) << 6) |
+				  ((chunk[offset + 5] & 0xFF) << 14) |
+				  ((chunk[offset + 6] & 0x0F) << 22);
+			h2 += ((chunk[offset + 6] & 0xF0) >> 4) |
+				  ((chunk[offset + 7] & 0xFF) << 4) |
+				  ((chunk[offset + 8] & 0xFF) << 12) |
+				  ((chunk[offset + 9] & 0x3F) << 20);
+			h3 += ((chunk[offset + 9] & 0xC0) >> 6) |
+				  ((chunk[offset + 10] & 0xFF) << 2) |
+				  ((chunk[offset + 11] & 0xFF) << 10) |
+				  ((chunk[offset + 12] & 0xFF) << 18);
+			h4 += ((chunk[offset + 13] & 0xFF)) |
+				  ((chunk[offset + 14] & 0xFF) << 8) |
+				  ((chunk[offset + 15] & 0xFF) << 16) |
+				  hibit;
+			offset += 16;
 
-		// Multiply h by r.  We know that r is less than 2^124 because the
-	    // top 4 bits were AND-ed off by reset().  That makes h * r less
-	    // than 2^257.  Which is less than the (2^130 - 6)^2 we want for
-	    // the modulo reduction step that follows.  The intermediate limbs
-		// are 52 bits in size, which allows us to collect up carries in the
-		// extra bits of the 64 bit longs and propagate them later.
-		long hv = h[0];
-		t[0] = hv * r[0];
-		t[1] = hv * r[1];
-		t[2] = hv * r[2];
-		t[3] = hv * r[3];
-		t[4] = hv * r[4];
-		for (x = 1; x < 5; ++x) {
-			hv = h[x];
-			t[x]     += hv * r[0];
-			t[x + 1] += hv * r[1];
-			t[x + 2] += hv * r[2];
-			t[x + 3] += hv * r[3];
-			t[x + 4]  = hv * r[4];
+			// h = h * r mod (2^130 - 5), where 2^130 * x == 5 * x.
+			// All limbs of h are less than 2^27 and r less than 2^26,
+			// so each sum is less than 2^57.
+			long d0 = h0 * r0 + h1 * s4 + h2 * s3 + h3 * s2 + h4 * s1;
+			long d1 = h0 * r1 + h1 * r0 + h2 * s4 + h3 * s3 + h4 * s2;
+			long d2 = h0 * r2 + h1 * r1 + h2 * r0 + h3 * s4 + h4 * s3;
+			long d3 = h0 * r3 + h1 * r2 + h2 * r1 + h3 * r0 + h4 * s4;
+			long d4 = h0 * r4 + h1 * r3 + h2 * r2 + h3 * r1 + h4 * r0;
+
+			// Propagate carries back to 26-bit limbs.
+			long carry = d0 >> 26;
+			h0 = d0 & 0x03FFFFFF;
+			d1 += carry;
+			carry = d1 >> 26;
+			h1 = d1 & 0x03FFFFFF;
+			d2 += carry;
+			carry = d2 >> 26;
+			h2 = d2 & 0x03FFFFFF;
+			d3 += carry;
+			carry = d3 >> 26;
+			h3 = d3 & 0x03FFFFFF;
+			d4 += carry;
+			carry = d4 >> 26;
+			h4 = d4 & 0x03FFFFFF;
+			h0 += carry * 5;
+			carry = h0 >> 26;
+			h0 &= 0x03FFFFFF;
+			h1 += carry;
 		}
-		
-		// Propagate carries to convert the t limbs from 52-bit back to 26-bit.
-		// The low bits are placed into h and the high bits are placed into c.
-		h[0] = ((int)t[0]) & 0x03FFFFFF;
-		hv = t[1] + (t[0] >> 26);
-		h[1] = ((int)hv) & 0x03FFFFFF;
-		hv = t[2] + (hv >> 26);
-		h[2] = ((int)hv) & 0x03FFFFFF;
-		hv = t[3] + (hv >> 26);
-		h[3] = ((int)hv) & 0x03FFFFFF;
-		hv = t[4] + (hv >> 26);
-		h[4] = ((int)hv) & 0x03FFFFFF;
-		hv = t[5] + (hv >> 26);
-		c[0] = ((int)hv) & 0x03FFFFFF;
-		hv = t[6] + (hv >> 26);
-		c[1] = ((int)hv) & 0x03FFFFFF;
-		hv = t[7] + (hv >> 26);
-		c[2] = ((int)hv) & 0x03FFFFFF;
-		hv = t[8] + (hv >> 26);
-		c[3] = ((int)hv) & 0x03FFFFFF;
-		hv = t[9] + (hv >> 26);
-		c[4] = ((int)hv);
-		
-		// Reduce h * r modulo (2^130 - 5) by multiplying the high 130 bits by 5
-		// and adding them to the low 130 bits.  This will leave the result at
-		// most 5 subtractions away from the answer we want.
-		int carry = h[0] + c[0] * 5;
-		h[0] = carry & 0x03FFFFFF;
-		carry = (carry >> 26) + h[1] + c[1] * 5;
-		h[1] = carry & 0x03FFFFFF;
-		carry = (carry >> 26) + h[2] + c[2] * 5;
-		h[2] = carry & 0x03FFFFFF;
-		carry = (carry >> 26) + h[3] + c[3] * 5;
-		h[3] = carry & 0x03FFFFFF;
-		carry = (carry >> 26) + h[4] + c[4] * 5;
-		h[4] = carry;
+
+		h[0] = (int) h0;
+		h[1] = (int) h1;
+		h[2] = (int) h2;
+		h[3] = (int) h3;
+		h[4] = (int) h4;
 	}
 
 	@Override
@@ -322,6 +323,5 @@ public final class Poly1305 implements Destroyable {
 		Arrays.fill(h, 0);
 		Arrays.fill(r, 0);
 		Arrays.fill(c, 0);
-		Arrays.fill(t, (long)0);
 	}
 }
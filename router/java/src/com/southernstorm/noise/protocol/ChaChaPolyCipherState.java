@@ -22,16 +22,31 @@
 
 package com.southernstorm.noise.protocol;
 
+import java.security.GeneralSecurityException;
 import java.util.Arrays;
 
 import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
 import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import com.southernstorm.noise.crypto.chacha20.ChaChaCore;
 import com.southernstorm.noise.crypto.Poly1305;
 
+import net.i2p.data.DataHelper;
+
 /**
  * Implements the ChaChaPoly cipher for Noise.
+ *
+ * I2P - The cipher states returned by fork(), used for the NTCP2 data phase,
+ * use the JVM's "ChaCha20-Poly1305" cipher (RFC 8439, Java 11+) for large messages,
+ * if available and it gives the same results as ours.
+ * The Noise nonce (32 zero bits and the 64-bit counter, little endian)
+ * and block counter are the same as in RFC 8439.
+ * Newer JVMs have ChaCha20 and Poly1305 intrinsics, but Cipher.init() for
+ * every message is expensive, so small messages are faster here.
+ * Set the system property noise.jce=false to disable.
  */
 public class ChaChaPolyCipherState implements CipherState {
 
@@ -41,11 +56,33 @@ public class ChaChaPolyCipherState implements CipherState {
 	private final byte[] polyKey;
 	private long n;
 	private boolean haskey;
-	
+	// I2P
+	private final Cipher jce;
+	private final byte[] jceIV;
+	private SecretKeySpec jceKey;
+
+	private static final String JCE_ALGO = "ChaCha20-Poly1305";
+	/**
+	 * Use the JVM's cipher for messages at least this big.
+	 * Measured break-even on Java 17 is 1.5 - 2 KB.
+	 */
+	private static final int MIN_JCE_LENGTH = 2048;
+	private static final boolean USE_JCE = Boolean.parseBoolean(System.getProperty("noise.jce", "true")) &&
+	                                       checkJCE();
+
 	/**
 	 * Constructs a new cipher state for the "ChaChaPoly" algorithm.
 	 */
 	public ChaChaPolyCipherState()
+	{
+		this(false);
+	}
+
+	/**
+	 * @param useJCE use the JVM's cipher for large messages, if available
+	 * @since 0.9.40
+	 */
+	private ChaChaPolyCipherState(boolean useJCE)
 	{
 		poly = new Poly1305();
 		input = new int [16];
@@ -53,6 +90,61 @@ public class ChaChaPolyCipherState implements CipherState {
 		polyKey = new byte [32];
 		n = 0;
 		haskey = false;
+		Cipher c = null;
+		if (useJCE) {
+			try {
+				c = Cipher.getInstance(JCE_ALGO);
+			} catch (GeneralSecurityException gse) {}
+		}
+		jce = c;
+		jceIV = c != null ? new byte[12] : null;
+	}
+
+	/**
+	 * Is the JVM's cipher there, and does it give the same results as ours,
+	 * both ways, across the size threshold?
+	 *
+	 * @since 0.9.40
+	 */
+	private static boolean checkJCE() {
+		try {
+			byte[] key = new byte[32];
+			for (int i = 0; i < 32; i++) {
+				key[i] = (byte) (i * 7);
+			}
+			byte[] ad = new byte[] { 1, 2, 3 };
+			ChaChaPolyCipherState ours = new ChaChaPolyCipherState(false);
+			ChaChaPolyCipherState theirs = new ChaChaPolyCipherState(true);
+			ChaChaPolyCipherState theirs2 = new ChaChaPolyCipherState(true);
+			if (theirs.jce == null)
+				return false;
+			ours.initializeKey(key, 0);
+			theirs.initializeKey(key, 0);
+			theirs2.initializeKey(key, 0);
+			ours.setNonce(0x0102030405060708L);
+			theirs.setNonce(0x0102030405060708L);
+			theirs2.setNonce(0x0102030405060708L);
+			int len = MIN_JCE_LENGTH + 13;
+			byte[] plain = new byte[len];
+			for (int i = 0; i < len; i++) {
+				plain[i] = (byte) i;
+			}
+			byte[] c1 = new byte[len + 16];
+			byte[] c2 = new byte[len + 16];
+			for (int i = 0; i < 2; i++) {
+				ours.encryptWithAd(ad, plain, 0, c1, 0, len);
+				theirs.encryptWithAd(ad, plain, 0, c2, 0, len);
+				if (!Arrays.equals(c1, c2))
+					return false;
+				theirs2.decryptWithAd(ad, c2, 0, c2, 0, len + 16);
+				if (!DataHelper.eq(plain, 0, c2, 0, len))
+					return false;
+			}
+			return true;
+		} catch (Throwable t) {
+			// GeneralSecurityException, IllegalStateException, NoClassDefFoundError, ...
+			return false;
+		}
 	}
 
 	@Override
@@ -61,6 +153,9 @@ public class ChaChaPolyCipherState implements CipherState {
 		Arrays.fill(input, 0);
 		Arrays.fill(output, 0);
 		Noise.destroy(polyKey);
+		jceKey = null;
+		if (jceIV != null)
+			Arrays.fill(jceIV, (byte)0);
 	}
 
 	@Override
@@ -81,6 +176,8 @@ public class ChaChaPolyCipherState implements CipherState {
 	@Override
 	public void initializeKey(byte[] key, int offset) {
 		ChaChaCore.initKey256(input, key, offset);
+		if (jce != null)
+			jceKey = new SecretKeySpec(key, offset, 32, "ChaCha20");
 		n = 0;
 		haskey = true;
 	}
@@ -112,6 +209,28 @@ public class ChaChaPolyCipherState implements CipherState {
 			++(input[13]);
 	}
 
+	/**
+	 * Set up the JVM's cipher to encrypt or decrypt the next packet.
+	 *
+	 * @param mode Cipher.ENCRYPT_MODE or DECRYPT_MODE
+	 * @param ad The associated data for the packet.
+	 * @since 0.9.40
+	 */
+	private void setupJCE(int mode, byte[] ad)
+	{
+		if (n == -1L)
+			throw new IllegalStateException("Nonce has wrapped around");
+		DataHelper.toLongLE(jceIV, 4, 8, n++);
+		try {
+			// The JVM refuses to encrypt twice with the same key and nonce
+			jce.init(mode, jceKey, new IvParameterSpec(jceIV));
+		} catch (GeneralSecurityException gse) {
+			throw new IllegalStateException(JCE_ALGO, gse);
+		}
+		if (ad != null)
+			jce.updateAAD(ad);
+	}
+
 	/**
 	 * Puts a 64-bit integer into a buffer in little-endian order.
 	 * 
@@ -189,6 +308,14 @@ public class ChaChaPolyCipherState implements CipherState {
 		}
 		if (space < 16 || length > (space - 16))
 			throw new ShortBufferException();
+		if (jce != null && length >= MIN_JCE_LENGTH) {
+			setupJCE(Cipher.ENCRYPT_MODE, ad);
+			try {
+				return jce.doFinal(plaintext, plaintextOffset, length, ciphertext, ciphertextOffset);
+			} catch (GeneralSecurityException gse) {
+				throw new IllegalStateException(JCE_ALGO, gse);
+			}
+		}
 		setup(ad);
 		encrypt(plaintext, plaintextOffset, ciphertext, ciphertextOffset, length);
 		poly.update(ciphertext, ciphertextOffset, length);
@@ -225,6 +352,17 @@ public class ChaChaPolyCipherState implements CipherState {
 		int dataLen = length - 16;
 		if (dataLen > space)
 			throw new ShortBufferException();
+		if (jce != null && dataLen >= MIN_JCE_LENGTH) {
+			setupJCE(Cipher.DECRYPT_MODE, ad);
+			try {
+				return jce.doFinal(ciphertext, ciphertextOffset, length, plaintext, plaintextOffset);
+			} catch (BadPaddingException bpe) {
+				// AEADBadTagException
+				throw bpe;
+			} catch (GeneralSecurityException gse) {
+				throw new IllegalStateException(JCE_ALGO, gse);
+			}
+		}
 		setup(ad);
 		poly.update(ciphertext, ciphertextOffset, dataLen);
 		finish(ad, dataLen);
@@ -239,7 +377,8 @@ public class ChaChaPolyCipherState implements CipherState {
 
 	@Override
 	public CipherState fork(byte[] key, int offset) {
-		CipherState cipher = new ChaChaPolyCipherState();
+		// I2P - use the JVM's cipher for the data phase
+		CipherState cipher = new ChaChaPolyCipherState(USE_JCE);
 		cipher.initializeKey(key, offset);
 		return cipher;
 	}
@@ -258,6 +397,8 @@ public class ChaChaPolyCipherState implements CipherState {
 		buf.append("  Cipher State:\n" +
 		           "    nonce: ");
 		buf.append(n);
+		if (jce != null)
+			buf.append("\n    JCE: ").append(JCE_ALGO).append(" for ").append(MIN_JCE_LENGTH).append("+ bytes");
 		buf.append("\n    poly key: ");
 		if (haskey)
 			buf.append(net.i2p.data.Base64.encode(polyKey));
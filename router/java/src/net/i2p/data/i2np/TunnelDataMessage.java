@@ -31,6 +31,11 @@ public class TunnelDataMessage extends FastI2NPMessageImpl {
     
     public final static int MESSAGE_TYPE = 18;
     public static final int DATA_SIZE = 1024;
+    /**
+     *  Short 5 byte (SSU) I2NP header plus the 4 byte tunnel ID
+     *  @since 0.9.40
+     */
+    public static final int RAW_HEADER_SIZE = 5 + 4;
     /** if we can't deliver a tunnel message in 10s, forget it */
     private static final int EXPIRATION_PERIOD = 10*1000;
     
@@ -173,6 +178,33 @@ public class TunnelDataMessage extends FastI2NPMessageImpl {
         System.arraycopy(data, curIndex, _data, 0, DATA_SIZE);
     }
     
+    /**
+     *  Write only the short (SSU) header and the tunnel ID, i.e. the first
+     *  RAW_HEADER_SIZE bytes of what toRawByteArray() would write.
+     *  The remaining DATA_SIZE bytes are getData(), so a transport can
+     *  copy them straight out of the message when it fragments,
+     *  without serializing the whole message into an intermediate buffer.
+     *
+     *  @param buffer at least RAW_HEADER_SIZE bytes
+     *  @return RAW_HEADER_SIZE
+     *  @throws IllegalStateException if the message is incomplete
+     *  @since 0.9.40
+     */
+    public int toRawHeader(byte buffer[]) {
+        if (_tunnelId <= 0 || _data == null)
+            throw new IllegalStateException("Not enough data to write out (id=" + _tunnelId + ")");
+        if (_hadCache && _dataBuf == null) {
+            IllegalStateException e = new IllegalStateException("TDM data buf use after free");
+            _log.error("TDM boom", e);
+            throw e;
+        }
+        buffer[0] = (byte) MESSAGE_TYPE;
+        // same rounding as toRawByteArray()
+        DataHelper.toLong(buffer, 1, 4, (_expiration + 500) / 1000);
+        DataHelper.toLong(buffer, 5, 4, _tunnelId);
+        return RAW_HEADER_SIZE;
+    }
+
     /** calculate the message body's length (not including the header and footer */
     protected int calculateWrittenLength() { return 4 + DATA_SIZE; }
     /** write the message body to the output array, starting at the given index */
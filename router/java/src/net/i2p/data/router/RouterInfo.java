@@ -519,6 +519,21 @@ public class RouterInfo extends DatabaseEntry {
             }
         }
     }
+
+    /**
+     *  Mark the signature as valid without verifying it.
+     *  Only for a copy read back in from the bytes of a RouterInfo
+     *  that was already validated, as in the netDb's compact store.
+     *
+     *  @throws IllegalStateException if not read in or signed yet
+     *  @since 0.9.40
+     */
+    public void setValidated() {
+        if (_signature == null)
+            throw new IllegalStateException();
+        _isValid = true;
+        _validated = true;
+    }
     
     /**
      *  This does NOT validate the signature
@@ -25,6 +25,7 @@ import net.i2p.data.RoutingKeyGenerator;
 import net.i2p.util.ConvertToHash;
 import net.i2p.util.HexDump;
 import net.i2p.util.Log;
+import net.i2p.util.SimpleByteCache;
 
 /**
  * Component to manage the munging of hashes into routing keys - given a hash, 
@@ -207,14 +208,17 @@ public class RouterKeyGenerator extends RoutingKeyGenerator {
      * Generate a modified (yet consistent) hash from the origKey by generating the
      * SHA256 of the targetKey with the specified modData appended to it
      *
+     * As of 0.9.40, does not allocate if the result is in the Hash cache.
+     *
      * @throws IllegalArgumentException if origKey is null
      */
     private static Hash getKey(Hash origKey, byte[] modData) {
         if (origKey == null) throw new IllegalArgumentException("Original key is null");
-        byte modVal[] = new byte[Hash.HASH_LENGTH + LENGTH];
-        System.arraycopy(origKey.getData(), 0, modVal, 0, Hash.HASH_LENGTH);
-        System.arraycopy(modData, 0, modVal, Hash.HASH_LENGTH, LENGTH);
-        return SHA256Generator.getInstance().calculateHash(modVal);
+        // Hash.create() returns the buffer to the cache if the Hash is cached
+        byte rv[] = SimpleByteCache.acquire(Hash.HASH_LENGTH);
+        SHA256Generator.getInstance().calculateHash(origKey.getData(), 0, Hash.HASH_LENGTH,
+                                                    modData, 0, LENGTH, rv, 0);
+        return Hash.create(rv);
     }
 
     /**
@@ -11,18 +11,21 @@ package net.i2p.router;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.Writer;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.Date;
-import java.util.Iterator;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
-import java.util.TreeSet;
+import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import net.i2p.data.DataHelper;
 import net.i2p.router.message.HandleGarlicMessageJob;
@@ -38,6 +41,17 @@ import net.i2p.util.SystemVersion;
  * Manage the pending jobs according to whatever algorithm is appropriate, giving
  * preference to earlier scheduled jobs.
  *
+ * As of 0.9.40, there is no global lock. Ready jobs are in one of two lanes.
+ * The fast lane is for latency-critical job classes, see addFastLane().
+ * Fast lane jobs are run first by all runners, and by a dedicated runner
+ * that runs nothing else, so a slow job can't block them.
+ * Normal lane jobs added by a runner go in that runner's own deque,
+ * and jobs added by other threads go in a shared queue.
+ * A runner takes the older of its own and the shared head, and when both are
+ * empty it steals from the other runners' deques.
+ * Timed jobs are in a concurrent skip list, moved to the ready lanes
+ * by the pumper thread.
+ *
  * For use by the router only. Not to be used by applications or plugins.
  */
 public class JobQueue {
@@ -48,10 +62,22 @@ public class JobQueue {
     private final Map<Integer, JobQueueRunner> _queueRunners;
     /** a counter to identify a job runner */
     private final static AtomicInteger _runnerId = new AtomicInteger(0);
-    /** list of jobs that are ready to run ASAP */
-    private final BlockingQueue<Job> _readyJobs;
-    /** SortedSet of jobs that are scheduled for running in the future, earliest first */
-    private final Set<Job> _timedJobs;
+    /** all the runners including the fast lane runner, for iteration */
+    private volatile JobQueueRunner[] _runnerArray;
+    private volatile JobQueueRunner _fastRunner;
+    /** all jobs that are ready to run ASAP, in any lane, to find duplicates */
+    private final Set<Job> _readySet;
+    /** fast lane jobs that are ready to run ASAP */
+    private final Queue<Job> _fastJobs;
+    /** normal lane jobs that are ready to run ASAP, added by other than our runners */
+    private final Queue<Job> _sharedJobs;
+    /** job classes for the fast lane */
+    private final Set<Class<?>> _fastClasses;
+    /** jobs that are scheduled for running in the future, earliest first */
+    private final ConcurrentSkipListSet<TimedJob> _timedJobs;
+    /** the current entry in _timedJobs for each job */
+    private final ConcurrentHashMap<Job, TimedJob> _timedMap;
+    private final AtomicLong _timedSeq = new AtomicLong();
     /** job name to JobStat for that job */
     private final ConcurrentHashMap<String, JobStats> _jobStats;
     private final QueuePumper _pumper;
@@ -60,8 +86,15 @@ public class JobQueue {
     /** have we been killed or are we alive? */
     private volatile boolean _alive;
     
+    /** the pumper waits on this, it does not protect the queues */
     private final Object _jobLock;
+    /** zero while the pumper is checking the timed jobs */
     private volatile long _nextPumperRun;
+    /** protected by _jobLock */
+    private boolean _pumperWakeup;
+    /** per-lane stats, for the console */
+    private final JobStats _fastLaneStats;
+    private final JobStats _normalLaneStats;
     
     /** how many when we go parallel */
     private static final int RUNNERS;
@@ -75,6 +108,11 @@ public class JobQueue {
             RUNNERS = 5;
     }
 
+    /** router.config parameter to disable the fast lane runner */
+    private final static String PROP_FAST_RUNNER = "router.jobFastLaneRunner";
+    /** runners don't rely on this, it's a failsafe */
+    private final static long IDLE_WAIT = 1000;
+
     /** default max # job queue runners operating */
     private final static int DEFAULT_MAX_RUNNERS = 1;
     /** router.config parameter to override the max runners */
@@ -132,6 +170,12 @@ public class JobQueue {
      * this gets notified *once* whenever there are ready jobs
      */
     private final Object _runnerLock = new Object();
+    /** number of runners waiting on _runnerLock */
+    private final AtomicInteger _idleRunners = new AtomicInteger();
+    /** the fast lane runner waits on this */
+    private final Object _fastLock = new Object();
+    /** number of runners waiting on _fastLock */
+    private final AtomicInteger _idleFastRunners = new AtomicInteger();
     
     /** 
      *  Does not start the pumper. Caller MUST call startup.
@@ -156,12 +200,22 @@ public class JobQueue {
         _context.statManager().createRateStat("jobQueue.jobRunSlow", "How long jobs that take over a second take", "JobQueue", new long[] { 60*60*1000l, 24*60*60*1000l });
         _context.statManager().createRequiredRateStat("jobQueue.jobLag", "Job run delay (ms)", "JobQueue", new long[] { 60*1000l, 60*60*1000l, 24*60*60*1000l });
         _context.statManager().createRateStat("jobQueue.jobWait", "How long does a job sit on the job queue?", "JobQueue", new long[] { 60*60*1000l, 24*60*60*1000l });
+        _context.statManager().createRateStat("jobQueue.fastJobLag", "Fast lane job run delay (ms)", "JobQueue", new long[] { 60*1000l, 60*60*1000l, 24*60*60*1000l });
+        _context.statManager().createRateStat("jobQueue.jobSteal", "Jobs taken from another runner", "JobQueue", new long[] { 60*1000l, 60*60*1000l });
         //_context.statManager().createRateStat("jobQueue.jobRunnerInactive", "How long are runners inactive?", "JobQueue", new long[] { 60*1000l, 60*60*1000l, 24*60*60*1000l });
 
-        _readyJobs = new LinkedBlockingQueue<Job>();
-        _timedJobs = new TreeSet<Job>(new JobComparator());
+        _readySet = Collections.newSetFromMap(new ConcurrentHashMap<Job, Boolean>());
+        _fastJobs = new ConcurrentLinkedQueue<Job>();
+        _sharedJobs = new ConcurrentLinkedQueue<Job>();
+        _fastClasses = Collections.newSetFromMap(new ConcurrentHashMap<Class<?>, Boolean>());
+        _fastClasses.add(HandleGarlicMessageJob.class);
+        _timedJobs = new ConcurrentSkipListSet<TimedJob>(new TimedJobComparator());
+        _timedMap = new ConcurrentHashMap<Job, TimedJob>();
         _jobLock = new Object();
         _queueRunners = new ConcurrentHashMap<Integer,JobQueueRunner>(RUNNERS);
+        _runnerArray = new JobQueueRunner[0];
+        _fastLaneStats = new JobStats("Fast lane");
+        _normalLaneStats = new JobStats("Normal lane");
         _jobStats = new ConcurrentHashMap<String,JobStats>();
         _pumper = new QueuePumper();
     }
@@ -188,44 +242,47 @@ public class JobQueue {
             if (_log.shouldLog(Log.WARN))
                 _log.warn("Scheduling job far in the future: " + (new Date(start)) + ' ' + job);
         }
-        synchronized (_jobLock) {
-            if (_readyJobs.contains(job))
-                alreadyExists = true;
-            numReady = _readyJobs.size();
-            if (!alreadyExists) {
-                //if (_timedJobs.contains(job))
-                //    alreadyExists = true;
-                // Always remove and re-add, since it needs to be
-                // re-sorted in the TreeSet.
-                boolean removed = _timedJobs.remove(job);
-                if (removed && _log.shouldLog(Log.WARN))
+        alreadyExists = _readySet.contains(job);
+        if (alreadyExists && start > now) {
+            // Rescheduled for later while ready, or just after a runner took it from its lane.
+            // Either way it goes in the timed set; if it was still ready,
+            // the entry left in its lane is skipped by poll().
+            _readySet.remove(job);
+            alreadyExists = false;
+        }
+        numReady = _readySet.size();
+        if (!alreadyExists) {
+            // Always remove and re-add, since it needs to be
+            // re-sorted in the skip list.
+            TimedJob old = _timedMap.remove(job);
+            if (old != null) {
+                _timedJobs.remove(old);
+                if (_log.shouldLog(Log.WARN))
                     _log.warn("Rescheduling job: " + job);
             }
+        }
 
-            if ((!alreadyExists) && shouldDrop(job, numReady)) {
-                job.dropped();
-                dropped = true;
-            } else {
-                if (!alreadyExists) {
-                    if (start <= now) {
-                        // don't skew us - its 'start after' its been queued, or later
-                        job.getTiming().setStartAfter(now);
-                        if (job instanceof JobImpl)
-                            ((JobImpl)job).madeReady();
-                        _readyJobs.offer(job);
-                    } else {
-                        _timedJobs.add(job);
-                        // only notify for _timedJobs, as _readyJobs does not use that lock
-                        // only notify if sooner, to reduce contention
-                        if (start < _nextPumperRun)
-                            _jobLock.notifyAll();
-                    }
+        if ((!alreadyExists) && shouldDrop(job, numReady)) {
+            job.dropped();
+            dropped = true;
+        } else {
+            if (!alreadyExists) {
+                if (start <= now) {
+                    // don't skew us - its 'start after' its been queued, or later
+                    job.getTiming().setStartAfter(now);
+                    makeReady(job);
+                } else {
+                    addTimed(job, start);
+                    // only notify if sooner, to reduce contention
+                    long next = _nextPumperRun;
+                    if (next == 0 || start < next)
+                        wakePumper();
                 }
             }
         }
         
         _context.statManager().addRateData("jobQueue.readyJobs", numReady);
-        _context.statManager().addRateData("jobQueue.queuedJobs", _timedJobs.size());
+        _context.statManager().addRateData("jobQueue.queuedJobs", _timedMap.size());
         if (dropped) {
             _context.statManager().addRateData("jobQueue.droppedJobs", 1);
             if (_log.shouldLog(Log.WARN))
@@ -243,12 +300,108 @@ public class JobQueue {
         }
     }
     
-    public void removeJob(Job job) {
+    /**
+     *  Add jobs of this class to the fast lane.
+     *  Only for short jobs where latency is important.
+     *  HandleGarlicMessageJob is always in the fast lane.
+     *
+     *  @since 0.9.40
+     */
+    public void addFastLane(Class<? extends Job> cls) {
+        _fastClasses.add(cls);
+    }
+
+    /**
+     *  @since 0.9.40
+     */
+    private boolean isFastLane(Job job) {
+        return _fastClasses.contains(job.getClass());
+    }
+
+    /**
+     *  Put the job in a ready lane and wake up a runner.
+     *  Does nothing if already ready.
+     *
+     *  @since 0.9.40
+     */
+    private void makeReady(Job job) {
+        if (!_readySet.add(job))
+            return;
+        if (job instanceof JobImpl)
+            ((JobImpl)job).madeReady();
+        if (isFastLane(job)) {
+            _fastJobs.offer(job);
+            if (_idleFastRunners.get() > 0) {
+                synchronized (_fastLock) {
+                    _fastLock.notify();
+                }
+                return;
+            }
+        } else {
+            Deque<Job> local = getLocalJobs();
+            if (local != null)
+                local.offerLast(job);
+            else
+                _sharedJobs.offer(job);
+        }
+        // The runners increment before checking the lanes, so we can't miss one
+        if (_idleRunners.get() > 0) {
+            synchronized (_runnerLock) {
+                _runnerLock.notify();
+            }
+        }
+    }
+
+    /**
+     *  @return the deque for the current thread if it is one of our normal lane runners, else null
+     *  @since 0.9.40
+     */
+    private Deque<Job> getLocalJobs() {
+        Thread t = Thread.currentThread();
+        if (!(t instanceof JobQueueRunner))
+            return null;
+        JobQueueRunner runner = (JobQueueRunner) t;
+        Deque<Job> rv = runner.getLocalJobs();
+        if (rv == null || _queueRunners.get(Integer.valueOf(runner.getRunnerId())) != runner)
+            return null;
+        return rv;
+    }
+
+    /**
+     *  @since 0.9.40
+     */
+    private void addTimed(Job job, long start) {
+        TimedJob tj = new TimedJob(job, start, _timedSeq.incrementAndGet());
+        TimedJob old = _timedMap.put(job, tj);
+        if (old != null)
+            _timedJobs.remove(old);
+        _timedJobs.add(tj);
+    }
+
+    /**
+     *  @since 0.9.40
+     */
+    private void wakePumper() {
         synchronized (_jobLock) {
-            _readyJobs.remove(job);
-            _timedJobs.remove(job);
+            _pumperWakeup = true;
+            _jobLock.notifyAll();
         }
     }
+
+    public void removeJob(Job job) {
+        if (_readySet.remove(job)) {
+            if (!_fastJobs.remove(job) && !_sharedJobs.remove(job)) {
+                for (JobQueueRunner runner : _runnerArray) {
+                    Deque<Job> local = runner.getLocalJobs();
+                    if (local != null && local.remove(job))
+                        break;
+                }
+            }
+        }
+        TimedJob old = _timedMap.remove(job);
+        if (old != null)
+            _timedJobs.remove(old);
+    }
     
     /**
      * Returns <code>true</code> if a given job is waiting or running;
@@ -258,11 +411,9 @@ public class JobQueue {
      */
     @Deprecated
     public boolean isJobActive(Job job) {
-        synchronized (_jobLock) {
-            if (_readyJobs.contains(job) || _timedJobs.contains(job))
-                return true;
-        }
-        for (JobQueueRunner runner: _queueRunners.values())
+        if (_readySet.contains(job) || _timedMap.containsKey(job))
+            return true;
+        for (JobQueueRunner runner: _runnerArray)
             if (runner.getCurrentJob() == job)
                 return true;
         return false;
@@ -273,25 +424,37 @@ public class JobQueue {
      */
     @Deprecated
     public void timingUpdated() {
-        synchronized (_jobLock) {
-            _jobLock.notifyAll();
-        }
+        wakePumper();
     }
     
     public int getReadyCount() { 
-            return _readyJobs.size();
+            return _readySet.size();
     }
 
+    /**
+     *  The lag of the oldest ready job in any lane.
+     */
     public long getMaxLag() { 
-            // first job is the one that has been waiting the longest
-            Job j = _readyJobs.peek();
-            if (j == null) return 0;
-            JobTiming jt = j.getTiming();
-            // PoisonJob timing is null, prevent NPE at shutdown
-            if (jt == null)
+            // first job in each queue is the one that has been waiting the longest
+            long oldest = Math.min(getStartAfter(_fastJobs.peek()), getStartAfter(_sharedJobs.peek()));
+            for (JobQueueRunner runner : _runnerArray) {
+                Deque<Job> local = runner.getLocalJobs();
+                if (local != null)
+                    oldest = Math.min(oldest, getStartAfter(local.peekFirst()));
+            }
+            if (oldest == Long.MAX_VALUE)
                 return 0;
-            long startAfter = jt.getStartAfter();
-            return _context.clock().now() - startAfter;
+            return _context.clock().now() - oldest;
+    }
+
+    /**
+     *  @return Long.MAX_VALUE if null
+     *  @since 0.9.40
+     */
+    private static long getStartAfter(Job j) {
+        if (j == null)
+            return Long.MAX_VALUE;
+        return j.getTiming().getStartAfter();
     }
     
     /** 
@@ -360,29 +523,44 @@ public class JobQueue {
     /** @deprecated do you really want to do this? */
     @Deprecated
     public void restart() {
-        synchronized (_jobLock) {
-            _timedJobs.clear();
-            _readyJobs.clear();
-            _jobLock.notifyAll();
+        clear();
+        wakePumper();
+    }
+
+    /**
+     *  @since 0.9.40
+     */
+    private void clear() {
+        _timedMap.clear();
+        _timedJobs.clear();
+        _fastJobs.clear();
+        _sharedJobs.clear();
+        for (JobQueueRunner runner : _runnerArray) {
+            Deque<Job> local = runner.getLocalJobs();
+            if (local != null)
+                local.clear();
         }
+        _readySet.clear();
     }
     
     void shutdown() { 
         _alive = false; 
-        synchronized (_jobLock) {
-            _timedJobs.clear();
-            _readyJobs.clear();
-            _jobLock.notifyAll();
-        }
+        clear();
+        wakePumper();
         // The JobQueueRunners are NOT daemons,
         // so they must be stopped.
-        Job poison = new PoisonJob();
-        for (JobQueueRunner runner : _queueRunners.values()) {
+        for (JobQueueRunner runner : _runnerArray) {
              runner.stopRunning();
-            _readyJobs.offer(poison);
-            // TODO interrupt thread for each runner
+        }
+        synchronized (_runnerLock) {
+            _runnerLock.notifyAll();
+        }
+        synchronized (_fastLock) {
+            _fastLock.notifyAll();
         }
         _queueRunners.clear();
+        _runnerArray = new JobQueueRunner[0];
+        _fastRunner = null;
         _jobStats.clear();
         _runnerId.set(0);
 
@@ -432,7 +610,7 @@ public class JobQueue {
      */
     public long getLastJobBegin() { 
         long when = -1;
-        for (JobQueueRunner runner : _queueRunners.values()) {
+        for (JobQueueRunner runner : _runnerArray) {
             long cur = runner.getLastBegin();
             if (cur > when)
                 cur = when;
@@ -444,7 +622,7 @@ public class JobQueue {
      */
     public long getLastJobEnd() { 
         long when = -1;
-        for (JobQueueRunner runner : _queueRunners.values()) {
+        for (JobQueueRunner runner : _runnerArray) {
             long cur = runner.getLastEnd();
             if (cur > when)
                 cur = when;
@@ -458,7 +636,7 @@ public class JobQueue {
     public Job getLastJob() { 
         Job j = null;
         long when = -1;
-        for (JobQueueRunner cur : _queueRunners.values()) {
+        for (JobQueueRunner cur : _runnerArray) {
             if (cur.getLastBegin() > when) {
                 j = cur.getCurrentJob();
                 when = cur.getLastBegin();
@@ -470,20 +648,97 @@ public class JobQueue {
     /**
      * Blocking call to retrieve the next ready job
      *
+     * @param runner the caller
+     * @return null if the runner should stop
+     * @since 0.9.40 added runner param
      */
-    Job getNext() {
-        while (_alive) {
-            try {
-                Job j = _readyJobs.take();
-                if (j.getJobId() == POISON_ID)
-                    break;
+    Job getNext(JobQueueRunner runner) {
+        boolean fastOnly = runner.getLocalJobs() == null;
+        Object lock = fastOnly ? _fastLock : _runnerLock;
+        AtomicInteger idle = fastOnly ? _idleFastRunners : _idleRunners;
+        while (_alive && runner.isRunning()) {
+            Job j = poll(runner, fastOnly);
+            if (j == null) {
+                synchronized (lock) {
+                    // increment before checking again, see makeReady()
+                    idle.incrementAndGet();
+                    try {
+                        j = poll(runner, fastOnly);
+                        if (j == null && _alive)
+                            lock.wait(IDLE_WAIT);
+                    } catch (InterruptedException ie) {
+                    } finally {
+                        idle.decrementAndGet();
+                    }
+                }
+            }
+            if (j != null)
                 return j;
-            } catch (InterruptedException ie) {}
         }
         if (_log.shouldLog(Log.WARN))
             _log.warn("No longer alive, returning null");
         return null;
     }
+
+    /**
+     *  Non-blocking.
+     *  The job is ours only if we are the one to remove it from the ready set.
+     *  Jobs removed or rescheduled while in a lane are left there, skip them.
+     *
+     *  @return null if none
+     *  @since 0.9.40
+     */
+    private Job poll(JobQueueRunner runner, boolean fastOnly) {
+        Job j;
+        while ((j = pollLanes(runner, fastOnly)) != null) {
+            if (_readySet.remove(j))
+                return j;
+        }
+        return null;
+    }
+
+    /**
+     *  Non-blocking.
+     *  Fast lane first, then the older of our deque and the shared queue,
+     *  then steal from the other runners.
+     *
+     *  @return null if none
+     *  @since 0.9.40
+     */
+    private Job pollLanes(JobQueueRunner runner, boolean fastOnly) {
+        Job j = _fastJobs.poll();
+        if (j != null || fastOnly)
+            return j;
+        Deque<Job> local = runner.getLocalJobs();
+        Job lj = local.peekFirst();
+        if (lj != null && getStartAfter(lj) <= getStartAfter(_sharedJobs.peek())) {
+            j = local.pollFirst();
+            if (j != null)
+                return j;
+        }
+        j = _sharedJobs.poll();
+        if (j != null)
+            return j;
+        j = local.pollFirst();
+        if (j != null)
+            return j;
+        // Steal the oldest job, not the newest as in a classic work stealing deque,
+        // as we care about lag more than cache locality
+        JobQueueRunner[] runners = _runnerArray;
+        int sz = runners.length;
+        int off = runner.getRunnerId();
+        for (int i = 1; i < sz; i++) {
+            Deque<Job> other = runners[(off + i) % sz].getLocalJobs();
+            if (other != null) {
+                j = other.pollFirst();
+                if (j != null) {
+                    _context.statManager().addRateData("jobQueue.jobSteal", 1);
+                    return j;
+                }
+            }
+        }
+        return null;
+    }
     
     /**
      * Start up the queue with the specified number of concurrent processors.
@@ -505,11 +760,20 @@ public class JobQueue {
                     _log.info("Increasing the number of queue runners from " 
                               + _queueRunners.size() + " to " + numThreads);
                 for (int i = _queueRunners.size(); i < numThreads; i++) {
-                    JobQueueRunner runner = new JobQueueRunner(_context, i);
+                    JobQueueRunner runner = new JobQueueRunner(_context, i, false);
                     _queueRunners.put(Integer.valueOf(i), runner);
+                    updateRunnerArray();
                     runner.setName("JobQueue " + _runnerId.incrementAndGet() + '/' + numThreads);
                     runner.start();
                 }
+                if (_fastRunner == null && _allowParallelOperation &&
+                    _context.getBooleanPropertyDefaultTrue(PROP_FAST_RUNNER)) {
+                    JobQueueRunner runner = new JobQueueRunner(_context, FAST_RUNNER_ID, true);
+                    _fastRunner = runner;
+                    updateRunnerArray();
+                    runner.setName("JobQueue Fast Lane");
+                    runner.start();
+                }
             } else if (_queueRunners.size() == numThreads) {
                 for (JobQueueRunner runner : _queueRunners.values()) {
                     runner.startRunning();
@@ -522,7 +786,40 @@ public class JobQueue {
             }
     }
         
-    void removeRunner(int id) { _queueRunners.remove(Integer.valueOf(id)); }
+    /**
+     *  Called by the runner when it exits.
+     *  Its remaining jobs are moved to the shared queue.
+     */
+    void removeRunner(int id) {
+        JobQueueRunner runner;
+        if (id == FAST_RUNNER_ID) {
+            runner = _fastRunner;
+            _fastRunner = null;
+        } else {
+            runner = _queueRunners.remove(Integer.valueOf(id));
+        }
+        updateRunnerArray();
+        if (runner != null) {
+            Deque<Job> local = runner.getLocalJobs();
+            if (local != null) {
+                Job j;
+                while ((j = local.pollFirst()) != null) {
+                    _sharedJobs.offer(j);
+                }
+            }
+        }
+    }
+
+    /**
+     *  @since 0.9.40
+     */
+    private synchronized void updateRunnerArray() {
+        List<JobQueueRunner> runners = new ArrayList<JobQueueRunner>(_queueRunners.values());
+        JobQueueRunner fast = _fastRunner;
+        if (fast != null)
+            runners.add(fast);
+        _runnerArray = runners.toArray(new JobQueueRunner[runners.size()]);
+    }
     
     /**
      * Responsible for moving jobs from the timed queue to the ready queue, 
@@ -539,69 +836,47 @@ public class JobQueue {
         public void run() {
             try {
                 while (_alive) {
+                    // tell addJob() to wake us up, as we may miss the new job
+                    _nextPumperRun = 0;
                     long now = _context.clock().now();
                     long timeToWait = -1;
+                    TimedJob tj;
+                    while ((tj = _timedJobs.pollFirst()) != null) {
+                        if (tj.when > now) {
+                            _timedJobs.add(tj);
+                            timeToWait = tj.when - now;
+                            break;
+                        }
+                        Job j = tj.job;
+                        // not rescheduled or removed since
+                        if (!_timedMap.remove(j, tj))
+                            continue;
+                        long start = j.getTiming().getStartAfter();
+                        if (start > now) {
+                            // setStartAfter() without addJob(), don't run it early
+                            if (_log.shouldLog(Log.INFO))
+                                _log.info("Re-sort job " + j + " with delay " + DataHelper.formatDuration(start - now));
+                            TimedJob ntj = new TimedJob(j, start, _timedSeq.incrementAndGet());
+                            if (_timedMap.putIfAbsent(j, ntj) == null)
+                                _timedJobs.add(ntj);
+                            continue;
+                        }
+                        makeReady(j);
+                    }
+                    if (timeToWait < 0)
+                        timeToWait = 1000;
+                    else if (timeToWait < 10)
+                        timeToWait = 10;
+                    else if (timeToWait > 10*1000)
+                        timeToWait = 10*1000;
                     try {
                         synchronized (_jobLock) {
-                            Job lastJob = null;
-                            long lastTime = Long.MIN_VALUE;
-                            for (Iterator<Job> iter = _timedJobs.iterator(); iter.hasNext(); ) {
-                                Job j = iter.next();
-                                // find jobs due to start before now
-                                long timeLeft = j.getTiming().getStartAfter() - now;
-                                if (lastJob != null && lastTime > j.getTiming().getStartAfter()) {
-                                    _log.error("Job " + lastJob + " out of order with job " + j +
-                                             " difference of " + DataHelper.formatDuration(lastTime - j.getTiming().getStartAfter()));
-                                }
-                                lastJob = j;
-                                lastTime = lastJob.getTiming().getStartAfter();
-                                if (timeLeft <= 0) {
-                                    if (j instanceof JobImpl)
-                                        ((JobImpl)j).madeReady();
-
-                                    _readyJobs.offer(j);
-                                    iter.remove();
-                                } else {
-                                    //if ( (timeToWait <= 0) || (timeLeft < timeToWait) )
-                                    // _timedJobs is now a TreeSet, so once we hit one that is
-                                    // not ready yet, we can break
-                                    // NOTE: By not going through the whole thing, a single job changing
-                                    // setStartAfter() to some far-away time, without
-                                    // calling addJob(), could clog the whole queue forever.
-                                    // Hopefully nobody does that, and as a backup, we hope
-                                    // that the TreeSet will eventually resort it from other addJob() calls.
-                                        timeToWait = timeLeft;
-
-                                    // failsafe - remove and re-add, peek at the next job,
-                                    // break and go around again
-                                    if (timeToWait > 10*1000 && iter.hasNext()) {
-                                        if (_log.shouldLog(Log.INFO))
-                                            _log.info("Failsafe re-sort job " + j +
-                                                " with delay " + DataHelper.formatDuration(timeToWait));
-                                        iter.remove();
-                                        Job nextJob = iter.next();
-                                        _timedJobs.add(j);
-                                        long nextTimeLeft = nextJob.getTiming().getStartAfter() - now;
-                                        if (timeToWait > nextTimeLeft) {
-                                            _log.error("Job " + j + " out of order with job " + nextJob +
-                                                " difference of " + DataHelper.formatDuration(timeToWait - nextTimeLeft));
-                                            timeToWait = Math.max(10, nextTimeLeft);
-                                        }
-                                    }
-                                    break;
-                                }
-                            }
-                                if (timeToWait < 0)
-                                    timeToWait = 1000;
-                                else if (timeToWait < 10)
-                                    timeToWait = 10;
-                                else if (timeToWait > 10*1000)
-                                    timeToWait = 10*1000;
-                                //if (_log.shouldLog(Log.DEBUG))
-                                //    _log.debug("Waiting " + timeToWait + " before rechecking the timed queue");
+                            if (!_pumperWakeup) {
                                 _nextPumperRun = _context.clock().now() + timeToWait;
                                 _jobLock.wait(timeToWait);
-                        } // synchronize (_jobLock)
+                            }
+                            _pumperWakeup = false;
+                        }
                     } catch (InterruptedException ie) {}
                 } // while (_alive)
             } catch (Throwable t) {
@@ -615,9 +890,7 @@ public class JobQueue {
 
         public void offsetChanged(long delta) {
             updateJobTimings(delta);
-            synchronized (_jobLock) {
-                _jobLock.notifyAll();
-            }
+            wakePumper();
         }
 
         /**
@@ -630,9 +903,7 @@ public class JobQueue {
             if (delta < 0) {
                 offsetChanged(delta);
             } else {
-                synchronized (_jobLock) {
-                    _jobLock.notifyAll();
-                }
+                wakePumper();
             }
         }
 
@@ -643,20 +914,24 @@ public class JobQueue {
      * completion.
      */
     private void updateJobTimings(long delta) {
-        synchronized (_jobLock) {
-            for (Job j : _timedJobs) {
-                j.getTiming().offsetChanged(delta);
-            }
-            for (Job j : _readyJobs) {
-                j.getTiming().offsetChanged(delta);
-            }
+        for (TimedJob tj : _timedMap.values()) {
+            Job j = tj.job;
+            j.getTiming().offsetChanged(delta);
+            // re-sort
+            TimedJob ntj = new TimedJob(j, j.getTiming().getStartAfter(), _timedSeq.incrementAndGet());
+            _timedJobs.add(ntj);
+            if (_timedMap.replace(j, tj, ntj))
+                _timedJobs.remove(tj);
+            else
+                _timedJobs.remove(ntj);
         }
-        synchronized (_runnerLock) {
-            for (JobQueueRunner runner : _queueRunners.values()) {
-                Job job = runner.getCurrentJob();
-                if (job != null)
-                    job.getTiming().offsetChanged(delta);
-            }
+        for (Job j : _readySet) {
+            j.getTiming().offsetChanged(delta);
+        }
+        for (JobQueueRunner runner : _runnerArray) {
+            Job job = runner.getCurrentJob();
+            if (job != null)
+                job.getTiming().offsetChanged(delta);
         }
     }
     
@@ -683,6 +958,12 @@ public class JobQueue {
                 stats = old;
         }
         stats.jobRan(duration, lag);
+        if (isFastLane(job)) {
+            _fastLaneStats.jobRan(duration, lag);
+            _context.statManager().addRateData("jobQueue.fastJobLag", lag);
+        } else {
+            _normalLaneStats.jobRan(duration, lag);
+        }
 
         String dieMsg = null;
 
@@ -720,42 +1001,42 @@ public class JobQueue {
     }
     
         
-    /** job ID counter changed from int to long so it won't wrap negative */
-    private static final int POISON_ID = -99999;
+    private static final int FAST_RUNNER_ID = -1;
 
-    private static class PoisonJob implements Job {
-        public String getName() { return null; }
-        public long getJobId() { return POISON_ID; }
-        public JobTiming getTiming() { return null; }
-        public void runJob() {}
-        public Exception getAddedBy() { return null; }
-        public void dropped() {}
+    /**
+     *  An entry in _timedJobs.
+     *  The start time is copied, so the skip list stays sorted
+     *  even if the job's timing changes.
+     *  @since 0.9.40
+     */
+    private static class TimedJob {
+        public final Job job;
+        public final long when;
+        public final long seq;
+
+        public TimedJob(Job job, long when, long seq) {
+            this.job = job;
+            this.when = when;
+            this.seq = seq;
+        }
     }
 
     /**
-     *  Comparator for the _timedJobs TreeSet.
-     *  Ensure different jobs with the same timing are different so they aren't removed.
-     *  @since 0.8.9
+     *  Comparator for the _timedJobs skip list.
+     *  Replaces JobComparator.
+     *  @since 0.9.40
      */
-    private static class JobComparator implements Comparator<Job>, Serializable {
-         public int compare(Job l, Job r) {
-             // equals first, Jobs generally don't override so this should be fast
-             // And this MUST be first so we can remove a job even if its timing has changed.
-             if (l.equals(r))
-                 return 0;
-             // This is for _timedJobs, which always have a JobTiming.
-             // PoisonJob only goes in _readyJobs.
-             long ld = l.getTiming().getStartAfter() - r.getTiming().getStartAfter();
-             if (ld < 0)
+    private static class TimedJobComparator implements Comparator<TimedJob>, Serializable {
+         public int compare(TimedJob l, TimedJob r) {
+             if (l.when < r.when)
                  return -1;
-             if (ld > 0)
+             if (l.when > r.when)
                  return 1;
-             ld = l.getJobId() - r.getJobId();
-             if (ld < 0)
+             if (l.seq < r.seq)
                  return -1;
-             if (ld > 0)
+             if (l.seq > r.seq)
                  return 1;
-             return l.hashCode() - r.hashCode();
+             return 0;
         }
     }
 
@@ -772,7 +1053,8 @@ public class JobQueue {
      */
     public int getJobs(Collection<Job> readyJobs, Collection<Job> timedJobs,
                        Collection<Job> activeJobs, Collection<Job> justFinishedJobs) {
-        for (JobQueueRunner runner :_queueRunners.values()) {
+        JobQueueRunner[] runners = _runnerArray;
+        for (JobQueueRunner runner : runners) {
             Job job = runner.getCurrentJob();
             if (job != null) {
                 activeJobs.add(job);
@@ -782,11 +1064,19 @@ public class JobQueue {
                     justFinishedJobs.add(job);
             }
         }
-        synchronized (_jobLock) {
-            readyJobs.addAll(_readyJobs); 
-            timedJobs.addAll(_timedJobs);
+        readyJobs.addAll(_fastJobs);
+        readyJobs.addAll(_sharedJobs);
+        for (JobQueueRunner runner : runners) {
+            Deque<Job> local = runner.getLocalJobs();
+            if (local != null)
+                readyJobs.addAll(local);
+        }
+        for (TimedJob tj : _timedJobs) {
+            // skip stale entries
+            if (_timedMap.get(tj.job) == tj)
+                timedJobs.add(tj.job);
         }
-        return _queueRunners.size();
+        return runners.length;
     }
 
     /**
@@ -799,6 +1089,19 @@ public class JobQueue {
         return Collections.unmodifiableCollection(_jobStats.values());
     }
 
+    /**
+     *  Stats for each lane, the fast lane first.
+     *  For the router console jobs status page.
+     *
+     *  @since 0.9.40
+     */
+    public List<JobStats> getLaneStats() {
+        List<JobStats> rv = new ArrayList<JobStats>(2);
+        rv.add(_fastLaneStats);
+        rv.add(_normalLaneStats);
+        return rv;
+    }
+
     /** @deprecated moved to router console */
     @Deprecated
     public void renderStatusHTML(Writer out) throws IOException {
@@ -1,5 +1,8 @@
 package net.i2p.router;
 
+import java.util.Deque;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
 import net.i2p.util.I2PThread;
 import net.i2p.util.Log;
 import net.i2p.util.SystemVersion;
@@ -14,11 +17,18 @@ class JobQueueRunner extends I2PThread {
     private volatile Job _lastJob;
     private volatile long _lastBegin;
     private volatile long _lastEnd;
+    /** null for the fast lane runner */
+    private final Deque<Job> _localJobs;
     //private volatile int _state;
     
-    public JobQueueRunner(RouterContext context, int id) {
+    /**
+     *  @param fastLane if true, only run fast lane jobs
+     *  @since 0.9.40 added fastLane param
+     */
+    public JobQueueRunner(RouterContext context, int id, boolean fastLane) {
         _context = context;
         _id = id;
+        _localJobs = fastLane ? null : new ConcurrentLinkedDeque<Job>();
         _keepRunning = true;
         _log = _context.logManager().getLog(JobQueueRunner.class);
         setPriority(NORM_PRIORITY + 1);
@@ -33,6 +43,16 @@ class JobQueueRunner extends I2PThread {
     public int getRunnerId() { return _id; }
     public void stopRunning() { _keepRunning = false; }
     public void startRunning() { _keepRunning = true; }
+    /** @since 0.9.40 */
+    boolean isRunning() { return _keepRunning; }
+
+    /**
+     *  Ready jobs queued by this runner, any runner may take them.
+     *  @return null for the fast lane runner
+     *  @since 0.9.40
+     */
+    Deque<Job> getLocalJobs() { return _localJobs; }
+
     public long getLastBegin() { return _lastBegin; }
     public long getLastEnd() { return _lastEnd; }
     public void run() {
@@ -41,7 +61,7 @@ class JobQueueRunner extends I2PThread {
         while ( (_keepRunning) && (_context.jobQueue().isAlive()) ) { 
             //_state = 3;
             try {
-                Job job = _context.jobQueue().getNext();
+                Job job = _context.jobQueue().getNext(this);
                 //_state = 4;
                 if (job == null) {
                     //_state = 5;
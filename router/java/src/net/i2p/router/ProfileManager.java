@@ -165,6 +165,14 @@ public interface ProfileManager {
      *
      */
     void messageReceived(Hash peer, String style, long msToReceive, int bytesRead);
+
+    /**
+     * Note the result of an SSU path MTU search to the given peer.
+     *
+     * @param mtu the largest packet size confirmed
+     * @since 0.9.40
+     */
+    void pathMTUProbed(Hash peer, boolean ipv6, int mtu);
     
     /** provide a simple summary of a number of peers, suitable for publication in the netDb */
     Properties summarizePeers(int numPeers);
@@ -29,6 +29,21 @@ public interface DataStore {
     public Collection<DatabaseEntry> getEntries();
     /** @since 0.8.3 */
     public Set<Map.Entry<Hash, DatabaseEntry>> getMapEntries();
+
+    /**
+     *  @return Unmodifiable view, not a copy
+     *  @since 0.9.40
+     */
+    public Set<Hash> getRouterInfoKeys();
+
+    /**
+     *  Everything but the RouterInfos.
+     *
+     *  @return Unmodifiable view, not a copy
+     *  @since 0.9.40
+     */
+    public Set<Map.Entry<Hash, DatabaseEntry>> getLeaseSetEntries();
+
     public void stop();
     public void restart();
     public void rescan();
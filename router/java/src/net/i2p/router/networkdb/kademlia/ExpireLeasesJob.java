@@ -59,7 +59,7 @@ class ExpireLeasesJob extends JobImpl {
      */
     private Set<Hash> selectKeysToExpire() {
         Set<Hash> toExpire = new HashSet<Hash>(128);
-        for (Map.Entry<Hash, DatabaseEntry> entry : _facade.getDataStore().getMapEntries()) {
+        for (Map.Entry<Hash, DatabaseEntry> entry : _facade.getDataStore().getLeaseSetEntries()) {
             DatabaseEntry obj = entry.getValue();
             if (obj.isLeaseSet()) {
                 LeaseSet ls = (LeaseSet)obj;
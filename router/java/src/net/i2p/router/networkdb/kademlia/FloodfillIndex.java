@@ -0,0 +1,244 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import net.i2p.data.Hash;
+
+/**
+ *  The known floodfills, in a binary trie on their router hashes,
+ *  so the floodfills closest to a key may be found without sorting
+ *  all of them for every lookup and store.
+ *
+ *  As in the kbuckets and XORComparator, the distance is from the
+ *  routing key to the router hash. Only the routing key changes at
+ *  midnight, so nothing here needs to change with it.
+ *
+ *  The trie is immutable. Changes copy the path to the changed leaf
+ *  and replace the root, so readers never lock and always see
+ *  a consistent set. Changes are synchronized.
+ *
+ *  Contains the same peers as peerManager().getPeersByCapability('f'),
+ *  and is updated at the same places.
+ *
+ *  @since 0.9.40
+ */
+class FloodfillIndex {
+    private volatile Node _root;
+    /** synch on this */
+    private int _size;
+
+    private static abstract class Node {}
+
+    private static class Leaf extends Node {
+        public final Hash peer;
+
+        public Leaf(Hash peer) {
+            this.peer = peer;
+        }
+    }
+
+    /**
+     *  Either child may be null, but not both.
+     *  A branch never has a leaf as its only child.
+     */
+    private static class Branch extends Node {
+        public final Node zero, one;
+
+        public Branch(Node zero, Node one) {
+            this.zero = zero;
+            this.one = one;
+        }
+    }
+
+    /**
+     *  Add or remove the peer depending on the caps.
+     *
+     *  @param caps non-null
+     */
+    public void setCapabilities(Hash peer, String caps) {
+        if (caps.indexOf(FloodfillNetworkDatabaseFacade.CAPABILITY_FLOODFILL) >= 0)
+            add(peer);
+        else
+            remove(peer);
+    }
+
+    public synchronized void add(Hash peer) {
+        if (contains(peer))
+            return;
+        _root = insert(_root, new Leaf(peer), 0);
+        _size++;
+    }
+
+    public synchronized void remove(Hash peer) {
+        Node root = _root;
+        Node n = remove(root, peer, 0);
+        if (n != root) {
+            _root = n;
+            _size--;
+        }
+    }
+
+    public synchronized void clear() {
+        _root = null;
+        _size = 0;
+    }
+
+    public boolean contains(Hash peer) {
+        byte[] key = peer.getData();
+        Node node = _root;
+        int depth = 0;
+        while (node instanceof Branch) {
+            Branch b = (Branch) node;
+            node = bit(key, depth++) == 0 ? b.zero : b.one;
+        }
+        return node != null && ((Leaf) node).peer.equals(peer);
+    }
+
+    public synchronized int size() {
+        return _size;
+    }
+
+    /**
+     *  The floodfills in order of XOR distance from the key, closest first.
+     *  The iterator is not affected by later changes.
+     *
+     *  @param key the ROUTING key (NOT the original key)
+     */
+    public Iterator<Hash> iterator(Hash key) {
+        return new ClosestIterator(_root, key.getData());
+    }
+
+    /**
+     *  Preorder, the child on the same side as the key first,
+     *  which is closest first by XOR distance.
+     */
+    private static class ClosestIterator implements Iterator<Hash> {
+        private final byte[] _key;
+        /** the far sides not yet visited, at most one per depth */
+        private final Node[] _nodes = new Node[8 * Hash.HASH_LENGTH + 1];
+        private final int[] _depths = new int[8 * Hash.HASH_LENGTH + 1];
+        private int _count;
+
+        /**
+         *  @param root may be null
+         */
+        public ClosestIterator(Node root, byte[] key) {
+            _key = key;
+            if (root != null)
+                push(root, 0);
+        }
+
+        private void push(Node node, int depth) {
+            _nodes[_count] = node;
+            _depths[_count++] = depth;
+        }
+
+        public boolean hasNext() {
+            return _count > 0;
+        }
+
+        public Hash next() {
+            if (_count <= 0)
+                throw new NoSuchElementException();
+            _count--;
+            Node node = _nodes[_count];
+            int depth = _depths[_count];
+            _nodes[_count] = null;
+            while (node instanceof Branch) {
+                Branch b = (Branch) node;
+                Node near, far;
+                if (bit(_key, depth) == 0) {
+                    near = b.zero;
+                    far = b.one;
+                } else {
+                    near = b.one;
+                    far = b.zero;
+                }
+                depth++;
+                if (near == null) {
+                    node = far;
+                } else {
+                    if (far != null)
+                        push(far, depth);
+                    node = near;
+                }
+            }
+            return ((Leaf) node).peer;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    /**
+     *  Most significant bit first, the same order as XORComparator
+     */
+    private static int bit(byte[] key, int depth) {
+        return (key[depth >> 3] >> (7 - (depth & 0x07))) & 0x01;
+    }
+
+    /**
+     *  @param node may be null
+     *  @return the new node
+     */
+    private static Node insert(Node node, Leaf leaf, int depth) {
+        if (node == null)
+            return leaf;
+        if (node instanceof Leaf) {
+            Leaf old = (Leaf) node;
+            if (old.peer.equals(leaf.peer))
+                return leaf;
+            return split(old, leaf, depth);
+        }
+        Branch b = (Branch) node;
+        if (bit(leaf.peer.getData(), depth) == 0)
+            return new Branch(insert(b.zero, leaf, depth + 1), b.one);
+        return new Branch(b.zero, insert(b.one, leaf, depth + 1));
+    }
+
+    /**
+     *  Branches down to the first bit where the hashes differ.
+     *  The hashes must not be equal.
+     */
+    private static Node split(Leaf a, Leaf b, int depth) {
+        int ba = bit(a.peer.getData(), depth);
+        int bb = bit(b.peer.getData(), depth);
+        if (ba != bb)
+            return ba == 0 ? new Branch(a, b) : new Branch(b, a);
+        Node child = split(a, b, depth + 1);
+        return ba == 0 ? new Branch(child, null) : new Branch(null, child);
+    }
+
+    /**
+     *  @param node may be null
+     *  @return the new node, same node if not found
+     */
+    private static Node remove(Node node, Hash peer, int depth) {
+        if (node == null)
+            return null;
+        if (node instanceof Leaf)
+            return ((Leaf) node).peer.equals(peer) ? null : node;
+        Branch b = (Branch) node;
+        Node zero = b.zero;
+        Node one = b.one;
+        if (bit(peer.getData(), depth) == 0) {
+            Node n = remove(zero, peer, depth + 1);
+            if (n == zero)
+                return node;
+            zero = n;
+        } else {
+            Node n = remove(one, peer, depth + 1);
+            if (n == one)
+                return node;
+            one = n;
+        }
+        // pull a lone leaf up, so the leaf is at the first bit where it differs
+        if (zero == null && (one == null || one instanceof Leaf))
+            return one;
+        if (one == null && zero instanceof Leaf)
+            return zero;
+        return new Branch(zero, one);
+    }
+}
@@ -45,6 +45,13 @@ class FloodfillPeerSelector extends PeerSelector {
     public FloodfillPeerSelector(RouterContext ctx) {
         super(ctx);
     }
+
+    /**
+     *  @since 0.9.40
+     */
+    private KademliaNetworkDatabaseFacade getFacade() {
+        return (KademliaNetworkDatabaseFacade) _context.netDb();
+    }
     
     /**
      * Pick out peers with the floodfill capacity set, returning them first, but then
@@ -203,13 +210,21 @@ class FloodfillPeerSelector extends PeerSelector {
      *  @param kbuckets now unused
      */
     private List<Hash> selectFloodfillParticipantsIncludingUs(Hash key, int howMany, Set<Hash> toIgnore, KBucketSet<Hash> kbuckets) {
-        List<Hash> ffs = selectFloodfillParticipants(toIgnore, kbuckets);
-        TreeSet<Hash> sorted = new TreeSet<Hash>(new XORComparator<Hash>(key));
-        sorted.addAll(ffs);
+        // 5 == FNDF.MAX_TO_FLOOD + 1
+        int limit = Math.max(5, howMany);
+        List<Hash> sorted = new ArrayList<Hash>(limit);
+        for (Iterator<Hash> iter = getFacade().getFloodfillIndex().iterator(key);
+             iter.hasNext() && sorted.size() < limit; ) {
+            Hash h = iter.next();
+            if ((toIgnore != null && toIgnore.contains(h)) ||
+                _context.banlist().isBanlistedForever(h))
+               continue;
+            sorted.add(h);
+        }
 
         List<Hash> rv = new ArrayList<Hash>(howMany);
-        List<Hash> okff = new ArrayList<Hash>(ffs.size());
-        List<Hash> badff = new ArrayList<Hash>(ffs.size());
+        List<Hash> okff = new ArrayList<Hash>(sorted.size());
+        List<Hash> badff = new ArrayList<Hash>(sorted.size());
         int found = 0;
         long now = _context.clock().now();
         long installed = _context.getProperty("router.firstInstalled", 0L);
@@ -227,16 +242,10 @@ class FloodfillPeerSelector extends PeerSelector {
             }
         }
 
-        // 5 == FNDF.MAX_TO_FLOOD + 1
-        int limit = Math.max(5, howMany);
-        limit = Math.min(limit, ffs.size());
-        MaskedIPSet maskedIPs = new MaskedIPSet(limit * 3);
+        MaskedIPSet maskedIPs = new MaskedIPSet(sorted.size() * 3);
         // split sorted list into 3 sorted lists
-        for (int i = 0; found < howMany && i < limit; i++) {
-            Hash entry = sorted.first();
-            if (entry == null)
-                break;  // shouldn't happen
-            sorted.remove(entry);
+        for (int i = 0; found < howMany && i < sorted.size(); i++) {
+            Hash entry = sorted.get(i);
             // put anybody in the same /16 at the end
             RouterInfo info = _context.netDb().lookupRouterInfoLocally(entry);
             MaskedIPSet entryIPs = new MaskedIPSet(_context, entry, info, 2);
@@ -363,7 +372,9 @@ class FloodfillPeerSelector extends PeerSelector {
             // ... unless they are really bad
             if (_context.banlist().isBanlistedForever(entry))
                 return;
-            RouterInfo info = _context.netDb().lookupRouterInfoLocally(entry);
+            // check the caps first, so we don't parse every RouterInfo in the bucket
+            RouterInfoStore.Entry e = getFacade().lookupRouterInfoEntry(entry);
+            RouterInfo info = (e != null && e.isFloodfill()) ? _context.netDb().lookupRouterInfoLocally(entry) : null;
             //if (info == null)
             //    return;
             
@@ -409,7 +420,7 @@ class FloodfillPeerSelector extends PeerSelector {
             // (Forever banlisted ones are excluded in add() above)
             for (Iterator<Hash> iter = new RandomIterator<Hash>(_floodfillMatches); (found < howMany) && iter.hasNext(); ) {
                 Hash entry = iter.next();
-                RouterInfo info = _context.netDb().lookupRouterInfoLocally(entry);
+                RouterInfoStore.Entry info = getFacade().lookupRouterInfoEntry(entry);
                 if (info != null && now - info.getPublished() > 3*60*60*1000) {
                     badff.add(entry);
                     if (_log.shouldLog(Log.DEBUG))
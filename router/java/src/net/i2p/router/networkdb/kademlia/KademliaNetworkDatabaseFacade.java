@@ -59,7 +59,7 @@ import net.i2p.util.Log;
 public abstract class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacade {
     protected final Log _log;
     private KBucketSet<Hash> _kb; // peer hashes sorted into kbuckets, but within kbuckets, unsorted
-    private DataStore _ds; // hash to DataStructure mapping, persisted when necessary
+    private TransientDataStore _ds; // hash to DataStructure mapping, persisted when necessary
     /** where the data store is pushing the data */
     private String _dbDir;
     // set of Hash objects that we should search on (to fill up a bucket, not to get data)
@@ -77,6 +77,7 @@ public abstract class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacad
     private NegativeLookupCache _negativeCache;
     protected final int _networkID;
     private final BlindCache _blindCache;
+    private final FloodfillIndex _floodfillIndex;
 
     /** 
      * Map of Hash to RepublishLeaseSetJob for leases we'realready managing.
@@ -176,6 +177,7 @@ public abstract class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacad
         _activeRequests = new HashMap<Hash, SearchJob>(8);
         _reseedChecker = new ReseedChecker(context);
         _blindCache = new BlindCache(context);
+        _floodfillIndex = new FloodfillIndex();
         context.statManager().createRateStat("netDb.lookupDeferred", "how many lookups are deferred?", "NetworkDatabase", new long[] { 60*60*1000 });
         context.statManager().createRateStat("netDb.exploreKeySet", "how many keys are queued for exploration?", "NetworkDatabase", new long[] { 60*60*1000 });
         context.statManager().createRateStat("netDb.negativeCache", "Aborted lookup, already cached", "NetworkDatabase", new long[] { 60*60*1000l });
@@ -253,6 +255,7 @@ public abstract class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacad
         // _exploreKeys = null;
         if (_negativeCache != null)
             _negativeCache.clear();
+        _floodfillIndex.clear();
         _blindCache.shutdown();
     }
     
@@ -395,14 +398,7 @@ public abstract class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacad
     /** get the hashes for all known routers */
     public Set<Hash> getAllRouters() {
         if (!_initialized) return Collections.emptySet();
-        Set<Map.Entry<Hash, DatabaseEntry>> entries = _ds.getMapEntries();
-        Set<Hash> rv = new HashSet<Hash>(entries.size());
-        for (Map.Entry<Hash, DatabaseEntry> entry : entries) {
-            if (entry.getValue().getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO) {
-                rv.add(entry.getKey());
-            }
-        }
-        return rv;
+        return new HashSet<Hash>(_ds.getRouterInfoKeys());
     }
     
     /**
@@ -420,12 +416,7 @@ public abstract class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacad
         return count.size();
 ****/
         if (_ds == null) return 0;
-        int rv = 0;
-        for (DatabaseEntry ds : _ds.getEntries()) {
-            if (ds.getType() == DatabaseEntry.KEY_TYPE_ROUTERINFO)
-                rv++;
-        }
-        return rv;
+        return _ds.getRouterInfoKeys().size();
     }
     
 /****
@@ -453,7 +444,8 @@ public abstract class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacad
         if (_ds == null) return 0;
         //return _ds.countLeaseSets();
         int rv = 0;
-        for (DatabaseEntry ds : _ds.getEntries()) {
+        for (Map.Entry<Hash, DatabaseEntry> e : _ds.getLeaseSetEntries()) {
+            DatabaseEntry ds = e.getValue();
             if (ds.isLeaseSet() &&
                 ((LeaseSet)ds).getReceivedAsPublished())
                 rv++;
@@ -533,6 +525,52 @@ public abstract class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacad
         return _ds.get(key);
     }
 
+    /**
+     *  Update the caps of a known peer without storing a new RouterInfo.
+     *
+     *  @param caps non-null
+     *  @since 0.9.40
+     */
+    public void setCapabilities(Hash key, String caps) {
+        _context.peerManager().setCapabilities(key, caps);
+        _floodfillIndex.setCapabilities(key, caps);
+    }
+
+    /**
+     *  The known floodfills by routing key
+     *
+     *  @since 0.9.40
+     */
+    FloodfillIndex getFloodfillIndex() {
+        return _floodfillIndex;
+    }
+
+    /**
+     *  The fields of a RouterInfo used for peer selection,
+     *  without parsing the RouterInfo.
+     *  Not validated, use lookupRouterInfoLocally() before using the peer.
+     *
+     *  @return null if not a known RouterInfo
+     *  @since 0.9.40
+     */
+    RouterInfoStore.Entry lookupRouterInfoEntry(Hash key) {
+        if (!_initialized)
+            return null;
+        return _ds.getRouterInfoEntry(key);
+    }
+
+    /**
+     *  The capabilities of a RouterInfo, without parsing the RouterInfo.
+     *  Not validated, use lookupRouterInfoLocally() before using the peer.
+     *
+     *  @return null if not a known RouterInfo
+     *  @since 0.9.40
+     */
+    public String getRouterInfoCapabilities(Hash key) {
+        RouterInfoStore.Entry e = lookupRouterInfoEntry(key);
+        return e != null ? e.getCapabilities() : null;
+    }
+
     /**
      *  Lookup using exploratory tunnels.
      *  Use lookupDestination() if you don't need the LS or don't need it validated.
@@ -1162,7 +1200,7 @@ public abstract class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacad
         //               + routerInfo.getOptionsMap().size() + " options on "
         //               + new Date(routerInfo.getPublished()));
     
-        _context.peerManager().setCapabilities(key, routerInfo.getCapabilities());
+        setCapabilities(key, routerInfo.getCapabilities());
         _ds.put(key, routerInfo, persist);
         if (rv == null)
             _kb.add(key);
@@ -1234,6 +1272,7 @@ public abstract class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacad
             // if we dont know the key, lets make sure it isn't a now-dead peer
             _kb.remove(dbEntry);
             _context.peerManager().removeCapabilities(dbEntry);
+            _floodfillIndex.remove(dbEntry);
             return;
         }
 
@@ -1263,6 +1302,7 @@ public abstract class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacad
      */
     void dropAfterLookupFailed(Hash peer) {
         _context.peerManager().removeCapabilities(peer);
+        _floodfillIndex.remove(peer);
         _kb.remove(peer);
         //if (removed) {
         //    if (_log.shouldLog(Log.INFO))
@@ -1341,7 +1381,8 @@ public abstract class KademliaNetworkDatabaseFacade extends NetworkDatabaseFacad
     public Set<LeaseSet> getLeases() {
         if (!_initialized) return null;
         Set<LeaseSet> leases = new HashSet<LeaseSet>();
-        for (DatabaseEntry o : getDataStore().getEntries()) {
+        for (Map.Entry<Hash, DatabaseEntry> e : getDataStore().getLeaseSetEntries()) {
+            DatabaseEntry o = e.getValue();
             if (o.isLeaseSet())
                 leases.add((LeaseSet)o);
         }
@@ -10,6 +10,7 @@ package net.i2p.router.networkdb.kademlia;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.FileInputStream;
@@ -45,6 +46,10 @@ import net.i2p.util.SecureFileOutputStream;
  * Write out keys to disk when we get them and periodically read ones we don't know
  * about into memory, with newly read routers are also added to the routing table.
  *
+ * As of 0.9.40, if router.networkDatabase.segments=true, the RouterInfos are
+ * kept in a SegmentStore log instead of one file each. The directory is still
+ * scanned for new files, e.g. from a reseed, which are moved into the log.
+ *
  * Public only for access to static methods by startup classes
  *
  */
@@ -56,9 +61,13 @@ public class PersistentDataStore extends TransientDataStore {
     private volatile boolean _initialized;
     private final boolean _flat;
     private final int _networkID;
+    /** null unless enabled */
+    private final SegmentStore _segments;
     
     private final static int READ_DELAY = 2*60*1000;
     private static final String PROP_FLAT = "router.networkDatabase.flat";
+    /** @since 0.9.40 */
+    static final String PROP_SEGMENTS = "router.networkDatabase.segments";
     static final String DIR_PREFIX = "r";
     private static final String B64 = Base64.ALPHABET_I2P;
 
@@ -70,6 +79,10 @@ public class PersistentDataStore extends TransientDataStore {
         _networkID = ctx.router().getNetworkID();
         _flat = ctx.getBooleanProperty(PROP_FLAT);
         _dbDir = getDbDir(dbDir);
+        if (ctx.getBooleanProperty(PROP_SEGMENTS))
+            _segments = new SegmentStore(ctx, new SecureDirectory(_dbDir, SegmentStore.DIR));
+        else
+            _segments = null;
         _facade = facade;
         _readJob = new ReadJob();
         _context.jobQueue().addJob(_readJob);
@@ -178,6 +191,8 @@ public class PersistentDataStore extends TransientDataStore {
             if (_log.shouldLog(Log.INFO))
                 _log.info("Removing key " + _key /* , getAddedBy() */);
             try {
+                if (_segments != null)
+                    _segments.remove(_key);
                 removeFile(_key, _dbDir);
             } catch (IOException ioe) {
                 _log.error("Error removing key " + _key, ioe);
@@ -265,9 +280,14 @@ public class PersistentDataStore extends TransientDataStore {
                             _log.info("Wrote " + lastCount + " entries to disk in " + time);
                          _context.statManager().addRateData("netDb.writeOut", lastCount);
                          _context.statManager().addRateData("netDb.writeTime", time);
+                         if (_segments != null)
+                             flushSegments();
                     }
-                    if (_quit)
+                    if (_quit) {
+                        if (_segments != null)
+                            _segments.close();
                         break;
+                    }
                     synchronized (_waitLock) {
                         try {
                             _waitLock.wait(WRITE_DELAY);
@@ -289,6 +309,10 @@ public class PersistentDataStore extends TransientDataStore {
     private void write(Hash key, DatabaseEntry data) {
         if (_log.shouldLog(Log.INFO))
             _log.info("Writing key " + key);
+        if (_segments != null) {
+            writeSegment(key, data);
+            return;
+        }
         OutputStream fos = null;
         File dbFile = null;
         try {
@@ -329,6 +353,41 @@ public class PersistentDataStore extends TransientDataStore {
     private long getPublishDate(DatabaseEntry data) {
         return data.getDate();
     }
+
+    /**
+     *  Append to the log, if newer than what's there.
+     *
+     *  @since 0.9.40
+     */
+    private void writeSegment(Hash key, DatabaseEntry data) {
+        if (data.getType() != DatabaseEntry.KEY_TYPE_ROUTERINFO)
+            return;
+        long published = getPublishDate(data);
+        if (_segments.getPublished(key) >= published)
+            return;
+        // logs and returns null on error
+        byte[] b = data.toByteArray();
+        if (b == null)
+            return;
+        try {
+            _segments.put(key, published, b);
+        } catch (IOException ioe) {
+            _log.error("Error writing to the netDb log", ioe);
+        }
+    }
+
+    /**
+     *  Sync, and compact if necessary.
+     *
+     *  @since 0.9.40
+     */
+    private void flushSegments() {
+        try {
+            _segments.flush();
+        } catch (IOException ioe) {
+            _log.error("Error writing to the netDb log", ioe);
+        }
+    }
     
     /**
      *  This was mostly for manual reseeding, i.e. the user manually
@@ -390,6 +449,8 @@ public class PersistentDataStore extends TransientDataStore {
         
         private void readFiles() {
             int routerCount = 0;
+            if (_segments != null && !_initialized)
+                routerCount = readSegments();
 
             File routerInfoFiles[] = _dbDir.listFiles(RI_FILTER);
             if (_flat) {
@@ -462,6 +523,78 @@ public class PersistentDataStore extends TransientDataStore {
         }
     }
     
+    /**
+     *  Load the log, and store the RouterInfos.
+     *  Bad ones are removed from the log.
+     *
+     *  @return the number in the log
+     *  @since 0.9.40
+     */
+    private int readSegments() {
+        long start = _context.clock().now();
+        Map<Hash, byte[]> loaded;
+        try {
+            loaded = _segments.load();
+        } catch (IOException ioe) {
+            _log.error("Error reading the netDb log", ioe);
+            return 0;
+        }
+        // same as for the files, avoid kbucket clumping
+        List<Hash> keys = new ArrayList<Hash>(loaded.keySet());
+        Collections.shuffle(keys, _context.random());
+        int stored = 0;
+        for (Hash key : keys) {
+            // drop out if the router gets killed right after startup
+            if (!_context.router().isAlive())
+                break;
+            if (isKnown(key))
+                continue;
+            if (_context.banlist().isBanlistedForever(key)) {
+                // our previous identity, probably
+                removeSegment(key);
+                continue;
+            }
+            RouterInfo ri = new RouterInfo();
+            try {
+                ri.readBytes(new ByteArrayInputStream(loaded.get(key)), true);
+            } catch (DataFormatException dfe) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Bad RouterInfo in the netDb log " + key, dfe);
+                removeSegment(key);
+                continue;
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Bad RouterInfo in the netDb log " + key, ioe);
+                removeSegment(key);
+                continue;
+            } catch (RuntimeException e) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Bad RouterInfo in the netDb log " + key, e);
+                removeSegment(key);
+                continue;
+            }
+            if (storeRead(key, ri, 0, "the netDb log"))
+                removeSegment(key);
+            else
+                stored++;
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Read " + stored + " of " + loaded.size() + " RouterInfos from the netDb log in " +
+                      (_context.clock().now() - start) + "ms");
+        return loaded.size();
+    }
+
+    /**
+     *  @since 0.9.40
+     */
+    private void removeSegment(Hash key) {
+        try {
+            _segments.remove(key);
+        } catch (IOException ioe) {
+            _log.error("Error writing to the netDb log", ioe);
+        }
+    }
+
     private class ReadRouterJob extends JobImpl {
         private final File _routerFile;
         private final Hash _key;
@@ -495,51 +628,23 @@ public class PersistentDataStore extends TransientDataStore {
         }
 
         public void runJob() {
-            if (!shouldRead()) return;
+            if (!shouldRead()) {
+                // we have a newer one, and it's in the log or queued for it
+                if (_segments != null)
+                    _routerFile.delete();
+                return;
+            }
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("Reading " + _routerFile);
 
                 InputStream fis = null;
                 boolean corrupt = false;
+                RouterInfo ri = null;
                 try {
                     fis = new FileInputStream(_routerFile);
                     fis = new BufferedInputStream(fis);
-                    RouterInfo ri = new RouterInfo();
+                    ri = new RouterInfo();
                     ri.readBytes(fis, true);  // true = verify sig on read
-                    if (ri.getNetworkId() != _networkID) {
-                        corrupt = true;
-                        if (_log.shouldLog(Log.ERROR))
-                            _log.error("The router "
-                                       + ri.getIdentity().calculateHash().toBase64() 
-                                       + " is from a different network");
-                    } else if (!ri.getIdentity().calculateHash().equals(_key)) {
-                        // prevent injection from reseeding
-                        // this is checked in KNDF.validate() but catch it sooner and log as error.
-                        corrupt = true;
-                        if (_log.shouldLog(Log.WARN))
-                            _log.warn(ri.getIdentity().calculateHash() + " does not match " + _key + " from " + _routerFile);
-                    } else if (ri.getPublished() <= _knownDate) {
-                        // Don't store but don't delete
-                        if (_log.shouldLog(Log.WARN))
-                            _log.warn("Skipping since netdb newer than " + _routerFile);
-                    } else if (getContext().blocklist().isBlocklisted(ri)) {
-                        corrupt = true;
-                        if (_log.shouldLog(Log.WARN))
-                            _log.warn(ri.getHash() + " is blocklisted");
-                    } else {
-                        try {
-                            // persist = false so we don't write what we just read
-                            _facade.store(ri.getIdentity().getHash(), ri, false);
-                            // when heardAbout() was removed from TransientDataStore, it broke
-                            // profile bootstrapping for new routers,
-                            // so add it here.
-                            getContext().profileManager().heardAbout(ri.getIdentity().getHash(), ri.getPublished());
-                        } catch (IllegalArgumentException iae) {
-                            if (_log.shouldLog(Log.INFO))
-                                _log.info("Refused locally loaded routerInfo - deleting", iae);
-                            corrupt = true;
-                        }
-                    }
                 } catch (DataFormatException dfe) {
                     if (_log.shouldLog(Log.INFO))
                         _log.info("Error reading the routerInfo from " + _routerFile.getName(), dfe);
@@ -556,8 +661,79 @@ public class PersistentDataStore extends TransientDataStore {
                 } finally {
                     if (fis != null) try { fis.close(); } catch (IOException ioe) {}
                 }
-                if (corrupt) _routerFile.delete();
+                if (!corrupt)
+                    corrupt = storeRead(_key, ri, _knownDate, _routerFile.getName());
+                if (corrupt) {
+                    _routerFile.delete();
+                } else if (_segments != null) {
+                    // move it into the log
+                    // logs and returns null on error
+                    byte[] b = ri.toByteArray();
+                    if (b == null)
+                        return;
+                    try {
+                        _segments.put(_key, ri.getPublished(), b);
+                        _routerFile.delete();
+                    } catch (IOException ioe) {
+                        _log.error("Error writing to the netDb log", ioe);
+                    }
+                }
+        }
+    }
+
+    /**
+     *  Check and store a RouterInfo read from disk.
+     *  The signature must have been verified on read.
+     *
+     *  @param knownDate don't store unless published after this
+     *  @param source for logging
+     *  @return true if corrupt
+     *  @since 0.9.40 split out from ReadRouterJob.runJob()
+     */
+    private boolean storeRead(Hash key, RouterInfo ri, long knownDate, String source) {
+        boolean corrupt = false;
+        try {
+            if (ri.getNetworkId() != _networkID) {
+                corrupt = true;
+                if (_log.shouldLog(Log.ERROR))
+                    _log.error("The router "
+                               + ri.getIdentity().calculateHash().toBase64() 
+                               + " is from a different network");
+            } else if (!ri.getIdentity().calculateHash().equals(key)) {
+                // prevent injection from reseeding
+                // this is checked in KNDF.validate() but catch it sooner and log as error.
+                corrupt = true;
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn(ri.getIdentity().calculateHash() + " does not match " + key + " from " + source);
+            } else if (ri.getPublished() <= knownDate) {
+                // Don't store but don't delete
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Skipping since netdb newer than " + source);
+            } else if (_context.blocklist().isBlocklisted(ri)) {
+                corrupt = true;
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn(ri.getHash() + " is blocklisted");
+            } else {
+                try {
+                    // persist = false so we don't write what we just read
+                    _facade.store(ri.getIdentity().getHash(), ri, false);
+                    // when heardAbout() was removed from TransientDataStore, it broke
+                    // profile bootstrapping for new routers,
+                    // so add it here.
+                    _context.profileManager().heardAbout(ri.getIdentity().getHash(), ri.getPublished());
+                } catch (IllegalArgumentException iae) {
+                    if (_log.shouldLog(Log.INFO))
+                        _log.info("Refused locally loaded routerInfo - deleting", iae);
+                    corrupt = true;
+                }
+            }
+        } catch (RuntimeException e) {
+            // key certificate problems, etc., don't let one bad RI kill the whole thing
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Unable to read the router reference in " + source, e);
+            corrupt = true;
         }
+        return corrupt;
     }
     
     
@@ -635,6 +811,15 @@ public class PersistentDataStore extends TransientDataStore {
         return DIR_PREFIX + b64.charAt(0) + File.separatorChar + ROUTERINFO_PREFIX + b64 + ROUTERINFO_SUFFIX;
     }
 
+    /**
+     *  The file name only, without the subdirectory.
+     *
+     *  @since 0.9.40 for SegmentStore
+     */
+    static String getRouterInfoName(String b64) {
+        return ROUTERINFO_PREFIX + b64 + ROUTERINFO_SUFFIX;
+    }
+
     /**
      *  The persistent RI file for a hash.
      *  This is available before the netdb subsystem is running, so we can delete our old RI.
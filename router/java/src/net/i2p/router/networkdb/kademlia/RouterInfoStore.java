@@ -0,0 +1,294 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.i2p.data.DataFormatException;
+import net.i2p.data.Hash;
+import net.i2p.data.router.RouterAddress;
+import net.i2p.data.router.RouterInfo;
+import net.i2p.router.RouterContext;
+import net.i2p.util.LHMCache;
+import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
+
+/**
+ *  The RouterInfos in the netDb, for TransientDataStore.
+ *
+ *  A parsed RouterInfo, with its addresses, options, and keys,
+ *  takes several KB of heap. In compact mode, the default,
+ *  we keep only the signed bytes and the few fields used for
+ *  peer selection, and parse the RouterInfo again when it is requested.
+ *  RouterInfos that are requested again within a short time are
+ *  kept parsed in a small cache, so the peers we are using are
+ *  not parsed every time, and a scan through the whole netDb
+ *  does not push them out.
+ *
+ *  Only validated RouterInfos may be stored.
+ *  The parsed copies are not verified again.
+ *
+ *  @since 0.9.40
+ */
+class RouterInfoStore {
+    private final RouterContext _context;
+    private final Log _log;
+    private final ConcurrentHashMap<Hash, Entry> _entries;
+    private final boolean _isCompact;
+    /** synch on itself */
+    private final Map<Hash, RouterInfo> _cache;
+    /** caps and transport styles, so we only have one copy of each */
+    private final ConcurrentHashMap<String, String> _strings;
+    private final AtomicLong _bytes = new AtomicLong();
+
+    /** default true */
+    public static final String PROP_COMPACT = "router.networkDatabase.compact";
+    /** a parsed RouterInfo is cached if requested again within this time */
+    private static final long CACHE_ADMIT_TIME = 60*1000;
+    private static final int MIN_CACHE_SIZE = 256;
+    private static final int MAX_CACHE_SIZE = 2048;
+    private static final int MAX_STRINGS = 256;
+
+    /**
+     *  The fields of a RouterInfo used for peer selection.
+     *  Not validated, callers must still get the RouterInfo with
+     *  lookupRouterInfoLocally() before using the peer.
+     */
+    static class Entry {
+        /** signed bytes, null if not compact */
+        private final byte[] _data;
+        /** null if compact */
+        private final RouterInfo _info;
+        private final long _published;
+        private final String _caps;
+        private final String[] _styles;
+        private volatile long _lastUsed;
+
+        private Entry(byte[] data, RouterInfo info, long published, String caps, String[] styles) {
+            _data = data;
+            _info = info;
+            _published = published;
+            _caps = caps;
+            _styles = styles;
+        }
+
+        public long getPublished() {
+            return _published;
+        }
+
+        /**
+         *  @return non-null, empty string if none
+         */
+        public String getCapabilities() {
+            return _caps;
+        }
+
+        /**
+         *  Same as RouterInfo.getBandwidthTier()
+         *  @return the tier or "Unknown"
+         */
+        public String getBandwidthTier() {
+            for (int i = 0; i < _caps.length(); i++) {
+                char c = _caps.charAt(i);
+                if (RouterInfo.BW_CAPABILITY_CHARS.indexOf(c) >= 0)
+                    return String.valueOf(c);
+            }
+            return "Unknown";
+        }
+
+        public boolean isFloodfill() {
+            return _caps.indexOf(FloodfillNetworkDatabaseFacade.CAPABILITY_FLOODFILL) >= 0;
+        }
+
+        public int getAddressCount() {
+            return _styles.length;
+        }
+
+        /**
+         *  @return true if there is at least one address for the transport style
+         */
+        public boolean hasTransport(String style) {
+            for (int i = 0; i < _styles.length; i++) {
+                if (_styles[i].equals(style))
+                    return true;
+            }
+            return false;
+        }
+    }
+
+    public RouterInfoStore(RouterContext ctx) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(RouterInfoStore.class);
+        _entries = new ConcurrentHashMap<Hash, Entry>(1024);
+        _isCompact = ctx.getProperty(PROP_COMPACT, true);
+        long maxMemory = SystemVersion.getMaxMemory();
+        int cacheSize = (int) Math.max(MIN_CACHE_SIZE, Math.min(MAX_CACHE_SIZE, maxMemory / (256*1024)));
+        _cache = new LHMCache<Hash, RouterInfo>(cacheSize);
+        _strings = new ConcurrentHashMap<String, String>(64);
+        ctx.statManager().createRateStat("netDb.routerInfoParse", "How often we parse a RouterInfo from the compact store", "NetworkDatabase", new long[] { 60*60*1000 });
+    }
+
+    public boolean isCompact() {
+        return _isCompact;
+    }
+
+    /**
+     *  @return null if not found
+     */
+    public Entry getEntry(Hash key) {
+        return _entries.get(key);
+    }
+
+    /**
+     *  @return null if not found
+     */
+    public RouterInfo get(Hash key) {
+        Entry e = _entries.get(key);
+        if (e == null)
+            return null;
+        return get(key, e);
+    }
+
+    private RouterInfo get(Hash key, Entry e) {
+        if (e._info != null)
+            return e._info;
+        RouterInfo rv;
+        synchronized (_cache) {
+            rv = _cache.get(key);
+        }
+        if (rv != null && rv.getPublished() == e._published)
+            return rv;
+        rv = parse(e._data);
+        if (rv == null) {
+            // shouldn't happen, we serialized it
+            if (_entries.remove(key, e))
+                _bytes.addAndGet(0 - e._data.length);
+            return null;
+        }
+        long now = _context.clock().now();
+        if (now - e._lastUsed < CACHE_ADMIT_TIME) {
+            synchronized (_cache) {
+                _cache.put(key, rv);
+            }
+        }
+        e._lastUsed = now;
+        _context.statManager().addRateData("netDb.routerInfoParse", 1);
+        return rv;
+    }
+
+    /**
+     *  Replaces any existing entry, caller must check the published date first.
+     *
+     *  @param ri must be validated
+     *  @return success, false if it could not be serialized
+     */
+    public boolean put(Hash key, RouterInfo ri) {
+        Collection<RouterAddress> addrs = ri.getAddresses();
+        String[] styles = new String[addrs.size()];
+        int i = 0;
+        for (RouterAddress ra : addrs) {
+            styles[i++] = dedup(ra.getTransportStyle());
+        }
+        String caps = dedup(ri.getCapabilities());
+        Entry e;
+        if (_isCompact) {
+            // logs and returns null on error
+            byte[] data = ri.toByteArray();
+            if (data == null)
+                return false;
+            e = new Entry(data, null, ri.getPublished(), caps, styles);
+            // keep it parsed if it was in use
+            synchronized (_cache) {
+                if (_cache.containsKey(key))
+                    _cache.put(key, ri);
+            }
+            _bytes.addAndGet(data.length);
+        } else {
+            e = new Entry(null, ri, ri.getPublished(), caps, styles);
+        }
+        Entry old = _entries.put(key, e);
+        if (old != null && old._data != null)
+            _bytes.addAndGet(0 - old._data.length);
+        return true;
+    }
+
+    /**
+     *  @return the removed RouterInfo or null
+     */
+    public RouterInfo remove(Hash key) {
+        Entry e = _entries.remove(key);
+        if (e == null)
+            return null;
+        if (e._info != null)
+            return e._info;
+        _bytes.addAndGet(0 - e._data.length);
+        RouterInfo rv;
+        synchronized (_cache) {
+            rv = _cache.remove(key);
+        }
+        if (rv == null)
+            rv = parse(e._data);
+        return rv;
+    }
+
+    public boolean isKnown(Hash key) {
+        return _entries.containsKey(key);
+    }
+
+    public int size() {
+        return _entries.size();
+    }
+
+    /**
+     *  @return Unmodifiable view, not a copy
+     */
+    public Set<Hash> getKeys() {
+        return Collections.unmodifiableSet(_entries.keySet());
+    }
+
+    /**
+     *  @return total size of the signed bytes, 0 if not compact
+     */
+    public long getByteCount() {
+        return _bytes.get();
+    }
+
+    public void clear() {
+        _entries.clear();
+        synchronized (_cache) {
+            _cache.clear();
+        }
+        _bytes.set(0);
+    }
+
+    private String dedup(String s) {
+        // don't let bad RouterInfos fill it up
+        if (_strings.size() >= MAX_STRINGS)
+            return s;
+        String rv = _strings.putIfAbsent(s, s);
+        return rv != null ? rv : s;
+    }
+
+    /**
+     *  @return null on error
+     */
+    private RouterInfo parse(byte[] data) {
+        RouterInfo rv = new RouterInfo();
+        try {
+            rv.readBytes(new ByteArrayInputStream(data));
+        } catch (DataFormatException dfe) {
+            _log.error("Unable to parse stored RouterInfo", dfe);
+            return null;
+        } catch (IOException ioe) {
+            _log.error("Unable to parse stored RouterInfo", ioe);
+            return null;
+        }
+        rv.setValidated();
+        return rv;
+    }
+}
@@ -0,0 +1,561 @@
+package net.i2p.router.networkdb.kademlia;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.DataFormatException;
+import net.i2p.data.Hash;
+import net.i2p.data.router.RouterInfo;
+import net.i2p.util.FileSuffixFilter;
+import net.i2p.util.Log;
+import net.i2p.util.SecureDirectory;
+import net.i2p.util.SecureFileOutputStream;
+
+/**
+ *  Append-only log of RouterInfos, for PersistentDataStore,
+ *  instead of one file per RouterInfo.
+ *
+ *  The log is a series of segment files in one directory, each up to 4 MB.
+ *  Each record is a put of the signed RouterInfo bytes, or a delete,
+ *  with a CRC32. Records are only appended, to the last segment.
+ *  The index of where each live RouterInfo is stored is kept in memory,
+ *  and rebuilt by load() at startup, which reads the segments
+ *  through a memory map.
+ *
+ *  When more than half of the log is replaced or deleted records,
+ *  flush() rewrites the live records to new segments and deletes the old ones.
+ *  A partial record at the end of the last segment, after a crash,
+ *  is truncated at startup.
+ *
+ *  Record format:
+ *  <pre>
+ *    1 byte   type, 1 = put, 2 = delete
+ *    32 bytes router hash
+ *    8 bytes  published date, 0 for delete
+ *    4 bytes  length of the RouterInfo, 0 for delete
+ *    n bytes  RouterInfo
+ *    4 bytes  CRC32 of all the above
+ *  </pre>
+ *
+ *  Not for use by multiple routers or processes at once.
+ *  Run from the command line to convert to or from the directory layout.
+ *
+ *  @since 0.9.40
+ */
+public class SegmentStore {
+    private final Log _log;
+    private final File _dir;
+    /** live puts only */
+    private final Map<Hash, Location> _index;
+    private final TreeMap<Integer, Segment> _segments;
+    private Segment _active;
+    /** the sealed segment last read from, kept open */
+    private Segment _reader;
+    /** total size of the live put records */
+    private long _liveBytes;
+    /** total size of all segments */
+    private long _totalBytes;
+    private boolean _isLoaded;
+    private boolean _isClosed;
+
+    /** subdirectory of the netDb directory */
+    public static final String DIR = "segments";
+    private static final String PREFIX = "segment-";
+    private static final String SUFFIX = ".log";
+    private static final FileFilter FILTER = new FileSuffixFilter(PREFIX, SUFFIX);
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+    private static final int HEADER_LEN = 1 + Hash.HASH_LENGTH + 8 + 4;
+    private static final int TRAILER_LEN = 4;
+    private static final int MAX_DATA_LEN = 64*1024;
+    private static final long SEGMENT_SIZE = 4*1024*1024;
+    /** don't compact until there's at least this much garbage */
+    private static final long MIN_COMPACT_GARBAGE = 2*SEGMENT_SIZE;
+    private static final byte[] EMPTY = new byte[0];
+
+    /** where a live RouterInfo is */
+    private static class Location {
+        final Segment segment;
+        /** of the RouterInfo, not the header */
+        final long offset;
+        final int length;
+        final long published;
+
+        Location(Segment seg, long off, int len, long pub) {
+            segment = seg;
+            offset = off;
+            length = len;
+            published = pub;
+        }
+    }
+
+    private static class Segment {
+        final int number;
+        final File file;
+        long size;
+        /** for the active segment or the reader only */
+        RandomAccessFile raf;
+
+        Segment(int num, File f) {
+            number = num;
+            file = f;
+        }
+    }
+
+    /**
+     *  Call load() before anything else.
+     *
+     *  @param dir will be created if necessary
+     */
+    public SegmentStore(I2PAppContext ctx, File dir) throws IOException {
+        _log = ctx.logManager().getLog(SegmentStore.class);
+        _dir = dir;
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Unable to create the segment directory " + dir);
+        _index = new HashMap<Hash, Location>(1024);
+        _segments = new TreeMap<Integer, Segment>();
+    }
+
+    /**
+     *  Read all the segments and build the index.
+     *  Only call once.
+     *
+     *  @return the live RouterInfos, not checked except for the CRC
+     */
+    public synchronized Map<Hash, byte[]> load() throws IOException {
+        if (_isLoaded)
+            throw new IllegalStateException();
+        _isLoaded = true;
+        Map<Hash, byte[]> rv = new HashMap<Hash, byte[]>(1024);
+        File[] files = _dir.listFiles(FILTER);
+        if (files != null) {
+            for (File f : files) {
+                int num = getNumber(f);
+                if (num >= 0)
+                    _segments.put(Integer.valueOf(num), new Segment(num, f));
+            }
+        }
+        long start = System.currentTimeMillis();
+        for (Segment seg : _segments.values()) {
+            long len = seg.file.length();
+            long good = 0;
+            if (len > 0) {
+                RandomAccessFile raf = new RandomAccessFile(seg.file, "r");
+                try {
+                    FileChannel ch = raf.getChannel();
+                    MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, 0, len);
+                    good = scan(seg, buf, rv);
+                } finally {
+                    raf.close();
+                }
+            }
+            if (good < len) {
+                _log.logAlways(Log.WARN, "Truncating " + (len - good) + " bytes of bad data at the end of " + seg.file);
+                truncate(seg, good);
+            }
+            seg.size = good;
+            _totalBytes += good;
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Loaded " + _segments.size() + " segments, " + _index.size() + " live RouterInfos in " +
+                      (System.currentTimeMillis() - start) + "ms, " + _liveBytes + " of " + _totalBytes + " bytes live");
+        return rv;
+    }
+
+    /**
+     *  @return the length of the good data
+     */
+    private long scan(Segment seg, ByteBuffer buf, Map<Hash, byte[]> rv) {
+        CRC32 crc = new CRC32();
+        byte[] header = new byte[HEADER_LEN];
+        while (buf.remaining() >= HEADER_LEN + TRAILER_LEN) {
+            int pos = buf.position();
+            buf.get(header);
+            byte type = header[0];
+            if (type != TYPE_PUT && type != TYPE_DELETE)
+                return pos;
+            ByteBuffer hb = ByteBuffer.wrap(header, 1 + Hash.HASH_LENGTH, 12);
+            long published = hb.getLong();
+            int len = hb.getInt();
+            if (len < 0 || len > MAX_DATA_LEN || buf.remaining() < len + TRAILER_LEN)
+                return pos;
+            byte[] data = len > 0 ? new byte[len] : EMPTY;
+            buf.get(data);
+            int stored = buf.getInt();
+            crc.reset();
+            crc.update(header);
+            crc.update(data);
+            if ((int) crc.getValue() != stored)
+                return pos;
+            Hash h = Hash.create(header, 1);
+            Location old;
+            if (type == TYPE_PUT) {
+                old = _index.put(h, new Location(seg, pos + HEADER_LEN, len, published));
+                _liveBytes += recordLength(len);
+                rv.put(h, data);
+            } else {
+                old = _index.remove(h);
+                rv.remove(h);
+            }
+            if (old != null)
+                _liveBytes -= recordLength(old.length);
+        }
+        return buf.position();
+    }
+
+    /**
+     *  Truncate the bad data after a crash.
+     *  If that fails, for example because the map is still open on Windows,
+     *  leave it, as we never append to a segment that was there at startup.
+     */
+    private void truncate(Segment seg, long len) {
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(seg.file, "rw");
+            raf.setLength(len);
+        } catch (IOException ioe) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Unable to truncate " + seg.file, ioe);
+        } finally {
+            if (raf != null) try { raf.close(); } catch (IOException ioe) {}
+        }
+    }
+
+    /**
+     *  @return -1 if not a segment file
+     */
+    private static int getNumber(File f) {
+        String name = f.getName();
+        try {
+            return Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+        } catch (RuntimeException re) {
+            return -1;
+        }
+    }
+
+    private static int recordLength(int dataLength) {
+        return HEADER_LEN + dataLength + TRAILER_LEN;
+    }
+
+    /**
+     *  Append a RouterInfo, if newer than the one stored.
+     *
+     *  @param data the signed RouterInfo
+     *  @return true if written
+     */
+    public synchronized boolean put(Hash key, long published, byte[] data) throws IOException {
+        if (_isClosed)
+            return false;
+        if (data.length > MAX_DATA_LEN)
+            throw new IllegalArgumentException("too big: " + data.length);
+        Location old = _index.get(key);
+        if (old != null && old.published >= published)
+            return false;
+        Location loc = append(TYPE_PUT, key, published, data);
+        _index.put(key, loc);
+        _liveBytes += recordLength(data.length);
+        if (old != null)
+            _liveBytes -= recordLength(old.length);
+        return true;
+    }
+
+    /**
+     *  Append a delete, if we have it.
+     *
+     *  @return true if it was stored
+     */
+    public synchronized boolean remove(Hash key) throws IOException {
+        if (_isClosed)
+            return false;
+        Location old = _index.remove(key);
+        if (old == null)
+            return false;
+        _liveBytes -= recordLength(old.length);
+        append(TYPE_DELETE, key, 0, EMPTY);
+        return true;
+    }
+
+    /**
+     *  @return the published date, or -1 if not stored
+     */
+    public synchronized long getPublished(Hash key) {
+        Location loc = _index.get(key);
+        return loc != null ? loc.published : -1;
+    }
+
+    /**
+     *  @return the signed RouterInfo, or null if not stored
+     */
+    public synchronized byte[] get(Hash key) throws IOException {
+        Location loc = _index.get(key);
+        if (loc == null)
+            return null;
+        return read(loc);
+    }
+
+    /**
+     *  @return a copy
+     */
+    public synchronized Set<Hash> getKeys() {
+        return new HashSet<Hash>(_index.keySet());
+    }
+
+    public synchronized int size() {
+        return _index.size();
+    }
+
+    /**
+     *  Sync the last segment to disk, and compact if more than half is garbage.
+     */
+    public synchronized void flush() throws IOException {
+        if (_isClosed)
+            return;
+        if (_active != null)
+            _active.raf.getChannel().force(false);
+        long garbage = _totalBytes - _liveBytes;
+        if (garbage > MIN_COMPACT_GARBAGE && garbage > _liveBytes)
+            compact();
+    }
+
+    /**
+     *  Rewrite the live records to new segments and delete the old segments.
+     *  Deletes are not copied, as all the records they replaced are gone.
+     */
+    public synchronized void compact() throws IOException {
+        if (_isClosed)
+            return;
+        long start = System.currentTimeMillis();
+        long before = _totalBytes;
+        List<Segment> old = new ArrayList<Segment>(_segments.values());
+        // seal the current segment, so everything new goes after the old segments
+        newSegment();
+        for (Map.Entry<Hash, Location> e : _index.entrySet()) {
+            Location loc = e.getValue();
+            byte[] data = read(loc);
+            e.setValue(append(TYPE_PUT, e.getKey(), loc.published, data));
+        }
+        _active.raf.getChannel().force(false);
+        closeReader();
+        // if we crash before all the old ones are deleted,
+        // load() will read them first, and the copies will replace them
+        for (Segment seg : old) {
+            _segments.remove(Integer.valueOf(seg.number));
+            _totalBytes -= seg.size;
+            if (!seg.file.delete())
+                _log.error("Unable to delete " + seg.file);
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Compacted the netDb log from " + before + " to " + _totalBytes + " bytes in " +
+                      (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     *  Sync and close. Further puts and removes are ignored.
+     */
+    public synchronized void close() {
+        if (_isClosed)
+            return;
+        _isClosed = true;
+        if (_active != null) {
+            try {
+                _active.raf.getChannel().force(false);
+                _active.raf.close();
+            } catch (IOException ioe) {
+                _log.error("Error closing " + _active.file, ioe);
+            }
+            _active.raf = null;
+        }
+        closeReader();
+    }
+
+    /**
+     *  @return where the data is
+     */
+    private Location append(byte type, Hash key, long published, byte[] data) throws IOException {
+        int len = recordLength(data.length);
+        if (_active == null || _active.size + len > SEGMENT_SIZE)
+            newSegment();
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        buf.put(type);
+        buf.put(key.getData());
+        buf.putLong(published);
+        buf.putInt(data.length);
+        buf.put(data);
+        CRC32 crc = new CRC32();
+        crc.update(buf.array(), 0, len - TRAILER_LEN);
+        buf.putInt((int) crc.getValue());
+        buf.flip();
+        FileChannel ch = _active.raf.getChannel();
+        long pos = _active.size;
+        while (buf.hasRemaining()) {
+            ch.write(buf, pos + buf.position());
+        }
+        _active.size += len;
+        _totalBytes += len;
+        return new Location(_active, pos + HEADER_LEN, data.length, published);
+    }
+
+    /**
+     *  Seal the active segment and start a new one.
+     *  We never append to a segment from a previous run.
+     */
+    private void newSegment() throws IOException {
+        if (_active != null) {
+            _active.raf.getChannel().force(false);
+            _active.raf.close();
+            _active.raf = null;
+        }
+        int num = _segments.isEmpty() ? 1 : _segments.lastKey().intValue() + 1;
+        File f = new File(_dir, PREFIX + String.format("%08d", num) + SUFFIX);
+        Segment seg = new Segment(num, f);
+        seg.raf = new RandomAccessFile(f, "rw");
+        seg.raf.setLength(0);
+        _segments.put(Integer.valueOf(num), seg);
+        _active = seg;
+    }
+
+    private byte[] read(Location loc) throws IOException {
+        Segment seg = loc.segment;
+        RandomAccessFile raf;
+        if (seg == _active) {
+            raf = seg.raf;
+        } else {
+            if (_reader != seg) {
+                closeReader();
+                seg.raf = new RandomAccessFile(seg.file, "r");
+                _reader = seg;
+            }
+            raf = seg.raf;
+        }
+        byte[] rv = new byte[loc.length];
+        ByteBuffer buf = ByteBuffer.wrap(rv);
+        FileChannel ch = raf.getChannel();
+        while (buf.hasRemaining()) {
+            if (ch.read(buf, loc.offset + buf.position()) < 0)
+                throw new IOException("EOF in " + seg.file);
+        }
+        return rv;
+    }
+
+    private void closeReader() {
+        if (_reader != null) {
+            try {
+                _reader.raf.close();
+            } catch (IOException ioe) {}
+            _reader.raf = null;
+            _reader = null;
+        }
+    }
+
+    /**
+     *  Usage: SegmentStore import|export|compact netDbDir
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 ||
+            !(args[0].equals("import") || args[0].equals("export") || args[0].equals("compact"))) {
+            System.err.println("Usage: SegmentStore import|export|compact netDbDir\n" +
+                               "  import:  copy the routerInfo-*.dat files into the log\n" +
+                               "  export:  write the RouterInfos in the log as routerInfo-*.dat files\n" +
+                               "  compact: rewrite the log without the replaced and deleted records\n" +
+                               "Do not run while the router is running.");
+            System.exit(1);
+        }
+        File dbDir = new File(args[1]);
+        if (!dbDir.isDirectory()) {
+            System.err.println("Not a directory: " + dbDir);
+            System.exit(1);
+        }
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        SegmentStore ss = new SegmentStore(ctx, new SecureDirectory(dbDir, DIR));
+        Map<Hash, byte[]> loaded = ss.load();
+        int count = 0;
+        if (args[0].equals("import")) {
+            List<File> files = new ArrayList<File>();
+            File[] top = dbDir.listFiles(PersistentDataStore.RI_FILTER);
+            if (top != null)
+                files.addAll(Arrays.asList(top));
+            File[] subdirs = dbDir.listFiles();
+            if (subdirs != null) {
+                for (File d : subdirs) {
+                    if (!d.isDirectory() || !d.getName().startsWith(PersistentDataStore.DIR_PREFIX))
+                        continue;
+                    File[] ris = d.listFiles(PersistentDataStore.RI_FILTER);
+                    if (ris != null)
+                        files.addAll(Arrays.asList(ris));
+                }
+            }
+            for (File f : files) {
+                byte[] data = new byte[(int) Math.min(f.length(), MAX_DATA_LEN + 1)];
+                InputStream in = null;
+                try {
+                    in = new FileInputStream(f);
+                    int off = 0;
+                    int read;
+                    while (off < data.length && (read = in.read(data, off, data.length - off)) > 0) {
+                        off += read;
+                    }
+                    if (off != data.length || data.length > MAX_DATA_LEN)
+                        throw new IOException("bad length");
+                    RouterInfo ri = new RouterInfo();
+                    ri.readBytes(new ByteArrayInputStream(data), true);
+                    if (ss.put(ri.getIdentity().calculateHash(), ri.getPublished(), data))
+                        count++;
+                } catch (DataFormatException dfe) {
+                    System.err.println("Skipping bad RouterInfo " + f + ": " + dfe);
+                } catch (IOException ioe) {
+                    System.err.println("Skipping bad RouterInfo " + f + ": " + ioe);
+                } finally {
+                    if (in != null) try { in.close(); } catch (IOException ioe) {}
+                }
+            }
+            ss.flush();
+            System.out.println("Imported " + count + " of " + files.size() + " RouterInfos, " +
+                               ss.size() + " total in the log.\n" +
+                               "The files were not deleted; the router removes them when it reads them in.");
+        } else if (args[0].equals("export")) {
+            for (Map.Entry<Hash, byte[]> e : loaded.entrySet()) {
+                Hash h = e.getKey();
+                String b64 = h.toBase64();
+                File dir = new SecureDirectory(dbDir, PersistentDataStore.DIR_PREFIX + b64.charAt(0));
+                if (!dir.exists())
+                    dir.mkdirs();
+                File f = new File(dir, PersistentDataStore.getRouterInfoName(b64));
+                OutputStream out = null;
+                try {
+                    out = new SecureFileOutputStream(f);
+                    out.write(e.getValue());
+                } finally {
+                    if (out != null) try { out.close(); } catch (IOException ioe) {}
+                }
+                f.setLastModified(ss.getPublished(h));
+                count++;
+            }
+            System.out.println("Exported " + count + " RouterInfos to " + dbDir +
+                               "\nThe log was not deleted; disable " + PersistentDataStore.PROP_SEGMENTS +
+                               " and remove " + new File(dbDir, DIR) + " to go back to the files.");
+        } else {
+            ss.compact();
+            System.out.println("Compacted, " + ss.size() + " RouterInfos in the log.");
+        }
+        ss.close();
+    }
+}
@@ -8,11 +8,17 @@ package net.i2p.router.networkdb.kademlia;
  *
  */
 
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import net.i2p.data.DatabaseEntry;
@@ -25,16 +31,24 @@ import net.i2p.util.Log;
 
 /**
  *  Stores in-memory only. See extension.
+ *
+ *  As of 0.9.40, RouterInfos are kept in a RouterInfoStore,
+ *  which by default keeps them serialized. Iterating through
+ *  getEntries() or getMapEntries() parses every RouterInfo;
+ *  use getRouterInfoKeys() or getLeaseSetEntries() where possible.
  */
 class TransientDataStore implements DataStore {
     protected final Log _log;
+    /** everything but RouterInfos as of 0.9.40 */
     private final ConcurrentHashMap<Hash, DatabaseEntry> _data;
+    private final RouterInfoStore _routers;
     protected final RouterContext _context;
     
     public TransientDataStore(RouterContext ctx) {
         _context = ctx;
         _log = ctx.logManager().getLog(getClass());
         _data = new ConcurrentHashMap<Hash, DatabaseEntry>(1024);
+        _routers = new RouterInfoStore(ctx);
         if (_log.shouldLog(Log.INFO))
             _log.info("Data Store initialized");
     }
@@ -43,6 +57,7 @@ class TransientDataStore implements DataStore {
 
     public void stop() {
         _data.clear();
+        _routers.clear();
     }
     
     public void restart() {
@@ -56,32 +71,123 @@ class TransientDataStore implements DataStore {
      *  @since 0.8.8
      */
     public int size() {
-        return _data.size();
+        return _data.size() + _routers.size();
     }
 
     /**
-     *  @return Unmodifiable view, not a copy
+     *  @return a copy as of 0.9.40
      */
     public Set<Hash> getKeys() {
-        return Collections.unmodifiableSet(_data.keySet());
+        Set<Hash> rv = new HashSet<Hash>(size());
+        rv.addAll(_data.keySet());
+        rv.addAll(_routers.getKeys());
+        return rv;
     }
     
     /**
+     *  RouterInfos are parsed as the iterator reaches them.
+     *
      *  @return Unmodifiable view, not a copy
      *  @since 0.8.3
      */
     public Collection<DatabaseEntry> getEntries() {
-        return Collections.unmodifiableCollection(_data.values());
+        return new AbstractCollection<DatabaseEntry>() {
+            public Iterator<DatabaseEntry> iterator() {
+                final Iterator<Map.Entry<Hash, DatabaseEntry>> iter = new EntryIterator();
+                return new Iterator<DatabaseEntry>() {
+                    public boolean hasNext() { return iter.hasNext(); }
+                    public DatabaseEntry next() { return iter.next().getValue(); }
+                    public void remove() { throw new UnsupportedOperationException(); }
+                };
+            }
+            public int size() { return TransientDataStore.this.size(); }
+        };
     }
 
     /**
+     *  RouterInfos are parsed as the iterator reaches them.
+     *
      *  @return Unmodifiable view, not a copy
      *  @since 0.8.3
      */
     public Set<Map.Entry<Hash, DatabaseEntry>> getMapEntries() {
+        return new AbstractSet<Map.Entry<Hash, DatabaseEntry>>() {
+            public Iterator<Map.Entry<Hash, DatabaseEntry>> iterator() { return new EntryIterator(); }
+            public int size() { return TransientDataStore.this.size(); }
+        };
+    }
+
+    /**
+     *  @return Unmodifiable view, not a copy
+     *  @since 0.9.40
+     */
+    public Set<Hash> getRouterInfoKeys() {
+        return _routers.getKeys();
+    }
+
+    /**
+     *  Everything but the RouterInfos.
+     *
+     *  @return Unmodifiable view, not a copy
+     *  @since 0.9.40
+     */
+    public Set<Map.Entry<Hash, DatabaseEntry>> getLeaseSetEntries() {
         return Collections.unmodifiableSet(_data.entrySet());
     }
 
+    /**
+     *  The fields of a RouterInfo used for peer selection, without parsing it.
+     *  Not validated.
+     *
+     *  @return null if not a known RouterInfo
+     *  @since 0.9.40
+     */
+    RouterInfoStore.Entry getRouterInfoEntry(Hash key) {
+        return _routers.getEntry(key);
+    }
+
+    /**
+     *  The LeaseSets and other entries, then the RouterInfos, parsed one at a time.
+     *  Entries removed during the iteration may or may not be returned.
+     *
+     *  @since 0.9.40
+     */
+    private class EntryIterator implements Iterator<Map.Entry<Hash, DatabaseEntry>> {
+        private final Iterator<Map.Entry<Hash, DatabaseEntry>> _lsIter = _data.entrySet().iterator();
+        private final Iterator<Hash> _riIter = _routers.getKeys().iterator();
+        private Map.Entry<Hash, DatabaseEntry> _next;
+
+        public boolean hasNext() {
+            if (_next != null)
+                return true;
+            if (_lsIter.hasNext()) {
+                _next = _lsIter.next();
+                return true;
+            }
+            while (_riIter.hasNext()) {
+                Hash h = _riIter.next();
+                RouterInfo ri = _routers.get(h);
+                if (ri != null) {
+                    _next = new AbstractMap.SimpleImmutableEntry<Hash, DatabaseEntry>(h, ri);
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public Map.Entry<Hash, DatabaseEntry> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            Map.Entry<Hash, DatabaseEntry> rv = _next;
+            _next = null;
+            return rv;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+
     /** for PersistentDataStore only - don't use here
       * @throws UnsupportedOperationException always
       */
@@ -90,11 +196,14 @@ class TransientDataStore implements DataStore {
     }
 
     public DatabaseEntry get(Hash key) {
-        return _data.get(key);
+        DatabaseEntry rv = _data.get(key);
+        if (rv == null)
+            rv = _routers.get(key);
+        return rv;
     }
     
     public boolean isKnown(Hash key) {
-        return _data.containsKey(key);
+        return _data.containsKey(key) || _routers.isKnown(key);
     }
 
     public int countLeaseSets() {
@@ -121,7 +230,6 @@ class TransientDataStore implements DataStore {
         if (data == null) return false;
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Storing key " + key);
-        DatabaseEntry old = _data.putIfAbsent(key, data);
         boolean rv = false;
         int type = data.getType();
         if (type == DatabaseEntry.KEY_TYPE_ROUTERINFO) {
@@ -129,28 +237,33 @@ class TransientDataStore implements DataStore {
             // the StoreMessageJob calls this
             //_context.profileManager().heardAbout(key);
             RouterInfo ri = (RouterInfo)data;
-            if (old != null) {
-                RouterInfo ori = (RouterInfo)old;
-                if (ri.getPublished() < ori.getPublished()) {
-                    if (_log.shouldLog(Log.INFO))
-                        _log.info("Almost clobbered an old router! " + key + ": [old published on " + new Date(ori.getPublished()) +
-                                  " new on " + new Date(ri.getPublished()) + ']');
-                } else if (ri.getPublished() == ori.getPublished()) {
-                    if (_log.shouldLog(Log.INFO))
-                        _log.info("Duplicate " + key);
+            synchronized (_routers) {
+                RouterInfoStore.Entry old = _routers.getEntry(key);
+                if (old != null) {
+                    long oldPublished = old.getPublished();
+                    if (ri.getPublished() < oldPublished) {
+                        if (_log.shouldLog(Log.INFO))
+                            _log.info("Almost clobbered an old router! " + key + ": [old published on " + new Date(oldPublished) +
+                                      " new on " + new Date(ri.getPublished()) + ']');
+                    } else if (ri.getPublished() == oldPublished) {
+                        if (_log.shouldLog(Log.INFO))
+                            _log.info("Duplicate " + key);
+                    } else {
+                        if (_log.shouldLog(Log.INFO))
+                            _log.info("Updated the old router for " + key + ": [old published on " + new Date(oldPublished) +
+                                      " new on " + new Date(ri.getPublished()) + ']');
+                        rv = _routers.put(key, ri);
+                    }
                 } else {
                     if (_log.shouldLog(Log.INFO))
-                        _log.info("Updated the old router for " + key + ": [old published on " + new Date(ori.getPublished()) +
-                                  " new on " + new Date(ri.getPublished()) + ']');
-                    _data.put(key, data);
-                    rv = true;
+                        _log.info("New router for " + key + ": published on " + new Date(ri.getPublished()));
+                    rv = _routers.put(key, ri);
                 }
-            } else {
-                if (_log.shouldLog(Log.INFO))
-                    _log.info("New router for " + key + ": published on " + new Date(ri.getPublished()));
-                rv = true;
             }
-        } else if (DatabaseEntry.isLeaseSet(type)) {
+            return rv;
+        }
+        DatabaseEntry old = _data.putIfAbsent(key, data);
+        if (DatabaseEntry.isLeaseSet(type)) {
             LeaseSet ls = (LeaseSet)data;
             if (old != null) {
                 LeaseSet ols = (LeaseSet)old;
@@ -198,8 +311,12 @@ class TransientDataStore implements DataStore {
     @Override
     public String toString() {
         StringBuilder buf = new StringBuilder();
-        buf.append("Transient DataStore: ").append(_data.size()).append("\nKeys: ");
-        for (Map.Entry<Hash, DatabaseEntry> e : _data.entrySet()) {
+        buf.append("Transient DataStore: ").append(_data.size()).append(" + ").append(_routers.size())
+           .append(" RouterInfos");
+        if (_routers.isCompact())
+            buf.append(" in ").append(_routers.getByteCount()).append(" bytes");
+        buf.append("\nKeys: ");
+        for (Map.Entry<Hash, DatabaseEntry> e : getMapEntries()) {
             Hash key = e.getKey();
             DatabaseEntry dp = e.getValue();
             buf.append("\n\t*Key:   ").append(key.toString()).append("\n\tContent: ").append(dp.toString());
@@ -218,6 +335,9 @@ class TransientDataStore implements DataStore {
     public DatabaseEntry remove(Hash key) {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Removing key " + key);
-        return _data.remove(key);
+        DatabaseEntry rv = _data.remove(key);
+        if (rv == null)
+            rv = _routers.remove(key);
+        return rv;
     }
 }
@@ -40,6 +40,8 @@ public class PeerProfile {
     private long _lastSentToSuccessfully;
     private long _lastFailedSend;
     private long _lastHeardFrom;
+    private int _pathMTU;
+    private int _pathMTUv6;
     private float _tunnelTestResponseTimeAvg;
     // periodic rates
     //private RateStat _sendSuccessSize = null;
@@ -262,6 +264,22 @@ public class PeerProfile {
     /** when did we last hear from the peer? */
     public long getLastHeardFrom() { return _lastHeardFrom; }
     public void setLastHeardFrom(long when) { _lastHeardFrom = when; }
+
+    /**
+     *  The largest SSU packet size confirmed by path MTU probing.
+     *
+     *  @return 0 if unknown
+     *  @since 0.9.40
+     */
+    public int getPathMTU(boolean ipv6) { return ipv6 ? _pathMTUv6 : _pathMTU; }
+
+    /** @since 0.9.40 */
+    public void setPathMTU(boolean ipv6, int mtu) {
+        if (ipv6)
+            _pathMTUv6 = mtu;
+        else
+            _pathMTU = mtu;
+    }
     
     /** history of tunnel activity with the peer
         Warning - may return null if !getIsExpanded() */
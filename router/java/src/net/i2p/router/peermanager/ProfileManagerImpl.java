@@ -330,6 +330,18 @@ public class ProfileManagerImpl implements ProfileManager {
         //data.getReceiveSize().addData(bytesRead, msToReceive);
     }
     
+    /**
+     * Note the result of an SSU path MTU search to the given peer.
+     * Non-blocking. Will not update the profile if we can't get the lock.
+     *
+     * @since 0.9.40
+     */
+    public void pathMTUProbed(Hash peer, boolean ipv6, int mtu) {
+        PeerProfile data = getProfileNonblocking(peer);
+        if (data == null) return;
+        data.setPathMTU(ipv6, mtu);
+    }
+    
     /**
      *   Blocking.
      *   Creates a new profile if it didn't exist.
@@ -135,6 +135,8 @@ class ProfilePersistenceHelper {
         addDate(buf, "lastSentToSuccessfully", profile.getLastSendSuccessful(), "When did we last send the peer a message successfully?");
         addDate(buf, "lastFailedSend", profile.getLastSendFailed(), "When did we last fail to send a message to the peer?");
         add(buf, "tunnelTestTimeAverage", profile.getTunnelTestTimeAverage(), "Moving average as to how fast the peer replies");
+        add(buf, "pathMTU", profile.getPathMTU(false), "Largest IPv4 SSU packet confirmed by probing");
+        add(buf, "pathMTUv6", profile.getPathMTU(true), "Largest IPv6 SSU packet confirmed by probing");
         add(buf, "tunnelPeakThroughput", profile.getPeakThroughputKBps(), "KBytes/sec");
         add(buf, "tunnelPeakTunnelThroughput", profile.getPeakTunnelThroughputKBps(), "KBytes/sec");
         add(buf, "tunnelPeakTunnel1mThroughput", profile.getPeakTunnel1mThroughputKBps(), "KBytes/sec");
@@ -294,6 +296,8 @@ class ProfilePersistenceHelper {
             profile.setLastSendSuccessful(getLong(props, "lastSentToSuccessfully"));
             profile.setLastSendFailed(getLong(props, "lastFailedSend"));
             profile.setLastHeardFrom(getLong(props, "lastHeardFrom"));
+            profile.setPathMTU(false, (int) getLong(props, "pathMTU"));
+            profile.setPathMTU(true, (int) getLong(props, "pathMTUv6"));
             profile.setTunnelTestTimeAverage(getFloat(props, "tunnelTestTimeAverage"));
             profile.setPeakThroughputKBps(getFloat(props, "tunnelPeakThroughput"));
             profile.setPeakTunnelThroughputKBps(getFloat(props, "tunnelPeakTunnelThroughput"));
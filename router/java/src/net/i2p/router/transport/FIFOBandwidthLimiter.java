@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
@@ -30,12 +32,22 @@ import net.i2p.util.Log;
  *  methods for the common case where we are under the bandwidth limits.
  *  And the volatile counters are now AtomicIntegers / AtomicLongs.
  *
+ *  As of 0.9.40, the shortcut is a CAS on the available counter,
+ *  so it can no longer overdraw, and it does not allocate.
+ *  Only requests that don't fit are queued, and queued outbound requests
+ *  are ordered by priority, FIFO within a priority.
+ *  Requests may also name a transport style; each style may have its own
+ *  TokenBucket sub-bucket, and a request must fit in both buckets.
+ *
  */
 public class FIFOBandwidthLimiter {
     private final Log _log;
     private final I2PAppContext _context;
     private final List<SimpleRequest> _pendingInboundRequests;
     private final List<SimpleRequest> _pendingOutboundRequests;
+    /** transport style to sub-bucket, only present if limited */
+    private final Map<String, TokenBucket> _inboundTransportBuckets;
+    private final Map<String, TokenBucket> _outboundTransportBuckets;
     /** how many bytes we can consume for inbound transmission immediately */
     private final AtomicInteger _availableInbound = new AtomicInteger();
     /** how many bytes we can consume for outbound transmission immediately */
@@ -93,6 +105,8 @@ public class FIFOBandwidthLimiter {
         _context.statManager().createRateStat("bwLimiter.inboundDelayedTime", "How long it takes to honor an inbound request (ignoring ones with that go instantly)?", "BandwidthLimiter", new long[] { 5*60*1000l, 60*60*1000l });
         _pendingInboundRequests = new ArrayList<SimpleRequest>(16);
         _pendingOutboundRequests = new ArrayList<SimpleRequest>(16);
+        _inboundTransportBuckets = new ConcurrentHashMap<String, TokenBucket>(4);
+        _outboundTransportBuckets = new ConcurrentHashMap<String, TokenBucket>(4);
         _lastTotalSent = _totalAllocatedOutboundBytes.get();
         _lastTotalReceived = _totalAllocatedInboundBytes.get();
         _lastStatsUpdated = now();
@@ -210,10 +224,21 @@ public class FIFOBandwidthLimiter {
      * Request some bytes. Does not block.
      */
     public Request requestInbound(int bytesIn, String purpose) {
+        return requestInbound(bytesIn, purpose, null);
+    }
+
+    /**
+     * Request some bytes. Does not block.
+     *
+     * @param style transport style for the per-transport sub-bucket, or null
+     * @since 0.9.40
+     */
+    public Request requestInbound(int bytesIn, String purpose, String style) {
+        TokenBucket bucket = style != null ? _inboundTransportBuckets.get(style) : null;
         // try to satisfy without grabbing the global lock
-        if (shortcutSatisfyInboundRequest(bytesIn))
+        if (shortcutSatisfyInboundRequest(bytesIn, bucket))
             return _noop;
-        SimpleRequest req = new SimpleRequest(bytesIn, 0);
+        SimpleRequest req = new SimpleRequest(bytesIn, 0, bucket);
         requestInbound(req, bytesIn, purpose);
         return req;
     }
@@ -239,12 +264,26 @@ public class FIFOBandwidthLimiter {
 
     /**
      * Request some bytes. Does not block.
+     *
+     * @param priority higher is served first if the request must be queued
      */
     public Request requestOutbound(int bytesOut, int priority, String purpose) {
+        return requestOutbound(bytesOut, priority, purpose, null);
+    }
+
+    /**
+     * Request some bytes. Does not block.
+     *
+     * @param priority higher is served first if the request must be queued
+     * @param style transport style for the per-transport sub-bucket, or null
+     * @since 0.9.40
+     */
+    public Request requestOutbound(int bytesOut, int priority, String purpose, String style) {
+        TokenBucket bucket = style != null ? _outboundTransportBuckets.get(style) : null;
         // try to satisfy without grabbing the global lock
-        if (shortcutSatisfyOutboundRequest(bytesOut))
+        if (shortcutSatisfyOutboundRequest(bytesOut, bucket))
             return _noop;
-        SimpleRequest req = new SimpleRequest(bytesOut, priority);
+        SimpleRequest req = new SimpleRequest(bytesOut, priority, bucket);
         requestOutbound(req, bytesOut, purpose);
         return req;
     }
@@ -255,7 +294,13 @@ public class FIFOBandwidthLimiter {
         int pending;
         synchronized (_pendingOutboundRequests) {
             pending = _pendingOutboundRequests.size();
-            _pendingOutboundRequests.add(req);
+            // insert after everything of equal or higher priority
+            int i = pending;
+            int priority = req.getPriority();
+            while (i > 0 && _pendingOutboundRequests.get(i - 1).getPriority() < priority) {
+                i--;
+            }
+            _pendingOutboundRequests.add(i, req);
         }
         satisfyOutboundRequests(req.satisfiedBuffer);
         req.satisfiedBuffer.clear();
@@ -269,6 +314,45 @@ public class FIFOBandwidthLimiter {
     void setOutboundBurstKBps(int kbytesPerSecond) {
         _maxOutbound = kbytesPerSecond * 1024;
     }
+
+    /**
+     *  Set or remove the sub-bucket limits for a transport.
+     *
+     *  @param style transport style
+     *  @param bytesPerSecond 0 or less to remove the limit
+     *  @param burstBytes max tokens
+     *  @since 0.9.40
+     */
+    void setInboundTransportLimit(String style, int bytesPerSecond, int burstBytes) {
+        setTransportLimit(_inboundTransportBuckets, style, bytesPerSecond, burstBytes);
+    }
+
+    /**
+     *  Set or remove the sub-bucket limits for a transport.
+     *
+     *  @param style transport style
+     *  @param bytesPerSecond 0 or less to remove the limit
+     *  @param burstBytes max tokens
+     *  @since 0.9.40
+     */
+    void setOutboundTransportLimit(String style, int bytesPerSecond, int burstBytes) {
+        setTransportLimit(_outboundTransportBuckets, style, bytesPerSecond, burstBytes);
+    }
+
+    /** @since 0.9.40 */
+    private static void setTransportLimit(Map<String, TokenBucket> buckets, String style,
+                                          int bytesPerSecond, int burstBytes) {
+        if (bytesPerSecond <= 0) {
+            buckets.remove(style);
+            return;
+        }
+        TokenBucket bucket = buckets.get(style);
+        if (bucket != null)
+            bucket.setLimits(bytesPerSecond, burstBytes);
+        else
+            buckets.put(style, new TokenBucket(bytesPerSecond, burstBytes));
+    }
+
     public int getInboundBurstBytes() { return _maxInboundBurst; }
     public int getOutboundBurstBytes() { return _maxOutboundBurst; }
     void setInboundBurstBytes(int bytes) { _maxInboundBurst = bytes; }
@@ -280,6 +364,10 @@ public class FIFOBandwidthLimiter {
         rv.append("Max: ").append(_maxInbound).append('/').append(_maxOutbound).append(' ');
         rv.append("Burst: ").append(_unavailableInboundBurst).append('/').append(_unavailableOutboundBurst).append(' ');
         rv.append("Burst max: ").append(_maxInboundBurst).append('/').append(_maxOutboundBurst).append(' ');
+        if (!_inboundTransportBuckets.isEmpty())
+            rv.append("Inbound transports: ").append(_inboundTransportBuckets).append(' ');
+        if (!_outboundTransportBuckets.isEmpty())
+            rv.append("Outbound transports: ").append(_outboundTransportBuckets).append(' ');
         return rv;
     }
     
@@ -554,6 +642,13 @@ public class FIFOBandwidthLimiter {
                 allocated = requested;
             else
                 allocated = avi;
+            TokenBucket bucket = req.getBucket();
+            if (bucket != null) {
+                // transport sub-bucket is empty, others may proceed
+                allocated = bucket.consumeUpTo(allocated);
+                if (allocated <= 0)
+                    continue;
+            }
             _availableInbound.addAndGet(0 - allocated);
             _totalAllocatedInboundBytes.addAndGet(allocated);
             req.allocateBytes(allocated);
@@ -676,6 +771,13 @@ public class FIFOBandwidthLimiter {
                 allocated = requested;
             else
                 allocated = avo;
+            TokenBucket bucket = req.getBucket();
+            if (bucket != null) {
+                // transport sub-bucket is empty, others may proceed
+                allocated = bucket.consumeUpTo(allocated);
+                if (allocated <= 0)
+                    continue;
+            }
             _availableOutbound.addAndGet(0 - allocated);
             _totalAllocatedOutboundBytes.addAndGet(allocated);
             req.allocateBytes(allocated);
@@ -705,49 +807,79 @@ public class FIFOBandwidthLimiter {
     }
     
     /**
-     *  Lockless total satisfaction,
-     *  at some minor risk of exceeding the limits
-     *  and driving the available counter below zero
+     *  Lockless total satisfaction.
+     *  As of 0.9.40, a CAS, so it will not drive the available counter below zero.
      *
      *  @param requested number of bytes
+     *  @param bucket transport sub-bucket or null
      *  @return satisfaction
      *  @since 0.7.13
      */
-    private boolean shortcutSatisfyInboundRequest(int requested) {
-        boolean rv = _inboundUnlimited ||
-                     (_pendingInboundRequests.isEmpty() &&
-                      _availableInbound.get() >= requested);
-        if (rv) {
-            _availableInbound.addAndGet(0 - requested);
-            _totalAllocatedInboundBytes.addAndGet(requested);
+    private boolean shortcutSatisfyInboundRequest(int requested, TokenBucket bucket) {
+        boolean rv;
+        if (_inboundUnlimited) {
+            rv = true;
+        } else if (!_pendingInboundRequests.isEmpty()) {
+            rv = false;
+        } else if (bucket != null && !bucket.tryConsume(requested)) {
+            rv = false;
+        } else {
+            rv = tryAllocate(_availableInbound, requested);
+            if (!rv && bucket != null)
+                bucket.refund(requested);
         }
+        if (rv)
+            _totalAllocatedInboundBytes.addAndGet(requested);
         //if (_log.shouldLog(Log.INFO))
         //    _log.info("IB shortcut for " + requested + "B? " + rv);
         return rv;
     }
     
     /**
-     *  Lockless total satisfaction,
-     *  at some minor risk of exceeding the limits
-     *  and driving the available counter below zero
+     *  Lockless total satisfaction.
+     *  As of 0.9.40, a CAS, so it will not drive the available counter below zero.
      *
      *  @param requested number of bytes
+     *  @param bucket transport sub-bucket or null
      *  @return satisfaction
      *  @since 0.7.13
      */
-    private boolean shortcutSatisfyOutboundRequest(int requested) {
-        boolean rv = _outboundUnlimited ||
-                     (_pendingOutboundRequests.isEmpty() &&
-                      _availableOutbound.get() >= requested);
-        if (rv) {
-            _availableOutbound.addAndGet(0 - requested);
-            _totalAllocatedOutboundBytes.addAndGet(requested);
+    private boolean shortcutSatisfyOutboundRequest(int requested, TokenBucket bucket) {
+        boolean rv;
+        if (_outboundUnlimited) {
+            rv = true;
+        } else if (!_pendingOutboundRequests.isEmpty()) {
+            rv = false;
+        } else if (bucket != null && !bucket.tryConsume(requested)) {
+            rv = false;
+        } else {
+            rv = tryAllocate(_availableOutbound, requested);
+            if (!rv && bucket != null)
+                bucket.refund(requested);
         }
+        if (rv)
+            _totalAllocatedOutboundBytes.addAndGet(requested);
         //if (_log.shouldLog(Log.INFO))
         //    _log.info("OB shortcut for " + requested + "B? " + rv);
         return rv;
     }
 
+    /**
+     *  All or nothing
+     *
+     *  @return true if available was at least requested, and has been decremented
+     *  @since 0.9.40
+     */
+    private static boolean tryAllocate(AtomicInteger available, int requested) {
+        while (true) {
+            int avail = available.get();
+            if (avail < requested)
+                return false;
+            if (available.compareAndSet(avail, avail - requested))
+                return true;
+        }
+    }
+
     /** @deprecated not worth translating */
     @Deprecated
     public void renderStatusHTML(Writer out) throws IOException {
@@ -796,14 +928,17 @@ public class FIFOBandwidthLimiter {
         private CompleteListener _lsnr;
         private Object _attachment;
         private final int _priority;
+        private final TokenBucket _bucket;
         
         /**
-         *  @param priority 0 for now
+         *  @param priority higher is served first
+         *  @param bucket transport sub-bucket or null
          */
-        public SimpleRequest(int bytes, int priority) {
+        public SimpleRequest(int bytes, int priority, TokenBucket bucket) {
             satisfiedBuffer = new ArrayList<Request>(1);
             _total = bytes;
             _priority = priority;
+            _bucket = bucket;
             // following two are temp until switch to PBQ
             _requestTime = System.currentTimeMillis();
             _requestId = __requestId.incrementAndGet();
@@ -822,6 +957,12 @@ public class FIFOBandwidthLimiter {
         }
         public CompleteListener getCompleteListener() { return _lsnr; }
 
+        /**
+         *  @return transport sub-bucket or null
+         *  @since 0.9.40
+         */
+        TokenBucket getBucket() { return _bucket; }
+
         /**
          *  Only used by NTCP.
          */
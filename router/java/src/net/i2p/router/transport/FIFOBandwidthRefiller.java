@@ -8,6 +8,8 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 import net.i2p.I2PAppContext;
 import net.i2p.data.DataHelper;
 import net.i2p.router.transport.FIFOBandwidthLimiter.Request;
+import net.i2p.router.transport.ntcp.NTCPTransport;
+import net.i2p.router.transport.udp.UDPTransport;
 import net.i2p.util.Log;
 
 /**
@@ -47,6 +49,20 @@ public class FIFOBandwidthRefiller implements Runnable {
     public static final String PROP_INBOUND_BANDWIDTH_PEAK = "i2np.bandwidth.inboundBurstKBytes";
     public static final String PROP_OUTBOUND_BANDWIDTH_PEAK = "i2np.bandwidth.outboundBurstKBytes";
     //public static final String PROP_REPLENISH_FREQUENCY = "i2np.bandwidth.replenishFrequencyMs";
+    /**
+     *  Prefix, append the transport style, e.g. i2np.bandwidth.inboundPercentage.NTCP.
+     *  Max percentage of the burst rate for that transport. Default 100 (no sub-bucket).
+     *  @since 0.9.40
+     */
+    public static final String PROP_INBOUND_TRANSPORT_PCT = "i2np.bandwidth.inboundPercentage.";
+    /**
+     *  Prefix, append the transport style, e.g. i2np.bandwidth.outboundPercentage.SSU.
+     *  Max percentage of the burst rate for that transport. Default 100 (no sub-bucket).
+     *  @since 0.9.40
+     */
+    public static final String PROP_OUTBOUND_TRANSPORT_PCT = "i2np.bandwidth.outboundPercentage.";
+    private static final int DEFAULT_TRANSPORT_PCT = 100;
+    private static final String[] TRANSPORT_STYLES = { NTCPTransport.STYLE, UDPTransport.STYLE };
 
     // no longer allow unlimited bandwidth - the user must specify a value, else use defaults below (KBps)
     public static final int DEFAULT_INBOUND_BANDWIDTH = 300;
@@ -179,6 +195,7 @@ public class FIFOBandwidthRefiller implements Runnable {
         updateOutboundBurstRate();
         updateInboundPeak();
         updateOutboundPeak();
+        updateTransportLimits();
         
         // We are always limited for now
         //_limiter.setInboundUnlimited(_inboundKBytesPerSecond <= 0);
@@ -257,6 +274,26 @@ public class FIFOBandwidthRefiller implements Runnable {
         _limiter.setOutboundBurstKBps(_outboundBurstKBytesPerSecond);
     }
     
+    /**
+     *  Per-transport sub-buckets, as a percentage of the burst rate,
+     *  holding up to one second's worth.
+     *  @since 0.9.40
+     */
+    private void updateTransportLimits() {
+        for (String style : TRANSPORT_STYLES) {
+            int pct = _context.getProperty(PROP_INBOUND_TRANSPORT_PCT + style, DEFAULT_TRANSPORT_PCT);
+            int rate = 0;
+            if (pct > 0 && pct < 100)
+                rate = (int) ((1024L * _inboundBurstKBytesPerSecond * pct) / 100);
+            _limiter.setInboundTransportLimit(style, rate, rate);
+            pct = _context.getProperty(PROP_OUTBOUND_TRANSPORT_PCT + style, DEFAULT_TRANSPORT_PCT);
+            rate = 0;
+            if (pct > 0 && pct < 100)
+                rate = (int) ((1024L * _outboundBurstKBytesPerSecond * pct) / 100);
+            _limiter.setOutboundTransportLimit(style, rate, rate);
+        }
+    }
+    
     private void updateInboundPeak() {
         int in = _context.getProperty(PROP_INBOUND_BANDWIDTH_PEAK,
                                       DEFAULT_BURST_SECONDS * _inboundBurstKBytesPerSecond);
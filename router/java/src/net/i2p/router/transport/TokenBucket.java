@@ -0,0 +1,136 @@
+package net.i2p.router.transport;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ *  A lock-free token bucket, refilled lazily from the elapsed time
+ *  whenever it is used, so it does not need a refiller thread.
+ *  Used for the per-transport and per-participating-tunnel sub-buckets
+ *  underneath the FIFOBandwidthLimiter.
+ *
+ *  Tokens are bytes. Thread safe.
+ *
+ *  @since 0.9.40
+ */
+public class TokenBucket {
+    private final AtomicLong _tokens;
+    private final AtomicLong _lastRefill;
+    /** bytes per second */
+    private volatile int _rate;
+    /** max bytes */
+    private volatile int _max;
+
+    /** don't bother refilling more often than this (ms) */
+    private static final long MIN_REFILL_INTERVAL = 10;
+
+    /**
+     *  Starts full.
+     *
+     *  @param bytesPerSecond greater than zero
+     *  @param maxBytes the burst size, greater than zero
+     */
+    public TokenBucket(int bytesPerSecond, int maxBytes) {
+        _rate = bytesPerSecond;
+        _max = maxBytes;
+        _tokens = new AtomicLong(maxBytes);
+        _lastRefill = new AtomicLong(System.currentTimeMillis());
+    }
+
+    /**
+     *  Change the limits. Does not change the current token count,
+     *  except that it will be capped to the new max at the next refill.
+     *
+     *  @param bytesPerSecond greater than zero
+     *  @param maxBytes the burst size, greater than zero
+     */
+    public void setLimits(int bytesPerSecond, int maxBytes) {
+        _rate = bytesPerSecond;
+        _max = maxBytes;
+    }
+
+    /** bytes per second */
+    public int getRate() { return _rate; }
+
+    /** the burst size */
+    public int getMax() { return _max; }
+
+    /**
+     *  All or nothing.
+     *
+     *  @return true if the bytes were available and have been consumed
+     */
+    public boolean tryConsume(int bytes) {
+        refill();
+        while (true) {
+            long cur = _tokens.get();
+            if (cur < bytes)
+                return false;
+            if (_tokens.compareAndSet(cur, cur - bytes))
+                return true;
+        }
+    }
+
+    /**
+     *  Partial grant.
+     *
+     *  @return the number of bytes consumed, 0 to bytes
+     */
+    public int consumeUpTo(int bytes) {
+        refill();
+        while (true) {
+            long cur = _tokens.get();
+            if (cur <= 0)
+                return 0;
+            int rv = (int) Math.min(cur, bytes);
+            if (_tokens.compareAndSet(cur, cur - rv))
+                return rv;
+        }
+    }
+
+    /**
+     *  Return tokens that were consumed but not used,
+     *  for example when the parent bucket had nothing available.
+     */
+    public void refund(int bytes) {
+        _tokens.addAndGet(bytes);
+    }
+
+    /**
+     *  @return the current token count
+     */
+    public int getAvailable() {
+        refill();
+        return (int) Math.max(0, _tokens.get());
+    }
+
+    /**
+     *  Whoever wins the CAS on the timestamp adds the tokens for the interval.
+     */
+    private void refill() {
+        long now = System.currentTimeMillis();
+        long last = _lastRefill.get();
+        long elapsed = now - last;
+        if (elapsed < MIN_REFILL_INTERVAL) {
+            // clock went backwards
+            if (elapsed < 0)
+                _lastRefill.compareAndSet(last, now);
+            return;
+        }
+        if (!_lastRefill.compareAndSet(last, now))
+            return;
+        // cap the interval to prevent overflow, it's capped to max anyway
+        long add = Math.min(elapsed, 60*1000L) * _rate / 1000;
+        long max = _max;
+        while (true) {
+            long cur = _tokens.get();
+            long next = Math.min(max, cur + add);
+            if (next == cur || _tokens.compareAndSet(cur, next))
+                return;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Bucket: " + _tokens.get() + '/' + _max + " rate: " + _rate;
+    }
+}
@@ -0,0 +1,189 @@
+package net.i2p.router.transport.ntcp;
+
+import java.util.Collection;
+
+import net.i2p.data.i2np.DatabaseLookupMessage;
+import net.i2p.data.i2np.DatabaseSearchReplyMessage;
+import net.i2p.data.i2np.DatabaseStoreMessage;
+import net.i2p.data.i2np.DeliveryStatusMessage;
+import net.i2p.data.i2np.TunnelBuildMessage;
+import net.i2p.data.i2np.TunnelBuildReplyMessage;
+import net.i2p.data.i2np.VariableTunnelBuildMessage;
+import net.i2p.data.i2np.VariableTunnelBuildReplyMessage;
+import net.i2p.router.OutNetMessage;
+import net.i2p.router.RouterContext;
+import net.i2p.router.util.PriBlockingQueue;
+
+/**
+ *  The outbound message queue for a single NTCPConnection.
+ *
+ *  Messages are split into two classes by I2NP type: control
+ *  (tunnel build requests and replies, netDb messages, delivery status)
+ *  and bulk (tunnel data, gateway, garlic, everything else).
+ *  Previously a single priority queue was used, where a netDb flood has the
+ *  same priority as participating traffic and waits behind all of it.
+ *
+ *  Each class is a PriBlockingQueue, so the OutNetMessage priority still
+ *  orders messages within a class. Between classes, we do deficit round robin
+ *  by bytes, with the control class weighted more heavily, so neither class
+ *  can starve the other.
+ *
+ *  Each class also has a cap on the bytes taken in a single write batch
+ *  (the connection only has one batch in flight at a time), so that a control
+ *  message never waits behind more than a small amount of bulk data.
+ *  A class may always take one message, so large messages are never stuck.
+ *
+ *  All methods are synchronized, so the peek-then-poll in poll() is consistent.
+ *
+ *  @since 0.9.40
+ */
+class ClassedOutboundQueue {
+    private final PriBlockingQueue<OutNetMessage>[] _queues;
+    /** DRR deficit in bytes */
+    private final int[] _deficit;
+    /** bytes taken in the current batch */
+    private final int[] _batchBytes;
+    /** the class we are currently serving */
+    private int _current;
+
+    static final int CLASS_CONTROL = 0;
+    static final int CLASS_BULK = 1;
+    private static final int NUM_CLASSES = 2;
+
+    private static final int QUANTUM = 2048;
+    /** DRR weights */
+    private static final int[] QUANTA = { 4 * QUANTUM, QUANTUM };
+    /** per-batch byte caps, roughly two NTCP2 frames of bulk data */
+    private static final int[] BATCH_CAPS = { 16*1024, 10*1024 };
+
+    @SuppressWarnings("unchecked")
+    public ClassedOutboundQueue(RouterContext ctx) {
+        _queues = new PriBlockingQueue[NUM_CLASSES];
+        _queues[CLASS_CONTROL] = new PriBlockingQueue<OutNetMessage>(ctx, "NTCP-Connection-control", 8);
+        // same name as before for the stat
+        _queues[CLASS_BULK] = new PriBlockingQueue<OutNetMessage>(ctx, "NTCP-Connection", 32);
+        _deficit = new int[NUM_CLASSES];
+        _batchBytes = new int[NUM_CLASSES];
+    }
+
+    /**
+     *  Which class is this message in?
+     */
+    static int classify(OutNetMessage msg) {
+        switch (msg.getMessageTypeId()) {
+            case TunnelBuildMessage.MESSAGE_TYPE:
+            case TunnelBuildReplyMessage.MESSAGE_TYPE:
+            case VariableTunnelBuildMessage.MESSAGE_TYPE:
+            case VariableTunnelBuildReplyMessage.MESSAGE_TYPE:
+            case DatabaseStoreMessage.MESSAGE_TYPE:
+            case DatabaseLookupMessage.MESSAGE_TYPE:
+            case DatabaseSearchReplyMessage.MESSAGE_TYPE:
+            case DeliveryStatusMessage.MESSAGE_TYPE:
+                return CLASS_CONTROL;
+            default:
+                return CLASS_BULK;
+        }
+    }
+
+    /**
+     *  @return false if the class queue is full
+     */
+    public synchronized boolean offer(OutNetMessage msg) {
+        return _queues[classify(msg)].offer(msg);
+    }
+
+    /**
+     *  Start a new write batch, resetting the per-batch byte counts.
+     *  Call when nothing is in flight.
+     */
+    public synchronized void startBatch() {
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            _batchBytes[i] = 0;
+        }
+    }
+
+    /**
+     *  @return the next message by DRR, or null if empty
+     */
+    public OutNetMessage poll() {
+        return poll(Integer.MAX_VALUE);
+    }
+
+    /**
+     *  The next message by DRR, if it is not larger than maxSize.
+     *  Classes that have reached their batch cap are skipped.
+     *
+     *  @param maxSize max value of getMessageSize()
+     *  @return the next message, or null if empty, all classes are capped,
+     *          or the next message is too big (it is not removed)
+     */
+    public synchronized OutNetMessage poll(int maxSize) {
+        while (true) {
+            boolean any = false;
+            for (int i = 0; i < NUM_CLASSES; i++) {
+                int c = _current;
+                OutNetMessage msg = _queues[c].peek();
+                if (msg == null) {
+                    // an idle class doesn't save up credit
+                    _deficit[c] = 0;
+                    next();
+                    continue;
+                }
+                int sz = msg.getMessageSize();
+                if (_batchBytes[c] > 0 && _batchBytes[c] + sz > BATCH_CAPS[c]) {
+                    next();
+                    continue;
+                }
+                any = true;
+                if (_deficit[c] >= sz) {
+                    if (sz > maxSize)
+                        return null;
+                    _queues[c].poll();
+                    _deficit[c] -= sz;
+                    _batchBytes[c] += sz;
+                    return msg;
+                }
+                _deficit[c] += QUANTA[c];
+                next();
+            }
+            if (!any)
+                return null;
+        }
+    }
+
+    private void next() {
+        if (++_current >= NUM_CLASSES)
+            _current = 0;
+    }
+
+    public synchronized boolean isEmpty() {
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            if (!_queues[i].isEmpty())
+                return false;
+        }
+        return true;
+    }
+
+    public synchronized int size() {
+        int rv = 0;
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            rv += _queues[i].size();
+        }
+        return rv;
+    }
+
+    /**
+     *  Only the bulk class, control traffic is small
+     *  and shouldn't make us look congested.
+     */
+    public boolean isBacklogged() {
+        return _queues[CLASS_BULK].isBacklogged();
+    }
+
+    public synchronized void drainTo(Collection<OutNetMessage> c) {
+        for (int i = 0; i < NUM_CLASSES; i++) {
+            _queues[i].drainTo(c);
+            _deficit[i] = 0;
+        }
+    }
+}
@@ -16,13 +16,16 @@ import java.nio.channels.Selector;
 import java.nio.channels.ServerSocketChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.UnresolvedAddressException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Queue;
 import java.util.Set;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import net.i2p.I2PAppContext;
 import net.i2p.data.ByteArray;
 import net.i2p.data.router.RouterAddress;
 import net.i2p.data.router.RouterIdentity;
@@ -39,6 +42,14 @@ import net.i2p.util.SystemVersion;
 
 /**
  *  The main NTCP NIO thread.
+ *
+ *  As of 0.9.40, there may be more than one of these, see NTCPTransport.PROP_PUMPERS.
+ *  Each pumper has its own Selector, and each NTCPConnection is registered
+ *  with exactly one pumper at a time, see NTCPConnection.getPumper().
+ *  Only the first pumper (id 0) registers the ServerSocketChannels and accepts;
+ *  accepted channels are handed off to the least-loaded pumper.
+ *  A pumper that stays busy will move some of its established connections
+ *  to a less busy one.
  */
 class EventPumper implements Runnable {
     private final RouterContext _context;
@@ -47,14 +58,34 @@ class EventPumper implements Runnable {
     private Selector _selector;
     private final Set<NTCPConnection> _wantsWrite = new ConcurrentHashSet<NTCPConnection>(32);
     /**
-     *  The following 3 are unbounded and lockless for performance in runDelayedEvents()
+     *  The following 5 are unbounded and lockless for performance in runDelayedEvents()
      */
     private final Queue<NTCPConnection> _wantsRead = new ConcurrentLinkedQueue<NTCPConnection>();
     private final Queue<ServerSocketChannel> _wantsRegister = new ConcurrentLinkedQueue<ServerSocketChannel>();
     private final Queue<NTCPConnection> _wantsConRegister = new ConcurrentLinkedQueue<NTCPConnection>();
+    /** accepted by pumper 0, to be registered here */
+    private final Queue<SocketChannel> _wantsAcceptRegister = new ConcurrentLinkedQueue<SocketChannel>();
+    /** established cons moved here from a busier pumper */
+    private final Queue<NTCPConnection> _wantsMigrateIn = new ConcurrentLinkedQueue<NTCPConnection>();
     private final NTCPTransport _transport;
+    /** shared by all pumpers */
     private final ObjectCounter<ByteArray> _blockedIPs;
     private long _expireIdleWriteTime;
+    /** 0 to (number of pumpers - 1) */
+    private final int _id;
+    /** null if we are the only pumper */
+    private final String _statPrefix;
+    private final TryCache<ByteBuffer> _bufferCache;
+    /** scratch for gathering writes, our thread only */
+    private final ByteBuffer[] _gatherBufs = new ByteBuffer[MAX_GATHER_BUFS];
+    /** key set size at the last failsafe iteration */
+    private volatile int _lastKeySetSize;
+    /** cons assigned to us since the last failsafe iteration */
+    private final AtomicInteger _recentlyAssigned = new AtomicInteger();
+    /** fraction of time not spent in select() over the last failsafe interval, 0.0 - 1.0 */
+    private volatile float _utilization;
+    /** server keys with OP_ACCEPT turned off while the handshake queue is backlogged, our thread only */
+    private final List<SelectionKey> _pausedAccepts = new ArrayList<SelectionKey>(2);
     private static final boolean _useDirect = false;
     
     /**
@@ -92,6 +123,15 @@ class EventPumper implements Runnable {
     private static final long MAX_EXPIRE_IDLE_TIME = 11*60*1000l;
     private static final long MAY_DISCON_TIMEOUT = 10*1000;
 
+    /** we are hot if busy more than this fraction of the time */
+    private static final float HOT_UTILIZATION = 0.70f;
+    /** and the coolest pumper is less busy than us by at least this much */
+    private static final float HOT_MARGIN = 0.25f;
+    /** max cons to move away per failsafe iteration */
+    private static final int MAX_MIGRATE = 16;
+    /** max buffers per gathering write */
+    private static final int MAX_GATHER_BUFS = 16;
+
     /**
      *  Do we use direct buffers for reading? Default false.
      *  NOT recommended as we don't keep good track of them so they will leak.
@@ -110,29 +150,49 @@ class EventPumper implements Runnable {
         MIN_BUFS = (int) Math.max(MIN_MINB, Math.min(MAX_MINB, 1 + (maxMemory / (16*1024*1024))));
     }
     
-    private static final TryCache<ByteBuffer> _bufferCache = new TryCache<>(new BufferFactory(), MIN_BUFS);
-
-    public EventPumper(RouterContext ctx, NTCPTransport transport) {
+    /**
+     *  @param id 0 to (count - 1); pumper 0 does the accepts
+     *  @param count total number of pumpers
+     *  @param blockedIPs shared by all pumpers
+     *  @since 0.9.40 added id, count, blockedIPs params
+     */
+    public EventPumper(RouterContext ctx, NTCPTransport transport, int id, int count,
+                       ObjectCounter<ByteArray> blockedIPs) {
         _context = ctx;
         _log = ctx.logManager().getLog(getClass());
         _transport = transport;
+        _id = id;
         _expireIdleWriteTime = MAX_EXPIRE_IDLE_TIME;
-        _blockedIPs = new ObjectCounter<ByteArray>();
+        _blockedIPs = blockedIPs;
+        // the cache was static when there was only one pumper
+        _bufferCache = new TryCache<ByteBuffer>(new BufferFactory(), MIN_BUFS);
         _context.statManager().createRateStat("ntcp.pumperKeySetSize", "", "ntcp", new long[] {10*60*1000} );
         //_context.statManager().createRateStat("ntcp.pumperKeysPerLoop", "", "ntcp", new long[] {10*60*1000} );
         _context.statManager().createRateStat("ntcp.pumperLoopsPerSecond", "", "ntcp", new long[] {10*60*1000} );
         _context.statManager().createRateStat("ntcp.zeroRead", "", "ntcp", new long[] {10*60*1000} );
+        _context.statManager().createRateStat("ntcp.acceptPaused", "Accepts deferred because the handshake queue is full", "ntcp", new long[] {10*60*1000} );
         _context.statManager().createRateStat("ntcp.zeroReadDrop", "", "ntcp", new long[] {10*60*1000} );
         _context.statManager().createRateStat("ntcp.dropInboundNoMessage", "", "ntcp", new long[] {10*60*1000} );
+        _context.statManager().createRateStat("ntcp.writeGathered", "Buffers per gathering write", "ntcp", new long[] {10*60*1000} );
+        if (count > 1) {
+            _statPrefix = "ntcp.pumper" + id + '.';
+            _context.statManager().createRateStat(_statPrefix + "keySetSize", "Connections on NTCP pumper " + id, "ntcp", new long[] {10*60*1000} );
+            _context.statManager().createRateStat(_statPrefix + "loopsPerSecond", "Selector loops on NTCP pumper " + id, "ntcp", new long[] {10*60*1000} );
+            _context.statManager().createRateStat(_statPrefix + "utilization", "Percent of time busy on NTCP pumper " + id, "ntcp", new long[] {10*60*1000} );
+            _context.statManager().createRateStat("ntcp.pumperMigrate", "Connections moved to a less busy pumper", "ntcp", new long[] {10*60*1000} );
+        } else {
+            _statPrefix = null;
+        }
     }
     
     public synchronized void startPumping() {
         if (_log.shouldLog(Log.INFO))
-            _log.info("Starting pumper");
+            _log.info("Starting pumper " + _id);
         try {
             _selector = Selector.open();
             _alive = true;
-            new I2PThread(this, "NTCP Pumper", true).start();
+            String name = _statPrefix != null ? "NTCP Pumper " + _id : "NTCP Pumper";
+            new I2PThread(this, name, true).start();
         } catch (IOException ioe) {
             _log.log(Log.CRIT, "Error opening the NTCP selector", ioe);
         } catch (java.lang.InternalError jlie) {
@@ -166,15 +226,60 @@ class EventPumper implements Runnable {
     }
 
     /**
-     *  Outbound
+     *  Outbound.
+     *  Pins the connection to this pumper.
      */
     public void registerConnect(NTCPConnection con) {
         if (_log.shouldLog(Log.DEBUG))
-            _log.debug("Registering " + con);
+            _log.debug("Registering " + con + " on pumper " + _id);
         _context.statManager().addRateData("ntcp.registerConnect", 1);
+        _recentlyAssigned.incrementAndGet();
+        con.setPumper(this);
         _wantsConRegister.offer(con);
         _selector.wakeup();
     }
+
+    /**
+     *  Inbound, accepted by pumper 0 and already checked against the blocklists.
+     *
+     *  @since 0.9.40
+     */
+    private void registerAccepted(SocketChannel chan) {
+        _recentlyAssigned.incrementAndGet();
+        _wantsAcceptRegister.offer(chan);
+        _selector.wakeup();
+    }
+
+    /**
+     *  Established connection moved here from another pumper.
+     *  Caller must have cancelled the old key and set the con's key to null.
+     *
+     *  @since 0.9.40
+     */
+    private void migrateIn(NTCPConnection con) {
+        _recentlyAssigned.incrementAndGet();
+        con.setPumper(this);
+        _wantsMigrateIn.offer(con);
+        _selector.wakeup();
+    }
+
+    /**
+     *  For NTCPTransport.selectPumper()
+     *
+     *  @return an estimate of our load, higher is busier
+     *  @since 0.9.40
+     */
+    float getLoad() {
+        return (_lastKeySetSize + _recentlyAssigned.get()) * (1.0f + _utilization);
+    }
+
+    /**
+     *  @return fraction of time busy over the last few seconds, 0.0 - 1.0
+     *  @since 0.9.40
+     */
+    float getUtilization() {
+        return _utilization;
+    }
     
     /**
      *  The selector loop.
@@ -186,12 +291,14 @@ class EventPumper implements Runnable {
         int failsafeLoopCount = FAILSAFE_LOOP_COUNT;
         long lastFailsafeIteration = System.currentTimeMillis();
         long lastBlockedIPClear = lastFailsafeIteration;
+        long busyNanos = 0;
         while (_alive && _selector.isOpen()) {
             try {
                 loopCount++;
 
                 try {
                     int count = _selector.select(SELECTOR_LOOP_DELAY);
+                    long busyStart = System.nanoTime();
                     if (count > 0) {
                         Set<SelectionKey> selected = _selector.selectedKeys();
                         //_context.statManager().addRateData("ntcp.pumperKeysPerLoop", selected.size());
@@ -200,6 +307,7 @@ class EventPumper implements Runnable {
                         selected.clear();
                     }
                     runDelayedEvents();
+                    busyNanos += System.nanoTime() - busyStart;
                 } catch (ClosedSelectorException cse) {
                     continue;
                 } catch (IOException ioe) {
@@ -217,12 +325,22 @@ class EventPumper implements Runnable {
                     // the code, lets periodically pass over all NTCP connections and
                     // make sure that anything which should be able to write has been
                     // properly marked as such, etc
+                    long elapsed = now - lastFailsafeIteration;
                     lastFailsafeIteration = now;
                     try {
                         Set<SelectionKey> all = _selector.keys();
                         int lastKeySetSize = all.size();
+                        _lastKeySetSize = lastKeySetSize;
+                        _recentlyAssigned.set(0);
+                        _utilization = Math.min(1.0f, busyNanos / (elapsed * 1000000f));
+                        busyNanos = 0;
                         _context.statManager().addRateData("ntcp.pumperKeySetSize", lastKeySetSize);
                         _context.statManager().addRateData("ntcp.pumperLoopsPerSecond", loopCount / (FAILSAFE_ITERATION_FREQ / 1000));
+                        if (_statPrefix != null) {
+                            _context.statManager().addRateData(_statPrefix + "keySetSize", lastKeySetSize);
+                            _context.statManager().addRateData(_statPrefix + "loopsPerSecond", loopCount / (FAILSAFE_ITERATION_FREQ / 1000));
+                            _context.statManager().addRateData(_statPrefix + "utilization", (long) (100 * _utilization));
+                        }
                         // reset the failsafe loop counter,
                         // and recalculate the max loops before failsafe sleep, based on number of keys
                         loopCount = 0;
@@ -244,6 +362,10 @@ class EventPumper implements Runnable {
                                 if (!(att instanceof NTCPConnection))
                                     continue; // to the next con
                                 NTCPConnection con = (NTCPConnection)att;
+                                if (con.getKey() != key && con.getPumper() != this) {
+                                    // moved to another pumper, old key not yet removed
+                                    continue;
+                                }
                                 
                                 /**
                                  * 100% CPU bug
@@ -312,6 +434,8 @@ class EventPumper implements Runnable {
                             _context.statManager().addRateData("ntcp.failsafeCloses", failsafeCloses);
                         if (failsafeInvalid > 0)
                             _context.statManager().addRateData("ntcp.failsafeInvalid", failsafeInvalid);
+                        if (_statPrefix != null && _utilization >= HOT_UTILIZATION)
+                            rebalance(all);
                     } catch (ClosedSelectorException cse) {
                         continue;
                     }
@@ -328,7 +452,7 @@ class EventPumper implements Runnable {
                         } catch (InterruptedException ie) {}
                     }
                 }
-                if (lastBlockedIPClear + BLOCKED_IP_FREQ < now) {
+                if (_id == 0 && lastBlockedIPClear + BLOCKED_IP_FREQ < now) {
                     _blockedIPs.clear();
                     lastBlockedIPClear = now;
                 }
@@ -369,6 +493,58 @@ class EventPumper implements Runnable {
         _wantsRead.clear();
         _wantsRegister.clear();
         _wantsWrite.clear();
+        SocketChannel chan;
+        while ((chan = _wantsAcceptRegister.poll()) != null) {
+            try { chan.close(); } catch (IOException ioe) {}
+        }
+        NTCPConnection con;
+        while ((con = _wantsMigrateIn.poll()) != null) {
+            con.close();
+        }
+    }
+
+    /**
+     *  We are hot. Move some established connections to the least busy pumper,
+     *  if it is sufficiently less busy than we are.
+     *  Only connections with nothing pending to write and not throttled on read are moved.
+     *
+     *  Called in our thread only, from the failsafe iteration.
+     *
+     *  @param all our selector's key set
+     *  @since 0.9.40
+     */
+    private void rebalance(Set<SelectionKey> all) {
+        EventPumper target = _transport.selectPumper();
+        if (target == this || target.getUtilization() + HOT_MARGIN > _utilization)
+            return;
+        // move a share proportional to how much busier we are, but not too many at once
+        int toMove = Math.min(MAX_MIGRATE, (int) (all.size() * (_utilization - target.getUtilization()) / 4));
+        int moved = 0;
+        for (Iterator<SelectionKey> iter = all.iterator(); iter.hasNext() && moved < toMove; ) {
+            SelectionKey key = iter.next();
+            Object att = key.attachment();
+            if (!(att instanceof NTCPConnection))
+                continue;
+            NTCPConnection con = (NTCPConnection) att;
+            try {
+                if (!key.isValid() || con.isClosed() || !con.isEstablished() ||
+                    !con.isWriteBufEmpty() || (key.interestOps() & SelectionKey.OP_READ) == 0)
+                    continue;
+                // The old key remains in the set until our next select(),
+                // but a channel may be registered with more than one selector.
+                // Null key means "in transit", see runDelayedEvents()
+                con.setKey(null);
+                key.cancel();
+                target.migrateIn(con);
+                moved++;
+            } catch (CancelledKeyException cke) {}
+        }
+        if (moved > 0) {
+            _context.statManager().addRateData("ntcp.pumperMigrate", moved);
+            if (_log.shouldInfo())
+                _log.info("Pumper " + _id + " at " + ((int) (100 * _utilization)) + "% moved " + moved +
+                          " connections to pumper " + target._id + " at " + ((int) (100 * target.getUtilization())) + '%');
+        }
     }
     
     /**
@@ -435,7 +611,7 @@ class EventPumper implements Runnable {
      */
     public void wantsWrite(NTCPConnection con, byte data[], int off, int len) {
         ByteBuffer buf = ByteBuffer.wrap(data, off, len);
-        FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestOutbound(len, 0, "NTCP write");//con, buf);
+        FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestOutbound(len, 0, "NTCP write", NTCPTransport.STYLE);//con, buf);
         if (req.getPendingRequested() > 0) {
             if (_log.shouldLog(Log.INFO))
                 _log.info("queued write on " + con + " for " + len);
@@ -449,6 +625,7 @@ class EventPumper implements Runnable {
     /**
      *  Called by the connection when it has data ready to write (after bw allocation).
      *  Only wakeup if new.
+     *  Caller should use con.getPumper().
      */
     public void wantsWrite(NTCPConnection con) {
         if (_wantsWrite.add(con)) {
@@ -475,20 +652,38 @@ class EventPumper implements Runnable {
     
     /**
      *  Return a read buffer to the pool.
-     *  These buffers must be from acquireBuf(), i.e. capacity() == BUF_SIZE.
+     *  These buffers must be from acquireBuf(), i.e. capacity() == BUF_SIZE,
+     *  but need not be from this pumper's pool, as connections may move between pumpers.
      *  High-frequency path in thread.
+     *
+     *  @since 0.9.40 non-static, was static
      */
-    public static void releaseBuf(ByteBuffer buf) {
+    public void releaseBuf(ByteBuffer buf) {
         // double check
         if (buf.capacity() < BUF_SIZE) {
-            I2PAppContext.getGlobalContext().logManager().getLog(EventPumper.class).error("Bad size " + buf.capacity(), new Exception());
+            _log.error("Bad size " + buf.capacity(), new Exception());
             return;
         }
         buf.clear();
         _bufferCache.release(buf);
     }
     
+    /**
+     *  Pumper 0 only.
+     */
     private void processAccept(SelectionKey key) {
+        if (_transport.getReader().isHandshakeBacklogged()) {
+            // Leave it in the kernel's backlog until the handshake threads catch up.
+            // OP_ACCEPT is level-triggered, so turn it off, runDelayedEvents() turns it back on.
+            try {
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_ACCEPT);
+                _pausedAccepts.add(key);
+                _context.statManager().addRateData("ntcp.acceptPaused", 1);
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Handshake queue full, pausing accept");
+            } catch (CancelledKeyException cke) {}
+            return;
+        }
         ServerSocketChannel servChan = (ServerSocketChannel)key.attachment();
         try {
             SocketChannel chan = servChan.accept();
@@ -526,14 +721,30 @@ class EventPumper implements Runnable {
             if (shouldSetKeepAlive(chan))
                 chan.socket().setKeepAlive(true);
 
-            SelectionKey ckey = chan.register(_selector, SelectionKey.OP_READ);
-            NTCPConnection con = new NTCPConnection(_context, _transport, chan, ckey);
-            ckey.attach(con);
-            _transport.establishing(con);
+            EventPumper pumper = _transport.selectPumper();
+            if (pumper == this) {
+                _recentlyAssigned.incrementAndGet();
+                registerInbound(chan);
+            } else {
+                pumper.registerAccepted(chan);
+            }
         } catch (IOException ioe) {
             _log.error("Error accepting", ioe);
         }
     }
+
+    /**
+     *  Register an accepted channel with our selector and create the connection.
+     *  In our thread only.
+     *
+     *  @since 0.9.40 split out of processAccept()
+     */
+    private void registerInbound(SocketChannel chan) throws IOException {
+        SelectionKey ckey = chan.register(_selector, SelectionKey.OP_READ);
+        NTCPConnection con = new NTCPConnection(_context, _transport, this, chan, ckey);
+        ckey.attach(con);
+        _transport.establishing(con);
+    }
     
     private void processConnect(SelectionKey key) {
         NTCPConnection con = (NTCPConnection)key.attachment();
@@ -653,7 +864,7 @@ class EventPumper implements Runnable {
                 // ZERO COPY. The buffer will be returned in Reader.processRead()
                 // not ByteBuffer to avoid Java 8/9 issues with flip()
                 ((Buffer)buf).flip();
-                FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestInbound(read, "NTCP read"); //con, buf);
+                FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestInbound(read, "NTCP read", NTCPTransport.STYLE); //con, buf);
                 if (req.getPendingRequested() > 0) {
                     // rare since we generally don't throttle inbound
                     key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
@@ -728,37 +939,38 @@ class EventPumper implements Runnable {
     /**
      *  OP_WRITE will always be set before this is called.
      *  This method will disable the interest if no more writes remain.
+     *  As of 0.9.40, writes up to MAX_GATHER_BUFS buffers per call.
      *  High-frequency path in thread.
      */
     private void processWrite(SelectionKey key) {
         NTCPConnection con = (NTCPConnection)key.attachment();
+        final ByteBuffer[] bufs = _gatherBufs;
         try {
             while (true) {
-                ByteBuffer buf = con.getNextWriteBuf();
-                if (buf != null) {
-                    if (buf.remaining() <= 0) {
-                        con.removeWriteBuf(buf);
-                        continue;                    
+                int count = con.getNextWriteBufs(bufs);
+                if (count > 0) {
+                    long written = con.getChannel().write(bufs, 0, count);
+                    if (count > 1)
+                        _context.statManager().addRateData("ntcp.writeGathered", count);
+                    // remove the completed ones, oldest first
+                    int done = 0;
+                    while (done < count && !bufs[done].hasRemaining()) {
+                        con.removeWriteBuf(bufs[done]);
+                        done++;
                     }
-                    int written = con.getChannel().write(buf);
-                    //totalWritten += written;
-                    if (written == 0) {
-                        if ( (buf.remaining() > 0) || (!con.isWriteBufEmpty()) ) {
-                            // stay interested
+                    Arrays.fill(bufs, 0, count, null);
+                    if (done < count) {
+                        if (written == 0) {
+                            // socket buffer is full, stay interested
                             //key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
-                        } else {
-                            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                            break;
                         }
-                        break;
-                    } else if (buf.remaining() > 0) {
                         // stay interested
                         //key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
                         continue;
-                    } else {
-                        con.removeWriteBuf(buf);
-                        //if (buffer time is too much, add OP_WRITe to the interest ops and break?)
-                        // LOOP
                     }
+                    //if (buffer time is too much, add OP_WRITe to the interest ops and break?)
+                    // LOOP
                 } else {
                     // Nothing more to write
 		    if (key.isValid())
@@ -767,10 +979,12 @@ class EventPumper implements Runnable {
                 }
             }
         } catch (CancelledKeyException cke) {
+            Arrays.fill(bufs, null);
             if (_log.shouldLog(Log.WARN)) _log.warn("error writing on " + con, cke);
             _context.statManager().addRateData("ntcp.writeError", 1);
             con.close();
         } catch (IOException ioe) {
+            Arrays.fill(bufs, null);
             if (_log.shouldLog(Log.WARN)) _log.warn("error writing on " + con, ioe);
             _context.statManager().addRateData("ntcp.writeError", 1);
             con.close();
@@ -784,8 +998,64 @@ class EventPumper implements Runnable {
      */
     private void runDelayedEvents() {
         NTCPConnection con;
+        if (!_pausedAccepts.isEmpty() && _transport.getReader().isHandshakeBacklogCleared()) {
+            for (SelectionKey key : _pausedAccepts) {
+                try {
+                    if (key.isValid())
+                        key.interestOps(key.interestOps() | SelectionKey.OP_ACCEPT);
+                } catch (CancelledKeyException cke) {}
+            }
+            _pausedAccepts.clear();
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Handshake queue drained, resuming accept");
+        }
+        // do these first so the new keys are set before
+        // we process wantsRead and wantsWrite below
+        if (!_wantsMigrateIn.isEmpty()) {
+            while ((con = _wantsMigrateIn.poll()) != null) {
+                try {
+                    int ops = SelectionKey.OP_READ;
+                    if (!con.isWriteBufEmpty())
+                        ops |= SelectionKey.OP_WRITE;
+                    SelectionKey key = con.getChannel().register(_selector, ops, con);
+                    con.setKey(key);
+                } catch (ClosedChannelException cce) {
+                    // closed while in transit
+                    con.close();
+                } catch (CancelledKeyException cke) {
+                    con.close();
+                }
+            }
+        }
+
+        if (!_wantsAcceptRegister.isEmpty()) {
+            SocketChannel chan;
+            while ((chan = _wantsAcceptRegister.poll()) != null) {
+                try {
+                    registerInbound(chan);
+                } catch (IOException ioe) {
+                    if (_log.shouldWarn())
+                        _log.warn("Error registering accepted channel", ioe);
+                    try { chan.close(); } catch (IOException e) {}
+                }
+            }
+        }
+
+        List<NTCPConnection> inTransit = null;
         while ((con = _wantsRead.poll()) != null) {
+            if (con.getPumper() != this) {
+                // moved since it was queued
+                con.getPumper().wantsRead(con);
+                continue;
+            }
             SelectionKey key = con.getKey();
+            if (key == null) {
+                // moved here but not yet registered, try again next time
+                if (inTransit == null)
+                    inTransit = new ArrayList<NTCPConnection>(4);
+                inTransit.add(con);
+                continue;
+            }
             try {
                 key.interestOps(key.interestOps() | SelectionKey.OP_READ);
             } catch (CancelledKeyException cke) {
@@ -810,11 +1080,21 @@ class EventPumper implements Runnable {
                     _log.warn("gnu?", iae);
             }
         }
+        if (inTransit != null)
+            _wantsRead.addAll(inTransit);
 
         // check before instantiating iterator for speed
         if (!_wantsWrite.isEmpty()) {
             for (Iterator<NTCPConnection> iter = _wantsWrite.iterator(); iter.hasNext(); ) {
                 con = iter.next();
+                EventPumper pumper = con.getPumper();
+                if (pumper != this) {
+                    // moved since it was queued
+                    iter.remove();
+                    if (pumper != null)
+                        pumper.wantsWrite(con);
+                    continue;
+                }
                 SelectionKey key = con.getKey();
                 if (key == null)
                     continue;
@@ -883,7 +1163,7 @@ class EventPumper implements Runnable {
         }
         
         long now = System.currentTimeMillis();
-        if (_lastExpired + 1000 <= now) {
+        if (_id == 0 && _lastExpired + 1000 <= now) {
             expireTimedOut();
             _lastExpired = now;
         }
@@ -43,7 +43,6 @@ import net.i2p.router.networkdb.kademlia.FloodfillNetworkDatabaseFacade;
 import net.i2p.router.transport.FIFOBandwidthLimiter;
 import net.i2p.router.transport.FIFOBandwidthLimiter.Request;
 import net.i2p.router.transport.ntcp.NTCP2Payload.Block;
-import net.i2p.router.util.PriBlockingQueue;
 import net.i2p.util.ByteCache;
 import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.HexDump;
@@ -85,6 +84,8 @@ public class NTCPConnection implements Closeable {
     private final Log _log;
     private SocketChannel _chan;
     private SelectionKey _conKey;
+    /** the pumper our channel is registered with, may change, see EventPumper.rebalance() */
+    private volatile EventPumper _pumper;
     private final FIFOBandwidthLimiter.CompleteListener _inboundListener;
     private final FIFOBandwidthLimiter.CompleteListener _outboundListener;
     /**
@@ -113,7 +114,8 @@ public class NTCPConnection implements Closeable {
      * pending unprepared OutNetMessage instances
      */
     //private final CoDelPriorityBlockingQueue<OutNetMessage> _outbound;
-    private final PriBlockingQueue<OutNetMessage> _outbound;
+    /** weighted-fair control and bulk classes as of 0.9.40 */
+    private final ClassedOutboundQueue _outbound;
     /**
      *  current prepared OutNetMessages, or empty - synchronize to modify or read
      */
@@ -188,6 +190,8 @@ public class NTCPConnection implements Closeable {
     // don't make combined messages too big, to minimize latency
     // Tunnel data msgs are 1024 + 4 + 9 + 3 = 1040, allow 5
     private static final int NTCP2_PREFERRED_PAYLOAD_MAX = 5 * 1040;
+    // max total size of additional frames combined into a single write
+    private static final int NTCP2_COALESCE_MAX = 3 * NTCP2_PREFERRED_PAYLOAD_MAX;
     static final int REASON_UNSPEC = 0;
     static final int REASON_TERMINATION = 1;
     static final int REASON_TIMEOUT = 2;
@@ -228,9 +232,13 @@ public class NTCPConnection implements Closeable {
      * Create an inbound connected (though not established) NTCP connection.
      * Caller MUST call transport.establishing(this) after construction.
      * Caller MUST key.attach(this) after construction.
+     *
+     * @param pumper the pumper that key is registered with
+     * @since 0.9.40 added pumper param
      */
-    public NTCPConnection(RouterContext ctx, NTCPTransport transport, SocketChannel chan, SelectionKey key) {
+    NTCPConnection(RouterContext ctx, NTCPTransport transport, EventPumper pumper, SocketChannel chan, SelectionKey key) {
         this(ctx, transport, null, true);
+        _pumper = pumper;
         _chan = chan;
         _version = 1;
         _conKey = key;
@@ -278,7 +286,7 @@ public class NTCPConnection implements Closeable {
         _bwInRequests = new ConcurrentHashSet<Request>(2);
         _bwOutRequests = new ConcurrentHashSet<Request>(8);
         //_outbound = new CoDelPriorityBlockingQueue(ctx, "NTCP-Connection", 32);
-        _outbound = new PriBlockingQueue<OutNetMessage>(ctx, "NTCP-Connection", 32);
+        _outbound = new ClassedOutboundQueue(ctx);
         _currentOutbound = new ArrayList<OutNetMessage>(1);
         _isInbound = isIn;
         _inboundListener = new InboundListener();
@@ -297,6 +305,22 @@ public class NTCPConnection implements Closeable {
     public void setChannel(SocketChannel chan) { _chan = chan; }
     public void setKey(SelectionKey key) { _conKey = key; }
 
+    /**
+     *  The pumper our channel is registered with.
+     *  Valid for inbound; valid for outbound shortly after creation.
+     *  May change at any time after establishment.
+     *
+     *  @since 0.9.40
+     */
+    EventPumper getPumper() { return _pumper; }
+
+    /**
+     *  For EventPumper only
+     *
+     *  @since 0.9.40
+     */
+    void setPumper(EventPumper pumper) { _pumper = pumper; }
+
     public boolean isInbound() { return _isInbound; }
     public boolean isEstablished() { return _establishState.isComplete(); }
 
@@ -551,7 +575,7 @@ public class NTCPConnection implements Closeable {
         _writeBufs.clear();
         ByteBuffer bb;
         while ((bb = _readBufs.poll()) != null) {
-            EventPumper.releaseBuf(bb);
+            _pumper.releaseBuf(bb);
         }
 
         List<OutNetMessage> pending = new ArrayList<OutNetMessage>();
@@ -747,6 +771,7 @@ public class NTCPConnection implements Closeable {
                     _log.info("attempt for multiple outbound messages with " + _currentOutbound.size() + " already waiting and " + _outbound.size() + " queued");
                 return;
             }
+            _outbound.startBatch();
             while (true) {
                 msg = _outbound.poll();
                 if (msg == null)
@@ -763,7 +788,7 @@ public class NTCPConnection implements Closeable {
         bufferedPrepare(msg, buf);
         _context.aes().encrypt(buf.unencrypted, 0, buf.encrypted, 0, _sessionKey, _prevWriteEnd, 0, buf.unencryptedLength);
         System.arraycopy(buf.encrypted, buf.encrypted.length-16, _prevWriteEnd, 0, _prevWriteEnd.length);
-        _transport.getPumper().wantsWrite(this, buf.encrypted);
+        _pumper.wantsWrite(this, buf.encrypted);
 
         // for every 6-12 hours that we are connected to a peer, send them
 	// our updated netDb info (they may not accept it and instead query
@@ -835,9 +860,14 @@ public class NTCPConnection implements Closeable {
      * Prepare the next I2NP message for transmission.  This should be run from
      * the Writer thread pool.
      *
+     * If more messages are queued than fit in one frame, up to
+     * NTCP2_COALESCE_MAX bytes of additional frames are encrypted and
+     * appended, so they go through the bandwidth limiter and out
+     * the socket as a single buffer.
+     *
      * Caller must synchronize.
      *
-     * @param buf we use buf.enencrypted only
+     * @param buf we use buf.unencrypted only
      * @since 0.9.36
      */
     private void prepareNextWriteNTCP2(PrepBuffer buf) {
@@ -850,52 +880,10 @@ public class NTCPConnection implements Closeable {
                     _log.info("attempt for multiple outbound messages with " + _currentOutbound.size() + " already waiting and " + _outbound.size() + " queued");
                 return;
             }
-            OutNetMessage msg;
-            while (true) {
-                msg = _outbound.poll();
-                if (msg == null)
-                    return;
-                if (msg.getExpiration() >= now)
-                    break;
-                if (_log.shouldWarn())
-                    _log.warn("dropping message expired on queue: " + msg + " on " + this);
-                _transport.afterSend(msg, false, false, msg.getLifetime());
-            }
-            _currentOutbound.add(msg);
-            I2NPMessage m = msg.getMessage();
-            Block block = new NTCP2Payload.I2NPBlock(m);
-            blocks.add(block);
-            size += block.getTotalLength();
-            // now add more (maybe)
-            if (size < NTCP2_PREFERRED_PAYLOAD_MAX) {
-                // keep adding as long as we will be under 5 KB
-                while (true) {
-                    msg = _outbound.peek();
-                    if (msg == null)
-                        break;
-                    m = msg.getMessage();
-                    int msz = m.getMessageSize() - 7;
-                    if (size + msz > NTCP2_PREFERRED_PAYLOAD_MAX)
-                        break;
-                    OutNetMessage msg2 = _outbound.poll();
-                    if (msg2 == null)
-                        break;
-                    if (msg2 != msg) {
-                        // if it wasn't the one we sized, put it back
-                        _outbound.offer(msg2);
-                        break;
-                    }
-                    if (msg.getExpiration() >= now) {
-                        block = new NTCP2Payload.I2NPBlock(m);
-                        blocks.add(block);
-                        size += NTCP2Payload.BLOCK_HEADER_SIZE + msz;
-                    } else {
-                        if (_log.shouldWarn())
-                            _log.warn("dropping message expired on queue: " + msg + " on " + this);
-                        _transport.afterSend(msg, false, false, msg.getLifetime());
-                    }
-                }
-            }
+            _outbound.startBatch();
+            size = locked_addI2NPBlocks(blocks, size, now, Integer.MAX_VALUE);
+            if (blocks.isEmpty())
+                return;
         }
         if (_nextMetaTime <= now && size + (NTCP2Payload.BLOCK_HEADER_SIZE + 4) <= BUFFER_SIZE) {
             Block block = new NTCP2Payload.DateTimeBlock(_context);
@@ -918,6 +906,113 @@ public class NTCPConnection implements Closeable {
                     _log.debug("SENDING NTCP2 RI block");
             } // else wait until next time
         }
+        size = addPaddingBlock(blocks, size);
+        byte[] tmp = size <= BUFFER_SIZE ? buf.unencrypted : new byte[size];
+        byte[] enc = encryptNTCP2(tmp, blocks);
+        if (enc == null)
+            return;
+
+        // Coalesce more frames into the same write, as long as
+        // the messages are small enough to use the PrepBuffer.
+        List<byte[]> frames = null;
+        int total = enc.length;
+        while (total < NTCP2_COALESCE_MAX) {
+            blocks = new ArrayList<Block>(4);
+            size = OutboundNTCP2State.MAC_SIZE;
+            synchronized (_currentOutbound) {
+                // only if small enough to use the PrepBuffer
+                size = locked_addI2NPBlocks(blocks, size, now,
+                                            BUFFER_SIZE - (NTCP2Payload.BLOCK_HEADER_SIZE + OutboundNTCP2State.MAC_SIZE));
+            }
+            if (blocks.isEmpty())
+                break;
+            size = addPaddingBlock(blocks, size);
+            byte[] frame = encryptNTCP2(buf.unencrypted, blocks);
+            if (frame == null)
+                break;
+            if (frames == null) {
+                frames = new ArrayList<byte[]>(4);
+                frames.add(enc);
+            }
+            frames.add(frame);
+            total += frame.length;
+        }
+        if (frames != null) {
+            enc = new byte[total];
+            int off = 0;
+            for (byte[] frame : frames) {
+                System.arraycopy(frame, 0, enc, off, frame.length);
+                off += frame.length;
+            }
+            _context.statManager().addRateData("ntcp.coalescedFrames", frames.size());
+        }
+        _pumper.wantsWrite(this, enc);
+    }
+
+    /**
+     *  Poll messages off the outbound queue, add them to _currentOutbound,
+     *  and add an I2NP block for each to blocks.
+     *  The first one is always added, if not expired;
+     *  more are added as long as we will be under NTCP2_PREFERRED_PAYLOAD_MAX.
+     *
+     *  Caller must synch on _currentOutbound.
+     *
+     *  @param size the current frame size
+     *  @param firstMax max getMessageSize() of the first message
+     *  @return the new frame size; if nothing was added, blocks is unchanged
+     *  @since 0.9.40 split out of prepareNextWriteNTCP2()
+     */
+    private int locked_addI2NPBlocks(List<Block> blocks, int size, long now, int firstMax) {
+        OutNetMessage msg;
+        while (true) {
+            msg = _outbound.poll(firstMax);
+            if (msg == null)
+                return size;
+            if (msg.getExpiration() >= now)
+                break;
+            if (_log.shouldWarn())
+                _log.warn("dropping message expired on queue: " + msg + " on " + this);
+            _transport.afterSend(msg, false, false, msg.getLifetime());
+        }
+        _currentOutbound.add(msg);
+        I2NPMessage m = msg.getMessage();
+        Block block = new NTCP2Payload.I2NPBlock(m);
+        blocks.add(block);
+        size += block.getTotalLength();
+        // now add more (maybe)
+        if (size < NTCP2_PREFERRED_PAYLOAD_MAX) {
+            // keep adding as long as we will be under 5 KB
+            while (true) {
+                // the I2NP block is 7 bytes smaller than the full 16 byte header,
+                // and doesn't count the block header here
+                msg = _outbound.poll(NTCP2_PREFERRED_PAYLOAD_MAX - size + 7);
+                if (msg == null)
+                    break;
+                m = msg.getMessage();
+                int msz = m.getMessageSize() - 7;
+                if (msg.getExpiration() >= now) {
+                    _currentOutbound.add(msg);
+                    block = new NTCP2Payload.I2NPBlock(m);
+                    blocks.add(block);
+                    size += NTCP2Payload.BLOCK_HEADER_SIZE + msz;
+                } else {
+                    if (_log.shouldWarn())
+                        _log.warn("dropping message expired on queue: " + msg + " on " + this);
+                    _transport.afterSend(msg, false, false, msg.getLifetime());
+                }
+            }
+        }
+        return size;
+    }
+
+    /**
+     *  Add a padding block if there is room in a BUFFER_SIZE frame.
+     *
+     *  @param size the current frame size
+     *  @return the new frame size
+     *  @since 0.9.40 split out of prepareNextWriteNTCP2()
+     */
+    private int addPaddingBlock(List<Block> blocks, int size) {
         int availForPad = BUFFER_SIZE - (size + NTCP2Payload.BLOCK_HEADER_SIZE);
         if (availForPad > 0) {
             int padlen = getPaddingSize(size, availForPad);
@@ -927,8 +1022,7 @@ public class NTCPConnection implements Closeable {
             blocks.add(block);
             size += block.getTotalLength();
         }
-        byte[] tmp = size <= BUFFER_SIZE ? buf.unencrypted : new byte[size];
-        sendNTCP2(tmp, blocks);
+        return size;
     }
 
     /**
@@ -1086,10 +1180,26 @@ public class NTCPConnection implements Closeable {
      *  @since 0.9.36
      */
     private synchronized void sendNTCP2(byte[] tmp, List<Block> blocks) {
+        byte[] enc = encryptNTCP2(tmp, blocks);
+        if (enc != null)
+            _pumper.wantsWrite(this, enc);
+    }
+
+    /**
+     *  This constructs the payload from the blocks, using the
+     *  tmp byte array, then encrypts the payload into a complete frame,
+     *  including the obfuscated length.
+     *
+     *  @param tmp to be used for output of NTCP2Payload.writePayload(),
+     *         must have room for block output. May be released immediately on return.
+     *  @return the frame, or null on failure or if the sender is gone
+     *  @since 0.9.40 split out of sendNTCP2()
+     */
+    private synchronized byte[] encryptNTCP2(byte[] tmp, List<Block> blocks) {
         if (_sender == null) {
             if (_log.shouldInfo())
                 _log.info("sender gone", new Exception());
-            return;
+            return null;
         }
         int payloadlen = NTCP2Payload.writePayload(tmp, 0, blocks);
         int framelen = payloadlen + OutboundNTCP2State.MAC_SIZE;
@@ -1100,7 +1210,7 @@ public class NTCPConnection implements Closeable {
         } catch (GeneralSecurityException gse) {
             // TODO anything else?
             _log.error("data enc", gse);
-            return;
+            return null;
         }
 
         // siphash ^ len
@@ -1117,8 +1227,8 @@ public class NTCPConnection implements Closeable {
             }
             _log.debug(buf.toString());
         }
-        _transport.getPumper().wantsWrite(this, enc);
         toLong8LE(_sendSipIV, 0, sipIV);
+        return enc;
     }
     
     /** 
@@ -1141,7 +1251,7 @@ public class NTCPConnection implements Closeable {
             removeIBRequest(req);
             ByteBuffer buf = (ByteBuffer)req.attachment();
             if (_closed.get()) {
-                EventPumper.releaseBuf(buf);
+                _pumper.releaseBuf(buf);
                 return;
             }
             _context.statManager().addRateData("ntcp.throttledReadComplete", (_context.clock().now()-req.getRequestTime()));
@@ -1149,7 +1259,7 @@ public class NTCPConnection implements Closeable {
             // our reads used to be bw throttled (during which time we were no
             // longer interested in reading from the network), but we aren't
             // throttled anymore, so we should resume being interested in reading
-            _transport.getPumper().wantsRead(NTCPConnection.this);
+            _pumper.wantsRead(NTCPConnection.this);
         }
     }
 
@@ -1207,7 +1317,7 @@ public class NTCPConnection implements Closeable {
      * The contents of the buffer have been read and can be processed asap.
      * This should not block, and the NTCP connection now owns the buffer
      * to do with as it pleases BUT it should eventually copy out the data
-     * and call EventPumper.releaseBuf().
+     * and call getPumper().releaseBuf().
      */
     void recv(ByteBuffer buf) {
         if (isClosed()) {
@@ -1229,7 +1339,7 @@ public class NTCPConnection implements Closeable {
      */
     void write(ByteBuffer buf) {
         _writeBufs.offer(buf);
-        _transport.getPumper().wantsWrite(this);
+        _pumper.wantsWrite(this);
     }
     
     /** @return null if none available */
@@ -1249,6 +1359,25 @@ public class NTCPConnection implements Closeable {
     ByteBuffer getNextWriteBuf() {
         return _writeBufs.peek(); // not remove!  we removeWriteBuf afterwards
     }
+
+    /**
+     *  Fill in the buffers at the head of the write queue, oldest first,
+     *  for a gathering write. Not removed!  We removeWriteBuf afterwards.
+     *  Unused array elements are not modified.
+     *
+     *  @param bufs out parameter
+     *  @return the number of buffers filled in, 0 if none available
+     *  @since 0.9.40
+     */
+    int getNextWriteBufs(ByteBuffer[] bufs) {
+        int rv = 0;
+        for (ByteBuffer buf : _writeBufs) {
+            bufs[rv++] = buf;
+            if (rv >= bufs.length)
+                break;
+        }
+        return rv;
+    }
     
     /**
      *  Remove the buffer, which _should_ be the one at the head of _writeBufs
@@ -1349,7 +1478,7 @@ public class NTCPConnection implements Closeable {
      *
      * The NTCP connection now owns the buffer
      * BUT it must copy out the data
-     * as reader will call EventPumper.releaseBuf().
+     * as reader will call getPumper().releaseBuf().
      *
      * This is the entry point as called from Reader.processRead()
      */
@@ -1444,7 +1573,7 @@ public class NTCPConnection implements Closeable {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Sending NTCP metadata");
         _sendingMeta = true;
-        _transport.getPumper().wantsWrite(this, data);
+        _pumper.wantsWrite(this, data);
     }
     
     private static final int MAX_HANDLERS = 4;
@@ -1566,7 +1695,7 @@ public class NTCPConnection implements Closeable {
          *
          * The NTCP connection now owns the buffer
          * BUT it must copy out the data
-         * as reader will call EventPumper.releaseBuf().
+         * as reader will call getPumper().releaseBuf().
          *
          * @since 0.9.36 moved from parent class
          */
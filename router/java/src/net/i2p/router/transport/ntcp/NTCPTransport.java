@@ -30,6 +30,7 @@ import net.i2p.crypto.EncType;
 import net.i2p.crypto.KeyPair;
 import net.i2p.crypto.SigType;
 import net.i2p.data.Base64;
+import net.i2p.data.ByteArray;
 import net.i2p.data.DataFormatException;
 import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
@@ -58,6 +59,7 @@ import net.i2p.router.util.EventLog;
 import net.i2p.util.Addresses;
 import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.Log;
+import net.i2p.util.ObjectCounter;
 import net.i2p.util.OrderedProperties;
 import net.i2p.util.SystemVersion;
 import net.i2p.util.VersionComparator;
@@ -76,7 +78,8 @@ public class NTCPTransport extends TransportImpl {
     private final SharedBid _transientFail;
     private final Object _conLock;
     private final ConcurrentHashMap<Hash, NTCPConnection> _conByIdent;
-    private final EventPumper _pumper;
+    /** at least one, pumper 0 does the accepts */
+    private final EventPumper[] _pumpers;
     private final Reader _reader;
     private net.i2p.router.transport.ntcp.Writer _writer;
     private int _ssuPort;
@@ -112,6 +115,16 @@ public class NTCPTransport extends TransportImpl {
     /** this is rarely if ever used, default is to bind to wildcard address */
     public static final String PROP_BIND_INTERFACE = "i2np.ntcp.bindInterface";
 
+    /**
+     *  Number of NIO selector threads. Default 1.
+     *  0 to pick a number based on the number of cores.
+     *  Takes effect at restart.
+     *  @since 0.9.40
+     */
+    public static final String PROP_PUMPERS = "i2np.ntcp.pumpers";
+    private static final int DEFAULT_PUMPERS = 1;
+    private static final int MAX_PUMPERS = 8;
+
     private final NTCPSendFinisher _finisher;
     private final DHSessionKeyBuilder.Factory _dhFactory;
     private final X25519KeyFactory _xdhFactory;
@@ -178,6 +191,7 @@ public class NTCPTransport extends TransportImpl {
         _context.statManager().createRateStat("ntcp.connectFailedUnresolved", "", "ntcp", RATES);
         //_context.statManager().createRateStat("ntcp.connectImmediate", "", "ntcp", RATES);
         _context.statManager().createRateStat("ntcp.connectSuccessful", "", "ntcp", RATES);
+        _context.statManager().createRateStat("ntcp.coalescedFrames", "Frames combined into one write", "ntcp", RATES);
         _context.statManager().createRateStat("ntcp.corruptDecryptedI2NP", "", "ntcp", RATES);
         _context.statManager().createRateStat("ntcp.corruptI2NPCRC", "", "ntcp", RATES);
         _context.statManager().createRateStat("ntcp.corruptI2NPIME", "", "ntcp", RATES);
@@ -229,7 +243,15 @@ public class NTCPTransport extends TransportImpl {
 
         _finisher = new NTCPSendFinisher(ctx, this);
 
-        _pumper = new EventPumper(ctx, this);
+        int pumpers = ctx.getProperty(PROP_PUMPERS, DEFAULT_PUMPERS);
+        if (pumpers <= 0)
+            pumpers = Math.max(1, SystemVersion.getCores() / 2);
+        pumpers = Math.min(pumpers, MAX_PUMPERS);
+        _pumpers = new EventPumper[pumpers];
+        ObjectCounter<ByteArray> blockedIPs = new ObjectCounter<ByteArray>();
+        for (int i = 0; i < pumpers; i++) {
+            _pumpers[i] = new EventPumper(ctx, this, i, pumpers, blockedIPs);
+        }
         _reader = new Reader(ctx);
         _writer = new net.i2p.router.transport.ntcp.Writer(ctx);
 
@@ -434,7 +456,7 @@ public class NTCPTransport extends TransportImpl {
                     SocketChannel channel = SocketChannel.open();
                     con.setChannel(channel);
                     channel.configureBlocking(false);
-                    _pumper.registerConnect(con);
+                    selectPumper().registerConnect(con);
                     con.getEstablishState().prepareOutbound();
                 } catch (IOException ioe) {
                     if (_log.shouldLog(Log.ERROR))
@@ -841,7 +863,7 @@ public class NTCPTransport extends TransportImpl {
      */
     public synchronized void startListening() {
         // try once again to prevent two pumpers which is fatal
-        if (_pumper.isAlive())
+        if (isAlive())
             return;
         if (_log.shouldLog(Log.WARN)) _log.warn("Starting NTCP transport listening");
 
@@ -933,7 +955,9 @@ public class NTCPTransport extends TransportImpl {
      */
     private void startIt() {
         _finisher.start();
-        _pumper.startPumping();
+        for (int i = 0; i < _pumpers.length; i++) {
+            _pumpers[i].startPumping();
+        }
 
         long maxMemory = SystemVersion.getMaxMemory();
         int nr, nw;
@@ -950,7 +974,11 @@ public class NTCPTransport extends TransportImpl {
     }
 
     public boolean isAlive() {
-        return _pumper.isAlive();
+        for (int i = 0; i < _pumpers.length; i++) {
+            if (_pumpers[i].isAlive())
+                return true;
+        }
+        return false;
     }
 
     /**
@@ -1028,7 +1056,7 @@ public class NTCPTransport extends TransportImpl {
                 _endpoints.add(addr);
                 if (_log.shouldLog(Log.INFO))
                     _log.info("Listening on " + addr);
-                _pumper.register(chan);
+                _pumpers[0].register(chan);
             } catch (IOException ioe) {
                 _log.error("Error listening", ioe);
                 myAddress = null;
@@ -1110,9 +1138,26 @@ public class NTCPTransport extends TransportImpl {
     }
 
     /**
-     *  Hook for NTCPConnection
+     *  Pick the least-loaded pumper for a new connection,
+     *  or as a target for connections moved from a busy one.
+     *  NTCPConnections should use con.getPumper() instead.
+     *
+     *  @since 0.9.40 replaces getPumper()
      */
-    EventPumper getPumper() { return _pumper; }
+    EventPumper selectPumper() {
+        if (_pumpers.length == 1)
+            return _pumpers[0];
+        EventPumper rv = _pumpers[0];
+        float min = rv.getLoad();
+        for (int i = 1; i < _pumpers.length; i++) {
+            float load = _pumpers[i].getLoad();
+            if (load < min) {
+                min = load;
+                rv = _pumpers[i];
+            }
+        }
+        return rv;
+    }
 
     /**
      *  @return null if not configured for NTCP1
@@ -1841,7 +1886,9 @@ public class NTCPTransport extends TransportImpl {
      */
     public synchronized void stopListening() {
         if (_log.shouldLog(Log.WARN)) _log.warn("Stopping ntcp transport");
-        _pumper.stopPumping();
+        for (int i = 0; i < _pumpers.length; i++) {
+            _pumpers[i].stopPumping();
+        }
         _writer.stopWriting();
         _reader.stopReading();
         _finisher.stop();
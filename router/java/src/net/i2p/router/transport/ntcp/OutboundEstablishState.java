@@ -188,7 +188,7 @@ class OutboundEstablishState extends EstablishBase {
                                    _hX_xor_bobIdentHash, _hX_xor_bobIdentHash.length-AES_SIZE, preEncrypt.length);
 
             changeState(State.OB_SENT_RI);
-            _transport.getPumper().wantsWrite(_con, _prevEncrypted);
+            _con.getPumper().wantsWrite(_con, _prevEncrypted);
         }
 
         // Read in message #4
@@ -298,7 +298,7 @@ class OutboundEstablishState extends EstablishBase {
             System.arraycopy(_X, 0, toWrite, 0, XY_SIZE);
             System.arraycopy(_hX_xor_bobIdentHash, 0, toWrite, XY_SIZE, _hX_xor_bobIdentHash.length);
             changeState(State.OB_SENT_X);
-            _transport.getPumper().wantsWrite(_con, toWrite);
+            _con.getPumper().wantsWrite(_con, toWrite);
         } else {
             throw new IllegalStateException(prefix() + "unexpected prepareOutbound()");
         }
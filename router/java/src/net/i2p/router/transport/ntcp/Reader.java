@@ -7,30 +7,67 @@ import java.util.Iterator;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 import net.i2p.router.RouterContext;
 import net.i2p.util.I2PThread;
 import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
 
 /**
  * Pool of running threads which will process any read bytes on any of the 
  * NTCPConnections, including the decryption of the data read, connection
  * handshaking, parsing bytes into I2NP messages, etc.
  *
+ * As of 0.9.40, there may also be a separate, smaller set of threads
+ * that only process connections that are not yet established,
+ * so that a burst of handshakes (with their DH and signature work)
+ * does not stall reads on established connections.
+ * The handshake queue is bounded by having the EventPumper
+ * stop accepting while it is backlogged.
+ * A connection is still only processed by one thread at a time.
+ * The two sets of threads wait on separate conditions of one lock,
+ * so that each new connection wakes up only one thread of the right kind.
+ *
  */
 class Reader {
     private final RouterContext _context;
     private final Log _log;
+    /** protects all the sets below and _handshakeThreads */
+    private final ReentrantLock _lock;
+    /** @since 0.9.40 */
+    private final Condition _readerWait;
+    /** @since 0.9.40 */
+    private final Condition _handshakeWait;
     // TODO change to LBQ ??
     private final Set<NTCPConnection> _pendingConnections;
+    /** @since 0.9.40 */
+    private final Set<NTCPConnection> _pendingHandshakes;
     private final Set<NTCPConnection> _liveReads;
     private final Set<NTCPConnection> _readAfterLive;
     private final List<Runner> _runners;
+    private final int _maxHandshakeQueue;
+    /** 0 if handshakes are processed by the regular readers */
+    private int _handshakeThreads;
+
+    /** number of handshake threads, 0 to process handshakes in the regular readers */
+    public static final String PROP_HANDSHAKE_THREADS = "i2np.ntcp.handshakeThreads";
+    /** max connections waiting for a handshake thread before we stop accepting */
+    public static final String PROP_HANDSHAKE_QUEUE = "i2np.ntcp.handshakeQueue";
+    private static final int DEFAULT_HANDSHAKE_QUEUE = 128;
+    private static final int MAX_HANDSHAKE_THREADS = 8;
     
     public Reader(RouterContext ctx) {
         _context = ctx;
         _log = ctx.logManager().getLog(getClass());
+        _lock = new ReentrantLock();
+        _readerWait = _lock.newCondition();
+        _handshakeWait = _lock.newCondition();
         _pendingConnections = new LinkedHashSet<NTCPConnection>(16);
+        _pendingHandshakes = new LinkedHashSet<NTCPConnection>(16);
+        _maxHandshakeQueue = Math.max(1, ctx.getProperty(PROP_HANDSHAKE_QUEUE, DEFAULT_HANDSHAKE_QUEUE));
+        ctx.statManager().createRateStat("ntcp.handshakeQueue", "Connections waiting for a handshake thread", "ntcp", new long[] { 60*1000, 10*60*1000 });
         _runners = new ArrayList<Runner>(8);
         _liveReads = new HashSet<NTCPConnection>(8);
         _readAfterLive = new HashSet<NTCPConnection>(8);
@@ -38,11 +75,25 @@ class Reader {
     
     public synchronized void startReading(int numReaders) {
         for (int i = 1; i <= numReaders; i++) {
-            Runner r = new Runner();
+            Runner r = new Runner(false);
             I2PThread t = new I2PThread(r, "NTCP reader " + i + '/' + numReaders, true);
             _runners.add(r);
             t.start();
         }
+        int defaultHS = SystemVersion.getCores() >= 4 ? 2 : 1;
+        int numHS = Math.min(MAX_HANDSHAKE_THREADS, _context.getProperty(PROP_HANDSHAKE_THREADS, defaultHS));
+        for (int i = 1; i <= numHS; i++) {
+            Runner r = new Runner(true);
+            I2PThread t = new I2PThread(r, "NTCP handshake " + i + '/' + numHS, true);
+            _runners.add(r);
+            t.start();
+        }
+        _lock.lock();
+        try {
+            _handshakeThreads = Math.max(0, numHS);
+        } finally {
+            _lock.unlock();
+        }
     }
 
     public synchronized void stopReading() {
@@ -50,41 +101,102 @@ class Reader {
             Runner r = _runners.remove(0);
             r.stop();
         }
-        synchronized (_pendingConnections) {
+        _lock.lock();
+        try {
+            _handshakeThreads = 0;
             _readAfterLive.clear();
-            _pendingConnections.notifyAll();
+            // hand anything left back to the regular readers on restart
+            _pendingConnections.addAll(_pendingHandshakes);
+            _pendingHandshakes.clear();
+            // wake everybody up to see the stop
+            _readerWait.signalAll();
+            _handshakeWait.signalAll();
+        } finally {
+            _lock.unlock();
         }
     }
     
     public void wantsRead(NTCPConnection con) {
         boolean already = false;
-        synchronized (_pendingConnections) {
+        int hsQueue = 0;
+        boolean established = con.isEstablished();
+        _lock.lock();
+        try {
             if (_liveReads.contains(con)) {
+                // the thread reading it will go around again
                 _readAfterLive.add(con);
                 already = true;
+            } else if (_handshakeThreads > 0 && !established) {
+                if (_pendingHandshakes.add(con))
+                    _handshakeWait.signal();
+                hsQueue = _pendingHandshakes.size();
             } else {
-                _pendingConnections.add(con);
-                // only notify here if added?
+                if (_pendingConnections.add(con))
+                    _readerWait.signal();
             }
-            _pendingConnections.notify();
+        } finally {
+            _lock.unlock();
         }
+        if (hsQueue > 0)
+            _context.statManager().addRateData("ntcp.handshakeQueue", hsQueue);
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("wantsRead: " + con + " already live? " + already);
     }
 
+    /**
+     *  Should the EventPumper stop accepting for now?
+     *  Always false if there are no handshake threads.
+     *
+     *  @since 0.9.40
+     */
+    public boolean isHandshakeBacklogged() {
+        _lock.lock();
+        try {
+            return _pendingHandshakes.size() >= _maxHandshakeQueue;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     *  Has the backlog cleared enough that the EventPumper may accept again?
+     *  Half the max, so we don't flap.
+     *
+     *  @since 0.9.40
+     */
+    public boolean isHandshakeBacklogCleared() {
+        _lock.lock();
+        try {
+            return _pendingHandshakes.size() <= _maxHandshakeQueue / 2;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
     public void connectionClosed(NTCPConnection con) {
-        synchronized (_pendingConnections) {
+        _lock.lock();
+        try {
             _readAfterLive.remove(con);
             _pendingConnections.remove(con);
-            // necessary?
-            _pendingConnections.notify();
+            _pendingHandshakes.remove(con);
+            // nothing new to read, so no need to wake anybody up
+        } finally {
+            _lock.unlock();
         }
     }
     
     private class Runner implements Runnable {
         private volatile boolean _stop;
+        private final Set<NTCPConnection> _pending;
+        private final Condition _wait;
 
-        public Runner() {}
+        /**
+         *  @param handshakes take only unestablished connections
+         */
+        public Runner(boolean handshakes) {
+            _pending = handshakes ? _pendingHandshakes : _pendingConnections;
+            _wait = handshakes ? _handshakeWait : _readerWait;
+        }
 
         public void stop() { _stop = true; }
 
@@ -92,27 +204,29 @@ class Reader {
             if (_log.shouldLog(Log.INFO)) _log.info("Starting reader");
             NTCPConnection con = null;
             while (!_stop) {
+                _lock.lock();
                 try {
-                    synchronized (_pendingConnections) {
-                        boolean keepReading = (con != null) && _readAfterLive.remove(con);
-                        if (keepReading) {
-                            // keep on reading the same one
+                    boolean keepReading = (con != null) && _readAfterLive.remove(con);
+                    if (keepReading) {
+                        // keep on reading the same one
+                    } else {
+                        if (con != null) {
+                            _liveReads.remove(con);
+                            con = null;
+                        }
+                        if (_pending.isEmpty()) {
+                            _wait.await();
                         } else {
-                            if (con != null) {
-                                _liveReads.remove(con);
-                                con = null;
-                            }
-                            if (_pendingConnections.isEmpty()) {
-                                _pendingConnections.wait();
-                            } else {
-                                Iterator<NTCPConnection> iter = _pendingConnections.iterator();
-                                con = iter.next();
-                                iter.remove();
-                                _liveReads.add(con);
-                            }
+                            Iterator<NTCPConnection> iter = _pending.iterator();
+                            con = iter.next();
+                            iter.remove();
+                            _liveReads.add(con);
                         }
                     }
-                } catch (InterruptedException ie) {}
+                } catch (InterruptedException ie) {
+                } finally {
+                    _lock.unlock();
+                }
                 if (!_stop && (con != null) ) {
                     if (_log.shouldLog(Log.DEBUG))
                         _log.debug("begin read for " + con);
@@ -154,12 +268,12 @@ class Reader {
                 // why is it complete yet !con.isEstablished?
                 _log.error("establishment state [" + est + "] is complete, yet the connection isn't established? " 
                         + con.isEstablished() + " (inbound? " + con.isInbound() + " " + con + ")");
-                EventPumper.releaseBuf(buf);
+                con.getPumper().releaseBuf(buf);
                 break;
             }
             // FIXME call est.isCorrupt() before also? throws ISE here... see above
             est.receive(buf);
-            EventPumper.releaseBuf(buf);
+            con.getPumper().releaseBuf(buf);
             if (est.isCorrupt()) {
                 con.close();
                 return;
@@ -169,7 +283,7 @@ class Reader {
         while (!con.isClosed() && (buf = con.getNextReadBuf()) != null) {
             // decrypt the data and push it into an i2np message
             con.recvEncryptedI2NP(buf);
-            EventPumper.releaseBuf(buf);
+            con.getPumper().releaseBuf(buf);
         }
     }
 }
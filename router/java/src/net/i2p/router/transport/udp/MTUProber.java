@@ -0,0 +1,100 @@
+package net.i2p.router.transport.udp;
+
+import net.i2p.data.i2np.DeliveryStatusMessage;
+import net.i2p.data.i2np.I2NPMessage;
+import net.i2p.router.RouterContext;
+import net.i2p.util.Log;
+import net.i2p.util.SimpleTimer2;
+
+/**
+ *  Active path MTU probing, in the spirit of DPLPMTUD (RFC 8899).
+ *
+ *  Periodically asks each PeerState if it wants a probe, and if so
+ *  sends a tiny DeliveryStatusMessage in a data packet padded
+ *  to the size being probed. The peer acks the message like any
+ *  other, and PeerState recognizes the ack and updates its MTUSearch.
+ *  Lost probes are timed out by PeerState on the next pass.
+ *
+ *  The padding is after the fragment, where it is ignored by the
+ *  receiver, so this works with all existing peers.
+ *
+ *  @since 0.9.40
+ */
+class MTUProber extends SimpleTimer2.TimedEvent {
+    private final RouterContext _context;
+    private final Log _log;
+    private final UDPTransport _transport;
+    private final PacketBuilder _builder;
+    private volatile boolean _alive;
+
+    /** enable active probing, default false */
+    public static final String PROP_MTU_PROBING = "i2np.udp.mtuProbing";
+    public static final boolean DEFAULT_MTU_PROBING = false;
+    private static final long LOOP_TIME = 1000;
+    private static final long PROBE_EXPIRATION = 10*1000;
+
+    public MTUProber(RouterContext ctx, UDPTransport transport) {
+        super(ctx.simpleTimer2());
+        _context = ctx;
+        _log = ctx.logManager().getLog(MTUProber.class);
+        _transport = transport;
+        _builder = new PacketBuilder(ctx, transport);
+        _context.statManager().createRateStat("udp.mtuProbe", "Size of path MTU probes sent", "udp", UDPTransport.RATES);
+        _context.statManager().createRateStat("udp.mtuProbeLost", "Size of path MTU probes not acked in time", "udp", UDPTransport.RATES);
+        _context.statManager().createRateStat("udp.mtuProbeResult", "Path MTU found when a probe search completes", "udp", UDPTransport.RATES);
+    }
+
+    public static boolean isEnabled(RouterContext ctx) {
+        return ctx.getProperty(PROP_MTU_PROBING, DEFAULT_MTU_PROBING);
+    }
+
+    public void timeReached() {
+        if (!_alive)
+            return;
+        long now = _context.clock().now();
+        for (PeerState peer : _transport.getPeers()) {
+            int size = peer.getMTUProbeSize(now);
+            if (size > 0)
+                probe(peer, size, now);
+        }
+        if (_alive)
+            schedule(LOOP_TIME);
+    }
+
+    private void probe(PeerState peer, int size, long now) {
+        DeliveryStatusMessage dsm = new DeliveryStatusMessage(_context);
+        // See InNetMessagePool, a small arrival is dropped at the far end without a warning,
+        // same as the one sent by EstablishmentManager
+        dsm.setArrival(_context.router().getNetworkID());
+        dsm.setMessageExpiration(now + PROBE_EXPIRATION);
+        dsm.setMessageId(_context.random().nextLong(I2NPMessage.MAX_ID_VALUE));
+        UDPPacket packet;
+        OutboundMessageState state;
+        try {
+            state = new OutboundMessageState(_context, dsm, peer);
+            packet = _builder.buildMTUProbe(state, peer, size);
+        } catch (IllegalArgumentException iae) {
+            packet = null;
+            state = null;
+        }
+        if (packet == null) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Unable to build MTU probe of size " + size + " to " + peer);
+            peer.mtuProbeNotSent(size, now);
+            return;
+        }
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("Sending MTU probe of size " + size + " to " + peer);
+        peer.mtuProbeSent(state.getMessageId(), size, now);
+        _context.statManager().addRateData("udp.mtuProbe", size);
+        _transport.send(packet);
+    }
+
+    public void setIsAlive(boolean isAlive) {
+        _alive = isAlive;
+        if (isAlive)
+            reschedule(LOOP_TIME);
+        else
+            cancel();
+    }
+}
@@ -0,0 +1,178 @@
+package net.i2p.router.transport.udp;
+
+/**
+ *  The search state for packetization layer path MTU discovery
+ *  on a single peer path, in the spirit of DPLPMTUD (RFC 8899).
+ *
+ *  We start from a size known to work and probe upward with
+ *  padded packets. A size is confirmed when the probe is acked.
+ *  Since a lost probe may simply be loss, a size is only
+ *  marked as too big after MAX_PROBES consecutive failures.
+ *  The search is a bisection between the largest confirmed size
+ *  and the smallest failed size, trying the max (and any hint
+ *  from the peer profile) first, since most paths support it.
+ *
+ *  Sizes are IP MTUs, aligned so that the UDP payload
+ *  stays a multiple of 16 bytes.
+ *
+ *  Not thread safe, caller must synch (PeerState does).
+ *
+ *  @since 0.9.40
+ */
+class MTUSearch {
+    private final int _min;
+    private final int _alignMod;
+    private int _max;
+    /** largest size known to work */
+    private int _confirmed;
+    /** smallest size known not to work, or more than max if none */
+    private int _ceiling;
+    /** try this one first if in range, 0 if none */
+    private int _hint;
+    /** size being probed, 0 if none */
+    private int _probing;
+    /** consecutive failures at _probing */
+    private int _failures;
+
+    /** consecutive losses before we decide a size is too big */
+    static final int MAX_PROBES = 3;
+    private static final int ALIGN = 16;
+
+    /**
+     *  @param min the starting size, assumed to work
+     *  @param max the largest size to try
+     *  @param hint a previous result to try first, or 0
+     */
+    public MTUSearch(int min, int max, int hint) {
+        _min = min;
+        _alignMod = min % ALIGN;
+        _confirmed = min;
+        _max = Math.max(min, align(max));
+        _ceiling = _max + ALIGN;
+        _hint = hint;
+    }
+
+    /**
+     *  Round down to a valid size
+     */
+    private int align(int size) {
+        return size - (((size - _alignMod) % ALIGN) + ALIGN) % ALIGN;
+    }
+
+    /**
+     *  The next size to probe. If a probe is already outstanding,
+     *  returns that size again.
+     *
+     *  @return size, or 0 if the search is complete
+     */
+    public int nextProbeSize() {
+        if (_probing > 0)
+            return _probing;
+        int rv = 0;
+        if (_hint > _confirmed && _hint < _ceiling) {
+            rv = align(_hint);
+            _hint = 0;
+            if (rv <= _confirmed)
+                rv = 0;
+        }
+        if (rv == 0) {
+            if (_ceiling > _max)
+                rv = _max;
+            else
+                rv = align((_confirmed + _ceiling) / 2);
+        }
+        if (rv <= _confirmed || rv >= _ceiling)
+            return 0;
+        _probing = rv;
+        return rv;
+    }
+
+    /**
+     *  The probe of this size was acked.
+     */
+    public void probeSucceeded(int size) {
+        if (size > _confirmed) {
+            _confirmed = size;
+            if (_confirmed >= _ceiling)
+                _ceiling = _max + ALIGN;
+        }
+        if (size == _probing) {
+            _probing = 0;
+            _failures = 0;
+        }
+    }
+
+    /**
+     *  The probe of this size was not acked in time.
+     */
+    public void probeFailed(int size) {
+        if (size != _probing)
+            return;
+        if (++_failures >= MAX_PROBES) {
+            if (size < _ceiling)
+                _ceiling = size;
+            _probing = 0;
+            _failures = 0;
+        }
+    }
+
+    /**
+     *  The peer told us its MTU, don't search above it.
+     */
+    public void setMax(int max) {
+        max = Math.max(_min, align(max));
+        if (max >= _max)
+            return;
+        _max = max;
+        if (_confirmed > max)
+            _confirmed = max;
+        if (_ceiling > max)
+            _ceiling = max + ALIGN;
+        if (_probing > max) {
+            _probing = 0;
+            _failures = 0;
+        }
+    }
+
+    /**
+     *  Something on the path changed (black hole detected by loss).
+     *  Start over from the min, but try the previously confirmed size first.
+     */
+    public void restart() {
+        if (_confirmed > _min)
+            _hint = _confirmed;
+        _confirmed = _min;
+        _ceiling = _max + ALIGN;
+        _probing = 0;
+        _failures = 0;
+    }
+
+    /**
+     *  Time to look for an increase again (PMTU_RAISE_TIMER).
+     *  Keep the confirmed size, but forget the failures.
+     */
+    public void reopen() {
+        _ceiling = _max + ALIGN;
+        _probing = 0;
+        _failures = 0;
+    }
+
+    /** the largest size known to work */
+    public int getConfirmed() { return _confirmed; }
+
+    /** @return true if there is nothing left to probe */
+    public boolean isComplete() {
+        if (_probing > 0)
+            return false;
+        if (_hint > _confirmed && _hint < _ceiling)
+            return false;
+        if (_ceiling > _max)
+            return _confirmed >= _max;
+        return align((_confirmed + _ceiling) / 2) <= _confirmed;
+    }
+
+    @Override
+    public String toString() {
+        return "MTU search " + _confirmed + '-' + _ceiling + " probing " + _probing + " failures " + _failures;
+    }
+}
@@ -4,10 +4,13 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
@@ -15,8 +18,8 @@ import net.i2p.data.router.RouterInfo;
 import net.i2p.router.OutNetMessage;
 import net.i2p.router.RouterContext;
 import net.i2p.router.transport.udp.PacketBuilder.Fragment;
-import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
 
 /**
  * Coordinate the outbound fragments and select the next one to be built.
@@ -29,6 +32,12 @@ import net.i2p.util.Log;
  * {@link InboundMessageFragments}, signaling that we can stop sending a
  * message.
  *
+ * As of 0.9.40, active peers are no longer scanned round-robin.
+ * Each peer is scheduled in a priority queue on its next send or retransmit
+ * deadline, and {@link #getNextVolley(int)} only looks at peers that are due.
+ * Peers are split by hash into one or more shards, each with its own queue
+ * and its own PacketPusher thread, so a peer is only ever handled by one pusher.
+ *
  */
 class OutboundMessageFragments {
     private final RouterContext _context;
@@ -37,19 +46,11 @@ class OutboundMessageFragments {
     // private ActiveThrottle _throttle; // LINT not used ??
 
     /**
-     *  Peers we are actively sending messages to.
-     *  We use the iterator so we treat it like a list,
-     *  but we use a HashSet so remove() is fast and
-     *  we don't need to do contains().
-     *  Even though most (but NOT all) accesses are synchronized,
-     *  we use a ConcurrentHashSet as the iterator is long-lived.
+     *  Peers we are actively sending messages to,
+     *  split by peer hash, one per PacketPusher thread.
      */
-    private final Set<PeerState> _activePeers;
-
-    /**
-     *  The long-lived iterator over _activePeers.
-     */
-    private Iterator<PeerState> _iterator;
+    private final Shard[] _shards;
+    private final AtomicInteger _activePeerCount = new AtomicInteger();
 
     private volatile boolean _alive;
     private final PacketBuilder _builder;
@@ -62,13 +63,30 @@ class OutboundMessageFragments {
     // don't send a packet more than 10 times
     static final int MAX_VOLLEYS = 10;
     private static final int MAX_WAIT = 1000;
+    /** don't reschedule a peer that has nothing ready sooner than this */
+    private static final int MIN_WAIT = 10;
+
+    /**
+     *  Number of PacketPusher threads and peer shards. 0 or less for auto.
+     *  @since 0.9.40
+     */
+    public static final String PROP_PUSHERS = "i2np.udp.pushers";
+    private static final int DEFAULT_PUSHERS = 1;
+    private static final int MAX_PUSHERS = 4;
 
     public OutboundMessageFragments(RouterContext ctx, UDPTransport transport, ActiveThrottle throttle) {
         _context = ctx;
         _log = ctx.logManager().getLog(OutboundMessageFragments.class);
         _transport = transport;
         // _throttle = throttle;
-        _activePeers = new ConcurrentHashSet<PeerState>(256);
+        int count = ctx.getProperty(PROP_PUSHERS, DEFAULT_PUSHERS);
+        if (count <= 0)
+            count = SystemVersion.getCores() / 4;
+        count = Math.max(1, Math.min(MAX_PUSHERS, count));
+        _shards = new Shard[count];
+        for (int i = 0; i < count; i++) {
+            _shards[i] = new Shard();
+        }
         _builder = new PacketBuilder(ctx, transport);
         _alive = true;
         // _allowExcess = false;
@@ -97,17 +115,35 @@ class OutboundMessageFragments {
 
     public synchronized void shutdown() {
         _alive = false;
-        _activePeers.clear();
-        synchronized (_activePeers) {
-            _activePeers.notify();
+        for (int i = 0; i < _shards.length; i++) {
+            _shards[i].clear();
         }
     }
 
+    /**
+     *  The number of PacketPusher threads to start,
+     *  and the number of valid arguments to getNextVolley()
+     *
+     *  @since 0.9.40
+     */
+    public int getShardCount() {
+        return _shards.length;
+    }
+
+    /**
+     *  @since 0.9.40
+     */
+    private Shard getShard(PeerState peer) {
+        if (_shards.length == 1)
+            return _shards[0];
+        return _shards[(peer.getRemotePeer().hashCode() & 0x7fffffff) % _shards.length];
+    }
+
     void dropPeer(PeerState peer) {
         if (_log.shouldLog(Log.INFO))
             _log.info("Dropping peer " + peer.getRemotePeer());
         peer.dropOutbound();
-        _activePeers.remove(peer);
+        getShard(peer).remove(peer);
     }
 
     /**
@@ -206,16 +242,20 @@ class OutboundMessageFragments {
      * Add the peer to the list of peers wanting to transmit something.
      * This wakes up the packet pusher if it is sleeping.
      *
-     * Avoid synchronization where possible.
-     * There are small chances of races.
-     * There are larger chances of adding the PeerState "behind" where
-     * the iterator is now... but these issues are the same as before concurrentification.
+     * As of 0.9.40, schedules the peer to be looked at now,
+     * if new, or if size is 0 or fits in the send window.
+     * Otherwise, leaves the existing deadline alone.
      *
      * @param size the minimum size we can send, or 0 to always notify
      * @since 0.8.9
      */
     public void add(PeerState peer, int size) {
-        boolean added = _activePeers.add(peer);
+        Shard shard = getShard(peer);
+        boolean added;
+        if (size <= 0 || peer.getSendWindowBytesRemaining() >= size)
+            added = shard.schedule(peer, _context.clock().now());
+        else
+            added = shard.scheduleIfAbsent(peer, _context.clock().now());
         if (added) {
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("Add a new message to a new peer " + peer.getRemotePeer());
@@ -223,17 +263,7 @@ class OutboundMessageFragments {
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("Add a new message to an existing peer " + peer.getRemotePeer());
         }
-        _context.statManager().addRateData("udp.outboundActivePeers", _activePeers.size());
-
-        // Avoid sync if possible
-        // no, this doesn't always work.
-        // Also note that the iterator in getNextVolley may have alreay passed us,
-        // or not reflect the addition.
-        if (added || size <= 0 || peer.getSendWindowBytesRemaining() >= size) {
-            synchronized (_activePeers) {
-                _activePeers.notify();
-            }
-        }
+        _context.statManager().addRateData("udp.outboundActivePeers", _activePeerCount.get());
     }
 
     /**
@@ -261,113 +291,48 @@ class OutboundMessageFragments {
      * Fetch all the packets for a message volley, blocking until there is a
      * message which can be fully transmitted (or the transport is shut down).
      *
-     * NOT thread-safe. Called by the PacketPusher thread only.
+     * As of 0.9.40, only looks at peers that are due, in deadline order.
+     * A peer with nothing ready is rescheduled for its next send or retransmit time,
+     * no more than MAX_WAIT in the future so finishMessages() gets called regularly.
      *
+     * NOT thread-safe per-shard. Called by a single PacketPusher thread for each shard.
+     *
+     * @param shard 0 to getShardCount() - 1
      * @return null only on shutdown
+     * @since 0.9.40 was getNextVolley()
      */
-    public List<UDPPacket> getNextVolley() {
-        PeerState peer = null;
-        List<OutboundMessageState> states = null;
-        // Keep track of how many we've looked at, since we don't start the iterator at the beginning.
-        int peersProcessed = 0;
-        while (_alive && (states == null) ) {
-            int nextSendDelay = Integer.MAX_VALUE;
-            // no, not every time - O(n**2) - do just before waiting below
-            //finishMessages();
-
-                    // do we need a new long-lived iterator?
-                    if (_iterator == null ||
-                        ((!_activePeers.isEmpty()) && (!_iterator.hasNext()))) {
-                        _iterator = _activePeers.iterator();
-                    }
-
-                    // Go through all the peers that we are actively sending messages to.
-                    // Call finishMessages() for each one, and remove them from the iterator
-                    // if there is nothing left to send.
-                    // Otherwise, return the volley to be sent.
-                    // Otherwise, wait()
-                    long now = _context.clock().now();
-                    while (_iterator.hasNext()) {
-                        peer = _iterator.next();
-                        int remaining = peer.finishMessages(now);
-                        if (remaining <= 0) {
-                            // race with add()
-                            _iterator.remove();
-                            if (_log.shouldLog(Log.DEBUG))
-                                _log.debug("No more pending messages for " + peer.getRemotePeer());
-                            continue;
-                        }
-                        peersProcessed++;
-                        states = peer.allocateSend();
-                        if (states != null) {
-                            // we have something to send and we will be returning it
-                            break;
-                        } else if (peersProcessed >= _activePeers.size()) {
-                            // we've gone all the way around, time to sleep
-                            break;
-                        } else {
-                            // Update the minimum delay for all peers
-                            // which will be used if we found nothing to send across all peers
-                            int delay = peer.getNextDelay();
-                            if (delay < nextSendDelay)
-                                nextSendDelay = delay;
-                            peer = null;
-                        }
-                    }
-
-                    //if (peer != null && _log.shouldLog(Log.DEBUG))
-                    //    _log.debug("Done looping, next peer we are sending for: " +
-                    //               peer.getRemotePeer());
-
-                    // if we've gone all the way through the loop, wait
-                    // ... unless nextSendDelay says we have more ready now
-                    if (states == null && peersProcessed >= _activePeers.size() && nextSendDelay > 0) {
-                        peersProcessed = 0;
-                        // why? we do this in the loop one at a time
-                        //finishMessages();
-                        // wait a min of 10 and a max of MAX_WAIT ms no matter what peer.getNextDelay() says
-                        // use max of 1 second so finishMessages() and/or PeerState.finishMessages()
-                        // gets called regularly
-                        int toWait = Math.min(Math.max(nextSendDelay, 10), MAX_WAIT);
-                        //if (_log.shouldLog(Log.DEBUG))
-                        //    _log.debug("wait for " + toWait);
-                        // wait.. or somethin'
-                        synchronized (_activePeers) {
-                            try {
-                                _activePeers.wait(toWait);
-                            } catch (InterruptedException ie) {
-                                // noop
-                                if (_log.shouldLog(Log.DEBUG))
-                                     _log.debug("Woken up while waiting");
-                            }
-                        }
-                    //} else {
-                    //    if (_log.shouldLog(Log.DEBUG))
-                    //        _log.debug("dont wait: alive=" + _alive + " state = " + state);
-                    }
-
-        } // while alive && state == null
-
-        if (_log.shouldLog(Log.DEBUG))
-            _log.debug("Sending " + DataHelper.toString(states));
-
-        List<UDPPacket> packets = preparePackets(states, peer);
-
-      /****
-        if ( (state != null) && (state.getMessage() != null) ) {
-            int valid = 0;
-            for (int i = 0; packets != null && i < packets.length ; i++)
-                if (packets[i] != null)
-                    valid++;
-            state.getMessage().timestamp("sending a volley of " + valid
-                                         + " lastReceived: "
-                                         + (_context.clock().now() - peer.getLastReceiveTime())
-                                         + " lastSentFully: "
-                                         + (_context.clock().now() - peer.getLastSendFullyTime()));
+    public List<UDPPacket> getNextVolley(int shard) {
+        Shard s = _shards[shard];
+        while (_alive) {
+            PeerState peer = s.take();
+            if (peer == null)
+                break;
+            long now = _context.clock().now();
+            int remaining = peer.finishMessages(now);
+            if (remaining <= 0) {
+                // race with add(), handled in removeIfIdle()
+                if (s.removeIfIdle(peer, now) && _log.shouldLog(Log.DEBUG))
+                    _log.debug("No more pending messages for " + peer.getRemotePeer());
+                continue;
+            }
+            List<OutboundMessageState> states = peer.allocateSend();
+            if (states != null) {
+                // there may be more ready, but let other peers that are due go first
+                s.schedule(peer, now);
+                if (_log.shouldLog(Log.DEBUG))
+                    _log.debug("Sending " + DataHelper.toString(states));
+                List<UDPPacket> packets = preparePackets(states, peer);
+                if (packets != null)
+                    return packets;
+            } else {
+                // wait a min of 10 and a max of MAX_WAIT ms no matter what peer.getNextDelay() says
+                // use max of 1 second so finishMessages() and/or PeerState.finishMessages()
+                // gets called regularly
+                int delay = Math.min(Math.max(peer.getNextDelay(), MIN_WAIT), MAX_WAIT);
+                s.schedule(peer, now + delay);
+            }
         }
-       ****/
-
-        return packets;
+        return null;
     }
 
     /**
@@ -519,6 +484,153 @@ class OutboundMessageFragments {
     }
 ****/
 
+    /**
+     *  A deadline for a peer in a Shard queue.
+     *  Stale if it doesn't match the peer's current deadline in the Shard.
+     *
+     *  @since 0.9.40
+     */
+    private static class Deadline implements Comparable<Deadline> {
+        final long time;
+        final PeerState peer;
+
+        Deadline(long time, PeerState peer) {
+            this.time = time;
+            this.peer = peer;
+        }
+
+        public int compareTo(Deadline d) {
+            if (time < d.time)
+                return -1;
+            if (time > d.time)
+                return 1;
+            return 0;
+        }
+    }
+
+    /**
+     *  A set of peers and their next deadlines, handled by one PacketPusher.
+     *  A peer taken by the pusher has no deadline until it is rescheduled.
+     *  Old entries in the queue are skipped when they come to the head.
+     *
+     *  @since 0.9.40
+     */
+    private class Shard {
+        private final PriorityQueue<Deadline> _queue = new PriorityQueue<Deadline>(64);
+        /** peer to current deadline, null if being handled by the pusher */
+        private final Map<PeerState, Long> _deadlines = new HashMap<PeerState, Long>(64);
+        /** all active peers in this shard */
+        private final Set<PeerState> _peers = new HashSet<PeerState>(64);
+
+        /**
+         *  Set the peer's deadline to when, unless it's already earlier.
+         *  @return true if the peer was newly added
+         */
+        public synchronized boolean schedule(PeerState peer, long when) {
+            boolean rv = addPeer(peer);
+            Long cur = _deadlines.get(peer);
+            if (cur != null && cur.longValue() <= when)
+                return rv;
+            locked_schedule(peer, when);
+            return rv;
+        }
+
+        /**
+         *  Schedule the peer if it isn't active at all,
+         *  otherwise leave it alone.
+         *  @return true if the peer was newly added
+         */
+        public synchronized boolean scheduleIfAbsent(PeerState peer, long when) {
+            boolean rv = addPeer(peer);
+            if (rv)
+                locked_schedule(peer, when);
+            return rv;
+        }
+
+        private void locked_schedule(PeerState peer, long when) {
+            _deadlines.put(peer, Long.valueOf(when));
+            Deadline d = new Deadline(when, peer);
+            _queue.offer(d);
+            if (_queue.peek() == d)
+                notify();
+        }
+
+        /** caller must synch */
+        private boolean addPeer(PeerState peer) {
+            boolean rv = _peers.add(peer);
+            if (rv)
+                _activePeerCount.incrementAndGet();
+            return rv;
+        }
+
+        public synchronized void remove(PeerState peer) {
+            if (_peers.remove(peer))
+                _activePeerCount.decrementAndGet();
+            _deadlines.remove(peer);
+        }
+
+        /**
+         *  Remove the peer if it has no more messages.
+         *  If add() happened after finishMessages(), the peer will have messages,
+         *  and we leave it in. add() may not have scheduled it, as it was still active,
+         *  so schedule it here if it has no deadline.
+         *  @return true if removed
+         */
+        public synchronized boolean removeIfIdle(PeerState peer, long now) {
+            if (_deadlines.containsKey(peer))
+                return false;
+            if (peer.getOutboundMessageCount() > 0) {
+                locked_schedule(peer, now);
+                return false;
+            }
+            if (_peers.remove(peer))
+                _activePeerCount.decrementAndGet();
+            return true;
+        }
+
+        /**
+         *  Block until a peer is due or we are shut down.
+         *  Removes the peer's deadline.
+         *
+         *  @return null on shutdown
+         */
+        public synchronized PeerState take() {
+            while (_alive) {
+                Deadline d = _queue.peek();
+                if (d == null) {
+                    try {
+                        wait(MAX_WAIT);
+                    } catch (InterruptedException ie) {}
+                    continue;
+                }
+                Long cur = _deadlines.get(d.peer);
+                if (cur == null || cur.longValue() != d.time) {
+                    // stale
+                    _queue.poll();
+                    continue;
+                }
+                long delay = d.time - _context.clock().now();
+                if (delay <= 0) {
+                    _queue.poll();
+                    _deadlines.remove(d.peer);
+                    return d.peer;
+                }
+                try {
+                    wait(Math.min(delay, MAX_WAIT));
+                } catch (InterruptedException ie) {}
+            }
+            return null;
+        }
+
+        public synchronized void clear() {
+            _activePeerCount.addAndGet(0 - _peers.size());
+            _peers.clear();
+            _deadlines.clear();
+            _queue.clear();
+            notifyAll();
+        }
+    }
+
     /** throttle */
     public interface ActiveThrottle {
         public void choke(Hash peer);
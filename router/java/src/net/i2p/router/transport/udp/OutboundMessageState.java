@@ -5,6 +5,7 @@ import java.util.Date;
 import net.i2p.I2PAppContext;
 import net.i2p.data.Base64;
 import net.i2p.data.i2np.I2NPMessage;
+import net.i2p.data.i2np.TunnelDataMessage;
 import net.i2p.router.OutNetMessage;
 import net.i2p.router.util.CDPQEntry;
 import net.i2p.util.Log;
@@ -24,7 +25,19 @@ class OutboundMessageState implements CDPQEntry {
     /** will be null, unless we are part of the establishment */
     private final PeerState _peer;
     private final long _expiration;
+    /**
+     *  The serialized message, or for a TunnelDataMessage,
+     *  only the header and tunnel ID, with the rest in _tdmData
+     */
     private final byte[] _messageBuf;
+    /**
+     *  For a TunnelDataMessage, the message's own data array,
+     *  fragments are copied straight from it. Null otherwise.
+     *  @since 0.9.40
+     */
+    private final byte[] _tdmData;
+    /** total size of the raw message */
+    private final int _totalSize;
     /** fixed fragment size across the message */
     private final int _fragmentSize;
     /** bitmask, 0 if acked, all 0 = complete */
@@ -85,8 +98,23 @@ class OutboundMessageState implements CDPQEntry {
         int totalSize = _i2npMessage.getRawMessageSize();
         if (totalSize > MAX_MSG_SIZE)
             throw new IllegalArgumentException("Size too large! " + totalSize);
-        _messageBuf = new byte[totalSize];
-        _i2npMessage.toRawByteArray(_messageBuf);
+        if (_i2npMessage.getType() == TunnelDataMessage.MESSAGE_TYPE) {
+            // Most of our traffic is participating tunnel data.
+            // Don't serialize it into a new 1033 byte buffer, the payload
+            // is already sitting in the message, and it isn't changed or
+            // released after it has been handed to us.
+            TunnelDataMessage tdm = (TunnelDataMessage) _i2npMessage;
+            _messageBuf = new byte[TunnelDataMessage.RAW_HEADER_SIZE];
+            tdm.toRawHeader(_messageBuf);
+            _tdmData = tdm.getData();
+            if (_tdmData.length != TunnelDataMessage.DATA_SIZE)
+                throw new IllegalArgumentException("Bad TDM data size " + _tdmData.length);
+        } else {
+            _messageBuf = new byte[totalSize];
+            _i2npMessage.toRawByteArray(_messageBuf);
+            _tdmData = null;
+        }
+        _totalSize = totalSize;
         _fragmentSize = _peer.fragmentSize();
         int numFragments = totalSize / _fragmentSize;
         if (numFragments * _fragmentSize < totalSize)
@@ -131,7 +159,7 @@ class OutboundMessageState implements CDPQEntry {
         int rv = 0;
         if (isComplete())
             return rv;
-        int lastSize = _messageBuf.length % _fragmentSize;
+        int lastSize = _totalSize % _fragmentSize;
         if (lastSize == 0)
             lastSize = _fragmentSize;
         for (int i = 0; i < _numFragments; i++) {
@@ -204,7 +232,7 @@ class OutboundMessageState implements CDPQEntry {
     /**
      * The size of the I2NP message. Does not include any SSU overhead.
      */
-    public int getMessageSize() { return _messageBuf.length; }
+    public int getMessageSize() { return _totalSize; }
 
     /**
      * The size in bytes of the fragment
@@ -214,7 +242,7 @@ class OutboundMessageState implements CDPQEntry {
      */
     public int fragmentSize(int fragmentNum) {
         if (fragmentNum + 1 == _numFragments) {
-            int valid = _messageBuf.length;
+            int valid = _totalSize;
             if (valid <= _fragmentSize)
                 return valid;
             // bugfix 0.8.12
@@ -237,8 +265,23 @@ class OutboundMessageState implements CDPQEntry {
         int start = _fragmentSize * fragmentNum;
         int toSend = fragmentSize(fragmentNum);
         int end = start + toSend;
-        if (end <= _messageBuf.length && outOffset + toSend <= out.length) {
-            System.arraycopy(_messageBuf, start, out, outOffset, toSend);
+        if (end <= _totalSize && outOffset + toSend <= out.length) {
+            if (_tdmData == null) {
+                System.arraycopy(_messageBuf, start, out, outOffset, toSend);
+            } else {
+                // header and tunnel ID, then the data
+                int hdrLen = _messageBuf.length;
+                int off = outOffset;
+                if (start < hdrLen) {
+                    int len = Math.min(hdrLen, end) - start;
+                    System.arraycopy(_messageBuf, start, out, off, len);
+                    off += len;
+                }
+                if (end > hdrLen) {
+                    int from = Math.max(start, hdrLen);
+                    System.arraycopy(_tdmData, from - hdrLen, out, off, end - from);
+                }
+            }
             return toSend;
         } else {
             if (_log.shouldLog(Log.WARN))
@@ -302,7 +345,7 @@ class OutboundMessageState implements CDPQEntry {
         buf.append("OB Message ").append(_i2npMessage.getUniqueId());
         buf.append(" type ").append(_i2npMessage.getType());
         buf.append(" with ").append(_numFragments).append(" fragments");
-        buf.append(" of size ").append(_messageBuf.length);
+        buf.append(" of size ").append(_totalSize);
         buf.append(" volleys: ").append(_maxSends);
         buf.append(" lifetime: ").append(getLifetime());
         if (!isComplete()) {
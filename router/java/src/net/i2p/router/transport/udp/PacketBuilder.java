@@ -577,6 +577,57 @@ class PacketBuilder {
         return buildACK(peer, Collections.<ACKBitfield> emptyList());
     }
 
+    /**
+     *  A data packet containing a single-fragment message, padded with
+     *  encrypted random data to exactly the given size, for path MTU probing.
+     *  The receiver ignores everything after the fragment,
+     *  and the ack of the message confirms that the size works.
+     *  No acks are included.
+     *
+     *  @param state must have exactly one fragment
+     *  @param mtu the IP packet size to probe; the UDP payload must be a multiple of 16
+     *  @return null on error
+     *  @since 0.9.40
+     */
+    public UDPPacket buildMTUProbe(OutboundMessageState state, PeerState peer, int mtu) {
+        int ipHeaderSize = peer.isIPv6() ? IPV6_HEADER_SIZE : IP_HEADER_SIZE;
+        int len = mtu - (ipHeaderSize + UDP_HEADER_SIZE);
+        if (state.getFragmentCount() != 1 || (len & 0x0f) != 0 || len > UDPPacket.MAX_PACKET_SIZE)
+            return null;
+        int dataSize = state.fragmentSize(0);
+        // flags, fragment count
+        if (HEADER_SIZE + 2 + FRAGMENT_HEADER_SIZE + dataSize > len)
+            return null;
+
+        UDPPacket packet = buildPacketHeader(DATA_FLAG_BYTE);
+        DatagramPacket pkt = packet.getPacket();
+        byte data[] = pkt.getData();
+        int off = HEADER_SIZE;
+        data[off] |= UDPPacket.DATA_FLAG_WANT_REPLY;
+        off++;
+        DataHelper.toLong(data, off, 1, 1); // one fragment
+        off++;
+        DataHelper.toLong(data, off, 4, state.getMessageId());
+        off += 4;
+        data[off] = 1; // fragment 0, isLast
+        off++;
+        DataHelper.toLong(data, off, 2, dataSize);
+        data[off] &= (byte)0x3F; // 2 highest bits are reserved
+        off += 2;
+        int sz = state.writeFragment(data, off, 0);
+        if (sz != dataSize) {
+            packet.release();
+            return null;
+        }
+        off += sz;
+        // pad all the way to the probe size, it is on the encryption boundary
+        _context.random().nextBytes(data, off, len - off);
+        pkt.setLength(len);
+        authenticate(packet, peer.getCurrentCipherKey(), peer.getCurrentMACKey());
+        setTo(packet, peer.getRemoteIPAddress(), peer.getRemotePort());
+        return packet;
+    }
+
     /**
      *  Build the ack packet. The list need not be sorted into full and partial;
      *  this method will put all fulls before the partials in the outgoing packet.
@@ -1608,28 +1659,23 @@ class PacketBuilder {
         byte data[] = pkt.getData();
         _context.aes().encrypt(data, encryptOffset, data, encryptOffset, cipherKey, iv, encryptSize);
         
-        // ok, now we need to prepare things for the MAC, which requires reordering
+        // MAC the payload in place, followed by the IV and length,
+        // instead of moving the payload to make room for them
         // Payload + IV + payloadLength
-        System.arraycopy(data, encryptOffset, data, off, totalSize);
-        off += totalSize;
-        System.arraycopy(iv, 0, data, off, UDPPacket.IV_SIZE);
-        off += UDPPacket.IV_SIZE;
-        DataHelper.toLong(data, off, 2, totalSize /* ^ PROTOCOL_VERSION */ );
+        byte[] tail = SimpleByteCache.acquire(UDPPacket.IV_SIZE + 2);
+        System.arraycopy(iv, 0, tail, 0, UDPPacket.IV_SIZE);
+        DataHelper.toLong(tail, UDPPacket.IV_SIZE, 2, totalSize /* ^ PROTOCOL_VERSION */ );
         
-        int hmacLen = totalSize + UDPPacket.IV_SIZE + 2;
-        //Hash hmac = _context.hmac().calculate(macKey, data, hmacOff, hmacLen);
         byte[] ba = SimpleByteCache.acquire(Hash.HASH_LENGTH);
-        _context.hmac().calculate(macKey, data, hmacOff, hmacLen, ba, 0);
+        _context.hmac().calculate(macKey, data, encryptOffset, totalSize, tail, 0, tail.length, ba, 0);
+        SimpleByteCache.release(tail);
         
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Authenticating " + pkt.getLength() +
                        "\nIV: " + Base64.encode(iv) +
                        "\nraw mac: " + Base64.encode(ba) +
                        "\nMAC key: " + macKey);
-        // ok, now lets put it back where it belongs...
         // MAC + IV + payload
-        System.arraycopy(data, hmacOff, data, encryptOffset, totalSize);
-        //System.arraycopy(hmac.getData(), 0, data, hmacOff, UDPPacket.MAC_SIZE);
         System.arraycopy(ba, 0, data, hmacOff, UDPPacket.MAC_SIZE);
         SimpleByteCache.release(ba);
         System.arraycopy(iv, 0, data, hmacOff + UDPPacket.MAC_SIZE, UDPPacket.IV_SIZE);
@@ -140,6 +140,18 @@ class PacketHandler {
         _inboundQueue.put(packet);
     }
 
+    /**
+     * Blocking call to add all the packets to the inbound queue, oldest first,
+     * for the NIO receiver.
+     *
+     * @since 0.9.40
+     */
+    public void queueReceived(List<UDPPacket> packets) throws InterruptedException {
+        for (int i = 0; i < packets.size(); i++) {
+            _inboundQueue.put(packets.get(i));
+        }
+    }
+
 
     /**
      * Blocking for a while
@@ -12,7 +12,7 @@ import net.i2p.util.Log;
  *
  * Here we select which UDPEndpoint/UDPSender to send it out.
  */
-class PacketPusher implements Runnable {
+class PacketPusher {
     // private RouterContext _context;
     private final Log _log;
     private final OutboundMessageFragments _fragments;
@@ -26,18 +26,45 @@ class PacketPusher implements Runnable {
         _endpoints = endpoints;
     }
     
+    /**
+     *  Starts one thread per OutboundMessageFragments shard.
+     */
     public synchronized void startup() {
         _alive = true;
-        I2PThread t = new I2PThread(this, "UDP packet pusher", true);
-        t.start();
+        int count = _fragments.getShardCount();
+        for (int i = 0; i < count; i++) {
+            String name = count > 1 ? "UDP packet pusher " + i : "UDP packet pusher";
+            I2PThread t = new I2PThread(new Runner(i), name, true);
+            t.start();
+        }
     }
     
     public synchronized void shutdown() { _alive = false; }
+
+    /**
+     *  One per shard
+     *  @since 0.9.40
+     */
+    private class Runner implements Runnable {
+        private final int _shard;
+
+        public Runner(int shard) {
+            _shard = shard;
+        }
+
+        public void run() {
+            PacketPusher.this.run(_shard);
+        }
+    }
      
-    public void run() {
+    /**
+     *  @param shard which OutboundMessageFragments shard we are pushing
+     *  @since 0.9.40 was run()
+     */
+    private void run(int shard) {
         while (_alive) {
             try {
-                List<UDPPacket> packets = _fragments.getNextVolley();
+                List<UDPPacket> packets = _fragments.getNextVolley(shard);
                 if (packets != null) {
                     for (int i = 0; i < packets.size(); i++) {
                          send(packets.get(i));
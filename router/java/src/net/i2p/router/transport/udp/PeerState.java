@@ -17,6 +17,7 @@ import net.i2p.data.Hash;
 import net.i2p.data.SessionKey;
 import net.i2p.router.OutNetMessage;
 import net.i2p.router.RouterContext;
+import net.i2p.router.peermanager.PeerProfile;
 import net.i2p.router.util.CachedIteratorCollection;
 import net.i2p.router.util.CoDelPriorityBlockingQueue;
 import net.i2p.router.util.PriBlockingQueue;
@@ -177,6 +178,18 @@ public class PeerState {
     //private long _mtuLastChecked;
     private int _mtuIncreases;
     private int _mtuDecreases;
+    /**
+     *  Path MTU probing state, null if probing is disabled.
+     *  When non-null, the large MTU is only what has been confirmed by probes.
+     *  @since 0.9.40
+     */
+    private final MTUSearch _mtuSearch;
+    /** message ID of the outstanding probe, or -1 */
+    private long _mtuProbeId = -1;
+    private int _mtuProbeSize;
+    /** when the outstanding probe was sent, or 0 */
+    private long _mtuProbeSent;
+    private long _nextMTUProbe;
     /** current round trip time estimate */
     private int _rtt;
     /** smoothed mean deviation in the rtt */
@@ -335,6 +348,17 @@ public class PeerState {
 
     private static final long RESEND_ACK_TIMEOUT = 5*60*1000;
 
+    /** wait after the session is established before the first MTU probe */
+    private static final long MTU_PROBE_INITIAL_DELAY = 10*1000;
+    /** between probes while searching */
+    private static final long MTU_PROBE_INTERVAL = 5*1000;
+    /** look for an increase this often after the search completes, RFC 8899 PMTU_RAISE_TIMER */
+    private static final long MTU_PROBE_RAISE_INTERVAL = 10*60*1000;
+    private static final long MIN_MTU_PROBE_TIMEOUT = 1000;
+    private static final long MAX_MTU_PROBE_TIMEOUT = 10*1000;
+    /** don't bother probing idle sessions */
+    private static final long MTU_PROBE_IDLE_TIME = 60*1000;
+
     
     /**
      *  @param rtt from the EstablishState, or 0 if not available
@@ -368,6 +392,17 @@ public class PeerState {
             _largeMTU = transport.getMTU(true);
         }
         //_mtuLastChecked = -1;
+        if (MTUProber.isEnabled(ctx)) {
+            // try the last result from the profile first
+            int hint = 0;
+            PeerProfile prof = ctx.profileOrganizer().getProfileNonblocking(remotePeer);
+            if (prof != null)
+                hint = prof.getPathMTU(remoteIP.length == 16);
+            _mtuSearch = new MTUSearch(_mtu, _largeMTU, hint);
+            _nextMTUProbe = now + MTU_PROBE_INITIAL_DELAY;
+        } else {
+            _mtuSearch = null;
+        }
         _lastACKSend = -1;
 
         _rto = INIT_RTO;
@@ -1255,20 +1290,30 @@ public class PeerState {
      */
     private void adjustMTU() {
         double retransPct = 0;
+        // with probing, only use what has been confirmed
+        int large = _mtuSearch != null ? _mtuSearch.getConfirmed() : _largeMTU;
+        int small = _remoteIP.length == 4 ? MIN_MTU : MIN_IPV6_MTU;
         if (_packetsTransmitted > 10) {
             retransPct = (double)_packetsRetransmitted/(double)_packetsTransmitted;
             boolean wantLarge = retransPct < .30d; // heuristic to allow fairly lossy links to use large MTUs
-            if (wantLarge && _mtu != _largeMTU) {
+            if (wantLarge && _mtu != large) {
                 if (_context.random().nextLong(_mtuDecreases) <= 0) {
-                    _mtu = _largeMTU;
+                    _mtu = large;
                     _mtuIncreases++;
                     _context.statManager().addRateData("udp.mtuIncrease", _mtuIncreases);
 		}
-	    } else if (!wantLarge && _mtu == _largeMTU) {
-                _mtu = _remoteIP.length == 4 ? MIN_MTU : MIN_IPV6_MTU;
+	    } else if (!wantLarge && _mtu == large && large > small) {
+                _mtu = small;
                 _mtuDecreases++;
                 _context.statManager().addRateData("udp.mtuDecrease", _mtuDecreases);
+                if (_mtuSearch != null) {
+                    // possible black hole, search again
+                    _mtuSearch.restart();
+                    _nextMTUProbe = _context.clock().now() + MTU_PROBE_INTERVAL;
+                }
 	    }
+        } else if (_mtuSearch != null) {
+            _mtu = large;
         } else {
             _mtu = _remoteIP.length == 4 ? DEFAULT_MTU : MIN_IPV6_MTU;
         }
@@ -1284,6 +1329,111 @@ public class PeerState {
         _largeMTU = mtu;
         if (mtu < _mtu)
             _mtu = mtu;
+        if (_mtuSearch != null)
+            _mtuSearch.setMax(mtu);
+    }
+
+    /**
+     *  Path MTU probing.
+     *  Is it time to send a probe? Also times out an outstanding probe.
+     *  Called from MTUProber.
+     *
+     *  @return the IP packet size to probe, or 0 for none
+     *  @since 0.9.40
+     */
+    synchronized int getMTUProbeSize(long now) {
+        if (_mtuSearch == null || _dead)
+            return 0;
+        if (_mtuProbeSent > 0) {
+            long timeout = Math.min(MAX_MTU_PROBE_TIMEOUT, Math.max(MIN_MTU_PROBE_TIMEOUT, 2 * _rto));
+            if (now - _mtuProbeSent < timeout)
+                return 0;
+            if (_log.shouldLog(Log.INFO))
+                _log.info("MTU probe of size " + _mtuProbeSize + " lost to " + _remotePeer);
+            _context.statManager().addRateData("udp.mtuProbeLost", _mtuProbeSize);
+            _mtuSearch.probeFailed(_mtuProbeSize);
+            _mtuProbeId = -1;
+            _mtuProbeSent = 0;
+            mtuSearchUpdated(now);
+            return 0;
+        }
+        if (now < _nextMTUProbe)
+            return 0;
+        if (now - _lastReceiveTime > MTU_PROBE_IDLE_TIME)
+            return 0;
+        if (_mtuSearch.isComplete())
+            _mtuSearch.reopen();
+        int rv = _mtuSearch.nextProbeSize();
+        if (rv <= 0)
+            _nextMTUProbe = now + MTU_PROBE_RAISE_INTERVAL;
+        return rv;
+    }
+
+    /**
+     *  Path MTU probing.
+     *  @param messageId the ID we will get the ack for
+     *  @since 0.9.40
+     */
+    synchronized void mtuProbeSent(long messageId, int size, long now) {
+        _mtuProbeId = messageId;
+        _mtuProbeSize = size;
+        _mtuProbeSent = now;
+    }
+
+    /**
+     *  Path MTU probing.
+     *  We couldn't build it, treat it as a loss.
+     *  @since 0.9.40
+     */
+    synchronized void mtuProbeNotSent(int size, long now) {
+        if (_mtuSearch == null)
+            return;
+        _mtuSearch.probeFailed(size);
+        mtuSearchUpdated(now);
+    }
+
+    /**
+     *  Path MTU probing.
+     *  @return true if this was the ack of the outstanding probe
+     *  @since 0.9.40
+     */
+    private synchronized boolean mtuProbeAcked(long messageId) {
+        if (messageId != _mtuProbeId)
+            return false;
+        long now = _context.clock().now();
+        if (_log.shouldLog(Log.INFO))
+            _log.info("MTU probe of size " + _mtuProbeSize + " acked by " + _remotePeer +
+                      " after " + (now - _mtuProbeSent));
+        _mtuSearch.probeSucceeded(_mtuProbeSize);
+        _mtuProbeId = -1;
+        _mtuProbeSent = 0;
+        int confirmed = _mtuSearch.getConfirmed();
+        if (confirmed > _mtu) {
+            // it's proven, don't wait for adjustMTU()
+            _mtu = confirmed;
+            _mtuIncreases++;
+            _context.statManager().addRateData("udp.mtuIncrease", _mtuIncreases);
+        }
+        mtuSearchUpdated(now);
+        return true;
+    }
+
+    /**
+     *  Schedule the next probe, and record the result if we're done.
+     *  Caller must synch.
+     *  @since 0.9.40
+     */
+    private void mtuSearchUpdated(long now) {
+        if (_mtuSearch.isComplete()) {
+            int mtu = _mtuSearch.getConfirmed();
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Path MTU to " + _remotePeer + " is " + mtu);
+            _context.statManager().addRateData("udp.mtuProbeResult", mtu);
+            _context.profileManager().pathMTUProbed(_remotePeer, isIPv6(), mtu);
+            _nextMTUProbe = now + MTU_PROBE_RAISE_INTERVAL;
+        } else {
+            _nextMTUProbe = now + MTU_PROBE_INTERVAL;
+        }
     }
     
     /** we are resending a packet, so lets jack up the rto */
@@ -1875,6 +2025,8 @@ public class PeerState {
      */
     public boolean acked(long messageId) {
         if (_dead) return false;
+        if (_mtuSearch != null && mtuProbeAcked(messageId))
+            return true;
         OutboundMessageState state = null;
         synchronized (_outboundMessages) {
             for (Iterator<OutboundMessageState> iter = _outboundMessages.iterator(); iter.hasNext(); ) {
@@ -5,16 +5,25 @@ import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.router.RouterContext;
 import net.i2p.router.transport.TransportUtil;
 import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
 
 /**
  * Coordinate the low-level datagram socket, creating and managing the UDPSender and
  * UDPReceiver.
+ *
+ * As of 0.9.40, optionally uses non-blocking DatagramChannels instead of a DatagramSocket,
+ * with one or more UDPReceivers sharing the port via SO_REUSEPORT (Java 9+).
  */
 class UDPEndpoint implements SocketListener {
     private final RouterContext _context;
@@ -22,11 +31,31 @@ class UDPEndpoint implements SocketListener {
     private int _listenPort;
     private final UDPTransport _transport;
     private UDPSender _sender;
-    private UDPReceiver _receiver;
+    private UDPReceiver[] _receivers;
     private DatagramSocket _socket;
+    /** NIO mode only, else null */
+    private DatagramChannel[] _channels;
     private final InetAddress _bindAddress;
     private final boolean _isIPv4, _isIPv6;
     private static final AtomicInteger _counter = new AtomicInteger();
+
+    /**
+     *  Use non-blocking DatagramChannels and batched reads
+     *  @since 0.9.40
+     */
+    public static final String PROP_NIO = "i2np.udp.nio";
+    private static final boolean DEFAULT_NIO = false;
+    /**
+     *  NIO mode only, number of receive channels bound to the same port.
+     *  Values greater than 1 require SO_REUSEPORT support.
+     *  0 or less for auto.
+     *  @since 0.9.40
+     */
+    public static final String PROP_RECEIVERS = "i2np.udp.receivers";
+    private static final int DEFAULT_RECEIVERS = 1;
+    private static final int MAX_RECEIVERS = 8;
+    /** null if unsupported (Java 8 and earlier) */
+    private static final SocketOption<Boolean> SO_REUSEPORT = getReusePortOption();
     
     /**
      *  @param transport may be null for unit testing ONLY
@@ -52,26 +81,56 @@ class UDPEndpoint implements SocketListener {
         if (_log.shouldLog(Log.DEBUG))
             _log.debug("Starting up the UDP endpoint");
         shutdown();
-        _socket = getSocket();
+        // NIO not for unit testing, see receive()
+        boolean nio = _transport != null && _context.getProperty(PROP_NIO, DEFAULT_NIO);
+        if (nio) {
+            _channels = getChannels();
+            _socket = _channels != null ? _channels[0].socket() : null;
+        } else {
+            _socket = getSocket();
+        }
         if (_socket == null) {
             _log.log(Log.CRIT, "UDP Unable to open a port");
             throw new SocketException("SSU Unable to bind to a port on " + _bindAddress);
         }
         int count = _counter.incrementAndGet();
-        _sender = new UDPSender(_context, _socket, "UDPSender " + count, this);
-        _sender.startup();
-        if (_transport != null) {
-            _receiver = new UDPReceiver(_context, _transport, _socket, "UDPReceiver " + count, this);
-            _receiver.startup();
+        if (nio) {
+            _sender = new UDPSender(_context, _channels[0], "UDPSender " + count, this);
+            _sender.startup();
+            _receivers = new UDPReceiver[_channels.length];
+            for (int i = 0; i < _channels.length; i++) {
+                String name = "UDPReceiver " + count;
+                if (_channels.length > 1)
+                    name += '.' + Integer.toString(i);
+                _receivers[i] = new UDPReceiver(_context, _transport, _channels[i], name, this);
+                _receivers[i].startup();
+            }
+        } else {
+            _sender = new UDPSender(_context, _socket, "UDPSender " + count, this);
+            _sender.startup();
+            if (_transport != null) {
+                _receivers = new UDPReceiver[] {
+                    new UDPReceiver(_context, _transport, _socket, "UDPReceiver " + count, this) };
+                _receivers[0].startup();
+            }
         }
     }
     
     public synchronized void shutdown() {
         if (_sender != null) {
             _sender.shutdown();
-            _receiver.shutdown();
         }
-        if (_socket != null) {
+        if (_receivers != null) {
+            for (int i = 0; i < _receivers.length; i++) {
+                _receivers[i].shutdown();
+            }
+        }
+        if (_channels != null) {
+            for (int i = 0; i < _channels.length; i++) {
+                try { _channels[i].close(); } catch (IOException ioe) {}
+            }
+            _channels = null;
+        } else if (_socket != null) {
             _socket.close();
         }
     }
@@ -143,6 +202,129 @@ class UDPEndpoint implements SocketListener {
         return socket;
     }
 
+    /**
+     *  NIO mode.
+     *  Open one or more non-blocking channels using requested port in _listenPort and
+     *  bind host in _bindAddress, all bound to the same port.
+     *  If _listenPort <= 0, or requested port is busy, repeatedly try a new random port.
+     *  If a second or later channel fails to bind, we continue with what we have.
+     *
+     *  @return null on failure, else non-empty
+     *  Sets _listenPort to actual port or -1 on failure
+     *  @since 0.9.40
+     */
+    private DatagramChannel[] getChannels() {
+        int count = _context.getProperty(PROP_RECEIVERS, DEFAULT_RECEIVERS);
+        if (count <= 0)
+            count = Math.max(1, SystemVersion.getCores() / 2);
+        count = Math.min(count, MAX_RECEIVERS);
+        if (count > 1 && SO_REUSEPORT == null) {
+            _log.logAlways(Log.WARN, "SO_REUSEPORT unsupported, using a single UDP receiver");
+            count = 1;
+        }
+        int port = _listenPort;
+        if (port > 0 && !TransportUtil.isValidPort(port)) {
+            TransportUtil.logInvalidPort(_log, "UDP", port);
+            port = -1;
+        }
+
+        DatagramChannel first = null;
+        for (int i = 0; i < MAX_PORT_RETRIES; i++) {
+             if (port <= 0) {
+                 // try random ports rather than just do new DatagramSocket()
+                 // so we stay out of the way of other I2P stuff
+                 port = TransportUtil.selectRandomPort(_context, UDPTransport.STYLE);
+             }
+             try {
+                 first = openChannel(port, count > 1);
+                 break;
+             } catch (IOException ioe) {
+                 if (_log.shouldLog(Log.WARN))
+                     _log.warn("Binding to port " + port + " failed", ioe);
+             }
+             port = -1;
+        }
+        if (first == null) {
+            _log.log(Log.CRIT, "SSU Unable to bind to a port on " + _bindAddress);
+            _listenPort = -1;
+            return null;
+        }
+        if (port != _listenPort) {
+            if (_listenPort > 0)
+                _log.error("SSU Unable to bind to requested port " + _listenPort + ", using random port " + port);
+            else
+                _log.logAlways(Log.INFO, "UDP selected random port " + port);
+        }
+        _listenPort = port;
+
+        DatagramChannel[] rv = new DatagramChannel[count];
+        rv[0] = first;
+        int opened = 1;
+        for ( ; opened < count; opened++) {
+            try {
+                rv[opened] = openChannel(port, true);
+            } catch (IOException ioe) {
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Unable to open additional channel on port " + port, ioe);
+                break;
+            }
+        }
+        if (opened < count) {
+            DatagramChannel[] tmp = new DatagramChannel[opened];
+            System.arraycopy(rv, 0, tmp, 0, opened);
+            rv = tmp;
+        }
+        if (_log.shouldLog(Log.INFO))
+            _log.info("Opened " + opened + " UDP channels on port " + port);
+        return rv;
+    }
+
+    /**
+     *  NIO mode.
+     *  @param reusePort set SO_REUSEPORT before binding
+     *  @return non-blocking and bound
+     *  @since 0.9.40
+     */
+    private DatagramChannel openChannel(int port, boolean reusePort) throws IOException {
+        DatagramChannel chan;
+        if (_bindAddress != null && _bindAddress instanceof Inet4Address)
+            chan = DatagramChannel.open(StandardProtocolFamily.INET);
+        else
+            chan = DatagramChannel.open();
+        try {
+            // if unsupported on this platform, an additional channel will fail to bind
+            if (reusePort && chan.supportedOptions().contains(SO_REUSEPORT))
+                chan.setOption(SO_REUSEPORT, Boolean.TRUE);
+            if (_bindAddress == null)
+                chan.bind(new InetSocketAddress(port));
+            else
+                chan.bind(new InetSocketAddress(_bindAddress, port));
+            chan.configureBlocking(false);
+            return chan;
+        } catch (IOException ioe) {
+            try { chan.close(); } catch (IOException e) {}
+            throw ioe;
+        } catch (RuntimeException re) {
+            // UnsupportedOperationException
+            try { chan.close(); } catch (IOException e) {}
+            throw new IOException("Unable to open channel", re);
+        }
+    }
+
+    /**
+     *  StandardSocketOptions.SO_REUSEPORT is Java 9+
+     *
+     *  @return null if unsupported
+     *  @since 0.9.40
+     */
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption() {
+        try {
+            return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
 
     /** call after startup() to get actual port or -1 on startup failure */
     public int getListenPort() { return _listenPort; }
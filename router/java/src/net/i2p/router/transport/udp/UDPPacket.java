@@ -2,9 +2,12 @@ package net.i2p.router.transport.udp;
 
 import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Queue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import net.i2p.data.Base64;
 import net.i2p.data.DataHelper;
@@ -21,21 +24,30 @@ import net.i2p.util.SystemVersion;
  * Basic delivery unit containing the datagram.  This also maintains a cache
  * of object instances to allow rapid reuse.
  *
+ * As of 0.9.40, not thread-safe. A packet has a single owner at a time,
+ * and ownership is passed from one stage of the pipeline to the next
+ * (receiver, handler, pusher, sender) through a BlockingQueue,
+ * which provides the necessary memory visibility.
+ * The owner must not touch the packet after handing it off or releasing it.
+ * Only release() is guarded, so a double release will not put
+ * the packet in the cache twice.
+ * Set VERIFY to true to check for use-after-release.
  */
 class UDPPacket implements CDQEntry {
     private RouterContext _context;
     private final DatagramPacket _packet;
-    private volatile short _priority;
-    private volatile long _initializeTime;
+    private short _priority;
+    private long _initializeTime;
     //private volatile long _expiration;
     private final byte[] _data;
+    /** IV and length, the end of the MAC input; the payload is MACed in place */
     private final byte[] _validateBuf;
     private final byte[] _ivBuf;
-    private volatile int _markedType;
+    private int _markedType;
     private RemoteHostId _remoteHost;
-    private boolean _released;
-    //private volatile Exception _releasedBy;
-    //private volatile Exception _acquiredBy;
+    private final AtomicBoolean _released = new AtomicBoolean();
+    /** VERIFY only */
+    private volatile Exception _releasedBy;
     private long _enqueueTime;
     private long _receivedTime;
     //private long _beforeValidate;
@@ -57,6 +69,12 @@ class UDPPacket implements CDQEntry {
     private static final TryCache<UDPPacket> _packetCache;
     private static final TryCache.ObjectFactory<UDPPacket> _packetFactory;
     private static final boolean CACHE = true;
+    /**
+     *  Debugging only. Check for use after release on every accessor,
+     *  and log where it was released.
+     *  @since 0.9.40
+     */
+    private static final boolean VERIFY = false;
     private static final int MIN_CACHE_SIZE = 64;
     private static final int MAX_CACHE_SIZE = 256;
     static {
@@ -132,19 +150,17 @@ class UDPPacket implements CDQEntry {
     
     public static final byte BITFIELD_CONTINUATION = (byte)(1 << 7);
     
-    private static final int MAX_VALIDATE_SIZE = MAX_PACKET_SIZE;
-
     private UDPPacket(RouterContext ctx) {
         //ctx.statManager().createRateStat("udp.fetchRemoteSlow", "How long it takes to grab the remote ip info", "udp", UDPTransport.RATES);
         // the data buffer is clobbered on init(..), but we need it to bootstrap
         _data = new byte[MAX_PACKET_SIZE];
         _packet = new DatagramPacket(_data, MAX_PACKET_SIZE);
-        _validateBuf = new byte[MAX_VALIDATE_SIZE];
+        _validateBuf = new byte[IV_SIZE + 2];
         _ivBuf = new byte[IV_SIZE];
         init(ctx);
     }
 
-    private synchronized void init(RouterContext ctx) {
+    private void init(RouterContext ctx) {
         _context = ctx;
         //_dataBuf = _dataCache.acquire();
         Arrays.fill(_data, (byte)0);
@@ -160,7 +176,9 @@ class UDPPacket implements CDQEntry {
         _markedType = -1;
         _validateCount = 0;
         _remoteHost = null;
-        _released = false;
+        if (VERIFY)
+            _releasedBy = null;
+        _released.set(false);
         // clear out some values to make debugging easier via toString()
         _messageType = -1;
         _enqueueTime = 0;
@@ -177,21 +195,38 @@ class UDPPacket implements CDQEntry {
     }
   ****/
 
+    /**
+     *  NIO receive.
+     *  Copy the data from buf (position to limit) into the packet,
+     *  and set the remote address.
+     *
+     *  @param buf flipped, length must be less than MAX_PACKET_SIZE
+     *  @since 0.9.40
+     */
+    void setReceived(ByteBuffer buf, InetSocketAddress from) {
+        verifyNotReleased();
+        int len = buf.remaining();
+        buf.get(_data, 0, len);
+        _packet.setLength(len);
+        _packet.setAddress(from.getAddress());
+        _packet.setPort(from.getPort());
+    }
+
     /** */
-    public synchronized DatagramPacket getPacket() { verifyNotReleased(); return _packet; }
-    public synchronized short getPriority() { verifyNotReleased(); return _priority; }
+    public DatagramPacket getPacket() { verifyNotReleased(); return _packet; }
+    public short getPriority() { verifyNotReleased(); return _priority; }
     //public long getExpiration() { verifyNotReleased(); return _expiration; }
-    public synchronized long getBegin() { verifyNotReleased(); return _initializeTime; }
+    public long getBegin() { verifyNotReleased(); return _initializeTime; }
     public long getLifetime() { /** verifyNotReleased(); */ return _context.clock().now() - _initializeTime; }
-    public synchronized void resetBegin() { _initializeTime = _context.clock().now(); }
+    public void resetBegin() { _initializeTime = _context.clock().now(); }
     /** flag this packet as a particular type for accounting purposes */
-    public synchronized void markType(int type) { verifyNotReleased(); _markedType = type; }
+    public void markType(int type) { verifyNotReleased(); _markedType = type; }
     /** 
      * flag this packet as a particular type for accounting purposes, with
      * 1 implying the packet is an ACK, otherwise it is a data packet
      *
      */
-    public synchronized int getMarkedType() { verifyNotReleased(); return _markedType; }
+    public int getMarkedType() { verifyNotReleased(); return _markedType; }
     
     private int _messageType;
     private int _fragmentCount;
@@ -206,7 +241,7 @@ class UDPPacket implements CDQEntry {
     /** only for debugging and stats */
     void setFragmentCount(int count) { _fragmentCount = count; }
 
-    synchronized RemoteHostId getRemoteHost() {
+    RemoteHostId getRemoteHost() {
         if (_remoteHost == null) {
             //long before = System.currentTimeMillis();
             InetAddress addr = _packet.getAddress();
@@ -225,41 +260,41 @@ class UDPPacket implements CDQEntry {
      * MAC matches, false otherwise.
      *
      */
-    public synchronized boolean validate(SessionKey macKey) {
+    public boolean validate(SessionKey macKey) {
         verifyNotReleased(); 
         //_beforeValidate = _context.clock().now();
         boolean eq = false;
-        Arrays.fill(_validateBuf, (byte)0);
         
         // validate by comparing _data[0:15] and
         // HMAC(payload + IV + (payloadLength ^ protocolVersion), macKey)
         
         int payloadLength = _packet.getLength() - MAC_SIZE - IV_SIZE;
         if (payloadLength > 0) {
-            int off = 0;
-            System.arraycopy(_data, _packet.getOffset() + MAC_SIZE + IV_SIZE, _validateBuf, off, payloadLength);
-            off += payloadLength;
-            System.arraycopy(_data, _packet.getOffset() + MAC_SIZE, _validateBuf, off, IV_SIZE);
-            off += IV_SIZE;
-            DataHelper.toLong(_validateBuf, off, 2, payloadLength /* ^ PacketBuilder.PROTOCOL_VERSION */ );
-            off += 2;
+            // MAC the payload in place, followed by the IV and length,
+            // instead of copying the payload to a buffer
+            int payloadOffset = _packet.getOffset() + MAC_SIZE + IV_SIZE;
+            System.arraycopy(_data, _packet.getOffset() + MAC_SIZE, _validateBuf, 0, IV_SIZE);
+            DataHelper.toLong(_validateBuf, IV_SIZE, 2, payloadLength /* ^ PacketBuilder.PROTOCOL_VERSION */ );
 
-            eq = _context.hmac().verify(macKey, _validateBuf, 0, off, _data, _packet.getOffset(), MAC_SIZE);
+            eq = _context.hmac().verify(macKey, _data, payloadOffset, payloadLength,
+                                        _validateBuf, 0, _validateBuf.length,
+                                        _data, _packet.getOffset(), MAC_SIZE);
 
             if (!eq) {
                 // this is relatively frequent, as you can get old keys in PacketHandler.
                 Log log = _context.logManager().getLog(UDPPacket.class);
                 if (log.shouldLog(Log.INFO)) {
                     byte[] calc = new byte[32];
-                    _context.hmac().calculate(macKey, _validateBuf, 0, off, calc, 0);
+                    _context.hmac().calculate(macKey, _data, payloadOffset, payloadLength,
+                                              _validateBuf, 0, _validateBuf.length, calc, 0);
                     StringBuilder str = new StringBuilder(512);
                     str.append("Bad HMAC:\n\t");
                     str.append(_packet.getLength()).append(" byte pkt, ");
                     str.append(payloadLength).append(" byte payload");
                     str.append("\n\tFrom: ").append(getRemoteHost().toString());
-                    str.append("\n\tIV:   ").append(Base64.encode(_validateBuf, payloadLength, IV_SIZE));
+                    str.append("\n\tIV:   ").append(Base64.encode(_validateBuf, 0, IV_SIZE));
                     str.append("\n\tIV2:  ").append(Base64.encode(_data, MAC_SIZE, IV_SIZE));
-                    str.append("\n\tGiven Len: ").append(DataHelper.fromLong(_validateBuf, payloadLength + IV_SIZE, 2));
+                    str.append("\n\tGiven Len: ").append(DataHelper.fromLong(_validateBuf, IV_SIZE, 2));
                     str.append("\n\tCalc HMAC: ").append(Base64.encode(calc, 0, MAC_SIZE));
                     str.append("\n\tRead HMAC: ").append(Base64.encode(_data, _packet.getOffset(), MAC_SIZE));
                     str.append("\n\tUsing key: ").append(macKey.toBase64());
@@ -288,7 +323,7 @@ class UDPPacket implements CDQEntry {
      * with the decrypted data (leaving the MAC and IV unaltered)
      * 
      */
-    public synchronized void decrypt(SessionKey cipherKey) {
+    public void decrypt(SessionKey cipherKey) {
         verifyNotReleased(); 
         System.arraycopy(_data, MAC_SIZE, _ivBuf, 0, IV_SIZE);
         int len = _packet.getLength();
@@ -311,7 +346,7 @@ class UDPPacket implements CDQEntry {
     public void setEnqueueTime(long now) { _enqueueTime = now; }
 
     /** a packet handler has pulled it off the inbound queue */
-    synchronized void received() { _receivedTime = _context.clock().now(); }
+    void received() { _receivedTime = _context.clock().now(); }
 
     /** a packet handler has decrypted and verified the packet and is about to parse out the good bits */
     //void beforeReceiveFragments() { _beforeReceiveFragments = _context.clock().now(); }
@@ -325,7 +360,7 @@ class UDPPacket implements CDQEntry {
     public long getEnqueueTime() { return _enqueueTime; }
 
     /** a packet handler has pulled it off the inbound queue */
-    synchronized long getTimeSinceReceived() { return (_receivedTime > 0 ? _context.clock().now() - _receivedTime : 0); }
+    long getTimeSinceReceived() { return (_receivedTime > 0 ? _context.clock().now() - _receivedTime : 0); }
 
     /** a packet handler has decrypted and verified the packet and is about to parse out the good bits */
     //long getTimeSinceReceiveFragments() { return (_beforeReceiveFragments > 0 ? _context.clock().now() - _beforeReceiveFragments : 0); }
@@ -340,7 +375,7 @@ class UDPPacket implements CDQEntry {
      *  @deprecated unused
      */
     @Deprecated
-    public synchronized void requestInboundBandwidth() {
+    public void requestInboundBandwidth() {
         verifyNotReleased();
         _bandwidthRequest = _context.bandwidthLimiter().requestInbound(_packet.getLength(), "UDP receiver");
     }
@@ -351,9 +386,9 @@ class UDPPacket implements CDQEntry {
      *  Call before enqueueing.
      *  @since 0.9.21
      */
-    public synchronized void requestOutboundBandwidth() {
+    public void requestOutboundBandwidth() {
         verifyNotReleased();
-        _bandwidthRequest = _context.bandwidthLimiter().requestOutbound(_packet.getLength(), 0, "UDP sender");
+        _bandwidthRequest = _context.bandwidthLimiter().requestOutbound(_packet.getLength(), 0, "UDP sender", UDPTransport.STYLE);
     }
     
     /**
@@ -362,7 +397,7 @@ class UDPPacket implements CDQEntry {
      *  Call after dequeueing.
      *  @since 0.9.21
      */
-    public synchronized FIFOBandwidthLimiter.Request getBandwidthRequest() {
+    public FIFOBandwidthLimiter.Request getBandwidthRequest() {
         verifyNotReleased();
         return _bandwidthRequest;
     }
@@ -426,12 +461,17 @@ class UDPPacket implements CDQEntry {
         release();
     }
 
-    public synchronized void release() {
-        verifyNotReleased();
-        _released = true;
-        //_releasedBy = new Exception("released by");
-        //_acquiredBy = null;
-        //
+    /**
+     *  The only guarded method. As of 0.9.40, a second release is logged and ignored,
+     *  and the packet is not returned to the cache twice.
+     */
+    public void release() {
+        if (!_released.compareAndSet(false, true)) {
+            checkNotReleased();
+            return;
+        }
+        if (VERIFY)
+            _releasedBy = new Exception("released by");
         //_dataCache.release(_dataBuf);
         if (_bandwidthRequest != null) {
             synchronized(_bandwidthRequest) {
@@ -456,13 +496,26 @@ class UDPPacket implements CDQEntry {
         }
     }
 
-    private synchronized void verifyNotReleased() {
+    /**
+     *  No-op unless VERIFY is true.
+     */
+    private void verifyNotReleased() {
+        if (!VERIFY) return;
+        checkNotReleased();
+    }
+
+    /**
+     *  Unconditional check
+     *  @since 0.9.40
+     */
+    private void checkNotReleased() {
         if (!CACHE) return;
-        if (_released) {
+        if (_released.get()) {
             Log log = _context.logManager().getLog(UDPPacket.class);
             log.error("Already released", new Exception());
-            //log.log(Log.CRIT, "Released by: ", _releasedBy);
-            //log.log(Log.CRIT, "Acquired by: ", _acquiredBy);
+            Exception by = _releasedBy;
+            if (by != null)
+                log.error("Released by: ", by);
         }
     }
 }
@@ -3,7 +3,14 @@ package net.i2p.router.transport.udp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 
 import net.i2p.router.RouterContext;
 import net.i2p.router.transport.FIFOBandwidthLimiter;
@@ -21,32 +28,69 @@ import net.i2p.util.SystemVersion;
  * There is a UDPReceiver for each UDPEndpoint.
  * It contains a thread but no queue. Received packets are queued
  * in the common PacketHandler queue.
+ *
+ * As of 0.9.40, a UDPReceiver may instead read from a non-blocking
+ * DatagramChannel, draining everything available after each select
+ * and queueing it to the PacketHandler as a batch.
+ * With SO_REUSEPORT there may be several of these per UDPEndpoint.
  */
 class UDPReceiver {
     private final RouterContext _context;
     private final Log _log;
     private final DatagramSocket _socket;
+    /** non-null for NIO mode, and then _socket is null */
+    private final DatagramChannel _channel;
     private String _name;
     private volatile boolean _keepRunning;
-    private final Runner _runner;
+    private final Runnable _runner;
+    private volatile Selector _selector;
     private final UDPTransport _transport;
     private final PacketHandler _handler;
     private final SocketListener _endpoint;
 
     private static final boolean _isAndroid = SystemVersion.isAndroid();
+    /** max packets to read from the channel before handing off */
+    private static final int MAX_BATCH = 64;
+    /** so we notice shutdown */
+    private static final long SELECT_TIMEOUT = 1000;
 
     public UDPReceiver(RouterContext ctx, UDPTransport transport, DatagramSocket socket, String name,
                        SocketListener lsnr) {
+        this(ctx, transport, socket, null, name, lsnr);
+    }
+
+    /**
+     *  NIO mode. The channel must be non-blocking.
+     *
+     *  @since 0.9.40
+     */
+    public UDPReceiver(RouterContext ctx, UDPTransport transport, DatagramChannel channel, String name,
+                       SocketListener lsnr) {
+        this(ctx, transport, null, channel, name, lsnr);
+    }
+
+    /**
+     *  @param socket non-null unless channel is non-null
+     *  @since 0.9.40
+     */
+    private UDPReceiver(RouterContext ctx, UDPTransport transport, DatagramSocket socket,
+                        DatagramChannel channel, String name, SocketListener lsnr) {
         _context = ctx;
         _log = ctx.logManager().getLog(UDPReceiver.class);
         _name = name;
         _socket = socket;
+        _channel = channel;
         _transport = transport;
         _endpoint = lsnr;
         _handler = transport.getPacketHandler();
         if (_handler == null)
             throw new IllegalStateException();
-        _runner = new Runner();
+        if (channel != null) {
+            _runner = new ChannelRunner();
+            _context.statManager().createRateStat("udp.receiveBatch", "How many packets read per select", "udp", UDPTransport.RATES);
+        } else {
+            _runner = new Runner();
+        }
         //_context.statManager().createRateStat("udp.receivePacketSize", "How large packets received are", "udp", UDPTransport.RATES);
         //_context.statManager().createRateStat("udp.receiveRemaining", "How many packets are left sitting on the receiver's queue", "udp", UDPTransport.RATES);
         //_context.statManager().createRateStat("udp.droppedInbound", "How many packet are queued up but not yet received when we drop", "udp", UDPTransport.RATES);
@@ -67,6 +111,9 @@ class UDPReceiver {
     
     public synchronized void shutdown() {
         _keepRunning = false;
+        Selector sel = _selector;
+        if (sel != null)
+            sel.wakeup();
     }
     
 /*********
@@ -208,6 +255,54 @@ class UDPReceiver {
 ****/
     }
     
+    /**
+     * NIO mode. Drop-list filter the packets, then queue the remainder
+     * all at once.
+     * BLOCKING if queue between here and PacketHandler is full.
+     *
+     * @param packets will be cleared on return
+     * @since 0.9.40
+     */
+    private void receive(List<UDPPacket> packets) {
+        if (!_keepRunning) {
+            for (int i = 0; i < packets.size(); i++) {
+                packets.get(i).release();
+            }
+            packets.clear();
+            return;
+        }
+        byte[] ourIP = _transport.getExternalIP();
+        boolean allowLocal = _transport.allowLocal();
+        for (int i = packets.size() - 1; i >= 0; i--) {
+            UDPPacket packet = packets.get(i);
+            if (_log.shouldLog(Log.INFO))
+                _log.info("Received: " + packet);
+            RemoteHostId from = packet.getRemoteHost();
+            if (_transport.isInDropList(from)) {
+                if (_log.shouldLog(Log.INFO))
+                    _log.info("Ignoring packet from the drop-listed peer: " + from);
+                _context.statManager().addRateData("udp.ignorePacketFromDroplist", packet.getLifetime());
+                packet.release();
+                packets.remove(i);
+            } else if (Arrays.equals(from.getIP(), ourIP) && !allowLocal) {
+                // drop anything apparently from our IP (any port)
+                if (_log.shouldLog(Log.WARN))
+                    _log.warn("Dropping (spoofed?) packet from ourselves");
+                packet.release();
+                packets.remove(i);
+            }
+        }
+        if (packets.isEmpty())
+            return;
+        try {
+            _handler.queueReceived(packets);
+        } catch (InterruptedException ie) {
+            // some may have been queued, we can't tell which, so don't release
+            _keepRunning = false;
+        }
+        packets.clear();
+    }
+
   /****
     private class ArtificiallyDelayedReceive implements SimpleTimer.TimedEvent {
         private UDPPacket _packet;
@@ -265,7 +360,7 @@ class UDPReceiver {
                         //FIFOBandwidthLimiter.Request req = _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
                         //_context.bandwidthLimiter().requestInbound(req, size, "UDP receiver");
                         FIFOBandwidthLimiter.Request req =
-                              _context.bandwidthLimiter().requestInbound(size, "UDP receiver");
+                              _context.bandwidthLimiter().requestInbound(size, "UDP receiver", UDPTransport.STYLE);
                         // failsafe, don't wait forever
                         int waitCount = 0;
                         while (req.getPendingRequested() > 0 && waitCount++ < 5) {
@@ -326,4 +421,116 @@ class UDPReceiver {
         }
       *****/
     }
+
+    /**
+     *  NIO mode.
+     *  Select, then read everything available into a batch, up to MAX_BATCH,
+     *  using a single direct buffer for all reads.
+     *
+     *  @since 0.9.40
+     */
+    private class ChannelRunner implements Runnable {
+
+        public void run() {
+            Selector selector = null;
+            try {
+                selector = Selector.open();
+                _channel.register(selector, SelectionKey.OP_READ);
+            } catch (IOException ioe) {
+                _log.error("Unable to open selector for " + _endpoint, ioe);
+                if (selector != null)
+                    try { selector.close(); } catch (IOException e) {}
+                if (_keepRunning) {
+                    _keepRunning = false;
+                    _endpoint.fail();
+                }
+                return;
+            }
+            _selector = selector;
+            ByteBuffer buf = ByteBuffer.allocateDirect(UDPPacket.MAX_PACKET_SIZE);
+            List<UDPPacket> batch = new ArrayList<UDPPacket>(MAX_BATCH);
+            while (_keepRunning) {
+                // block before we read...
+                while (!_context.throttle().acceptNetworkMessage())
+                    try { Thread.sleep(10); } catch (InterruptedException ie) {}
+
+                try {
+                    selector.select(SELECT_TIMEOUT);
+                    selector.selectedKeys().clear();
+                    int total = 0;
+                    for (int i = 0; i < MAX_BATCH; i++) {
+                        buf.clear();
+                        InetSocketAddress from = (InetSocketAddress) _channel.receive(buf);
+                        if (from == null)
+                            break;
+                        buf.flip();
+                        int size = buf.remaining();
+                        if (size >= UDPPacket.MAX_PACKET_SIZE) {
+                            // DatagramChannel javadocs: the remainder of the datagram is silently discarded.
+                            if (_log.shouldLog(Log.WARN))
+                                _log.warn("packet too large! truncated and dropped from: " + from);
+                            continue;
+                        }
+                        if (size == 0) {
+                            _context.statManager().addRateData("udp.receiveHolePunch", 1);
+                            // nat hole punch packets are 0 bytes
+                            if (_log.shouldLog(Log.INFO))
+                                _log.info("Received a 0 byte udp packet from " + from);
+                            _transport.getEstablisher().receiveHolePunch(from.getAddress(), from.getPort());
+                            continue;
+                        }
+                        UDPPacket packet = UDPPacket.acquire(_context, true);
+                        packet.setReceived(buf, from);
+                        packet.resetBegin();
+                        batch.add(packet);
+                        total += size;
+                    }
+                    if (batch.isEmpty())
+                        continue;
+                    _context.statManager().addRateData("udp.receiveBatch", batch.size());
+                    if (_context.commSystem().isDummy()) {
+                        // testing
+                        for (int i = 0; i < batch.size(); i++) {
+                            batch.get(i).release();
+                        }
+                        batch.clear();
+                        continue;
+                    }
+                    // one bandwidth request for the whole batch
+                    FIFOBandwidthLimiter.Request req =
+                          _context.bandwidthLimiter().requestInbound(total, "UDP receiver", UDPTransport.STYLE);
+                    // failsafe, don't wait forever
+                    int waitCount = 0;
+                    while (req.getPendingRequested() > 0 && waitCount++ < 5) {
+                        req.waitForNextAllocation();
+                    }
+                    if (waitCount >= 5) {
+                        // tell FBL we didn't receive it, but receive it anyway
+                        req.abort();
+                        _context.statManager().addRateData("udp.receiveFailsafe", 1);
+                    }
+                    receive(batch);
+                } catch (IOException ioe) {
+                    if (_log.shouldLog(Log.WARN))
+                        _log.warn("Error receiving", ioe);
+                    for (int i = 0; i < batch.size(); i++) {
+                        batch.get(i).release();
+                    }
+                    batch.clear();
+                    if (!_channel.isOpen()) {
+                        if (_keepRunning) {
+                            _keepRunning = false;
+                            _endpoint.fail();
+                        }
+                    } else if (_keepRunning) {
+                        try { Thread.sleep(100); } catch (InterruptedException ie) {}
+                    }
+                }
+            }
+            _selector = null;
+            try { selector.close(); } catch (IOException ioe) {}
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Stop receiving on " + _endpoint);
+        }
+    }
 }
@@ -3,6 +3,9 @@ package net.i2p.router.transport.udp;
 import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 import java.util.concurrent.BlockingQueue;
 
 import net.i2p.router.RouterContext;
@@ -23,6 +26,8 @@ class UDPSender {
     private final RouterContext _context;
     private final Log _log;
     private final DatagramSocket _socket;
+    /** non-null for NIO mode, and then _socket is null */
+    private final DatagramChannel _channel;
     private String _name;
     private final BlockingQueue<UDPPacket> _outboundQueue;
     private volatile boolean _keepRunning;
@@ -37,8 +42,29 @@ class UDPSender {
     // When full, packets back up into the PacketPusher thread, pre-CoDel.
     private static final int MIN_QUEUE_SIZE = 64;
     private static final int MAX_QUEUE_SIZE = 384;
+    /** NIO mode, how many times to retry when the socket send buffer is full */
+    private static final int MAX_SEND_RETRIES = 10;
     
     public UDPSender(RouterContext ctx, DatagramSocket socket, String name, SocketListener lsnr) {
+        this(ctx, socket, null, name, lsnr);
+    }
+
+    /**
+     *  NIO mode. The channel is non-blocking, as it is shared with a UDPReceiver,
+     *  so a DatagramSocket adaptor can't be used for sending.
+     *
+     *  @since 0.9.40
+     */
+    public UDPSender(RouterContext ctx, DatagramChannel channel, String name, SocketListener lsnr) {
+        this(ctx, null, channel, name, lsnr);
+    }
+
+    /**
+     *  @param socket non-null unless channel is non-null
+     *  @since 0.9.40
+     */
+    private UDPSender(RouterContext ctx, DatagramSocket socket, DatagramChannel channel,
+                      String name, SocketListener lsnr) {
         _context = ctx;
         _dummy = false; // ctx.commSystem().isDummy();
         _log = ctx.logManager().getLog(UDPSender.class);
@@ -46,6 +72,9 @@ class UDPSender {
         int qsize = (int) Math.max(MIN_QUEUE_SIZE, Math.min(MAX_QUEUE_SIZE, maxMemory / (1024*1024)));
         _outboundQueue = new CoDelBlockingQueue<UDPPacket>(ctx, "UDP-Sender", qsize);
         _socket = socket;
+        _channel = channel;
+        if (channel != null)
+            _context.statManager().createRateStat("udp.sendBufferFull", "How often the socket send buffer was full", "udp", UDPTransport.RATES);
         _runner = new Runner();
         _name = name;
         _endpoint = lsnr;
@@ -270,7 +299,10 @@ class UDPSender {
                             DatagramPacket dp = packet.getPacket();
                             //if (_log.shouldLog(Log.DEBUG))
                             //    _log.debug("Just before socket.send of " + packet);
-                            _socket.send(dp);
+                            if (_channel != null)
+                                channelSend(dp);
+                            else
+                                _socket.send(dp);
                             //if (_log.shouldLog(Log.DEBUG))
                             //    _log.debug("Just after socket.send of " + packet);
                         //}
@@ -290,7 +322,7 @@ class UDPSender {
                         if (_log.shouldLog(Log.WARN))
                             _log.warn("Error sending to " + packet.getPacket().getAddress(), ioe);
                         _context.statManager().addRateData("udp.sendException", 1, packet.getLifetime());
-                        if (_socket.isClosed()) {
+                        if (_channel != null ? !_channel.isOpen() : _socket.isClosed()) {
                             if (_keepRunning) {
                                 _keepRunning = false;
                                 _endpoint.fail();
@@ -307,6 +339,25 @@ class UDPSender {
             _outboundQueue.clear();
         }
         
+        /**
+         *  NIO mode. Non-blocking send, retry briefly if the socket buffer is full,
+         *  then drop, as UDP would anyway.
+         *
+         *  @since 0.9.40
+         */
+        private void channelSend(DatagramPacket dp) throws IOException {
+            ByteBuffer buf = ByteBuffer.wrap(dp.getData(), dp.getOffset(), dp.getLength());
+            SocketAddress to = dp.getSocketAddress();
+            for (int i = 0; i < MAX_SEND_RETRIES; i++) {
+                if (_channel.send(buf, to) > 0)
+                    return;
+                Thread.yield();
+            }
+            _context.statManager().addRateData("udp.sendBufferFull", 1);
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Send buffer full, dropping packet to " + to);
+        }
+        
         /** @return next packet in queue. Will discard any packet older than MAX_HEAD_LIFETIME */
         private UDPPacket getNextPacket() {
             UDPPacket packet = null;
@@ -76,6 +76,8 @@ public class UDPTransport extends TransportImpl implements TimedWeightedPriority
     private final PeerTestManager _testManager;
     private final IntroductionManager _introManager;
     private final ExpirePeerEvent _expireEvent;
+    /** @since 0.9.40 */
+    private final MTUProber _mtuProber;
     private final PeerTestEvent _testEvent;
     private final PacketBuilder _destroyBuilder;
     private Status _reachabilityStatus;
@@ -264,6 +266,7 @@ public class UDPTransport extends TransportImpl implements TimedWeightedPriority
         //    _flooder = new UDPFlooder(_context, this);
         _expireTimeout = EXPIRE_TIMEOUT;
         _expireEvent = new ExpirePeerEvent();
+        _mtuProber = new MTUProber(_context, this);
         _testManager = new PeerTestManager(_context, this);
         _testEvent = new PeerTestEvent(_context, this, _testManager);
         _reachabilityStatus = Status.UNKNOWN;
@@ -530,6 +533,8 @@ public class UDPTransport extends TransportImpl implements TimedWeightedPriority
         //if (SHOULD_FLOOD_PEERS)
         //    _flooder.startup();
         _expireEvent.setIsAlive(true);
+        if (MTUProber.isEnabled(_context))
+            _mtuProber.setIsAlive(true);
         _reachabilityStatus = Status.UNKNOWN;
         _testEvent.setIsAlive(true); // this queues it for 3-6 minutes in the future...
         boolean v6only = getIPv6Config() == IPV6_ONLY;
@@ -605,6 +610,7 @@ public class UDPTransport extends TransportImpl implements TimedWeightedPriority
             _establisher.shutdown();
         _inboundFragments.shutdown();
         _expireEvent.setIsAlive(false);
+        _mtuProber.setIsAlive(false);
         _testEvent.setIsAlive(false);
         _peersByRemoteHost.clear();
         _peersByIdent.clear();
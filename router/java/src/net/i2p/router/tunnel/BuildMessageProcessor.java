@@ -11,6 +11,7 @@ import net.i2p.data.i2np.BuildRequestRecord;
 import net.i2p.data.i2np.EncryptedBuildRecord;
 import net.i2p.data.i2np.TunnelBuildMessage;
 import net.i2p.router.RouterThrottleImpl;
+import net.i2p.router.util.ConcurrentDecayingBloomFilter;
 import net.i2p.router.util.DecayingBloomFilter;
 import net.i2p.router.util.DecayingHashSet;
 import net.i2p.util.Log;
@@ -73,7 +74,7 @@ public class BuildMessageProcessor {
         }
         if (log.shouldInfo())
             log.info("Selected Bloom filter m = " + m);
-        return new DecayingBloomFilter(ctx, 60*60*1000, 32, "TunnelBMP", m);
+        return new ConcurrentDecayingBloomFilter(ctx, 60*60*1000, 32, "TunnelBMP", m);
     }
 
     /**
@@ -4,6 +4,7 @@ import net.i2p.data.DataHelper;
 import net.i2p.data.Hash;
 import net.i2p.data.SessionKey;
 import net.i2p.data.TunnelId;
+import net.i2p.router.transport.TokenBucket;
 
 /**
  * Defines the general configuration for a hop in a tunnel.
@@ -31,6 +32,8 @@ public class HopConfig {
     private int _oldMessagesProcessed;
     //private int _messagesSent;
     //private int _oldMessagesSent;
+    /** lazily created by TunnelDispatcher */
+    private volatile TokenBucket _bandwidthBucket;
     
     /** IV length for {@link #getReplyIV} */
     public static final int REPLY_IV_LENGTH = 16;
@@ -107,6 +110,15 @@ public class HopConfig {
         _replyIV = iv;
     }
     
+    /**
+     *  The per-tunnel bandwidth sub-bucket, or null if not yet created.
+     *  @since 0.9.40
+     */
+    TokenBucket getBandwidthBucket() { return _bandwidthBucket; }
+
+    /** @since 0.9.40 */
+    void setBandwidthBucket(TokenBucket bucket) { _bandwidthBucket = bucket; }
+
     /** when does this tunnel expire (in ms since the epoch)? */
     public long getExpiration() { return _expiration; }
     public void setExpiration(long when) { _expiration = when; }
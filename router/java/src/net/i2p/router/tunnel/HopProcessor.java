@@ -104,14 +104,15 @@ class HopProcessor {
         return true;
     }
     
+    /**
+     *  CBC encrypt the data in place, with the IV in the first block.
+     *  As of 0.9.40, this is a single call for the whole message,
+     *  so the AES engine can use the hardware-accelerated system cipher
+     *  instead of one call per block.
+     */
     private final void encrypt(byte data[], int offset, int length) {
-        for (int off = offset + IV_LENGTH; off < length; off += IV_LENGTH) {
-            //DataHelper.xor(data, off - IV_LENGTH, data, off, data, off, IV_LENGTH);
-            for (int j = 0; j < IV_LENGTH; j++) {
-                data[off + j] ^= data[(off - IV_LENGTH) + j];
-            }
-            _context.aes().encryptBlock(data, off, _config.getLayerKey(), data, off);
-        }
+        _context.aes().encrypt(data, offset + IV_LENGTH, data, offset + IV_LENGTH,
+                               _config.getLayerKey(), data, offset, length - IV_LENGTH);
     }
     
     private final void updateIV(byte orig[], int offset) {
@@ -114,7 +114,8 @@ class InboundMessageDistributor implements GarlicMessageReceiver.CloveReceiver {
                             if (_log.shouldLog(Log.WARN))
                                 _log.warn("Updating caps for RI " + key + " from \"" +
                                           oldri.getCapabilities() + "\" to \"" + ri.getCapabilities() + '"');
-                            _context.peerManager().setCapabilities(key, ri.getCapabilities());
+                            FloodfillNetworkDatabaseFacade fndf = (FloodfillNetworkDatabaseFacade) _context.netDb();
+                            fndf.setCapabilities(key, ri.getCapabilities());
                         }
                         return;
                     } else if (dsm.getReplyToken() != 0) {
@@ -64,7 +64,7 @@ class OutboundTunnelEndpoint {
             // don't drop it if we are the target
             boolean toUs = _context.routerHash().equals(toRouter);
             if ((!toUs) &&
-                _context.tunnelDispatcher().shouldDropParticipatingMessage(TunnelDispatcher.Location.OBEP, msg.getType(), size))
+                _context.tunnelDispatcher().shouldDropParticipatingMessage(TunnelDispatcher.Location.OBEP, msg.getType(), size, _config))
                 return;
             // this overstates the stat somewhat, but ok for now
             //int kb = (size + 1023) / 1024;
@@ -35,7 +35,7 @@ class ThrottledPumpedTunnelGateway extends PumpedTunnelGateway {
         // for the purpose of estimating outgoing size.
         // We assume that it's the outbound bandwidth that is the issue...
         int size = Math.max(msg.getMessageSize(), 1024/2);
-        if (_context.tunnelDispatcher().shouldDropParticipatingMessage(TunnelDispatcher.Location.IBGW, msg.getType(), size)) {
+        if (_context.tunnelDispatcher().shouldDropParticipatingMessage(TunnelDispatcher.Location.IBGW, msg.getType(), size, _config)) {
             // this overstates the stat somewhat, but ok for now
             int kb = (size + 1023) / 1024;
             for (int i = 0; i < kb; i++)
@@ -0,0 +1,193 @@
+package net.i2p.router.tunnel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import net.i2p.data.Hash;
+import net.i2p.data.i2np.TunnelDataMessage;
+import net.i2p.router.RouterContext;
+import net.i2p.util.I2PThread;
+import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
+
+/**
+ *  Process incoming TunnelDataMessages on dedicated threads,
+ *  instead of on whatever transport thread received them.
+ *
+ *  There are N lanes, each with its own queue and thread.
+ *  Messages are assigned to a lane by tunnel ID, so all messages
+ *  for a tunnel are processed in order by a single thread,
+ *  and the IV validation, layer crypto, and handoff to the transports
+ *  for different tunnels run in parallel.
+ *
+ *  Each lane drains its queue in batches. If a lane's queue is full,
+ *  the message is dropped, as tunnel traffic is best-effort anyway.
+ *
+ *  @since 0.9.40
+ */
+class TransitPipeline {
+    private final RouterContext _context;
+    private final Log _log;
+    private final TunnelDispatcher _dispatcher;
+    private final Lane[] _lanes;
+    private volatile boolean _alive;
+
+    /** number of lanes, 0 to process inline on the transport threads as before */
+    public static final String PROP_LANES = "router.transitThreads";
+    private static final int MAX_LANES = 8;
+    /** max messages queued per lane */
+    public static final String PROP_LANE_QUEUE = "router.transitQueueSize";
+    private static final int DEFAULT_LANE_QUEUE = 512;
+    /** max messages processed per batch */
+    private static final int BATCH_SIZE = 32;
+
+    /**
+     *  @param lanes must be greater than zero
+     */
+    public TransitPipeline(RouterContext ctx, TunnelDispatcher dispatcher, int lanes) {
+        _context = ctx;
+        _log = ctx.logManager().getLog(TransitPipeline.class);
+        _dispatcher = dispatcher;
+        int qsize = Math.max(BATCH_SIZE, ctx.getProperty(PROP_LANE_QUEUE, DEFAULT_LANE_QUEUE));
+        _lanes = new Lane[lanes];
+        for (int i = 0; i < lanes; i++) {
+            _lanes[i] = new Lane(i, qsize);
+        }
+        ctx.statManager().createRateStat("tunnel.transitDropped", "Transit messages dropped, lane queue full (value is lane)",
+                                         "Tunnels", new long[] { 60*1000l, 60*60*1000l });
+    }
+
+    /**
+     *  The configured number of lanes.
+     *  Default is 0 (inline) for 1 or 2 cores, where the extra hop through a queue costs more
+     *  than it gains, otherwise half the cores, up to 4.
+     *
+     *  @return 0 for no pipeline
+     */
+    public static int getLaneCount(RouterContext ctx) {
+        int cores = SystemVersion.getCores();
+        int def = cores >= 4 ? Math.min(4, cores / 2) : 0;
+        int rv = ctx.getProperty(PROP_LANES, def);
+        return Math.max(0, Math.min(MAX_LANES, rv));
+    }
+
+    public synchronized void startup() {
+        _alive = true;
+        for (int i = 0; i < _lanes.length; i++) {
+            I2PThread t = new I2PThread(_lanes[i], "Tunnel transit " + (i+1) + '/' + _lanes.length, true);
+            t.start();
+        }
+    }
+
+    public synchronized void shutdown() {
+        _alive = false;
+        for (int i = 0; i < _lanes.length; i++) {
+            _lanes[i].stop();
+        }
+    }
+
+    /**
+     *  Queue the message on its lane.
+     *
+     *  @return false if dropped
+     */
+    public boolean offer(TunnelDataMessage msg, Hash recvFrom) {
+        if (!_alive)
+            return false;
+        long id = msg.getTunnelId();
+        int lane = (int) ((id ^ (id >>> 32)) & 0x7fffffff) % _lanes.length;
+        boolean rv = _lanes[lane].offer(new Pending(msg, recvFrom, _context.clock().now()));
+        if (!rv) {
+            _context.statManager().addRateData("tunnel.transitDropped", lane);
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Transit lane " + lane + " full, dropping " + msg);
+        }
+        return rv;
+    }
+
+    /**
+     *  @return total messages queued in all lanes
+     */
+    public int getQueueSize() {
+        int rv = 0;
+        for (int i = 0; i < _lanes.length; i++) {
+            rv += _lanes[i].size();
+        }
+        return rv;
+    }
+
+    private static class Pending {
+        public final TunnelDataMessage msg;
+        public final Hash from;
+        public final long queued;
+
+        /** @param msg null for poison */
+        public Pending(TunnelDataMessage msg, Hash from, long queued) {
+            this.msg = msg;
+            this.from = from;
+            this.queued = queued;
+        }
+    }
+
+    private static final Pending POISON = new Pending(null, null, 0);
+
+    private class Lane implements Runnable {
+        private final BlockingQueue<Pending> _queue;
+        private final String _delayStat;
+        private final String _depthStat;
+
+        public Lane(int lane, int qsize) {
+            _queue = new LinkedBlockingQueue<Pending>(qsize);
+            _delayStat = "tunnel.transitLane" + lane + "Delay";
+            _depthStat = "tunnel.transitLane" + lane + "Depth";
+            _context.statManager().createRateStat(_delayStat, "Time transit messages wait in lane " + lane,
+                                                  "Tunnels", new long[] { 60*1000l, 60*60*1000l });
+            _context.statManager().createRateStat(_depthStat, "Transit messages per batch in lane " + lane,
+                                                  "Tunnels", new long[] { 60*1000l, 60*60*1000l });
+        }
+
+        public boolean offer(Pending p) {
+            return _queue.offer(p);
+        }
+
+        public int size() {
+            return _queue.size();
+        }
+
+        public void stop() {
+            _queue.clear();
+            _queue.offer(POISON);
+        }
+
+        public void run() {
+            List<Pending> batch = new ArrayList<Pending>(BATCH_SIZE);
+            while (_alive) {
+                try {
+                    batch.add(_queue.take());
+                } catch (InterruptedException ie) {
+                    continue;
+                }
+                _queue.drainTo(batch, BATCH_SIZE - 1);
+                int sz = batch.size();
+                long now = _context.clock().now();
+                _context.statManager().addRateData(_depthStat, sz);
+                for (int i = 0; i < sz; i++) {
+                    Pending p = batch.get(i);
+                    if (p == POISON) {
+                        batch.clear();
+                        return;
+                    }
+                    _context.statManager().addRateData(_delayStat, now - p.queued);
+                    try {
+                        _dispatcher.dispatchNow(p.msg, p.from);
+                    } catch (RuntimeException re) {
+                        _log.error("Transit lane error", re);
+                    }
+                }
+                batch.clear();
+            }
+        }
+    }
+}
@@ -22,6 +22,7 @@ import net.i2p.router.Router;
 import net.i2p.router.RouterContext;
 import net.i2p.router.Service;
 import net.i2p.router.peermanager.PeerProfile;
+import net.i2p.router.transport.TokenBucket;
 import net.i2p.util.Log;
 
 /**
@@ -85,12 +86,26 @@ public class TunnelDispatcher implements Service {
     /** what is the date/time we last deliberately dropped a tunnel? **/
     //private long _lastDropTime;
     private final TunnelGatewayPumper _pumper;
+    /** null if disabled, i.e. process on the transport threads */
+    private volatile TransitPipeline _transit;
     private final Object _joinParticipantLock = new Object();
 
     /** for shouldDropParticipatingMessage() */
     enum Location {OBEP, PARTICIPANT, IBGW}
 
     private static final long[] RATES = { 10*60*1000l, 60*60*1000l, 3*60*60*1000l, 24*60*60*1000 };
+
+    /**
+     *  Max percentage of the share bandwidth a single participating tunnel may use,
+     *  enforced with a per-tunnel token bucket.
+     *  @since 0.9.40
+     */
+    public static final String PROP_MAX_TUNNEL_SHARE_PCT = "router.maxTunnelSharePercentage";
+    private static final int DEFAULT_MAX_TUNNEL_SHARE_PCT = 50;
+    /** per-tunnel floor, Bps */
+    private static final int MIN_TUNNEL_BPS = 32*1024;
+    /** per-tunnel burst, seconds */
+    private static final int TUNNEL_BURST_SECONDS = 2;
     
     /** Creates a new instance of TunnelDispatcher */
     public TunnelDispatcher(RouterContext ctx) {
@@ -163,6 +178,9 @@ public class TunnelDispatcher implements Service {
         ctx.statManager().createRateStat("tunnel.participatingMessageDropped", 
                                          "Dropped for exceeding share limit", "Tunnels", 
                                          new long[] { 60*1000l, 60*10*1000l });
+        ctx.statManager().createRateStat("tunnel.participatingTunnelDropped", 
+                                         "Dropped for exceeding per-tunnel share limit", "Tunnels", 
+                                         new long[] { 60*1000l, 60*10*1000l });
         // count for console
         ctx.statManager().createRequiredRateStat("tunnel.participatingMessageCount", 
                                          "Number of 1KB participating messages", "Tunnels", 
@@ -521,8 +539,24 @@ public class TunnelDispatcher implements Service {
      * simply honor the instructions.  If we did, unwrap all the layers of 
      * encryption and honor those instructions (within reason).
      *
+     * As of 0.9.40, this is queued for a transit lane thread if enabled,
+     * see TransitPipeline.
      */
     public void dispatch(TunnelDataMessage msg, Hash recvFrom) {
+        TransitPipeline transit = _transit;
+        if (transit != null)
+            transit.offer(msg, recvFrom);
+        else
+            dispatchNow(msg, recvFrom);
+    }
+
+    /**
+     * The processing for dispatch(TunnelDataMessage, Hash),
+     * on the caller's thread.
+     *
+     * @since 0.9.40 split out of dispatch()
+     */
+    void dispatchNow(TunnelDataMessage msg, Hash recvFrom) {
         //long before = System.currentTimeMillis();
         TunnelParticipant participant = _participants.get(msg.getTunnelIdObj());
         if (participant != null) {
@@ -852,6 +886,47 @@ public class TunnelDispatcher implements Service {
         return reject;
     }
 
+    /**
+     * As shouldDropParticipatingMessage(loc, type, length), and then also
+     * enforce the per-tunnel limit, so that a single tunnel can't take all of
+     * the share bandwidth.
+     *
+     * @param cfg the tunnel, non-null
+     * @since 0.9.40
+     */
+    boolean shouldDropParticipatingMessage(Location loc, int type, int length, HopConfig cfg) {
+        if (length <= 0)
+            return false;
+        if (shouldDropParticipatingMessage(loc, type, length))
+            return true;
+        TokenBucket bucket = cfg.getBandwidthBucket();
+        if (bucket == null) {
+            // racy but harmless
+            bucket = createTunnelBucket();
+            cfg.setBandwidthBucket(bucket);
+        }
+        if (bucket.tryConsume(length))
+            return false;
+        if (_log.shouldLog(Log.WARN))
+            _log.warn("Drop part. msg. over tunnel limit " + bucket + ' ' + loc + ' ' + type + ' ' + length +
+                      ' ' + cfg);
+        _context.statManager().addRateData("tunnel.participatingTunnelDropped", 1);
+        return true;
+    }
+
+    /**
+     * @since 0.9.40
+     */
+    private TokenBucket createTunnelBucket() {
+        int maxKBps = Math.min(_context.bandwidthLimiter().getInboundKBytesPerSecond(),
+                               _context.bandwidthLimiter().getOutboundKBytesPerSecond());
+        float share = (float) _context.router().getSharePercentage();
+        int pct = _context.getProperty(PROP_MAX_TUNNEL_SHARE_PCT, DEFAULT_MAX_TUNNEL_SHARE_PCT);
+        int bps = (int) (maxKBps * 1024 * share * pct / 100);
+        bps = Math.max(MIN_TUNNEL_BPS, bps);
+        return new TokenBucket(bps, bps * TUNNEL_BURST_SECONDS);
+    }
+
     //private static final int DROP_BASE_INTERVAL = 40 * 1000;
     //private static final int DROP_RANDOM_BOOST = 10 * 1000;
 
@@ -921,6 +996,12 @@ public class TunnelDispatcher implements Service {
         // Note that we only use the validator for participants and OBEPs, not IBGWs, so
         // this BW estimate will be high by about 33% assuming 2-hop tunnels average
         _validator = new BloomFilterIVValidator(_context, getShareBandwidth(_context));
+        int lanes = TransitPipeline.getLaneCount(_context);
+        if (lanes > 0) {
+            TransitPipeline transit = new TransitPipeline(_context, this, lanes);
+            transit.startup();
+            _transit = transit;
+        }
     }
 
     /** @return in KBps */
@@ -932,6 +1013,10 @@ public class TunnelDispatcher implements Service {
     }
 
     public synchronized void shutdown() {
+        if (_transit != null) {
+            _transit.shutdown();
+            _transit = null;
+        }
         if (_validator != null)
             _validator.destroy();
         _validator = null;
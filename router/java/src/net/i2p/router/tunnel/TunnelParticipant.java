@@ -184,7 +184,7 @@ class TunnelParticipant {
 
     private void send(HopConfig config, TunnelDataMessage msg, RouterInfo ri) {
         if (_context.tunnelDispatcher().shouldDropParticipatingMessage(TunnelDispatcher.Location.PARTICIPANT,
-                                                                       TunnelDataMessage.MESSAGE_TYPE, 1024))
+                                                                       TunnelDataMessage.MESSAGE_TYPE, 1024, config))
             return;
         //_config.incrementSentMessages();
         _context.bandwidthLimiter().sentParticipatingMessage(1024);
@@ -1,8 +1,17 @@
 package net.i2p.router.tunnel.pool;
 
+import java.util.ArrayList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import net.i2p.data.Base64;
@@ -34,7 +43,9 @@ import net.i2p.router.util.CDQEntry;
 import net.i2p.router.util.CoDelBlockingQueue;
 import net.i2p.stat.Rate;
 import net.i2p.stat.RateStat;
+import net.i2p.util.ConcurrentHashSet;
 import net.i2p.util.Log;
+import net.i2p.util.SystemVersion;
 
 /**
  * Handle the received tunnel build message requests and replies,
@@ -51,6 +62,12 @@ import net.i2p.util.Log;
  * There is only one of these objects but there may be multiple
  * threads running it. Instantiated and started by TunnelPoolManager.
  *
+ * As of 0.9.40, the request queue is a CoDel queue, so requests that have
+ * waited too long are dropped before we spend any time on them.
+ * Each handler thread takes a batch of requests from the queue,
+ * decrypts them in parallel on a separate crypto pool,
+ * and then makes the accept/reject decisions for the batch in order.
+ *
  */
 class BuildHandler implements Runnable {
     private final RouterContext _context;
@@ -59,13 +76,17 @@ class BuildHandler implements Runnable {
     private final BuildExecutor _exec;
     private final Job _buildMessageHandlerJob;
     private final Job _buildReplyMessageHandlerJob;
-    private final BlockingQueue<BuildMessageState> _inboundBuildMessages;
+    private final CoDelBlockingQueue<BuildMessageState> _inboundBuildMessages;
+    /** null if disabled */
+    private final ThreadPoolExecutor _decryptPool;
     private final BuildMessageProcessor _processor;
     private final RequestThrottler _requestThrottler;
     private final ParticipatingThrottler _throttler;
     private final BuildReplyHandler _buildReplyHandler;
     private final AtomicInteger _currentLookups = new AtomicInteger();
     private volatile boolean _isRunning;
+    /** the threads in run(), to interrupt on shutdown */
+    private final Set<Thread> _threads = new ConcurrentHashSet<Thread>(4);
     private final Object _startupLock = new Object();
     private ExplState _explState = ExplState.NONE;
 
@@ -99,6 +120,21 @@ class BuildHandler implements Runnable {
 
     private static final long JOB_LAG_LIMIT_TUNNEL = 350;
 
+    /**
+     *  CoDel parameters for the request queue.
+     *  An ElGamal decrypt takes a few ms, not microseconds like a packet,
+     *  and the requestor waits up to REQUEST_TIMEOUT for the whole tunnel,
+     *  so these are much higher than the CoDel defaults.
+     */
+    private static final long CODEL_TARGET = 250;
+    private static final long CODEL_INTERVAL = 1000;
+    /** max requests per handler batch */
+    private static final int MAX_BATCH = 8;
+    /** threads for decrypting requests, 0 to decrypt on the handler threads */
+    public static final String PROP_DECRYPT_THREADS = "router.buildDecryptThreads";
+    private static final int MAX_DECRYPT_THREADS = 8;
+    private static final AtomicInteger __decryptThreadCount = new AtomicInteger();
+
 
     public BuildHandler(RouterContext ctx, TunnelPoolManager manager, BuildExecutor exec) {
         _context = ctx;
@@ -107,8 +143,18 @@ class BuildHandler implements Runnable {
         _exec = exec;
         // Queue size = 12 * share BW / 48K
         int sz = Math.min(MAX_QUEUE, Math.max(MIN_QUEUE, TunnelDispatcher.getShareBandwidth(ctx) * MIN_QUEUE / 48));
-        //_inboundBuildMessages = new CoDelBlockingQueue(ctx, "BuildHandler", sz);
-        _inboundBuildMessages = new LinkedBlockingQueue<BuildMessageState>(sz);
+        _inboundBuildMessages = new CoDelBlockingQueue<BuildMessageState>(ctx, "BuildHandler", sz, CODEL_TARGET, CODEL_INTERVAL);
+        int cores = SystemVersion.getCores();
+        int threads = ctx.getProperty(PROP_DECRYPT_THREADS, cores >= 4 ? Math.min(4, cores / 2) : 0);
+        threads = Math.min(MAX_DECRYPT_THREADS, threads);
+        if (threads > 0) {
+            // use unbounded queue, the handlers never submit more than MAX_BATCH each
+            _decryptPool = new ThreadPoolExecutor(threads, threads, 60*1000, TimeUnit.MILLISECONDS,
+                                                  new LinkedBlockingQueue<Runnable>(), new DecryptThreadFactory(threads));
+            _decryptPool.allowCoreThreadTimeOut(true);
+        } else {
+            _decryptPool = null;
+        }
     
         _context.statManager().createRateStat("tunnel.reject.10", "How often we reject a tunnel probabalistically", "Tunnels", new long[] { 60*1000, 10*60*1000 });
         _context.statManager().createRateStat("tunnel.reject.20", "How often we reject a tunnel because of transient overload", "Tunnels", new long[] { 60*1000, 10*60*1000 });
@@ -116,6 +162,7 @@ class BuildHandler implements Runnable {
         _context.statManager().createRateStat("tunnel.reject.50", "How often we reject a tunnel because of a critical issue (shutdown, etc)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
 
         _context.statManager().createRequiredRateStat("tunnel.decryptRequestTime", "Time to decrypt a build request (ms)", "Tunnels", new long[] { 60*1000, 10*60*1000 });
+        _context.statManager().createRateStat("tunnel.buildHandlerBatch", "Requests per build handler batch", "Tunnels", new long[] { 60*1000, 10*60*1000 });
         _context.statManager().createRateStat("tunnel.rejectTooOld", "Reject tunnel count (too old)", "Tunnels", new long[] { 3*60*60*1000 });
         _context.statManager().createRateStat("tunnel.rejectFuture", "Reject tunnel count (time in future)", "Tunnels", new long[] { 3*60*60*1000 });
         _context.statManager().createRateStat("tunnel.rejectTimeout", "Reject tunnel count (unknown next hop)", "Tunnels", new long[] { 60*60*1000 });
@@ -162,6 +209,8 @@ class BuildHandler implements Runnable {
         ctx.inNetMessagePool().registerHandlerJobBuilder(TunnelBuildReplyMessage.MESSAGE_TYPE, tbrmhjb);
         ctx.inNetMessagePool().registerHandlerJobBuilder(VariableTunnelBuildMessage.MESSAGE_TYPE, tbmhjb);
         ctx.inNetMessagePool().registerHandlerJobBuilder(VariableTunnelBuildReplyMessage.MESSAGE_TYPE, tbrmhjb);
+        // the requestor is waiting for our reply
+        ctx.jobQueue().addFastLane(HandleReq.class);
     }
 
     /**
@@ -202,16 +251,21 @@ class BuildHandler implements Runnable {
 
     /**
      *  Cannot be restarted.
-     *  @param numThreads the number of threads to be shut down
+     *
+     *  As of 0.9.40, interrupts the threads instead of queueing a poison
+     *  message for each, as CoDel may drop queued entries.
+     *
+     *  @param numThreads the number of threads to be shut down, unused as of 0.9.40
      *  @since 0.9
      */
     public synchronized void shutdown(int numThreads) {
         _isRunning = false;
         _inboundBuildMessages.clear();
-        BuildMessageState poison = new BuildMessageState(_context, null, null, null);
-        for (int i = 0; i < numThreads; i++) {
-            _inboundBuildMessages.offer(poison);
+        for (Thread t : _threads) {
+            t.interrupt();
         }
+        if (_decryptPool != null)
+            _decryptPool.shutdownNow();
     }
 
     /**
@@ -220,12 +274,20 @@ class BuildHandler implements Runnable {
      */
     public void run() {
         _isRunning = true;
-        while (_isRunning && !_manager.isShutdown()) {
-            try {
-                handleInboundRequest();
-            } catch (RuntimeException e) {
-                _log.log(Log.CRIT, "B0rked in the tunnel handler", e);
+        _threads.add(Thread.currentThread());
+        List<BuildMessageState> batch = new ArrayList<BuildMessageState>(MAX_BATCH);
+        try {
+            while (_isRunning && !_manager.isShutdown()) {
+                try {
+                    handleInboundRequests(batch);
+                } catch (RuntimeException e) {
+                    _log.log(Log.CRIT, "B0rked in the tunnel handler", e);
+                } finally {
+                    batch.clear();
+                }
             }
+        } finally {
+            _threads.remove(Thread.currentThread());
         }
         if (_log.shouldLog(Log.WARN))
             _log.warn("Done handling");
@@ -233,50 +295,127 @@ class BuildHandler implements Runnable {
     }
 
     /**
-     * Blocking call to handle a single inbound request
+     * Blocking call to handle a batch of inbound requests.
+     * Takes at least one, and whatever else is waiting, up to MAX_BATCH.
+     * CoDel may drop some of them as we take them.
+     *
+     * @param batch empty, caller must clear after
+     * @since 0.9.40, was handleInboundRequest() for a single request
      */
-    private void handleInboundRequest() {
-        BuildMessageState state = null;
-
-            try {
-                state = _inboundBuildMessages.take();
-            } catch (InterruptedException ie) {
-                return;
-            }
-
-            // check for poison
-            if (state.msg == null) {
-                _isRunning = false;
-                return;
-            }
-
-            long now = _context.clock().now();
-            long dropBefore = now - (BuildRequestor.REQUEST_TIMEOUT/4);
-            if (state.recvTime <= dropBefore) {
+    private void handleInboundRequests(List<BuildMessageState> batch) {
+        BuildMessageState state;
+        try {
+            state = _inboundBuildMessages.take();
+        } catch (InterruptedException ie) {
+            return;
+        }
+        batch.add(state);
+        _inboundBuildMessages.drainTo(batch, MAX_BATCH - 1);
+
+        long now = _context.clock().now();
+        long dropBefore = now - (BuildRequestor.REQUEST_TIMEOUT/4);
+        long lag = _context.jobQueue().getMaxLag();
+        // TODO reject instead of drop also for a lower limit? see throttle
+        boolean dropForLag = lag > JOB_LAG_LIMIT_TUNNEL;
+        if (dropForLag) {
+            if (_log.shouldLog(Log.WARN))
+                _log.warn("Dropping " + batch.size() + " tunnel requests, as the job lag is " + lag);
+            _context.statManager().addRateData("router.throttleTunnelCause", lag);
+            _context.throttle().setTunnelStatus(_x("Dropping tunnel requests: High job lag"));
+        }
+        for (int i = batch.size() - 1; i >= 0; i--) {
+            state = batch.get(i);
+            if (dropForLag) {
+                batch.remove(i);
+            } else if (state.recvTime <= dropBefore) {
                 if (_log.shouldLog(Log.WARN))
                     _log.warn("Not even trying to handle/decrypt the request " + state.msg.getUniqueId() 
                               + ", since we received it a long time ago: " + (now - state.recvTime));
                 _context.statManager().addRateData("tunnel.dropLoadDelay", now - state.recvTime);
                 _context.throttle().setTunnelStatus(_x("Dropping tunnel requests: Too slow"));
-                return;
+                batch.remove(i);
             }       
+        }
+        int sz = batch.size();
+        if (sz <= 0)
+            return;
+        _context.statManager().addRateData("tunnel.buildHandlerBatch", sz);
+
+        if (sz == 1 || _decryptPool == null) {
+            for (int i = 0; i < sz; i++) {
+                state = batch.get(i);
+                BuildRequestRecord req = decryptRequest(state);
+                if (req != null)
+                    handleRequest(state, req);
+            }
+            return;
+        }
 
-            long lag = _context.jobQueue().getMaxLag();
-            // TODO reject instead of drop also for a lower limit? see throttle
-            if (lag > JOB_LAG_LIMIT_TUNNEL) {
-                if (_log.shouldLog(Log.WARN))
-                    _log.warn("Dropping tunnel request, as the job lag is " + lag);
-                _context.statManager().addRateData("router.throttleTunnelCause", lag);
-                _context.throttle().setTunnelStatus(_x("Dropping tunnel requests: High job lag"));
-                return;
-            }       
+        // decrypt in parallel, then decide in order
+        List<Future<BuildRequestRecord>> futures = new ArrayList<Future<BuildRequestRecord>>(sz);
+        for (int i = 0; i < sz; i++) {
+            Future<BuildRequestRecord> f;
+            try {
+                f = _decryptPool.submit(new DecryptTask(batch.get(i)));
+            } catch (RejectedExecutionException ree) {
+                // shutdown
+                f = null;
+            }
+            futures.add(f);
+        }
+        for (int i = 0; i < sz; i++) {
+            state = batch.get(i);
+            Future<BuildRequestRecord> f = futures.get(i);
+            BuildRequestRecord req;
+            if (f != null) {
+                try {
+                    req = f.get();
+                } catch (InterruptedException ie) {
+                    return;
+                } catch (ExecutionException ee) {
+                    _log.error("Error decrypting request " + state.msg.getUniqueId(), ee);
+                    continue;
+                }
+            } else {
+                req = decryptRequest(state);
+            }
+            if (req != null)
+                handleRequest(state, req);
+        }
+    }
+
+    /**
+     *  Decrypt on the crypto pool
+     *  @since 0.9.40
+     */
+    private class DecryptTask implements Callable<BuildRequestRecord> {
+        private final BuildMessageState _state;
 
-            handleRequest(state);
+        public DecryptTask(BuildMessageState state) {
+            _state = state;
+        }
 
-        //int remaining = _inboundBuildMessages.size();
-        //if (remaining > 0)
-        //    _context.statManager().addRateData("tunnel.handleRemaining", remaining, 0);
-        //return remaining;
+        public BuildRequestRecord call() {
+            return decryptRequest(_state);
+        }
+    }
+
+    /**
+     *  @since 0.9.40
+     */
+    private static class DecryptThreadFactory implements ThreadFactory {
+        private final int _max;
+
+        public DecryptThreadFactory(int max) {
+            _max = max;
+        }
+
+        public Thread newThread(Runnable r) {
+            Thread rv = Executors.defaultThreadFactory().newThread(r);
+            rv.setName("BuildDecrypt " + __decryptThreadCount.incrementAndGet() + '/' + _max);
+            rv.setDaemon(true);
+            return rv;
+        }
     }
     
     /**
@@ -446,12 +585,13 @@ class BuildHandler implements Runnable {
     }
     
     /**
-     *  Decrypt the request, lookup the RI locally,
-     *  and call handleReq() if found or queue a lookup job.
+     *  Decrypt the request.
+     *  Thread safe, may be called from the decrypt pool.
      *
-     *  @return handle time or -1 if it wasn't completely handled
+     *  @return the decrypted record, or null if it was dropped
+     *  @since 0.9.40 split out of handleRequest()
      */
-    private long handleRequest(BuildMessageState state) {
+    private BuildRequestRecord decryptRequest(BuildMessageState state) {
         long timeSinceReceived = _context.clock().now()-state.recvTime;
         //if (_log.shouldLog(Log.DEBUG))
         //    _log.debug(state.msg.getUniqueId() + ": handling request after " + timeSinceReceived);
@@ -469,7 +609,7 @@ class BuildHandler implements Runnable {
             _context.statManager().addRateData("tunnel.dropLoadDelay", timeSinceReceived);
             if (from != null)
                 _context.commSystem().mayDisconnect(from);
-            return -1;
+            return null;
         }
         // ok, this is not our own tunnel, so we need to do some heavy lifting
         // this not only decrypts the current hop's record, but encrypts the other records
@@ -477,6 +617,7 @@ class BuildHandler implements Runnable {
         long beforeDecrypt = System.currentTimeMillis();
         BuildRequestRecord req = _processor.decrypt(state.msg, _context.routerHash(), _context.keyManager().getPrivateKey());
         long decryptTime = System.currentTimeMillis() - beforeDecrypt;
+        state.decryptTime = decryptTime;
         _context.statManager().addRateData("tunnel.decryptRequestTime", decryptTime);
         if (decryptTime > 500 && _log.shouldLog(Log.WARN))
             _log.warn("Took too long to decrypt the request: " + decryptTime + " for message " + state.msg.getUniqueId() + " received " + (timeSinceReceived+decryptTime) + " ago");
@@ -488,8 +629,21 @@ class BuildHandler implements Runnable {
             _context.statManager().addRateData("tunnel.dropDecryptFail", 1);
             if (from != null)
                 _context.commSystem().mayDisconnect(from);
-            return -1;
         }
+        return req;
+    }
+
+    /**
+     *  Lookup the next hop for a decrypted request,
+     *  and call handleReq() if found or queue a lookup job.
+     *
+     *  @return handle time or -1 if it wasn't completely handled
+     *  @since 0.9.40 split out of handleRequest()
+     */
+    private long handleRequest(BuildMessageState state, BuildRequestRecord req) {
+        Hash from = state.fromHash;
+        if (from == null && state.from != null)
+            from = state.from.calculateHash();
 
         long beforeLookup = System.currentTimeMillis();
         Hash nextPeer = req.readNextIdentity();
@@ -534,7 +688,7 @@ class BuildHandler implements Runnable {
             if (_log.shouldLog(Log.DEBUG))
                 _log.debug("Request " + req + " handled and we know the next peer " 
                            + nextPeer + " after " + handleTime
-                           + "/" + decryptTime + "/" + lookupTime + "/" + timeSinceReceived);
+                           + "/" + state.decryptTime + "/" + lookupTime + "/" + (_context.clock().now() - state.recvTime));
             return handleTime;
         }
     }
@@ -1115,6 +1269,8 @@ class BuildHandler implements Runnable {
         final RouterIdentity from;
         final Hash fromHash;
         final long recvTime;
+        /** set by decryptRequest(), possibly in another thread, read after the Future */
+        long decryptTime;
 
         /**
          *  Either f or h may be null, but both should be null only if
@@ -218,13 +218,14 @@ public abstract class TunnelPeerSelector extends ConnectChecker {
             char excl[] = getExcludeCaps(ctx);
             if (excl != null) {
                 FloodfillNetworkDatabaseFacade fac = (FloodfillNetworkDatabaseFacade)ctx.netDb();
-                List<RouterInfo> known = fac.getKnownRouterData();
+                // only the caps are needed, so we don't have to parse every RouterInfo
+                Set<Hash> known = fac.getAllRouters();
                 if (known != null) {
-                    for (int i = 0; i < known.size(); i++) {
-                        RouterInfo peer = known.get(i);
-                        boolean shouldExclude = shouldExclude(peer, excl);
+                    for (Hash h : known) {
+                        String cap = fac.getRouterInfoCapabilities(h);
+                        boolean shouldExclude = cap != null && shouldExclude(cap, excl);
                         if (shouldExclude) {
-                            peers.add(peer.getIdentity().calculateHash());
+                            peers.add(h);
                             continue;
                         }
                         /*
@@ -454,7 +455,14 @@ public abstract class TunnelPeerSelector extends ConnectChecker {
     //private static final String MIN_VERSION = "0.7.9";
 
     private static boolean shouldExclude(RouterInfo peer, char excl[]) {
-        String cap = peer.getCapabilities();
+        return shouldExclude(peer.getCapabilities(), excl);
+    }
+
+    /**
+     *  @param cap non-null
+     *  @since 0.9.40 split out from shouldExclude(RouterInfo, char[])
+     */
+    private static boolean shouldExclude(String cap, char excl[]) {
         for (int j = 0; j < excl.length; j++) {
             if (cap.indexOf(excl[j]) >= 0) {
                 return true;
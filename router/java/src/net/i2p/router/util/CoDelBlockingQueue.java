@@ -31,6 +31,8 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
     private transient final Log _log;
     private final String _name;
     private final int _capacity;
+    private final long _target;
+    private final long _interval;
 
     // following 4 are state variables defined by sample code, locked by this
     /** Time when we'll declare we're above target (0 if below) */
@@ -56,7 +58,7 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
      *
      *  I2P: Raise to 15 due to multithreading environment
      *
-     *  Maybe need to make configurable per-instance.
+     *  Configurable per-instance as of 0.9.40.
      */
     private static final long TARGET = 15;
 
@@ -64,7 +66,7 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
      *  Quote:
      *  A setting of 100 ms works well across a range of RTTs from 10 ms to 1 second
      *
-     *  Maybe need to make configurable per-instance.
+     *  Configurable per-instance as of 0.9.40.
      */
     private static final long INTERVAL = 100;
     //private static final int MAXPACKET = 512;
@@ -78,11 +80,25 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
      *  @param name for stats
      */
     public CoDelBlockingQueue(I2PAppContext ctx, String name, int capacity) {
+        this(ctx, name, capacity, TARGET, INTERVAL);
+    }
+
+    /**
+     *  For queues where the items take much longer than a packet to process.
+     *
+     *  @param name for stats
+     *  @param target sojourn time target (ms)
+     *  @param interval how long we must be above target before dropping (ms)
+     *  @since 0.9.40
+     */
+    public CoDelBlockingQueue(I2PAppContext ctx, String name, int capacity, long target, long interval) {
         super(capacity);
         _context = ctx;
         _log = ctx.logManager().getLog(CoDelBlockingQueue.class);
         _name = name;
         _capacity = capacity;
+        _target = target;
+        _interval = interval;
         STAT_DROP = ("codel." + name + ".drop").intern();
         STAT_DELAY = ("codel." + name + ".delay").intern();
         ctx.statManager().createRateStat(STAT_DROP, "queue delay of dropped items", "Router", RATES);
@@ -161,8 +177,9 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
     public int drainTo(Collection<? super E> c, int maxElements) {
         int rv = 0;
         E e;
-        while ((e = poll()) != null && rv++ < maxElements) {
+        while (rv < maxElements && (e = poll()) != null) {
             c.add(e);
+            rv++;
         }
         return rv;
     }
@@ -207,13 +224,13 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
         long sojurn = _now - entry.getEnqueueTime();
         _context.statManager().addRateData(STAT_DELAY, sojurn);
         // I2P use isEmpty instead of size() < MAXPACKET
-        if (sojurn < TARGET || isEmpty()) {
+        if (sojurn < _target || isEmpty()) {
             _first_above_time = 0;
         } else {
             if (_first_above_time == 0) {
                 // just went above from below. if we stay above
                 // for at least INTERVAL we'll say it's ok to drop
-                _first_above_time = _now + INTERVAL;
+                _first_above_time = _now + _interval;
             } else if (_now >= _first_above_time) {
                 ok_to_drop = true;
             }
@@ -270,7 +287,7 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
                     }
                 }
             } else if (ok_to_drop &&
-                       (_now - _drop_next < INTERVAL || _now - _first_above_time >= INTERVAL)) {
+                       (_now - _drop_next < _interval || _now - _first_above_time >= _interval)) {
                 // If we get here, then we're not in dropping state. If the sojourn time has been above
                 // target for interval, then we decide whether it's time to enter dropping state.
                 // We do so if we've been either in dropping state recently or above target for a relatively
@@ -287,7 +304,7 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
                 _dropping = true;
                 // If we're in a drop cycle, the drop rate that controlled the queue
                 // on the last cycle is a good starting point to control it now.
-                if (_now - _drop_next < INTERVAL)
+                if (_now - _drop_next < _interval)
                     _count = _count > 2 ? _count - 2 : 1;
                 else
                     _count = 1;
@@ -313,6 +330,6 @@ public class CoDelBlockingQueue<E extends CDQEntry> extends LinkedBlockingQueue<
      *  Caller must synch on this
      */
     private void control_law(long t) {
-        _drop_next = t + (long) (INTERVAL / Math.sqrt(_count));
+        _drop_next = t + (long) (_interval / Math.sqrt(_count));
     }
 }
@@ -0,0 +1,322 @@
+package net.i2p.router.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import net.i2p.I2PAppContext;
+import net.i2p.util.Log;
+
+/**
+ * A DecayingBloomFilter with no lock on the add / check path.
+ *
+ * DBF takes a read lock for every add(), and the write lock to decay,
+ * so all adders stall behind the decay, and the read lock itself is
+ * a point of contention when many threads are adding at once,
+ * as in tunnel IV validation.
+ *
+ * Here, each generation is a bit array in an AtomicLongArray, and bits
+ * are set with compare-and-set. The two generations are in a single
+ * volatile holder, and decay simply replaces the holder, so adders never wait.
+ * The new current generation is the old previous one, cleared first;
+ * an adder that is still looking at the old previous generation
+ * while it is being cleared only loses entries that are being
+ * discarded anyway.
+ *
+ * The bit indexes are taken directly from the (extended) entry bits,
+ * as in BloomSHA1, so entries should be random (IVs, hashes).
+ * Same m and k as DBF, and the same memory usage,
+ * 2 * (2**m) bits or 2**(m-2) bytes.
+ *
+ * The inserted count is not maintained on the add path,
+ * it is estimated from the number of bits set, so
+ * getInsertedCount() and getFalsePositiveRate() are expensive
+ * and only for logging.
+ *
+ * As in DBF, there is a small window where two threads adding the same entry
+ * at the same time may both get a false return.
+ *
+ * @since 0.9.40
+ */
+public class ConcurrentDecayingBloomFilter extends DecayingBloomFilter {
+    private final int _m;
+    private final int _k;
+    private final int _mask;
+    private final byte _extenders[][];
+    private volatile Generations _gens;
+    private final AtomicLong _dups = new AtomicLong();
+
+    private static final int DEFAULT_M = 23;
+    private static final int DEFAULT_K = 11;
+    /** bits in the extended key */
+    private static final int KEY_BITS = 256;
+
+    private static class Generations {
+        public final AtomicLongArray current;
+        public final AtomicLongArray previous;
+
+        public Generations(AtomicLongArray current, AtomicLongArray previous) {
+            this.current = current;
+            this.previous = previous;
+        }
+    }
+
+    /**
+     * Uses default m of 23, memory usage is 2 MB.
+     * @param name just for logging / debugging / stats
+     */
+    public ConcurrentDecayingBloomFilter(I2PAppContext context, int durationMs, int entryBytes, String name) {
+        this(context, durationMs, entryBytes, name, context.getProperty("router.decayingBloomFilterM", DEFAULT_M));
+    }
+
+    /**
+     * Memory usage is 2 * (2**m) bits or 2**(m-2) bytes.
+     *
+     * @param durationMs entries last for at least this long, but no more than twice this long
+     * @param entryBytes how large are the entries to be added?  if this is less than 32 bytes,
+     *                   the entries added will be expanded by concatenating their XORing
+     *                   against with sufficient random values.
+     * @param m filter size exponent, 6 to 29
+     */
+    public ConcurrentDecayingBloomFilter(I2PAppContext context, int durationMs, int entryBytes, String name, int m) {
+        super(durationMs, entryBytes, name, context);
+        if (m < 6 || m > 29)
+            throw new IllegalArgumentException("Bad m " + m);
+        if (entryBytes <= 0)
+            throw new IllegalArgumentException("Bad size");
+        // same as DBF
+        int k = DEFAULT_K;
+        if (m > DEFAULT_M) {
+            k--;
+            if (m > 26)
+                k--;
+        }
+        _m = m;
+        _k = k;
+        _mask = (1 << m) - 1;
+        int numExtenders = (32 + (entryBytes - 1)) / entryBytes - 1;
+        if (numExtenders < 0)
+            numExtenders = 0;
+        _extenders = new byte[numExtenders][entryBytes];
+        for (int i = 0; i < numExtenders; i++)
+            context.random().nextBytes(_extenders[i]);
+        int words = 1 << (m - 6);
+        _gens = new Generations(new AtomicLongArray(words), new AtomicLongArray(words));
+        if (_log.shouldLog(Log.WARN))
+           _log.warn("New CDBF " + name + " m = " + m + " k = " + k + " entryBytes = " + entryBytes +
+                     " numExtenders = " + numExtenders + " cycle (s) = " + (durationMs / 1000));
+        long period = 10 * Math.max(60*1000, durationMs);
+        context.statManager().createRateStat("router.decayingBloomFilter." + name + ".size",
+             "Size", "Router", new long[] { period });
+        context.statManager().createRateStat("router.decayingBloomFilter." + name + ".dups",
+             "1000000 * Duplicates/Size", "Router", new long[] { period });
+        context.statManager().createRateStat("router.decayingBloomFilter." + name + ".log10(falsePos)",
+             "log10 of the false positive rate (must have net.i2p.util.DecayingBloomFilter=DEBUG)",
+             "Router", new long[] { period });
+    }
+
+    @Override
+    public long getCurrentDuplicateCount() { return _dups.get(); }
+
+    /** estimated, expensive, only for logging */
+    @Override
+    public int getInsertedCount() {
+        Generations g = _gens;
+        return estimateCount(g.current) + estimateCount(g.previous);
+    }
+
+    /** expensive, only for logging */
+    @Override
+    public double getFalsePositiveRate() {
+        return falsePositives(_gens.current);
+    }
+
+    /**
+     * @return true if the entry added is a duplicate
+     */
+    @Override
+    public boolean add(byte entry[], int off, int len) {
+        if (entry == null)
+            throw new IllegalArgumentException("Null entry");
+        if (len != _entryBytes)
+            throw new IllegalArgumentException("Bad entry [" + len + ", expected "
+                                               + _entryBytes + "]");
+        return add(entry, off, 0, true);
+    }
+
+    /**
+     * @return true if the entry added is a duplicate.  the number of low order
+     * bits used is determined by the entryBytes parameter used on creation of the
+     * filter.
+     */
+    @Override
+    public boolean add(long entry) {
+        return add(null, 0, entry, true);
+    }
+
+    /**
+     * @return true if the entry is already known.  this does NOT add the
+     * entry however.
+     */
+    @Override
+    public boolean isKnown(long entry) {
+        return add(null, 0, entry, false);
+    }
+
+    /**
+     * @param entry null to use lentry
+     */
+    private boolean add(byte entry[], int off, long lentry, boolean addIfNew) {
+        // extend the entry to 32 bytes, as 4 longs
+        long w0 = 0, w1 = 0, w2 = 0, w3 = 0;
+        for (int j = 0; j < 32; j++) {
+            int src = j % _entryBytes;
+            int ext = j / _entryBytes;
+            int b;
+            if (entry != null) {
+                b = entry[off + src];
+            } else {
+                int shift = 8 * (_entryBytes - 1 - src);
+                b = shift < 64 ? (int) (lentry >>> shift) : 0;
+            }
+            if (ext > 0)
+                b ^= _extenders[ext - 1][src];
+            long v = b & 0xff;
+            switch (j >> 3) {
+                case 0: w0 = (w0 << 8) | v; break;
+                case 1: w1 = (w1 << 8) | v; break;
+                case 2: w2 = (w2 << 8) | v; break;
+                default: w3 = (w3 << 8) | v; break;
+            }
+        }
+
+        Generations g = _gens;
+        boolean seen;
+        if (addIfNew) {
+            // test-and-set in current, seen if no bits were changed
+            boolean changed = false;
+            for (int i = 0; i < _k; i++) {
+                if (set(g.current, index(w0, w1, w2, w3, i)))
+                    changed = true;
+            }
+            seen = !changed || isMember(g.previous, w0, w1, w2, w3);
+        } else {
+            seen = isMember(g.current, w0, w1, w2, w3) || isMember(g.previous, w0, w1, w2, w3);
+        }
+        if (seen)
+            _dups.incrementAndGet();
+        return seen;
+    }
+
+    /**
+     * The i'th m-bit index from the 256-bit key, wrapping around if k * m &gt; 256
+     */
+    private int index(long w0, long w1, long w2, long w3, int i) {
+        int pos = (i * _m) % KEY_BITS;
+        int bit = pos & 63;
+        int word = pos >>> 6;
+        long v = word(w0, w1, w2, w3, word) << bit;
+        if (bit > 0)
+            v |= word(w0, w1, w2, w3, word + 1) >>> (64 - bit);
+        return (int) (v >>> (64 - _m)) & _mask;
+    }
+
+    private static long word(long w0, long w1, long w2, long w3, int word) {
+        switch (word & 3) {
+            case 0: return w0;
+            case 1: return w1;
+            case 2: return w2;
+            default: return w3;
+        }
+    }
+
+    private boolean isMember(AtomicLongArray bits, long w0, long w1, long w2, long w3) {
+        for (int i = 0; i < _k; i++) {
+            int idx = index(w0, w1, w2, w3, i);
+            if ((bits.get(idx >>> 6) & (1L << (idx & 63))) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return true if we changed it, false if it was already set
+     */
+    private static boolean set(AtomicLongArray bits, int idx) {
+        int word = idx >>> 6;
+        long mask = 1L << (idx & 63);
+        while (true) {
+            long old = bits.get(word);
+            if ((old & mask) != 0)
+                return false;
+            if (bits.compareAndSet(word, old, old | mask))
+                return true;
+        }
+    }
+
+    private static void clear(AtomicLongArray bits) {
+        for (int i = 0; i < bits.length(); i++) {
+            bits.lazySet(i, 0);
+        }
+    }
+
+    private static int bitCount(AtomicLongArray bits) {
+        int rv = 0;
+        for (int i = 0; i < bits.length(); i++) {
+            rv += Long.bitCount(bits.get(i));
+        }
+        return rv;
+    }
+
+    /**
+     *  n = -(m / k) ln(1 - X / m)
+     */
+    private int estimateCount(AtomicLongArray bits) {
+        double size = 1 << _m;
+        double x = bitCount(bits);
+        if (x >= size)
+            return Integer.MAX_VALUE;
+        return (int) (-(size / _k) * Math.log(1 - (x / size)));
+    }
+
+    /**
+     *  (X / m) ** k
+     */
+    private double falsePositives(AtomicLongArray bits) {
+        double fill = bitCount(bits) / (double) (1 << _m);
+        return Math.pow(fill, _k);
+    }
+
+    @Override
+    public synchronized void clear() {
+        Generations g = _gens;
+        clear(g.current);
+        clear(g.previous);
+        _dups.set(0);
+    }
+
+    @Override
+    protected synchronized void decay() {
+        Generations old = _gens;
+        int currentCount = estimateCount(old.current);
+        double fpr = 0d;
+        if (_log.shouldLog(Log.DEBUG) && currentCount > 0)
+            fpr = falsePositives(old.current);
+        AtomicLongArray next = old.previous;
+        clear(next);
+        _gens = new Generations(next, old.current);
+        long dups = _dups.getAndSet(0);
+        if (_log.shouldLog(Log.DEBUG))
+            _log.debug("Decaying the filter " + _name + " after inserting " + currentCount
+                       + " elements and " + dups + " false positives with FPR = " + fpr);
+        _context.statManager().addRateData("router.decayingBloomFilter." + _name + ".size",
+                                           currentCount);
+        if (currentCount > 0)
+            _context.statManager().addRateData("router.decayingBloomFilter." + _name + ".dups",
+                                               1000l*1000*dups/currentCount);
+        if (fpr > 0d) {
+            long exponent = (long) Math.log10(fpr);
+            _context.statManager().addRateData("router.decayingBloomFilter." + _name + ".log10(falsePos)",
+                                               exponent);
+        }
+    }
+}
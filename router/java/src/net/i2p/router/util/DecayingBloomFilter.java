@@ -32,8 +32,6 @@ public class DecayingBloomFilter {
     protected final int _durationMs;
     protected final int _entryBytes;
     private final byte _extenders[][];
-    private final byte _extended[];
-    private final byte _longToEntry[];
     private final long _longToEntryMask;
     protected long _currentDuplicates;
     protected volatile boolean _keepDecaying;
@@ -57,8 +55,6 @@ public class DecayingBloomFilter {
         _durationMs = durationMs;
         // all final
         _extenders = null;
-        _extended = null;
-        _longToEntry = null;
         _longToEntryMask = 0;
         context.addShutdownTask(new Shutdown());
         _keepDecaying = true;
@@ -125,13 +121,9 @@ public class DecayingBloomFilter {
         for (int i = 0; i < numExtenders; i++)
             _context.random().nextBytes(_extenders[i]);
         if (numExtenders > 0) {
-            _extended = new byte[32];
-            _longToEntry = new byte[_entryBytes];
             _longToEntryMask = (1l << (_entryBytes * 8l)) -1;
         } else {
             // final
-            _extended = null;
-            _longToEntry = null;
             _longToEntryMask = 0;
         }
         _keepDecaying = true;
@@ -208,18 +200,10 @@ public class DecayingBloomFilter {
      */
     public boolean add(long entry) {
         if (ALWAYS_MISS) return false;
-        if (_entryBytes <= 7)
-            entry = ((entry ^ _longToEntryMask) & ((1 << 31)-1)) | (entry ^ _longToEntryMask);
-            //entry &= _longToEntryMask; 
-        if (entry < 0) {
-            DataHelper.toLong(_longToEntry, 0, _entryBytes, 0-entry);
-            _longToEntry[0] |= (1 << 7);
-        } else {
-            DataHelper.toLong(_longToEntry, 0, _entryBytes, entry);
-        }
+        byte[] buf = longToEntry(entry);
         getReadLock();
         try {
-            return locked_add(_longToEntry, 0, _longToEntry.length, true);
+            return locked_add(buf, 0, buf.length, true);
         } finally { releaseReadLock(); }
     }
     
@@ -230,28 +214,42 @@ public class DecayingBloomFilter {
      */
     public boolean isKnown(long entry) {
         if (ALWAYS_MISS) return false;
+        byte[] buf = longToEntry(entry);
+        getReadLock();
+        try {
+            return locked_add(buf, 0, buf.length, false);
+        } finally { releaseReadLock(); }
+    }
+
+    /**
+     *  A new buffer each time, as we only hold the read lock
+     *  and other threads may be adding at the same time.
+     *
+     *  @since 0.9.40
+     */
+    private byte[] longToEntry(long entry) {
+        byte[] rv = new byte[_entryBytes];
         if (_entryBytes <= 7)
-            entry = ((entry ^ _longToEntryMask) & ((1 << 31)-1)) | (entry ^ _longToEntryMask); 
+            entry = ((entry ^ _longToEntryMask) & ((1 << 31)-1)) | (entry ^ _longToEntryMask);
+            //entry &= _longToEntryMask; 
         if (entry < 0) {
-            DataHelper.toLong(_longToEntry, 0, _entryBytes, 0-entry);
-            _longToEntry[0] |= (1 << 7);
+            DataHelper.toLong(rv, 0, _entryBytes, 0-entry);
+            rv[0] |= (1 << 7);
         } else {
-            DataHelper.toLong(_longToEntry, 0, _entryBytes, entry);
+            DataHelper.toLong(rv, 0, _entryBytes, entry);
         }
-        getReadLock();
-        try {
-            return locked_add(_longToEntry, 0, _longToEntry.length, false);
-        } finally { releaseReadLock(); }
+        return rv;
     }
     
     private boolean locked_add(byte entry[], int offset, int len, boolean addIfNew) {
-        if (_extended != null) {
-            // extend the entry to 32 bytes
-            System.arraycopy(entry, offset, _extended, 0, len);
+        if (_extenders != null && _extenders.length > 0) {
+            // extend the entry to 32 bytes, in a new buffer, see longToEntry()
+            byte[] extended = new byte[32];
+            System.arraycopy(entry, offset, extended, 0, len);
             for (int i = 0; i < _extenders.length; i++)
-                DataHelper.xor(entry, offset, _extenders[i], 0, _extended, _entryBytes * (i+1), _entryBytes);
+                DataHelper.xor(entry, offset, _extenders[i], 0, extended, _entryBytes * (i+1), _entryBytes);
 
-            BloomSHA1.FilterKey key = _current.getFilterKey(_extended, 0, 32);
+            BloomSHA1.FilterKey key = _current.getFilterKey(extended, 0, 32);
             boolean seen = _current.locked_member(key);
             if (!seen)
                 seen = _previous.locked_member(key);
@@ -0,0 +1,105 @@
+package com.southernstorm.noise.protocol;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.crypto.BadPaddingException;
+
+import com.southernstorm.noise.crypto.Poly1305;
+
+import net.i2p.data.DataHelper;
+
+import org.junit.Test;
+
+/**
+ *  The data phase cipher states from fork() may use the JVM's cipher,
+ *  they must be compatible with the handshake cipher state.
+ *
+ *  @since 0.9.40
+ */
+public class ChaChaPolyCipherStateTest {
+
+    private static final int[] LENGTHS = { 0, 1, 15, 16, 17, 63, 64, 65, 1000, 2047, 2048, 2049, 16384, 65000 };
+
+    @Test
+    public void testForkCompatible() throws Exception {
+        Random rnd = new Random(40);
+        byte[] key = new byte[32];
+        rnd.nextBytes(key);
+        byte[] ad = new byte[32];
+        rnd.nextBytes(ad);
+        CipherState base = new ChaChaPolyCipherState();
+        for (int len : LENGTHS) {
+            CipherState enc = new ChaChaPolyCipherState();
+            enc.initializeKey(key, 0);
+            CipherState enc2 = base.fork(key, 0);
+            CipherState dec = base.fork(key, 0);
+            byte[] plain = new byte[len];
+            rnd.nextBytes(plain);
+            for (int i = 0; i < 3; i++) {
+                byte[] a = (i == 1) ? null : ad;
+                byte[] c1 = new byte[len + 16];
+                assertEquals(len + 16, enc.encryptWithAd(a, plain, 0, c1, 0, len));
+                // in place, at an offset
+                byte[] c2 = new byte[len + 16 + 5];
+                System.arraycopy(plain, 0, c2, 5, len);
+                assertEquals(len + 16, enc2.encryptWithAd(a, c2, 5, c2, 5, len));
+                assertArrayEquals("length " + len, c1, Arrays.copyOfRange(c2, 5, 5 + len + 16));
+                assertEquals(len, dec.decryptWithAd(a, c2, 5, c2, 5, len + 16));
+                assertArrayEquals("length " + len, plain, Arrays.copyOfRange(c2, 5, 5 + len));
+            }
+        }
+    }
+
+    @Test
+    public void testBadTag() throws Exception {
+        byte[] key = new byte[32];
+        CipherState base = new ChaChaPolyCipherState();
+        for (int len : LENGTHS) {
+            CipherState enc = base.fork(key, 0);
+            CipherState dec = base.fork(key, 0);
+            byte[] buf = new byte[len + 16];
+            enc.encryptWithAd(null, buf, 0, buf, 0, len);
+            buf[len + 3] ^= 0x10;
+            try {
+                dec.decryptWithAd(null, buf, 0, new byte[len], 0, len + 16);
+                fail("length " + len);
+            } catch (BadPaddingException expected) {}
+        }
+    }
+
+    /**
+     *  RFC 8439 section 2.5.2
+     */
+    @Test
+    public void testPoly1305() {
+        byte[] key = hex("85d6be7857556d337f4452fe42d506a80103808afb0db2fd4abff6af4149f51b");
+        byte[] msg = DataHelper.getASCII("Cryptographic Forum Research Group");
+        byte[] expected = hex("a8061dc1305136c6c22b8baf0c0127a9");
+        Poly1305 poly = new Poly1305();
+        byte[] tag = new byte[16];
+        poly.reset(key, 0);
+        poly.update(msg, 0, msg.length);
+        poly.finish(tag, 0);
+        assertArrayEquals(expected, tag);
+        // in pieces
+        poly.reset(key, 0);
+        poly.update(msg, 0, 5);
+        poly.update(msg, 5, 20);
+        poly.update(msg, 25, msg.length - 25);
+        poly.finish(tag, 0);
+        assertArrayEquals(expected, tag);
+    }
+
+    private static byte[] hex(String s) {
+        byte[] rv = new byte[s.length() / 2];
+        for (int i = 0; i < rv.length; i++) {
+            rv[i] = (byte) Integer.parseInt(s.substring(i * 2, (i * 2) + 2), 16);
+        }
+        return rv;
+    }
+}
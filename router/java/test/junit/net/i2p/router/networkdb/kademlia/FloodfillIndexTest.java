@@ -0,0 +1,120 @@
+package net.i2p.router.networkdb.kademlia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeSet;
+
+import net.i2p.data.Hash;
+import net.i2p.kademlia.XORComparator;
+
+import org.junit.Test;
+
+/**
+ *  @since 0.9.40
+ */
+public class FloodfillIndexTest {
+
+    private static Hash randomHash(Random rnd) {
+        byte[] b = new byte[Hash.HASH_LENGTH];
+        rnd.nextBytes(b);
+        return new Hash(b);
+    }
+
+    /**
+     *  The old way
+     */
+    private static List<Hash> sort(Set<Hash> peers, Hash key, int max, Set<Hash> toIgnore) {
+        TreeSet<Hash> sorted = new TreeSet<Hash>(new XORComparator<Hash>(key));
+        sorted.addAll(peers);
+        List<Hash> rv = new ArrayList<Hash>(max);
+        for (Hash h : sorted) {
+            if (rv.size() >= max)
+                break;
+            if (toIgnore == null || !toIgnore.contains(h))
+                rv.add(h);
+        }
+        return rv;
+    }
+
+    private static List<Hash> getClosest(FloodfillIndex idx, Hash key, int max, Set<Hash> toIgnore) {
+        List<Hash> rv = new ArrayList<Hash>(max);
+        for (Iterator<Hash> iter = idx.iterator(key); iter.hasNext() && rv.size() < max; ) {
+            Hash h = iter.next();
+            if (toIgnore == null || !toIgnore.contains(h))
+                rv.add(h);
+        }
+        return rv;
+    }
+
+    @Test
+    public void testClosest() {
+        FloodfillIndex idx = new FloodfillIndex();
+        Random rnd = new Random(1);
+        Set<Hash> peers = new HashSet<Hash>();
+        for (int i = 0; i < 300; i++) {
+            Hash h = randomHash(rnd);
+            peers.add(h);
+            idx.add(h);
+        }
+        // duplicates are ignored
+        idx.add(peers.iterator().next());
+        assertEquals(peers.size(), idx.size());
+        assertTrue(idx.contains(peers.iterator().next()));
+
+        // remove some, including one that is not there
+        Iterator<Hash> iter = peers.iterator();
+        for (int i = 0; i < 100; i++) {
+            idx.remove(iter.next());
+            iter.remove();
+        }
+        idx.remove(randomHash(rnd));
+        assertEquals(peers.size(), idx.size());
+
+        Set<Hash> ignore = Collections.singleton(peers.iterator().next());
+        for (int i = 0; i < 50; i++) {
+            Hash key = randomHash(rnd);
+            assertEquals(sort(peers, key, 10, null), getClosest(idx, key, 10, null));
+            assertEquals(sort(peers, key, 10, ignore), getClosest(idx, key, 10, ignore));
+        }
+        assertEquals(peers.size(), getClosest(idx, randomHash(rnd), 1000, null).size());
+    }
+
+    @Test
+    public void testCaps() {
+        FloodfillIndex idx = new FloodfillIndex();
+        Hash h = randomHash(new Random(2));
+        idx.setCapabilities(h, "LfR");
+        assertEquals(1, idx.size());
+        Iterator<Hash> iter = idx.iterator(h);
+        assertTrue(iter.hasNext());
+        assertEquals(h, iter.next());
+        assertFalse(iter.hasNext());
+        idx.setCapabilities(h, "LR");
+        assertEquals(0, idx.size());
+        assertFalse(idx.iterator(h).hasNext());
+    }
+
+    @Test
+    public void testClear() {
+        FloodfillIndex idx = new FloodfillIndex();
+        Random rnd = new Random(3);
+        Hash h = randomHash(rnd);
+        idx.add(h);
+        idx.add(randomHash(rnd));
+        idx.clear();
+        assertEquals(0, idx.size());
+        assertFalse(idx.contains(h));
+        assertFalse(idx.iterator(h).hasNext());
+        idx.add(h);
+        assertEquals(1, idx.size());
+    }
+}
@@ -0,0 +1,86 @@
+package net.i2p.router.networkdb.kademlia;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Map;
+import java.util.Random;
+
+import net.i2p.I2PAppContext;
+import net.i2p.data.Hash;
+import net.i2p.util.FileUtil;
+
+import org.junit.Test;
+
+/**
+ *  @since 0.9.40
+ */
+public class SegmentStoreTest {
+
+    private static Hash[] createKeys(int count) {
+        Random rnd = new Random(1);
+        Hash[] rv = new Hash[count];
+        for (int i = 0; i < count; i++) {
+            byte[] b = new byte[Hash.HASH_LENGTH];
+            rnd.nextBytes(b);
+            rv[i] = new Hash(b);
+        }
+        return rv;
+    }
+
+    @Test
+    public void testLog() throws Exception {
+        I2PAppContext ctx = I2PAppContext.getGlobalContext();
+        File dir = new File(System.getProperty("java.io.tmpdir"), "segmentstoretest-" + ctx.random().nextLong());
+        try {
+            SegmentStore s = new SegmentStore(ctx, dir);
+            assertTrue(s.load().isEmpty());
+            Hash[] keys = createKeys(1000);
+            for (int i = 0; i < keys.length; i++) {
+                byte[] data = new byte[500];
+                data[0] = (byte) i;
+                assertTrue(s.put(keys[i], 100, data));
+            }
+            assertFalse(s.put(keys[0], 99, new byte[1]));
+            assertFalse(s.put(keys[0], 100, new byte[1]));
+            assertTrue(s.put(keys[0], 101, new byte[] { 1, 2, 3 }));
+            assertTrue(s.remove(keys[1]));
+            assertEquals(-1, s.getPublished(keys[1]));
+            assertEquals(101, s.getPublished(keys[0]));
+            s.flush();
+            s.close();
+
+            s = new SegmentStore(ctx, dir);
+            Map<Hash, byte[]> m = s.load();
+            assertEquals(keys.length - 1, m.size());
+            assertArrayEquals(new byte[] { 1, 2, 3 }, m.get(keys[0]));
+            assertFalse(m.containsKey(keys[1]));
+            assertEquals(5, m.get(keys[5])[0]);
+            s.compact();
+            assertEquals(keys.length - 1, s.size());
+            assertArrayEquals(new byte[] { 1, 2, 3 }, s.get(keys[0]));
+            s.close();
+
+            // a partial record at the end is discarded
+            File[] files = dir.listFiles();
+            assertEquals(1, files.length);
+            RandomAccessFile raf = new RandomAccessFile(files[0], "rw");
+            raf.setLength(raf.length() - 10);
+            raf.close();
+            s = new SegmentStore(ctx, dir);
+            assertEquals(keys.length - 2, s.load().size());
+            assertTrue(s.put(keys[1], 200, new byte[10]));
+            s.close();
+
+            s = new SegmentStore(ctx, dir);
+            assertEquals(keys.length - 1, s.load().size());
+            s.close();
+        } finally {
+            FileUtil.rmdir(dir, false);
+        }
+    }
+}
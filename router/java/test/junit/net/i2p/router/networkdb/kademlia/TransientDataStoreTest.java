@@ -0,0 +1,135 @@
+package net.i2p.router.networkdb.kademlia;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.Properties;
+
+import net.i2p.crypto.KeyGenerator;
+import net.i2p.data.Certificate;
+import net.i2p.data.DatabaseEntry;
+import net.i2p.data.Hash;
+import net.i2p.data.PublicKey;
+import net.i2p.data.SigningPrivateKey;
+import net.i2p.data.SigningPublicKey;
+import net.i2p.data.router.RouterAddress;
+import net.i2p.data.router.RouterIdentity;
+import net.i2p.data.router.RouterInfo;
+import net.i2p.router.RouterContext;
+import net.i2p.util.OrderedProperties;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ *  @since 0.9.40
+ */
+public class TransientDataStoreTest {
+
+    private static RouterIdentity _ident;
+    private static SigningPrivateKey _spk;
+
+    @BeforeClass
+    public static void globalSetUp() throws Exception {
+        Object[] keys = KeyGenerator.getInstance().generatePKIKeypair();
+        Object[] skeys = KeyGenerator.getInstance().generateSigningKeypair();
+        _spk = (SigningPrivateKey) skeys[1];
+        _ident = new RouterIdentity();
+        _ident.setCertificate(Certificate.NULL_CERT);
+        _ident.setPublicKey((PublicKey) keys[0]);
+        _ident.setSigningPublicKey((SigningPublicKey) skeys[0]);
+    }
+
+    private static RouterInfo createRouterInfo(long published, String caps) throws Exception {
+        RouterInfo ri = new RouterInfo();
+        OrderedProperties props = new OrderedProperties();
+        props.setProperty("host", "127.0.0.1");
+        props.setProperty("port", "12345");
+        ri.setAddresses(Collections.singletonList(new RouterAddress("NTCP", props, 10)));
+        Properties opts = new Properties();
+        opts.setProperty("caps", caps);
+        opts.setProperty("netId", "2");
+        ri.setOptions(opts);
+        ri.setPublished(published);
+        ri.setIdentity(_ident);
+        ri.sign(_spk);
+        assertTrue(ri.isValid());
+        return ri;
+    }
+
+    private static TransientDataStore createStore(boolean compact) {
+        Properties props = new Properties();
+        props.setProperty(RouterInfoStore.PROP_COMPACT, Boolean.toString(compact));
+        return new TransientDataStore(new RouterContext(null, props));
+    }
+
+    @Test
+    public void testCompact() throws Exception {
+        TransientDataStore ds = createStore(true);
+        Hash h = _ident.calculateHash();
+        RouterInfo ri = createRouterInfo(100000, "LfR");
+        assertTrue(ds.put(h, ri));
+        assertEquals(1, ds.size());
+        assertTrue(ds.isKnown(h));
+        assertEquals(1, ds.getRouterInfoKeys().size());
+        assertTrue(ds.getLeaseSetEntries().isEmpty());
+
+        RouterInfoStore.Entry e = ds.getRouterInfoEntry(h);
+        assertNotNull(e);
+        assertEquals(100000, e.getPublished());
+        assertEquals("LfR", e.getCapabilities());
+        assertEquals("L", e.getBandwidthTier());
+        assertTrue(e.isFloodfill());
+        assertEquals(1, e.getAddressCount());
+        assertTrue(e.hasTransport("NTCP"));
+        assertFalse(e.hasTransport("SSU"));
+
+        DatabaseEntry got = ds.get(h);
+        assertNotSame(ri, got);
+        assertEquals(ri, got);
+        RouterInfo rgot = (RouterInfo) got;
+        assertTrue(rgot.isValid());
+        assertEquals(ri.getOptionsMap(), rgot.getOptionsMap());
+        assertEquals(ri.getAddresses(), rgot.getAddresses());
+
+        // older and duplicate are not stored
+        assertFalse(ds.put(h, createRouterInfo(99999, "O")));
+        assertFalse(ds.put(h, createRouterInfo(100000, "O")));
+        assertEquals("LfR", ds.getRouterInfoEntry(h).getCapabilities());
+        RouterInfo newer = createRouterInfo(100001, "OR");
+        assertTrue(ds.put(h, newer));
+        assertEquals(newer, ds.get(h));
+        assertFalse(ds.getRouterInfoEntry(h).isFloodfill());
+
+        int count = 0;
+        for (DatabaseEntry de : ds.getEntries()) {
+            assertEquals(newer, de);
+            count++;
+        }
+        assertEquals(1, count);
+
+        assertEquals(newer, ds.remove(h));
+        assertNull(ds.get(h));
+        assertNull(ds.getRouterInfoEntry(h));
+        assertEquals(0, ds.size());
+        assertFalse(ds.getEntries().iterator().hasNext());
+    }
+
+    @Test
+    public void testNotCompact() throws Exception {
+        TransientDataStore ds = createStore(false);
+        Hash h = _ident.calculateHash();
+        RouterInfo ri = createRouterInfo(100000, "PR");
+        assertTrue(ds.put(h, ri));
+        assertSame(ri, ds.get(h));
+        assertEquals("P", ds.getRouterInfoEntry(h).getBandwidthTier());
+        assertSame(ri, ds.remove(h));
+        assertEquals(0, ds.size());
+    }
+}
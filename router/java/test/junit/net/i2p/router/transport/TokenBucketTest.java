@@ -0,0 +1,50 @@
+package net.i2p.router.transport;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class TokenBucketTest {
+
+    @Test
+    public void testStartsFull() {
+        TokenBucket b = new TokenBucket(1000, 5000);
+        assertEquals(5000, b.getAvailable());
+    }
+
+    @Test
+    public void testTryConsumeIsAllOrNothing() {
+        TokenBucket b = new TokenBucket(1, 1000);
+        assertTrue(b.tryConsume(600));
+        assertFalse(b.tryConsume(600));
+        assertEquals(400, b.getAvailable());
+        assertTrue(b.tryConsume(400));
+        assertEquals(0, b.getAvailable());
+    }
+
+    @Test
+    public void testConsumeUpToIsPartial() {
+        TokenBucket b = new TokenBucket(1, 1000);
+        assertEquals(700, b.consumeUpTo(700));
+        assertEquals(300, b.consumeUpTo(700));
+        assertEquals(0, b.consumeUpTo(700));
+    }
+
+    @Test
+    public void testRefund() {
+        TokenBucket b = new TokenBucket(1, 1000);
+        assertTrue(b.tryConsume(1000));
+        b.refund(250);
+        assertEquals(250, b.getAvailable());
+    }
+
+    @Test
+    public void testRefillIsCapped() throws InterruptedException {
+        TokenBucket b = new TokenBucket(100000, 1000);
+        assertTrue(b.tryConsume(1000));
+        Thread.sleep(100);
+        int avail = b.getAvailable();
+        assertTrue(avail > 0);
+        assertTrue(avail <= 1000);
+    }
+}
@@ -0,0 +1,79 @@
+package net.i2p.router.transport.udp;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class MTUSearchTest {
+
+    @Test
+    public void testMaxFirst() {
+        MTUSearch s = new MTUSearch(620, 1484, 0);
+        assertEquals(1484, s.nextProbeSize());
+        s.probeSucceeded(1484);
+        assertEquals(1484, s.getConfirmed());
+        assertTrue(s.isComplete());
+        assertEquals(0, s.nextProbeSize());
+    }
+
+    @Test
+    public void testSingleLossIsNotFailure() {
+        MTUSearch s = new MTUSearch(620, 1484, 0);
+        assertEquals(1484, s.nextProbeSize());
+        s.probeFailed(1484);
+        assertEquals(1484, s.nextProbeSize());
+        s.probeSucceeded(1484);
+        assertEquals(1484, s.getConfirmed());
+    }
+
+    @Test
+    public void testConvergesBelowPathMTU() {
+        int path = 1300;
+        MTUSearch s = new MTUSearch(620, 1484, 0);
+        int probes = 0;
+        int size;
+        while ((size = s.nextProbeSize()) > 0) {
+            assertTrue(++probes < 100);
+            assertEquals(12, size % 16);
+            if (size <= path)
+                s.probeSucceeded(size);
+            else
+                s.probeFailed(size);
+        }
+        assertTrue(s.isComplete());
+        int mtu = s.getConfirmed();
+        assertTrue(mtu <= path);
+        assertTrue(mtu > path - 16);
+    }
+
+    @Test
+    public void testHintFirst() {
+        MTUSearch s = new MTUSearch(1280, 1488, 1424);
+        assertEquals(1424, s.nextProbeSize());
+        s.probeSucceeded(1424);
+        assertEquals(1488, s.nextProbeSize());
+    }
+
+    @Test
+    public void testSetMax() {
+        MTUSearch s = new MTUSearch(620, 1484, 0);
+        s.setMax(1000);
+        int size = s.nextProbeSize();
+        assertEquals(988, size);
+        s.probeSucceeded(size);
+        assertTrue(s.isComplete());
+    }
+
+    @Test
+    public void testRestartAndReopen() {
+        MTUSearch s = new MTUSearch(620, 1484, 0);
+        s.probeSucceeded(s.nextProbeSize());
+        s.restart();
+        assertEquals(620, s.getConfirmed());
+        assertEquals(1484, s.nextProbeSize());
+        s.probeSucceeded(1484);
+        s.reopen();
+        assertEquals(1484, s.getConfirmed());
+        assertTrue(s.isComplete());
+    }
+}
@@ -0,0 +1,87 @@
+package net.i2p.router.util;
+
+import static org.junit.Assert.*;
+
+import net.i2p.I2PAppContext;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class ConcurrentDecayingBloomFilterTest {
+    private I2PAppContext _context;
+    private ConcurrentDecayingBloomFilter _filter;
+
+    @Before
+    public void setUp() {
+        _context = I2PAppContext.getGlobalContext();
+        _filter = new ConcurrentDecayingBloomFilter(_context, 10*60*1000, 16, "test", 16);
+    }
+
+    @After
+    public void tearDown() {
+        _filter.stopDecaying();
+    }
+
+    @Test
+    public void testDuplicate() {
+        byte[] iv = new byte[16];
+        _context.random().nextBytes(iv);
+        assertFalse(_filter.add(iv));
+        assertTrue(_filter.add(iv));
+        assertEquals(1, _filter.getCurrentDuplicateCount());
+    }
+
+    @Test
+    public void testOffset() {
+        byte[] buf = new byte[40];
+        _context.random().nextBytes(buf);
+        assertFalse(_filter.add(buf, 7, 16));
+        byte[] iv = new byte[16];
+        System.arraycopy(buf, 7, iv, 0, 16);
+        assertTrue(_filter.add(iv));
+    }
+
+    @Test
+    public void testDecay() {
+        byte[] iv = new byte[16];
+        _context.random().nextBytes(iv);
+        assertFalse(_filter.add(iv));
+        _filter.decay();
+        // still in the previous generation
+        assertTrue(_filter.add(iv));
+        _filter.decay();
+        // re-added above
+        assertTrue(_filter.add(iv));
+        _filter.decay();
+        _filter.decay();
+        assertFalse(_filter.add(iv));
+    }
+
+    @Test
+    public void testLong() {
+        ConcurrentDecayingBloomFilter filter = new ConcurrentDecayingBloomFilter(_context, 10*60*1000, 8, "test", 16);
+        long id = _context.random().nextLong();
+        assertFalse(filter.isKnown(id));
+        assertFalse(filter.add(id));
+        assertTrue(filter.isKnown(id));
+        assertTrue(filter.add(id));
+        filter.clear();
+        assertFalse(filter.isKnown(id));
+        filter.stopDecaying();
+    }
+
+    @Test
+    public void testFewFalsePositives() {
+        byte[] iv = new byte[16];
+        int dups = 0;
+        for (int i = 0; i < 2000; i++) {
+            _context.random().nextBytes(iv);
+            if (_filter.add(iv))
+                dups++;
+        }
+        assertTrue(dups < 5);
+        int count = _filter.getInsertedCount();
+        assertTrue(count > 1800 && count < 2200);
+    }
+}